@@ -0,0 +1,118 @@
+package pcbe.stock.archive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import pcbe.stock.model.Transaction;
+
+/**
+ * The scans of a {@link TransactionArchive} against the same computations over a list of
+ * {@link Transaction}s in the heap, as {@link pcbe.stock.server.StockService#getTransactions()} holds them.
+ * <p>
+ * The archive is filled once per trial in a temporary directory, deleted after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveBenchmark {
+    private static final int COMPANIES = 100;
+    private static final int CLIENTS = 10_000;
+
+    @Param({ "100000", "2000000" })
+    int transactionCount;
+
+    List<Transaction> transactions;
+    Path directory;
+    TransactionArchive archive;
+
+    @Setup(Level.Trial)
+    public void fillArchive() throws IOException {
+        transactions = generateTransactions(new Random(1));
+        directory = Files.createTempDirectory("pcbe-archive");
+        archive = TransactionArchive.open(directory);
+        archive.append(transactions, System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() throws IOException {
+        archive.close();
+        try (var paths = Files.walk(directory)) {
+            for (var path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Long> volumeByCompanyOfTheArchive() {
+        return archive.volumeByCompany();
+    }
+
+    @Benchmark
+    public Map<String, Long> volumeByCompanyOfTheList() {
+        var volumes = new HashMap<String, Long>();
+        for (var transaction : transactions)
+            volumes.merge(transaction.getCompany(), (long) transaction.getShares(), Long::sum);
+        return volumes;
+    }
+
+    @Benchmark
+    public Map<UUID, Double> vwapByClientOfTheArchive() {
+        return archive.vwapByClient();
+    }
+
+    @Benchmark
+    public Map<UUID, Double> vwapByClientOfTheList() {
+        var totals = new HashMap<UUID, double[]>();
+        for (var transaction : transactions) {
+            var value = transaction.getPrice() * transaction.getShares();
+            addTrade(totals, transaction.getOfferingClientId(), value, transaction.getShares());
+            addTrade(totals, transaction.getDemandingClientId(), value, transaction.getShares());
+        }
+        var vwaps = new HashMap<UUID, Double>();
+        totals.forEach((client, total) -> vwaps.put(client, total[0] / total[1]));
+        return vwaps;
+    }
+
+    private static void addTrade(Map<UUID, double[]> totals, UUID client, double value, int shares) {
+        var total = totals.computeIfAbsent(client, id -> new double[2]);
+        total[0] += value;
+        total[1] += shares;
+    }
+
+    private List<Transaction> generateTransactions(Random random) {
+        var companies = new String[COMPANIES];
+        for (int i = 0; i < companies.length; i++)
+            companies[i] = "C" + i;
+        var clients = new UUID[CLIENTS];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = new UUID(random.nextLong(), random.nextLong());
+        var generated = new ArrayList<Transaction>(transactionCount);
+        for (int i = 0; i < transactionCount; i++) {
+            var offering = random.nextInt(clients.length);
+            var demanding = (offering + 1 + random.nextInt(clients.length - 1)) % clients.length;
+            generated.add(new Transaction(clients[offering], clients[demanding], UUID.randomUUID(), UUID.randomUUID(),
+                companies[random.nextInt(companies.length)], 1 + random.nextInt(100), 50 + random.nextInt(10_000) / 100.0));
+        }
+        return generated;
+    }
+}
@@ -0,0 +1,109 @@
+package pcbe.stock.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import pcbe.stock.model.Response;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.Transaction;
+
+/**
+ * Round trip of a {@link Response} through Java serialization and through the
+ * fixed-layout codecs, decoding either into objects or reading in place with the views.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    private static final String[] COMPANIES = { "Apple Inc.", "Samsung Electronics", "Amazon", "Intel" };
+
+    @Param({ "10", "1000" })
+    int records;
+
+    @Param({ "transactions", "offers" })
+    String payload;
+
+    Response response;
+    ByteBuffer buffer;
+    final ResponseView responseView = new ResponseView();
+    final StockItemView itemView = new StockItemView();
+    final TransactionView transactionView = new TransactionView();
+
+    @Setup
+    public void createResponse() {
+        var random = new Random(42);
+        response = payload.equals("offers")
+            ? Response.offers(generateOffers(random))
+            : Response.transactions(generateTransactions(random));
+        buffer = ByteBuffer.allocateDirect(ResponseCodec.encodedLength(response));
+    }
+
+    @Benchmark
+    public Response javaSerialization() throws IOException, ClassNotFoundException {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new ObjectOutputStream(bytes)) {
+            output.writeObject(response);
+        }
+        try (var input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Response) input.readObject();
+        }
+    }
+
+    @Benchmark
+    public Response codecDecode() {
+        ResponseCodec.encode(response, buffer, 0);
+        return ResponseCodec.decode(buffer, 0);
+    }
+
+    /**
+     * Encodes the response and sums the shares of every record through the views.
+     */
+    @Benchmark
+    public long codecFlyweight() {
+        ResponseCodec.encode(response, buffer, 0);
+        var view = responseView.wrap(buffer, 0);
+        long shares = 0;
+        if (view.getPayloadType() == ResponseCodec.TRANSACTIONS_PAYLOAD) {
+            for (int i = 0; i < view.getCount(); i++)
+                shares += view.transaction(i, transactionView).getShares();
+        } else {
+            for (int i = 0; i < view.getCount(); i++)
+                shares += view.item(i, itemView).getShares();
+        }
+        return shares;
+    }
+
+    private ArrayList<Transaction> generateTransactions(Random random) {
+        var transactions = new ArrayList<Transaction>(records);
+        for (int i = 0; i < records; i++)
+            transactions.add(new Transaction(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(),
+                COMPANIES[random.nextInt(COMPANIES.length)], random.nextInt(1000) + 1, random.nextInt(100) + 1));
+        return transactions;
+    }
+
+    private LinkedHashSet<Offer> generateOffers(Random random) {
+        var offers = new LinkedHashSet<Offer>(records);
+        for (int i = 0; i < records; i++)
+            offers.add(new Offer(UUID.randomUUID(), COMPANIES[random.nextInt(COMPANIES.length)],
+                random.nextInt(1000) + 1, random.nextInt(100) + 1));
+        return offers;
+    }
+}
@@ -0,0 +1,54 @@
+package pcbe.stock.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import pcbe.stock.client.StockClientNotifiers;
+
+/**
+ * Builds a {@link StockService} holding a resting book of a given depth.
+ * <p>
+ * Resting offers are priced above {@link #CROSSING_PRICE} and resting demands below it,
+ * so the book never matches by itself; orders at {@link #CROSSING_PRICE} are free to match.
+ */
+class BookFixture {
+    static final String[] COMPANIES = {
+        "Apple Inc.", "Samsung Electronics", "Amazon", "Foxconn",
+        "Alphabet Inc.", "Microsoft", "Huawei", "Hitachi",
+        "IBM", "Dell Technologies", "Sony", "Panasonic",
+        "Intel", "LG Electronics", "JD.com", "HP Inc." };
+    static final double CROSSING_PRICE = 100;
+    static final int CLIENTS = 64;
+
+    final StockService stockService;
+    final UUID[] clients = new UUID[CLIENTS];
+    final List<UUID> restingOffers = new ArrayList<>();
+    final List<UUID> restingDemands = new ArrayList<>();
+
+    /**
+     * @param depth the number of resting orders, half offers and half demands
+     */
+    BookFixture(int depth) {
+        stockService = new StockService(Runnable::run);
+        var random = new Random(42);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = new UUID(0, i);
+            stockService.configureNotifiers(clients[i], new StockClientNotifiers(transaction -> {}, transaction -> {}));
+        }
+        for (int i = 0; i < depth; i++) {
+            var client = clients[random.nextInt(CLIENTS)];
+            var company = COMPANIES[random.nextInt(COMPANIES.length)];
+            var shares = 10 * (random.nextInt(10) + 1);
+            if (i % 2 == 0)
+                restingOffers.add(stockService.addOffer(client, company, shares, CROSSING_PRICE + 1 + random.nextInt(100)));
+            else
+                restingDemands.add(stockService.addDemand(client, company, shares, CROSSING_PRICE - 1 - random.nextInt(99)));
+        }
+    }
+
+    static String company(int index) {
+        return COMPANIES[index % COMPANIES.length];
+    }
+}
@@ -0,0 +1,82 @@
+package pcbe.stock.server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * Readers of the book competing with a writer for the {@link StockService} lock.
+ * <p>
+ * Each group runs three reader threads and one writer thread that keeps adding and
+ * removing an offer; the scores show how reads and writes slow each other down.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BookReadBenchmark {
+    @Param({ "1000", "10000" })
+    int bookDepth;
+
+    BookFixture fixture;
+    final AtomicInteger counter = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void fillBook() {
+        fixture = new BookFixture(bookDepth);
+    }
+
+    @Benchmark
+    @Group("wholeBook")
+    @GroupThreads(3)
+    public Set<Offer> getOffers() {
+        return fixture.stockService.getOffers();
+    }
+
+    @Benchmark
+    @Group("wholeBook")
+    @GroupThreads(1)
+    public UUID writeWhileReadingWholeBook() {
+        return addAndRemoveOffer();
+    }
+
+    @Benchmark
+    @Group("pagedBook")
+    @GroupThreads(3)
+    public List<Demand> getDemandPage() {
+        var index = counter.incrementAndGet();
+        return fixture.stockService.getDemands(fixture.clients[0], BookQuery.all().company(BookFixture.company(index)).limit(20));
+    }
+
+    @Benchmark
+    @Group("pagedBook")
+    @GroupThreads(1)
+    public UUID writeWhileReadingPages() {
+        return addAndRemoveOffer();
+    }
+
+    private UUID addAndRemoveOffer() {
+        var index = counter.incrementAndGet();
+        var offerId = fixture.stockService.addOffer(fixture.clients[index % BookFixture.CLIENTS], BookFixture.company(index),
+            10, BookFixture.CROSSING_PRICE + 1);
+        fixture.stockService.removeItem(offerId);
+        return offerId;
+    }
+}
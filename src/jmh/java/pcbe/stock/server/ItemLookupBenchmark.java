@@ -0,0 +1,67 @@
+package pcbe.stock.server;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * Cost of finding an existing item by id in {@link StockService#changeOffer} and
+ * {@link StockService#removeItem}, for books of different depths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ItemLookupBenchmark {
+    @Param({ "100", "10000", "100000" })
+    int bookDepth;
+
+    BookFixture fixture;
+    UUID[] offerIds;
+    int counter;
+
+    @Setup(Level.Iteration)
+    public void fillBook() {
+        fixture = new BookFixture(bookDepth);
+        offerIds = fixture.restingOffers.toArray(new UUID[0]);
+    }
+
+    @Benchmark
+    public UUID changeOffer() {
+        var offerId = nextOfferId();
+        fixture.stockService.changeOffer(offerId, 10 + counter % 2, BookFixture.CROSSING_PRICE + 1 + counter % 100);
+        return offerId;
+    }
+
+    /**
+     * Removes a resting offer and replaces it with a new one, so the depth of the book stays the same.
+     */
+    @Benchmark
+    public UUID removeItem() {
+        var index = counter % offerIds.length;
+        var offerId = nextOfferId();
+        fixture.stockService.removeItem(offerId);
+        offerIds[index] = fixture.stockService.addOffer(fixture.clients[0], BookFixture.company(index), 10,
+            BookFixture.CROSSING_PRICE + 1);
+        return offerId;
+    }
+
+    @Benchmark
+    public Offer getOffer() {
+        return fixture.stockService.getOffer(nextOfferId()).orElseThrow();
+    }
+
+    private UUID nextOfferId() {
+        return offerIds[counter++ % offerIds.length];
+    }
+}
@@ -0,0 +1,69 @@
+package pcbe.stock.server;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of {@link StockService#addOffer} and {@link StockService#addDemand}, including the
+ * matching, for books of different depths.
+ * <p>
+ * Matching runs on the benchmark thread, so each operation includes the search for
+ * counterparts and the resulting transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MatchingBenchmark {
+    @Param({ "100", "10000", "100000" })
+    int bookDepth;
+
+    BookFixture fixture;
+    int counter;
+
+    @Setup(Level.Iteration)
+    public void fillBook() {
+        fixture = new BookFixture(bookDepth);
+    }
+
+    /**
+     * An offer that finds no demand and rests in the book.
+     */
+    @Benchmark
+    public UUID addRestingOffer() {
+        var index = counter++;
+        return fixture.stockService.addOffer(fixture.clients[index % BookFixture.CLIENTS], BookFixture.company(index),
+            10, BookFixture.CROSSING_PRICE + 1 + index % 100);
+    }
+
+    /**
+     * A resting demand, then an offer that fully matches it.
+     */
+    @Benchmark
+    public UUID addOfferMatchingDemand() {
+        var index = counter++;
+        var company = BookFixture.company(index);
+        fixture.stockService.addDemand(fixture.clients[0], company, 10, BookFixture.CROSSING_PRICE);
+        return fixture.stockService.addOffer(fixture.clients[1], company, 10, BookFixture.CROSSING_PRICE);
+    }
+
+    /**
+     * A resting offer, then a demand that fully matches it.
+     */
+    @Benchmark
+    public UUID addDemandMatchingOffer() {
+        var index = counter++;
+        var company = BookFixture.company(index);
+        fixture.stockService.addOffer(fixture.clients[0], company, 10, BookFixture.CROSSING_PRICE);
+        return fixture.stockService.addDemand(fixture.clients[1], company, 10, BookFixture.CROSSING_PRICE);
+    }
+}
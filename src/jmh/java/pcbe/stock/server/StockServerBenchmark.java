@@ -0,0 +1,81 @@
+package pcbe.stock.server;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import pcbe.stock.client.StockClientNotifiers;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Response;
+
+/**
+ * End-to-end cost of the {@link StockServer} API, from the registration check to the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StockServerBenchmark {
+    @Param({ "1000", "100000" })
+    int bookDepth;
+
+    BookFixture fixture;
+    StockServer server;
+    Session session;
+    UUID[] offerIds;
+    int counter;
+
+    @Setup(Level.Iteration)
+    public void startServer() {
+        fixture = new BookFixture(bookDepth);
+        server = new StockServer(fixture.stockService);
+        for (var client : fixture.clients)
+            server.register(client, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+        session = server.openSession(UUID.randomUUID(), new StockClientNotifiers(transaction -> {}, transaction -> {})).orElseThrow();
+        offerIds = fixture.restingOffers.toArray(new UUID[0]);
+    }
+
+    @Benchmark
+    public Response offerAndDemandShares() {
+        var index = counter++;
+        var company = BookFixture.company(index);
+        server.offerShares(fixture.clients[0], company, 10, BookFixture.CROSSING_PRICE);
+        return server.demandShares(fixture.clients[1], company, 10, BookFixture.CROSSING_PRICE);
+    }
+
+    @Benchmark
+    public Response getOfferById() {
+        return server.getOfferById(fixture.clients[0], offerIds[counter++ % offerIds.length]);
+    }
+
+    /**
+     * Like {@link #getOfferById()}, through a session instead of the client registry.
+     */
+    @Benchmark
+    public Response getOfferByIdThroughSession() {
+        return session.getOfferById(offerIds[counter++ % offerIds.length]);
+    }
+
+    @Benchmark
+    public Response getOffersPage() {
+        var index = counter++;
+        return server.getOffers(fixture.clients[index % BookFixture.CLIENTS],
+            BookQuery.all().company(BookFixture.company(index)).excludingOwnItems().limit(10));
+    }
+
+    @Benchmark
+    public Response changeOffer() {
+        var index = counter++;
+        var offerId = offerIds[index % offerIds.length];
+        var offer = server.getOfferById(fixture.clients[0], offerId).getOffer();
+        return server.changeOffer(offer.getClientId(), offerId, offer.getShares(), BookFixture.CROSSING_PRICE + 1 + index % 100);
+    }
+}
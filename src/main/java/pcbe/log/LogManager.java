@@ -15,6 +15,11 @@ public final class LogManager {
     private static final Logger clientLogger = Logger.getLogger(StockClient.class.getName());
     private static final Logger serverLogger = Logger.getLogger(StockServer.class.getName());
     private static final String logFileName = "pcbe.log";
+    /**
+     * System property overriding the level of both loggers, e.g. <code>-Dpcbe.log.level=OFF</code>
+     * for benchmarks. Defaults to <code>ALL</code>.
+     */
+    public static final String LOG_LEVEL_PROPERTY = "pcbe.log.level";
 
     static {
         try {
@@ -27,8 +32,9 @@ public final class LogManager {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        clientLogger.setLevel(Level.ALL);
-        serverLogger.setLevel(Level.ALL);
+        var level = Level.parse(System.getProperty(LOG_LEVEL_PROPERTY, Level.ALL.getName()));
+        clientLogger.setLevel(level);
+        serverLogger.setLevel(level);
     }
 
     public static Logger getClientLogger() {
@@ -9,15 +9,30 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import pcbe.stock.archive.TransactionArchiver;
 import pcbe.stock.client.StockClient;
 import pcbe.stock.client.StockClientGenerator;
+import pcbe.stock.journal.RecordingStockServer;
+import pcbe.stock.metrics.MetricsEndpoint;
+import pcbe.stock.server.ReadReplica;
 import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
 
 public class CLI {
     public static void main(String[] args) throws IOException {
-        var stockServer = new StockServer();
+        if (System.getProperty(RecordingStockServer.PATH_PROPERTY) != null && System.getProperty(ReadReplica.MAX_STALENESS_PROPERTY) != null)
+            throw new IllegalArgumentException("Set either " + RecordingStockServer.PATH_PROPERTY + " or " + ReadReplica.MAX_STALENESS_PROPERTY
+                + ": a replay answers the queries from the engine, not from a replica lagging behind it");
+        var recorder = RecordingStockServer.createIfConfigured();
+        var stockService = recorder.map(RecordingStockServer::getRecordedService).orElseGet(StockService::getDefault);
+        var readReplica = ReadReplica.startIfConfigured(stockService);
+        var archiver = TransactionArchiver.startIfConfigured(stockService);
+        var stockServer = recorder.isPresent() ? recorder.get()
+            : readReplica.isPresent() ? new StockServer(stockService, readReplica.get()) : new StockServer(stockService);
+        var metricsEndpoint = MetricsEndpoint.startIfConfigured(stockService::getMetrics, Executor.getDefault());
         var clients = StockClientGenerator.generateClients();
-        SystemInitializer.initializeSystem(stockServer, clients);
+        var companies = SystemInitializer.initializeSystem(stockServer, clients);
+        stockService.startAuctionsIfConfigured(companies);
         clients.forEach(client -> client.registerTo(stockServer));
         List<ClientRunner> clientRunners = buildClientRunners(clients);
         try {
@@ -28,9 +43,14 @@ public class CLI {
             e.printStackTrace();
         }
         System.out.println("ENTER to stop the program.");
-        while (System.in.read() != '\n');
+        int read;
+        while ((read = System.in.read()) != '\n' && read != -1);
         Executor.getDefault().shutdownNow();
         Executor.cancelTimers();
+        recorder.ifPresent(RecordingStockServer::close);
+        readReplica.ifPresent(ReadReplica::close);
+        archiver.ifPresent(TransactionArchiver::close);
+        metricsEndpoint.ifPresent(MetricsEndpoint::close);
     }
 
     private static List<ClientRunner> buildClientRunners(Collection<StockClient> clients) {
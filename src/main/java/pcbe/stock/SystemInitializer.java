@@ -19,7 +19,10 @@ import pcbe.stock.server.StockServer;
 public class SystemInitializer {
     private static final Random random = new Random();
 
-    public static void initializeSystem(StockServer server, Collection<StockClient> clients) {
+    /**
+     * @return the companies whose shares were given to the clients
+     */
+    public static List<String> initializeSystem(StockServer server, Collection<StockClient> clients) {
         var allCompanies = Arrays.asList(
             "Apple Inc.", "Samsung Electronics", "Amazon", "Foxconn",
             "Alphabet Inc.", "Microsoft", "Huawei", "Hitachi", 
@@ -27,14 +30,21 @@ public class SystemInitializer {
             "Intel", "LG Electronics", "JD.com", "HP Inc.");
         var selectedCompanies = selectCompanies(allCompanies);
         var sharesPerCompany = initializeSharesPerCompany(selectedCompanies);
-        provideClientsWithCurrencyUnits(clients);
-        provideClientsWithShares(selectedCompanies, sharesPerCompany, clients);
+        provideClientsWithCurrencyUnits(server, clients);
+        provideClientsWithShares(server, selectedCompanies, sharesPerCompany, clients);
+        return selectedCompanies;
     }
 
-    private static void provideClientsWithShares(List<String> selectedCompanies, Map<String, Integer> sharesPerCompany, Collection<StockClient> clients) {
+    /**
+     * The shares are given to the client and deposited on its account on the server.
+     */
+    private static void provideClientsWithShares(StockServer server, List<String> selectedCompanies, Map<String, Integer> sharesPerCompany, Collection<StockClient> clients) {
         for (var company : selectedCompanies) {
-            while (Math.random() > .3)
-                getRandomClient(clients).addShares(company, sharesPerCompany.get(company));
+            while (Math.random() > .3) {
+                var client = getRandomClient(clients);
+                client.addShares(company, sharesPerCompany.get(company));
+                server.depositShares(client.getId(), company, sharesPerCompany.get(company));
+            }
         }
     }
 
@@ -49,9 +59,12 @@ public class SystemInitializer {
             .collect(toList());
     }
 
-    private static void provideClientsWithCurrencyUnits(Collection<StockClient> clients) {
-        for (var client : clients)
-            client.addCurrencyUnits(getCurrencyAmount());
+    private static void provideClientsWithCurrencyUnits(StockServer server, Collection<StockClient> clients) {
+        for (var client : clients) {
+            var currencyUnits = getCurrencyAmount();
+            client.addCurrencyUnits(currencyUnits);
+            server.depositCurrency(client.getId(), currencyUnits);
+        }
     }
 
     private static StockClient getRandomClient(Collection<StockClient> clients) {
@@ -0,0 +1,98 @@
+package pcbe.stock.archive;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+/**
+ * A column file of fixed-width little-endian values, memory-mapped and grown by doubling
+ * its mapping as rows are appended. Not thread safe; guarded by its {@link TransactionArchive}.
+ * <p>
+ * A mapping holds at most {@link Integer#MAX_VALUE} bytes, which bounds the rows of a column.
+ */
+final class Column implements Closeable {
+    private static final long INITIAL_CAPACITY = 1 << 20;
+
+    private final Path path;
+    private final int width;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Opens or creates the column at <code>path</code>, mapping at least its first <code>rows</code>.
+     */
+    Column(Path path, int width, long rows) throws IOException {
+        this.path = path;
+        this.width = width;
+        channel = FileChannel.open(path, CREATE, READ, WRITE);
+        map(Math.max(INITIAL_CAPACITY, Math.max(channel.size(), rows * width)));
+    }
+
+    /**
+     * @return the mapped buffer, holding at least <code>rows</code> rows
+     * @throws IllegalStateException if the rows do not fit in one mapping
+     */
+    ByteBuffer forRows(long rows) throws IOException {
+        var bytes = rows * width;
+        if (bytes > buffer.capacity()) {
+            if (bytes > Integer.MAX_VALUE)
+                throw new IllegalStateException("The column " + path.getFileName() + " cannot hold " + rows + " rows");
+            map(Math.min(Integer.MAX_VALUE, Math.max(bytes, 2L * buffer.capacity())));
+        }
+        return buffer;
+    }
+
+    IntBuffer ints() {
+        return view().asIntBuffer();
+    }
+
+    LongBuffer longs() {
+        return view().asLongBuffer();
+    }
+
+    DoubleBuffer doubles() {
+        return view().asDoubleBuffer();
+    }
+
+    /**
+     * Writes the mapped pages to the storage device.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Truncates the file to its first <code>rows</code> and closes it; the mapping stays valid until collected.
+     */
+    void close(long rows) throws IOException {
+        force();
+        channel.truncate(rows * width);
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer view() {
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void map(long capacity) throws IOException {
+        buffer = channel.map(MapMode.READ_WRITE, 0, Math.min(Integer.MAX_VALUE, capacity));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
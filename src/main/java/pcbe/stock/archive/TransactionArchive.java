@@ -0,0 +1,294 @@
+package pcbe.stock.archive;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import pcbe.stock.model.Transaction;
+
+/**
+ * An append-only archive of {@link Transaction}s stored by column, for the analytics over
+ * more trades than fit in the heap.
+ * <p>
+ * An archive is a directory holding one memory-mapped file per field, each an array of
+ * fixed-width little-endian values, one per transaction:
+ * <pre>
+ * time.col              timeMillis:long    the time the transaction was archived with
+ * company.col           company:int        an index in <code>companies.txt</code>
+ * shares.col            shares:int
+ * price.col             price:double
+ * offering-client.col   client:int         an index in <code>clients.col</code>
+ * demanding-client.col  client:int         an index in <code>clients.col</code>
+ * </pre>
+ * The companies and the clients are stored once, in the order they first traded: the names of
+ * the companies one per line in <code>companies.txt</code> and the ids of the clients as pairs of
+ * <code>long</code>s in <code>clients.col</code>. The ids of the transactions and of their items
+ * are not archived. The file <code>archive.meta</code> holds {@link #MAGIC}, {@link #VERSION}, the
+ * number of transactions and the number of clients, updated after the columns, so a process
+ * stopped in the middle of an append leaves the archive as it was before it.
+ * <p>
+ * A scan reads only the columns it needs, sequentially, from the page cache rather than from
+ * objects scattered in the heap; its loops over typed views of the mappings are simple enough
+ * for the JIT to unroll. Appends and scans are serialized by the monitor of the archive.
+ */
+public class TransactionArchive implements Closeable {
+    public static final int MAGIC = 0x50434241;
+    public static final int VERSION = 1;
+
+    private static final int META_LENGTH = 24;
+    private static final int ROWS_OFFSET = 8;
+    private static final int CLIENTS_OFFSET = 16;
+
+    private final Path directory;
+    private final FileChannel metaChannel;
+    private final MappedByteBuffer meta;
+    private final Column times;
+    private final Column companies;
+    private final Column shares;
+    private final Column prices;
+    private final Column offeringClients;
+    private final Column demandingClients;
+    private final Column clients;
+    private final List<String> companyNames = new ArrayList<>();
+    private final Map<String, Integer> companyIndexes = new HashMap<>();
+    private final List<UUID> clientIds = new ArrayList<>();
+    private final Map<UUID, Integer> clientIndexes = new HashMap<>();
+    private long rows;
+    private boolean closed;
+
+    private TransactionArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        metaChannel = FileChannel.open(directory.resolve("archive.meta"), CREATE, READ, WRITE);
+        var created = metaChannel.size() == 0;
+        meta = metaChannel.map(MapMode.READ_WRITE, 0, META_LENGTH);
+        meta.order(ByteOrder.LITTLE_ENDIAN);
+        if (created) {
+            meta.putInt(0, MAGIC);
+            meta.putInt(Integer.BYTES, VERSION);
+        } else if (meta.getInt(0) != MAGIC) {
+            metaChannel.close();
+            throw new IOException(directory + " is not a transaction archive");
+        } else if (meta.getInt(Integer.BYTES) != VERSION) {
+            metaChannel.close();
+            throw new IOException("Unsupported archive version " + meta.getInt(Integer.BYTES));
+        }
+        rows = meta.getLong(ROWS_OFFSET);
+        var clientCount = meta.getLong(CLIENTS_OFFSET);
+        times = new Column(directory.resolve("time.col"), Long.BYTES, rows);
+        companies = new Column(directory.resolve("company.col"), Integer.BYTES, rows);
+        shares = new Column(directory.resolve("shares.col"), Integer.BYTES, rows);
+        prices = new Column(directory.resolve("price.col"), Double.BYTES, rows);
+        offeringClients = new Column(directory.resolve("offering-client.col"), Integer.BYTES, rows);
+        demandingClients = new Column(directory.resolve("demanding-client.col"), Integer.BYTES, rows);
+        clients = new Column(directory.resolve("clients.col"), 2 * Long.BYTES, clientCount);
+        var companiesFile = companiesFile();
+        if (Files.exists(companiesFile))
+            Files.readAllLines(companiesFile, UTF_8).forEach(this::addCompanyName);
+        var ids = clients.longs();
+        for (int i = 0; i < clientCount; i++)
+            addClientId(new UUID(ids.get(2 * i), ids.get(2 * i + 1)));
+    }
+
+    /**
+     * Opens the archive in <code>directory</code>, creating it if it does not exist.
+     * @throws IOException if the directory holds something else than an archive
+     */
+    public static TransactionArchive open(Path directory) throws IOException {
+        return new TransactionArchive(directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of transactions archived
+     */
+    public synchronized long size() {
+        return rows;
+    }
+
+    public synchronized void append(Transaction transaction, long timeMillis) throws IOException {
+        append(List.of(transaction), timeMillis);
+    }
+
+    /**
+     * Appends <code>transactions</code>, all archived with the time <code>timeMillis</code>.
+     * @throws IllegalStateException if the archive is closed or full
+     */
+    public synchronized void append(List<Transaction> transactions, long timeMillis) throws IOException {
+        checkOpen();
+        var newRows = rows + transactions.size();
+        var timeColumn = times.forRows(newRows);
+        var companyColumn = companies.forRows(newRows);
+        var sharesColumn = shares.forRows(newRows);
+        var priceColumn = prices.forRows(newRows);
+        var offeringColumn = offeringClients.forRows(newRows);
+        var demandingColumn = demandingClients.forRows(newRows);
+        var row = (int) rows;
+        for (var transaction : transactions) {
+            timeColumn.putLong(row * Long.BYTES, timeMillis);
+            companyColumn.putInt(row * Integer.BYTES, companyIndexOf(transaction.getCompany()));
+            sharesColumn.putInt(row * Integer.BYTES, transaction.getShares());
+            priceColumn.putDouble(row * Double.BYTES, transaction.getPrice());
+            offeringColumn.putInt(row * Integer.BYTES, clientIndexOf(transaction.getOfferingClientId()));
+            demandingColumn.putInt(row * Integer.BYTES, clientIndexOf(transaction.getDemandingClientId()));
+            row++;
+        }
+        meta.putLong(CLIENTS_OFFSET, clientIds.size());
+        meta.putLong(ROWS_OFFSET, rows = newRows);
+    }
+
+    /**
+     * @return the shares traded of each company, in the order the companies first traded
+     */
+    public Map<String, Long> volumeByCompany() {
+        return volumeByCompany(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the company and shares columns only, and the time column if the range is bounded.
+     * @return the shares traded of each company with trades archived at <code>fromMillis &lt;= time &lt; toMillis</code>
+     * @throws IllegalStateException if the archive is closed
+     */
+    public synchronized Map<String, Long> volumeByCompany(long fromMillis, long toMillis) {
+        checkOpen();
+        var timeColumn = times.longs();
+        var companyColumn = companies.ints();
+        var sharesColumn = shares.ints();
+        var volumes = new long[companyNames.size()];
+        var count = (int) rows;
+        if (fromMillis == Long.MIN_VALUE && toMillis == Long.MAX_VALUE) {
+            for (int i = 0; i < count; i++)
+                volumes[companyColumn.get(i)] += sharesColumn.get(i);
+        } else {
+            for (int i = 0; i < count; i++) {
+                var time = timeColumn.get(i);
+                if (time >= fromMillis && time < toMillis)
+                    volumes[companyColumn.get(i)] += sharesColumn.get(i);
+            }
+        }
+        var volumeByCompany = new LinkedHashMap<String, Long>();
+        for (int company = 0; company < volumes.length; company++)
+            if (volumes[company] != 0)
+                volumeByCompany.put(companyNames.get(company), volumes[company]);
+        return volumeByCompany;
+    }
+
+    /**
+     * Reads the price, shares and client columns only.
+     * @return the volume-weighted average price of the trades of each client, as buyer or seller,
+     * in the order the clients first traded
+     * @throws IllegalStateException if the archive is closed
+     */
+    public synchronized Map<UUID, Double> vwapByClient() {
+        checkOpen();
+        var priceColumn = prices.doubles();
+        var sharesColumn = shares.ints();
+        var offeringColumn = offeringClients.ints();
+        var demandingColumn = demandingClients.ints();
+        var notional = new double[clientIds.size()];
+        var volumes = new long[clientIds.size()];
+        var count = (int) rows;
+        for (int i = 0; i < count; i++) {
+            var tradedShares = sharesColumn.get(i);
+            var value = priceColumn.get(i) * tradedShares;
+            var offering = offeringColumn.get(i);
+            var demanding = demandingColumn.get(i);
+            notional[offering] += value;
+            volumes[offering] += tradedShares;
+            notional[demanding] += value;
+            volumes[demanding] += tradedShares;
+        }
+        var vwapByClient = new LinkedHashMap<UUID, Double>();
+        for (int client = 0; client < volumes.length; client++)
+            if (volumes[client] != 0)
+                vwapByClient.put(clientIds.get(client), notional[client] / volumes[client]);
+        return vwapByClient;
+    }
+
+    /**
+     * Writes the archived transactions to the storage device.
+     */
+    public synchronized void force() {
+        for (var column : List.of(times, companies, shares, prices, offeringClients, demandingClients, clients))
+            column.force();
+        meta.force();
+    }
+
+    /**
+     * Writes the archive to the storage device and trims its files to the transactions archived.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        force();
+        for (var column : List.of(times, companies, shares, prices, offeringClients, demandingClients))
+            column.close(rows);
+        clients.close(clientIds.size());
+        metaChannel.close();
+    }
+
+    /**
+     * The files of a closed archive are trimmed under its mappings, which must not be read anymore.
+     */
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("The archive is closed");
+    }
+
+    private int companyIndexOf(String company) throws IOException {
+        var index = companyIndexes.get(company);
+        if (index != null)
+            return index;
+        Files.writeString(companiesFile(), company + "\n", UTF_8, CREATE, WRITE, APPEND);
+        return addCompanyName(company);
+    }
+
+    private int clientIndexOf(UUID clientId) throws IOException {
+        var index = clientIndexes.get(clientId);
+        if (index != null)
+            return index;
+        var offset = clientIds.size() * 2 * Long.BYTES;
+        var column = clients.forRows(clientIds.size() + 1);
+        column.putLong(offset, clientId.getMostSignificantBits());
+        column.putLong(offset + Long.BYTES, clientId.getLeastSignificantBits());
+        return addClientId(clientId);
+    }
+
+    private int addCompanyName(String company) {
+        companyIndexes.put(company, companyNames.size());
+        companyNames.add(company);
+        return companyNames.size() - 1;
+    }
+
+    private int addClientId(UUID clientId) {
+        clientIndexes.put(clientId, clientIds.size());
+        clientIds.add(clientId);
+        return clientIds.size() - 1;
+    }
+
+    private Path companiesFile() {
+        return directory.resolve("companies.txt");
+    }
+}
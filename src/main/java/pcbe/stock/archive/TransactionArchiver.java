@@ -0,0 +1,120 @@
+package pcbe.stock.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.server.StockService;
+
+/**
+ * Flushes the transactions of a {@link StockService} into a {@link TransactionArchive} at a
+ * fixed interval, each flush appending the transactions done since the previous one with the
+ * time of the flush.
+ * <p>
+ * The transactions stay in {@link StockService#getTransactions()}, which serves the history of
+ * the clients; the archive serves the analytics over them.
+ */
+public class TransactionArchiver implements Closeable {
+    /**
+     * System property holding the directory of the archive of the transactions of the default service,
+     * e.g. <code>-Dpcbe.archive.directory=archive</code>.
+     */
+    public static final String DIRECTORY_PROPERTY = "pcbe.archive.directory";
+    /**
+     * System property holding the interval of the flushes, e.g. <code>-Dpcbe.archive.flushIntervalMillis=200</code>.
+     * The default is {@value #DEFAULT_FLUSH_INTERVAL_MILLIS}.
+     */
+    public static final String FLUSH_INTERVAL_PROPERTY = "pcbe.archive.flushIntervalMillis";
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final Logger logger = LogManager.getServerLogger();
+
+    private final StockService stockService;
+    private final TransactionArchive archive;
+    private final Timer timer = new Timer("transaction-archiver", true);
+    /**
+     * The number of transactions of the service already archived.
+     */
+    private int archived;
+    private boolean failed;
+
+    public TransactionArchiver(StockService stockService, TransactionArchive archive, Duration flushInterval) {
+        if (flushInterval.toMillis() <= 0)
+            throw new IllegalArgumentException("Invalid flush interval " + flushInterval);
+        this.stockService = stockService;
+        this.archive = archive;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval.toMillis(), flushInterval.toMillis());
+    }
+
+    /**
+     * Starts archiving the transactions of <code>stockService</code> into the directory given by
+     * {@value #DIRECTORY_PROPERTY}, if it is set.
+     */
+    public static Optional<TransactionArchiver> startIfConfigured(StockService stockService) throws IOException {
+        var directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null)
+            return Optional.empty();
+        var flushInterval = Duration.ofMillis(Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL_MILLIS));
+        logger.info("Archiving the transactions to " + directory);
+        return Optional.of(new TransactionArchiver(stockService, TransactionArchive.open(Paths.get(directory)), flushInterval));
+    }
+
+    public TransactionArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Appends the transactions done since the previous flush to the archive. The transactions of
+     * the service are only ever appended, so they are read by index, without copying the list.
+     * A failure to write stops the archiving instead of failing the caller.
+     * @return the number of transactions appended
+     */
+    public synchronized int flush() {
+        if (failed)
+            return 0;
+        var transactions = stockService.getTransactions();
+        var done = transactions.size();
+        if (done == archived)
+            return 0;
+        var batch = new ArrayList<Transaction>(done - archived);
+        for (int i = archived; i < done; i++)
+            batch.add(transactions.get(i));
+        try {
+            archive.append(batch, System.currentTimeMillis());
+        } catch (IOException | IllegalStateException e) {
+            failed = true;
+            logger.severe("Archiving to " + archive.getDirectory() + " stopped after " + archived + " transactions: " + e.getMessage());
+            return 0;
+        }
+        var appended = done - archived;
+        archived = done;
+        return appended;
+    }
+
+    /**
+     * Flushes the last transactions and closes the archive.
+     */
+    @Override
+    public synchronized void close() {
+        timer.cancel();
+        flush();
+        try {
+            archive.close();
+        } catch (IOException e) {
+            logger.severe("Could not close the archive: " + e.getMessage());
+        }
+    }
+}
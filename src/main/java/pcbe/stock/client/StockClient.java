@@ -2,10 +2,9 @@ package pcbe.stock.client;
 
 import static java.util.Objects.nonNull;
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toList;
 import static pcbe.UUIDUtil.prefixOf;
 
-import java.util.AbstractMap;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
@@ -15,31 +14,41 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import pcbe.log.LogManager;
 import pcbe.stock.Executor;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Candle;
 import pcbe.stock.model.Notifiers;
-import pcbe.stock.model.Response;
-import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.StockItem;
 import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.TimeInForce;
 import pcbe.stock.model.Transaction;
+import pcbe.stock.server.Session;
 import pcbe.stock.server.StockServer;
 
 public class StockClient implements Callable<String> {
 
     private final UUID id;
-    private StockServer stockServer;
+    private Session session;
     private double currencyUnits;
     private double restrictedCurrencyUnits;
     
     private Map<String, Integer> ownedShares = new HashMap<>();
     private Map<String, Integer> offeredShares = new HashMap<>();
     private static final double DEFAULT_PRICE = 1;
+    private static final int OFFERS_TO_CONSIDER = 10;
+    private static final Duration PRICE_HISTORY_INTERVAL = Duration.ofMinutes(1);
+    private static final int PRICE_HISTORY_CANDLES = 60;
     
-    private Map.Entry<UUID, TimerTask> offer;
-    private Map.Entry<UUID, TimerTask> demand;
+    private static final double OFFER_DECAY = 0.5;
+    private static final double DEMAND_ESCALATION = 1.5;
+    
+    private UUID offer;
+    private UUID demand;
+    private final Map<UUID, Reservation> reservations = new HashMap<>();
     
     private final ReentrantLock lock = new ReentrantLock();
     
@@ -72,7 +81,7 @@ public class StockClient implements Callable<String> {
      *         otherwise
      */
     public boolean isRegistered() {
-        return nonNull(stockServer);
+        return nonNull(session) && session.isOpen();
     }
 
     public void notifySale(Transaction transaction) {
@@ -82,10 +91,8 @@ public class StockClient implements Callable<String> {
             if(offer != null) {
                 currencyUnits += calculateCurrencyAmount(transaction);
                 offeredShares.compute(transaction.getCompany(), (k, v) -> v - transaction.getShares()); 
-                if(transaction.getOfferId().equals(offer.getKey())) {
-                    offer.getValue().cancel();
+                if(transaction.getOfferId().equals(offer))
                     offer = null;
-                }
             }
         } finally {
             lock.unlock();
@@ -96,13 +103,34 @@ public class StockClient implements Callable<String> {
         logger.info("notify buy for client " + prefixOf(id) + " and transaction " + prefixOf(transaction.getId()));
         lock.lock();
         try {
-            if(demand != null) {
-                restrictedCurrencyUnits -= calculateCurrencyAmount(transaction);
-                ownedShares.compute(transaction.getCompany(), (k, v) -> v + transaction.getShares());
-                if(transaction.getDemandId().equals(demand.getKey())) {
-                    demand.getValue().cancel();
+            var amount = calculateCurrencyAmount(transaction);
+            restrictedCurrencyUnits -= amount;
+            ownedShares.compute(transaction.getCompany(), (k, v) -> v == null ? transaction.getShares() : v + transaction.getShares());
+            reserve(transaction.getDemandId(), -transaction.getShares(), -amount);
+            if(transaction.getDemandId().equals(demand))
+                demand = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes back what the client had put in an order that expired.
+     */
+    public void notifyExpiry(StockItem item) {
+        logger.info("notify expiry for client " + prefixOf(id) + " and item " + prefixOf(item.getId()));
+        lock.lock();
+        try {
+            if(item instanceof Offer) {
+                offeredShares.compute(item.getCompany(), (k, v) -> v - item.getShares());
+                ownedShares.compute(item.getCompany(), (k, v) -> v == null ? item.getShares() : v + item.getShares());
+                if(item.getId().equals(offer))
+                    offer = null;
+            }
+            else {
+                releaseCurrency(item.getId());
+                if(item.getId().equals(demand))
                     demand = null;
-                }
             }
         } finally {
             lock.unlock();
@@ -110,7 +138,14 @@ public class StockClient implements Callable<String> {
     }
 
     public Notifiers getNotifiers() {
-        return new StockClientNotifiers(this::notifyBuy, this::notifySale);
+        return new StockClientNotifiers(this::notifyBuy, this::notifySale, this::notifyExpiry);
+    }
+
+    /**
+     * Orders are repriced by the engine once after <code>taskDelay</code> and expire after twice that.
+     */
+    private TimeInForce orderLifetime() {
+        return TimeInForce.goodFor(Duration.ofMillis(2 * taskDelay));
     }
 
     private int calculateCurrencyAmount(Transaction transaction) {
@@ -125,8 +160,8 @@ public class StockClient implements Callable<String> {
      */
     public void registerTo(StockServer stockServer) {
         requireNonNull(stockServer);
-        requireSuccessfulResponse(() -> stockServer.register(this));
-        this.stockServer = stockServer;
+        session = stockServer.openSession(id, getNotifiers())
+            .orElseThrow(() -> new RuntimeException("Client " + id + " is already registered."));
     }
 
     /**
@@ -146,6 +181,14 @@ public class StockClient implements Callable<String> {
             offerShares();
             demandShares();
         }
+        var cancelled = session.cancelAll();
+        lock.lock();
+        try {
+            if(cancelled.isSuccessful())
+                cancelled.getItems().forEach(item -> releaseCurrency(item.getId()));
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void offerShares() {
@@ -156,12 +199,12 @@ public class StockClient implements Callable<String> {
                 if(optionalShares.isPresent()) {
                     var sharesPerCompany = optionalShares.get();
                     var calculatedPrice = calculatePrice(sharesPerCompany.getKey());
-                    var response = stockServer.offerShares(id, sharesPerCompany.getKey(), sharesPerCompany.getValue(), calculatedPrice);
+                    var decay = RepricingSchedule.decaying(OFFER_DECAY, Duration.ofMillis(taskDelay), calculatedPrice * OFFER_DECAY);
+                    var response = session.offerShares(sharesPerCompany.getKey(), sharesPerCompany.getValue(), calculatedPrice, orderLifetime(), decay);
                     if(response.isSuccessful()) {
-                        var offerId = response.getItemId();
                         offeredShares.compute(sharesPerCompany.getKey(), (k, v) -> sharesPerCompany.getValue() + (v == null ? 0 : v));
                         ownedShares.remove(sharesPerCompany.getKey());
-                        offer = new AbstractMap.SimpleEntry<>(offerId, createChangeOfferTask(offerId));
+                        offer = response.getItemId();
                     }
                 }
             }
@@ -170,78 +213,29 @@ public class StockClient implements Callable<String> {
         }
     }
     
-    private TimerTask createChangeOfferTask(UUID offerId) {
-        var timerTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                var response = stockServer.getOfferById(id, offerId);
-                if(response.isSuccessful()) {
-                    var existentOffer = response.getOffer();
-                    var changeResponse = stockServer.changeOffer(id, offerId, existentOffer.getShares(), existentOffer.getPrice() * 0.5);
-                    if(changeResponse.isSuccessful()) {
-                        lock.lock();
-                        try {
-                            if(offer != null) {
-                                offer.getValue().cancel();
-                                offer.setValue(createRemoveOfferTask(offerId));
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                }
-            }
-        };
-
-        timer.schedule(timerTask, taskDelay, taskDelay);
-        return timerTask;
-    }
-
-    private TimerTask createRemoveOfferTask(UUID offerId) {
-        var timerTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                lock.lock();
-                try {
-                    if(offer != null) {
-                        var response = stockServer.removeItem(id, offerId);
-                        if(response.isSuccessful()) {
-                            offer.getValue().cancel();
-                            offer = null;
-                        }
-                    }
-                } finally {
-                    lock.unlock();
-                }
-            }
-        };
-        timer.schedule(timerTask, taskDelay, taskDelay);
-        return timerTask;
-    }
-
     private double calculatePrice(String company) {
-        return Math.random() > 0.5 ? consultDemandsAndCalculatePrice(company) : consultTransactionHistoryAndCalculatePrice(company);
+        return Math.random() > 0.5 ? consultDemandsAndCalculatePrice(company) : consultCandlesAndCalculatePrice(company);
     }
     
     private double consultDemandsAndCalculatePrice(String company) {
-        var demandsOfCompany = stockServer.getDemands(id).getDemands().stream().filter(t -> t.getCompany().equals(company)).collect(toList());
+        var highestDemandOfCompany = session.getDemands(BookQuery.all().company(company).limit(1)).getDemands();
 
-        if(demandsOfCompany.isEmpty())
+        if(highestDemandOfCompany.isEmpty())
             return DEFAULT_PRICE;
 
-        return demandsOfCompany.stream().map(Demand::getPrice).reduce(Math::max).get();
+        return highestDemandOfCompany.iterator().next().getPrice();
     }
     
-    private double consultTransactionHistoryAndCalculatePrice(String company) {
-        var transactionHistoryOfCompany = stockServer.getTransactionHistory(id).getTransactions()
-            .stream().filter(t -> t.getCompany().equals(company)).collect(toList());
+    /**
+     * Reads the highest price of the company from its recent candles rather than from the whole transaction history.
+     */
+    private double consultCandlesAndCalculatePrice(String company) {
+        var candlesOfCompany = session.getCandles(company, PRICE_HISTORY_INTERVAL, PRICE_HISTORY_CANDLES).getCandles();
 
-        if(transactionHistoryOfCompany.isEmpty())
+        if(candlesOfCompany.isEmpty())
             return DEFAULT_PRICE;
 
-        var highestPriceInHistory = transactionHistoryOfCompany.stream().map(Transaction::getPrice).reduce(Math::max).get();
+        var highestPriceInHistory = candlesOfCompany.stream().mapToDouble(Candle::getHigh).max().getAsDouble();
         return Math.random() > 0.5 ? highestPriceInHistory : highestPriceInHistory + 0.5;
     }
 
@@ -249,17 +243,19 @@ public class StockClient implements Callable<String> {
         lock.lock();
         try {
             if(demand == null && currencyUnits != 0) {
-                var existingOffers = stockServer.getOffers(id).getOffers();
-                for (var offer : existingOffers) {
-                    if(offerIsNotMine(offer)) {
-                        var nrOfSharesToDemand = calculateNumberOfSharesToDemand(offer);
-                        var response = stockServer.demandShares(id, offer.getCompany(), nrOfSharesToDemand, offer.getPrice());
-                        if(response.isSuccessful()) {
-                            var demandId = response.getItemId();
-                            putCurrencyAside(offer.getPrice() * nrOfSharesToDemand);
-                            demand = new AbstractMap.SimpleEntry<>(demandId, createChangeDemandTask(demandId));
-                            break;
-                        }
+                var cheapestOffersOfOthers = session.getOffers(BookQuery.all().excludingOwnItems().limit(OFFERS_TO_CONSIDER)).getOffers();
+                for (var offer : cheapestOffersOfOthers) {
+                    var nrOfSharesToDemand = calculateNumberOfSharesToDemand(offer);
+                    var cost = offer.getPrice() * nrOfSharesToDemand;
+                    var canEscalate = currencyUnits >= cost * DEMAND_ESCALATION;
+                    var escalation = canEscalate
+                        ? RepricingSchedule.escalating(DEMAND_ESCALATION, Duration.ofMillis(taskDelay), offer.getPrice() * DEMAND_ESCALATION)
+                        : RepricingSchedule.NONE;
+                    var response = session.demandShares(offer.getCompany(), nrOfSharesToDemand, offer.getPrice(), orderLifetime(), escalation);
+                    if(response.isSuccessful()) {
+                        putCurrencyAside(response.getItemId(), nrOfSharesToDemand, canEscalate ? cost * DEMAND_ESCALATION : cost);
+                        demand = response.getItemId();
+                        break;
                     }
                 }
             }
@@ -268,84 +264,35 @@ public class StockClient implements Callable<String> {
         }
     }
 
-    private TimerTask createChangeDemandTask(UUID demandId) {
-        var timerTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                var response = stockServer.getDemandById(id, demandId);
-                if(response.isSuccessful()) {
-                    var existentDemand = response.getDemand();
-                    lock.lock();
-                    try {
-                        var extraCurrencyNeeded = calculateExtraCurrencyNeeded(existentDemand.getPrice(), existentDemand.getShares());
-                        if(currencyUnits >= extraCurrencyNeeded) {
-                            var changeResponse = stockServer.changeDemand(id, demandId, existentDemand.getShares(), existentDemand.getPrice() * 1.5);
-                            if(changeResponse.isSuccessful()) {
-                                if(demand != null) {
-                                    demand.getValue().cancel();
-                                    demand.setValue(createRemoveDemandTask(demandId));
-                                    currencyUnits -= extraCurrencyNeeded;
-                                    restrictedCurrencyUnits += extraCurrencyNeeded;
-                                }
-                            }
-                        }
-                        else {
-                            demand.getValue().cancel();
-                            demand.setValue(createRemoveDemandTask(demandId));
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-                }
-            }
-
-            private double calculateExtraCurrencyNeeded(double price, int shares) {
-                return price * shares * 0.5;
-            }
-        };
-
-        timer.schedule(timerTask, taskDelay, taskDelay);
-        return timerTask;
+    private void putCurrencyAside(UUID demandId, int shares, double amount) {
+        currencyUnits -= amount;
+        restrictedCurrencyUnits += amount;
+        reserve(demandId, shares, amount);
     }
 
-    private TimerTask createRemoveDemandTask(UUID demandId) {
-        var timerTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                lock.lock();
-                try {
-                    if(demand != null) {
-                        var response = stockServer.removeItem(id, demandId);
-                        if(response.isSuccessful()) {
-                            demand.getValue().cancel();
-                            demand = null;
-                        }
-                    }
-                } finally {
-                    lock.unlock();
-                }
-            }
-        };
-        timer.schedule(timerTask, taskDelay, taskDelay);
-        return timerTask;
+    /**
+     * Adds to what is put aside for the demand, releasing the rest once all its shares are bought.
+     * A demand may be filled before its response comes back, so its fills can come first.
+     */
+    private void reserve(UUID demandId, int shares, double amount) {
+        var reservation = reservations.computeIfAbsent(demandId, id -> new Reservation());
+        reservation.shares += shares;
+        reservation.currencyUnits += amount;
+        if(reservation.shares == 0)
+            releaseCurrency(demandId);
     }
 
-    private boolean offerIsNotMine(Offer offer) {
-        lock.lock();
-        try {
-            return this.offer != null ? !offer.getId().equals(this.offer.getKey()) : true;
-        } finally {
-            lock.unlock();
+    /**
+     * Gives back what is still put aside for the demand, once it is filled, expired or removed.
+     */
+    private void releaseCurrency(UUID demandId) {
+        var reservation = reservations.remove(demandId);
+        if(reservation != null) {
+            restrictedCurrencyUnits -= reservation.currencyUnits;
+            currencyUnits += reservation.currencyUnits;
         }
     }
 
-    private void putCurrencyAside(double amount) {
-        currencyUnits -= amount;
-        restrictedCurrencyUnits += amount;
-    }
-
     private int calculateNumberOfSharesToDemand(Offer offer) {
         return offer.getPrice() * offer.getShares() < currencyUnits ? offer.getShares() : Double.valueOf(currencyUnits / offer.getPrice()).intValue();
     }
@@ -370,23 +317,19 @@ public class StockClient implements Callable<String> {
         }
     }
 
-    /**
-     * Executes the supplied request and checks if the response is successful
-     * @param request the request to be executed
-     * @return the successful response
-     * @throws RuntimeException if the request failed
-     */
-    private Response requireSuccessfulResponse(Supplier<Response> request) {
-        var response = request.get();
-        if (!response.isSuccessful())
-            throw new RuntimeException();
-        return response;
-    }
-
     public UUID getId() {
         return id;
     }
 
+    /**
+     * The currency put aside for a demand, which may escalate above the price it was placed at,
+     * and the shares it still waits for.
+     */
+    private static class Reservation {
+        private int shares;
+        private double currencyUnits;
+    }
+
     /**
      * Auto generated {@link #hashCode()}
      */
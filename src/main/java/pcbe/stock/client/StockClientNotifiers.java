@@ -3,12 +3,14 @@ package pcbe.stock.client;
 import java.util.function.Consumer;
 
 import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.StockItem;
 import pcbe.stock.model.Transaction;
 import pcbe.stock.server.StockService;
 
 /**
  * This class provides two <code>Consumer&lt;Transaction&gt;</code> that act as
- * transaction notifiers: one for buys and one for sales.
+ * transaction notifiers: one for buys and one for sales, and optionally a
+ * <code>Consumer&lt;StockItem&gt;</code> notified of expired orders.
  * <p>
  * This class was introduced so that the {@link StockService} class does not
  * interact directly with {@link StockClient}s
@@ -18,6 +20,7 @@ import pcbe.stock.server.StockService;
 public class StockClientNotifiers implements Notifiers {
     private Consumer<Transaction> buyNotifier;
     private Consumer<Transaction> saleNotifier;
+    private Consumer<StockItem> expiryNotifier;
 
     /**
      * Create a <code>StockClientNotifiers</code> with the given consumer
@@ -26,8 +29,16 @@ public class StockClientNotifiers implements Notifiers {
      * @param saleNotifier the value that will be returned by {@link #saleNotifier()}
      */
     public StockClientNotifiers(Consumer<Transaction> buyNotifier, Consumer<Transaction> saleNotifier) {
+        this(buyNotifier, saleNotifier, item -> {});
+    }
+
+    /**
+     * @param expiryNotifier the value that will be returned by {@link #expiryNotifier()}
+     */
+    public StockClientNotifiers(Consumer<Transaction> buyNotifier, Consumer<Transaction> saleNotifier, Consumer<StockItem> expiryNotifier) {
         this.buyNotifier = buyNotifier;
         this.saleNotifier = saleNotifier;
+        this.expiryNotifier = expiryNotifier;
     }
 
     public Consumer<Transaction> buyNotifier() {
@@ -37,4 +48,9 @@ public class StockClientNotifiers implements Notifiers {
     public Consumer<Transaction> saleNotifier() {
         return saleNotifier;
     }
-}
\ No newline at end of file
+
+    @Override
+    public Consumer<StockItem> expiryNotifier() {
+        return expiryNotifier;
+    }
+}
\ No newline at end of file
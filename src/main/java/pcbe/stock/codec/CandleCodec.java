@@ -0,0 +1,62 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+
+import pcbe.stock.model.Candle;
+
+/**
+ * Fixed-layout encoding of a {@link Candle}:
+ * <pre>
+ *   0 startMillis:long
+ *   8 intervalMillis:long
+ *  16 open:double
+ *  24 high:double
+ *  32 low:double
+ *  40 close:double
+ *  48 volume:long
+ *  56 trades:int
+ *  60 reserved:int
+ * </pre>
+ */
+public final class CandleCodec {
+    public static final int LENGTH = 64;
+
+    static final int START_OFFSET = 0;
+    static final int INTERVAL_OFFSET = 8;
+    static final int OPEN_OFFSET = 16;
+    static final int HIGH_OFFSET = 24;
+    static final int LOW_OFFSET = 32;
+    static final int CLOSE_OFFSET = 40;
+    static final int VOLUME_OFFSET = 48;
+    static final int TRADES_OFFSET = 56;
+    static final int RESERVED_OFFSET = 60;
+
+    private CandleCodec() {}
+
+    /**
+     * Writes <code>candle</code> at <code>offset</code> without moving the position of <code>buffer</code>.
+     */
+    public static void encode(Candle candle, ByteBuffer buffer, int offset) {
+        buffer.putLong(offset + START_OFFSET, candle.getStartMillis());
+        buffer.putLong(offset + INTERVAL_OFFSET, candle.getIntervalMillis());
+        buffer.putDouble(offset + OPEN_OFFSET, candle.getOpen());
+        buffer.putDouble(offset + HIGH_OFFSET, candle.getHigh());
+        buffer.putDouble(offset + LOW_OFFSET, candle.getLow());
+        buffer.putDouble(offset + CLOSE_OFFSET, candle.getClose());
+        buffer.putLong(offset + VOLUME_OFFSET, candle.getVolume());
+        buffer.putInt(offset + TRADES_OFFSET, candle.getTrades());
+        buffer.putInt(offset + RESERVED_OFFSET, 0);
+    }
+
+    public static Candle decode(ByteBuffer buffer, int offset) {
+        return new Candle(
+            buffer.getLong(offset + START_OFFSET),
+            buffer.getLong(offset + INTERVAL_OFFSET),
+            buffer.getDouble(offset + OPEN_OFFSET),
+            buffer.getDouble(offset + HIGH_OFFSET),
+            buffer.getDouble(offset + LOW_OFFSET),
+            buffer.getDouble(offset + CLOSE_OFFSET),
+            buffer.getLong(offset + VOLUME_OFFSET),
+            buffer.getInt(offset + TRADES_OFFSET));
+    }
+}
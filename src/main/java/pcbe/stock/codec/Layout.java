@@ -0,0 +1,69 @@
+package pcbe.stock.codec;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import pcbe.stock.model.StockItem;
+
+/**
+ * Helpers shared by the codecs and the flyweight views to read and write the
+ * fields that do not map to a single primitive.
+ * <p>
+ * A company is stored in a fixed slot: one length byte followed by
+ * {@link #COMPANY_CAPACITY} bytes of UTF-8, zero padded.
+ */
+final class Layout {
+    static final int UUID_LENGTH = 2 * Long.BYTES;
+    static final int COMPANY_CAPACITY = StockItem.MAX_COMPANY_BYTES;
+
+    private Layout() {}
+
+    static void putUUID(ByteBuffer buffer, int offset, UUID value) {
+        buffer.putLong(offset, value.getMostSignificantBits());
+        buffer.putLong(offset + Long.BYTES, value.getLeastSignificantBits());
+    }
+
+    static UUID getUUID(ByteBuffer buffer, int offset) {
+        return new UUID(buffer.getLong(offset), buffer.getLong(offset + Long.BYTES));
+    }
+
+    static boolean uuidEquals(ByteBuffer buffer, int offset, UUID value) {
+        return buffer.getLong(offset) == value.getMostSignificantBits()
+            && buffer.getLong(offset + Long.BYTES) == value.getLeastSignificantBits();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the UTF-8 form of <code>company</code> is
+     * longer than {@link #COMPANY_CAPACITY} bytes
+     */
+    static void putCompany(ByteBuffer buffer, int lengthOffset, int offset, String company) {
+        var bytes = company.getBytes(UTF_8);
+        if (bytes.length > COMPANY_CAPACITY)
+            throw new IllegalArgumentException("Company name longer than " + COMPANY_CAPACITY + " bytes: " + company);
+        buffer.put(lengthOffset, (byte) bytes.length);
+        for (int i = 0; i < COMPANY_CAPACITY; i++)
+            buffer.put(offset + i, i < bytes.length ? bytes[i] : 0);
+    }
+
+    static String getCompany(ByteBuffer buffer, int lengthOffset, int offset) {
+        var bytes = new byte[Byte.toUnsignedInt(buffer.get(lengthOffset))];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(offset + i);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Compares the stored company with the UTF-8 bytes in <code>company</code>
+     * without allocating.
+     */
+    static boolean companyEquals(ByteBuffer buffer, int lengthOffset, int offset, byte[] company) {
+        if (Byte.toUnsignedInt(buffer.get(lengthOffset)) != company.length)
+            return false;
+        for (int i = 0; i < company.length; i++)
+            if (buffer.get(offset + i) != company[i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+
+import pcbe.stock.model.PriceLevel;
+
+/**
+ * Fixed-layout encoding of a {@link PriceLevel} and of the side of the book it belongs to:
+ * <pre>
+ *   0 price:double
+ *   8 shares:long
+ *  16 orders:int
+ *  20 side:byte           {@link #OFFER_SIDE} or {@link #DEMAND_SIDE}
+ *  21 reserved:byte[3]
+ * </pre>
+ */
+public final class PriceLevelCodec {
+    public static final int LENGTH = 24;
+
+    public static final byte OFFER_SIDE = 0;
+    public static final byte DEMAND_SIDE = 1;
+
+    static final int PRICE_OFFSET = 0;
+    static final int SHARES_OFFSET = 8;
+    static final int ORDERS_OFFSET = 16;
+    static final int SIDE_OFFSET = 20;
+    static final int RESERVED_OFFSET = 21;
+
+    private PriceLevelCodec() {}
+
+    /**
+     * Writes <code>level</code> at <code>offset</code> without moving the position of <code>buffer</code>.
+     */
+    public static void encode(PriceLevel level, byte side, ByteBuffer buffer, int offset) {
+        buffer.putDouble(offset + PRICE_OFFSET, level.getPrice());
+        buffer.putLong(offset + SHARES_OFFSET, level.getShares());
+        buffer.putInt(offset + ORDERS_OFFSET, level.getOrders());
+        buffer.put(offset + SIDE_OFFSET, side);
+        for (int i = RESERVED_OFFSET; i < LENGTH; i++)
+            buffer.put(offset + i, (byte) 0);
+    }
+
+    public static PriceLevel decode(ByteBuffer buffer, int offset) {
+        return new PriceLevel(
+            buffer.getDouble(offset + PRICE_OFFSET),
+            buffer.getLong(offset + SHARES_OFFSET),
+            buffer.getInt(offset + ORDERS_OFFSET));
+    }
+
+    public static byte sideOf(ByteBuffer buffer, int offset) {
+        return buffer.get(offset + SIDE_OFFSET);
+    }
+}
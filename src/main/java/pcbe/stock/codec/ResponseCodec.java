@@ -0,0 +1,283 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+
+import pcbe.stock.model.Candle;
+import pcbe.stock.model.MarketDepth;
+import pcbe.stock.model.PriceLevel;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.Transaction;
+
+/**
+ * Fixed-layout encoding of a {@link Response}: a header followed by
+ * <code>count</code> fixed-size records.
+ * <pre>
+ *  0 status:byte          the ordinal of the {@link Status}
+ *  1 payloadType:byte     one of the <code>*_PAYLOAD</code> constants
+ *  2 reserved:short
+ *  4 count:int            the number of records
+ *  8 itemId:uuid          the item id for {@link #ITEM_ID_PAYLOAD}, the next cursor for
+ *                         {@link #OFFERS_PAYLOAD} and {@link #DEMANDS_PAYLOAD}, zero when absent
+ * 24 records              {@link StockItemCodec#LENGTH}, {@link TransactionCodec#LENGTH},
+ *                         {@link PriceLevelCodec#LENGTH} or {@link CandleCodec#LENGTH} bytes each
+ * </pre>
+ * The price levels of {@link #DEPTH_PAYLOAD} are the offer levels followed by the demand levels,
+ * each record telling its side.
+ * <p>
+ * Every record can be reached in constant time, so a {@link ResponseView} reads
+ * the response in place.
+ */
+public final class ResponseCodec {
+    public static final int HEADER_LENGTH = 24;
+
+    public static final byte NO_PAYLOAD = 0;
+    public static final byte ITEM_ID_PAYLOAD = 1;
+    public static final byte OFFERS_PAYLOAD = 2;
+    public static final byte DEMANDS_PAYLOAD = 3;
+    public static final byte OFFER_PAYLOAD = 4;
+    public static final byte DEMAND_PAYLOAD = 5;
+    public static final byte TRANSACTIONS_PAYLOAD = 6;
+    public static final byte ITEMS_PAYLOAD = 7;
+    public static final byte DEPTH_PAYLOAD = 8;
+    public static final byte CANDLES_PAYLOAD = 9;
+
+    static final int STATUS_OFFSET = 0;
+    static final int PAYLOAD_TYPE_OFFSET = 1;
+    static final int RESERVED_OFFSET = 2;
+    static final int COUNT_OFFSET = 4;
+    static final int ITEM_ID_OFFSET = 8;
+
+    private static final UUID NO_ITEM_ID = new UUID(0, 0);
+
+    private ResponseCodec() {}
+
+    public static byte payloadTypeOf(Response response) {
+        if (response.getOffers() != null)
+            return OFFERS_PAYLOAD;
+        if (response.getDemands() != null)
+            return DEMANDS_PAYLOAD;
+        if (response.getItem() instanceof Offer)
+            return OFFER_PAYLOAD;
+        if (response.getItem() instanceof Demand)
+            return DEMAND_PAYLOAD;
+        if (response.getTransactions() != null)
+            return TRANSACTIONS_PAYLOAD;
+        if (response.getItems() != null)
+            return ITEMS_PAYLOAD;
+        if (response.getDepth() != null)
+            return DEPTH_PAYLOAD;
+        if (response.getCandles() != null)
+            return CANDLES_PAYLOAD;
+        if (response.getItemId() != null)
+            return ITEM_ID_PAYLOAD;
+        return NO_PAYLOAD;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(Response, ByteBuffer, int)} will write
+     */
+    public static int encodedLength(Response response) {
+        switch (payloadTypeOf(response)) {
+            case OFFERS_PAYLOAD:
+                return HEADER_LENGTH + response.getOffers().size() * StockItemCodec.LENGTH;
+            case DEMANDS_PAYLOAD:
+                return HEADER_LENGTH + response.getDemands().size() * StockItemCodec.LENGTH;
+            case OFFER_PAYLOAD: case DEMAND_PAYLOAD:
+                return HEADER_LENGTH + StockItemCodec.LENGTH;
+            case TRANSACTIONS_PAYLOAD:
+                return HEADER_LENGTH + response.getTransactions().size() * TransactionCodec.LENGTH;
+            case ITEMS_PAYLOAD:
+                return HEADER_LENGTH + response.getItems().size() * StockItemCodec.LENGTH;
+            case DEPTH_PAYLOAD:
+                var depth = response.getDepth();
+                return HEADER_LENGTH + (depth.getOfferLevels().size() + depth.getDemandLevels().size()) * PriceLevelCodec.LENGTH;
+            case CANDLES_PAYLOAD:
+                return HEADER_LENGTH + response.getCandles().size() * CandleCodec.LENGTH;
+            default:
+                return HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Writes <code>response</code> at <code>offset</code> without moving the position of <code>buffer</code>.
+     * @return the number of bytes written
+     */
+    public static int encode(Response response, ByteBuffer buffer, int offset) {
+        var payloadType = payloadTypeOf(response);
+        buffer.put(offset + STATUS_OFFSET, (byte) response.getStatus().ordinal());
+        buffer.put(offset + PAYLOAD_TYPE_OFFSET, payloadType);
+        buffer.putShort(offset + RESERVED_OFFSET, (short) 0);
+        Layout.putUUID(buffer, offset + ITEM_ID_OFFSET, idOf(response, payloadType));
+        var count = 0;
+        var recordOffset = offset + HEADER_LENGTH;
+        switch (payloadType) {
+            case OFFERS_PAYLOAD:
+                for (var offer : response.getOffers()) {
+                    StockItemCodec.encode(offer, buffer, recordOffset + count++ * StockItemCodec.LENGTH);
+                }
+                break;
+            case DEMANDS_PAYLOAD:
+                for (var demand : response.getDemands()) {
+                    StockItemCodec.encode(demand, buffer, recordOffset + count++ * StockItemCodec.LENGTH);
+                }
+                break;
+            case OFFER_PAYLOAD: case DEMAND_PAYLOAD:
+                StockItemCodec.encode(response.getItem(), buffer, recordOffset);
+                count = 1;
+                break;
+            case TRANSACTIONS_PAYLOAD:
+                for (var transaction : response.getTransactions()) {
+                    TransactionCodec.encode(transaction, buffer, recordOffset + count++ * TransactionCodec.LENGTH);
+                }
+                break;
+            case ITEMS_PAYLOAD:
+                for (var item : response.getItems()) {
+                    StockItemCodec.encode(item, buffer, recordOffset + count++ * StockItemCodec.LENGTH);
+                }
+                break;
+            case DEPTH_PAYLOAD:
+                for (var level : response.getDepth().getOfferLevels()) {
+                    PriceLevelCodec.encode(level, PriceLevelCodec.OFFER_SIDE, buffer, recordOffset + count++ * PriceLevelCodec.LENGTH);
+                }
+                for (var level : response.getDepth().getDemandLevels()) {
+                    PriceLevelCodec.encode(level, PriceLevelCodec.DEMAND_SIDE, buffer, recordOffset + count++ * PriceLevelCodec.LENGTH);
+                }
+                break;
+            case CANDLES_PAYLOAD:
+                for (var candle : response.getCandles()) {
+                    CandleCodec.encode(candle, buffer, recordOffset + count++ * CandleCodec.LENGTH);
+                }
+                break;
+        }
+        buffer.putInt(offset + COUNT_OFFSET, count);
+        return encodedLength(response);
+    }
+
+    private static UUID idOf(Response response, byte payloadType) {
+        switch (payloadType) {
+            case ITEM_ID_PAYLOAD:
+                return response.getItemId();
+            case OFFERS_PAYLOAD: case DEMANDS_PAYLOAD:
+                return response.getNextCursor() != null ? response.getNextCursor() : NO_ITEM_ID;
+            default:
+                return NO_ITEM_ID;
+        }
+    }
+
+    static UUID nullIfAbsent(UUID id) {
+        return NO_ITEM_ID.equals(id) ? null : id;
+    }
+
+    /**
+     * Materializes the response at <code>offset</code>.
+     * @throws IllegalArgumentException if the status and payload type do not form a valid response
+     */
+    public static Response decode(ByteBuffer buffer, int offset) {
+        var status = Status.values()[buffer.get(offset + STATUS_OFFSET)];
+        var payloadType = buffer.get(offset + PAYLOAD_TYPE_OFFSET);
+        var count = buffer.getInt(offset + COUNT_OFFSET);
+        var recordOffset = offset + HEADER_LENGTH;
+        var id = nullIfAbsent(Layout.getUUID(buffer, offset + ITEM_ID_OFFSET));
+        switch (payloadType) {
+            case OFFERS_PAYLOAD:
+                var offers = new LinkedHashSet<Offer>(count);
+                for (int i = 0; i < count; i++)
+                    offers.add((Offer) StockItemCodec.decode(buffer, recordOffset + i * StockItemCodec.LENGTH));
+                return Response.offers(offers, id);
+            case DEMANDS_PAYLOAD:
+                var demands = new LinkedHashSet<Demand>(count);
+                for (int i = 0; i < count; i++)
+                    demands.add((Demand) StockItemCodec.decode(buffer, recordOffset + i * StockItemCodec.LENGTH));
+                return Response.demands(demands, id);
+            case OFFER_PAYLOAD: case DEMAND_PAYLOAD:
+                return responseWithItem(status, StockItemCodec.decode(buffer, recordOffset));
+            case TRANSACTIONS_PAYLOAD:
+                var transactions = new ArrayList<Transaction>(count);
+                for (int i = 0; i < count; i++)
+                    transactions.add(TransactionCodec.decode(buffer, recordOffset + i * TransactionCodec.LENGTH));
+                return Response.transactions(transactions);
+            case ITEMS_PAYLOAD:
+                var items = new ArrayList<StockItem>(count);
+                for (int i = 0; i < count; i++)
+                    items.add(StockItemCodec.decode(buffer, recordOffset + i * StockItemCodec.LENGTH));
+                return Response.orders(items);
+            case DEPTH_PAYLOAD:
+                var offerLevels = new ArrayList<PriceLevel>();
+                var demandLevels = new ArrayList<PriceLevel>();
+                for (int i = 0; i < count; i++) {
+                    var levelOffset = recordOffset + i * PriceLevelCodec.LENGTH;
+                    var levels = PriceLevelCodec.sideOf(buffer, levelOffset) == PriceLevelCodec.OFFER_SIDE ? offerLevels : demandLevels;
+                    levels.add(PriceLevelCodec.decode(buffer, levelOffset));
+                }
+                return Response.depth(new MarketDepth(List.copyOf(offerLevels), List.copyOf(demandLevels)));
+            case CANDLES_PAYLOAD:
+                var candles = new ArrayList<Candle>(count);
+                for (int i = 0; i < count; i++)
+                    candles.add(CandleCodec.decode(buffer, recordOffset + i * CandleCodec.LENGTH));
+                return Response.candles(candles);
+            case ITEM_ID_PAYLOAD:
+                return responseWithItemId(status, id);
+            case NO_PAYLOAD:
+                return responseWithoutPayload(status);
+            default:
+                throw new IllegalArgumentException("Unknown payload type " + payloadType);
+        }
+    }
+
+    private static Response responseWithItem(Status status, StockItem item) {
+        switch (status) {
+            case Successful:
+                return item instanceof Offer ? Response.offer((Offer) item) : Response.demand((Demand) item);
+            case Changed:
+                return Response.replaced(item);
+            case Conflict:
+                return Response.conflict(item);
+            default:
+                throw new IllegalArgumentException("Status " + status + " does not carry an item");
+        }
+    }
+
+    private static Response responseWithItemId(Status status, UUID itemId) {
+        switch (status) {
+            case Created:
+                return Response.created(itemId);
+            case DoesNotExist:
+                return Response.doesNotExist(itemId);
+            default:
+                throw new IllegalArgumentException("Status " + status + " does not carry an item id");
+        }
+    }
+
+    private static Response responseWithoutPayload(Status status) {
+        switch (status) {
+            case Successful:
+                return Response.registeredSuccessfully();
+            case AlreadyRegistered:
+                return Response.alreadyRegistered();
+            case NotRegistered:
+                return Response.notRegistered();
+            case Changed:
+                return Response.changed();
+            case OngoingTransaction:
+                return Response.ongoingTransaction();
+            case InsufficientFunds:
+                return Response.insufficientFunds();
+            case InvalidOrder:
+                return Response.invalidOrder();
+            case Failed:
+                return Response.failed();
+            case TooLarge:
+                return Response.tooLarge();
+            default:
+                throw new IllegalArgumentException("Status " + status + " requires a payload");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import pcbe.stock.model.Response.Status;
+
+/**
+ * A flyweight reading a {@link pcbe.stock.model.Response} encoded by
+ * {@link ResponseCodec} directly from a {@link ByteBuffer}.
+ * <p>
+ * Records are read by positioning a {@link StockItemView} or a
+ * {@link TransactionView} over them, so a whole book can be scanned without
+ * materializing a single object.
+ */
+public final class ResponseView {
+    private static final Status[] STATUSES = Status.values();
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public ResponseView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public Status getStatus() {
+        return STATUSES[buffer.get(offset + ResponseCodec.STATUS_OFFSET)];
+    }
+
+    public boolean isSuccessful() {
+        return getStatus().isSuccessful();
+    }
+
+    public byte getPayloadType() {
+        return buffer.get(offset + ResponseCodec.PAYLOAD_TYPE_OFFSET);
+    }
+
+    public int getCount() {
+        return buffer.getInt(offset + ResponseCodec.COUNT_OFFSET);
+    }
+
+    /**
+     * @return the item id, or <code>null</code> if the response does not carry one
+     */
+    public UUID getItemId() {
+        return getPayloadType() == ResponseCodec.ITEM_ID_PAYLOAD
+            ? Layout.getUUID(buffer, offset + ResponseCodec.ITEM_ID_OFFSET)
+            : null;
+    }
+
+    /**
+     * @return the cursor of the next page of a {@link pcbe.stock.model.BookQuery},
+     * or <code>null</code> if the response is the last page or does not hold a page
+     */
+    public UUID getNextCursor() {
+        switch (getPayloadType()) {
+            case ResponseCodec.OFFERS_PAYLOAD: case ResponseCodec.DEMANDS_PAYLOAD:
+                return ResponseCodec.nullIfAbsent(Layout.getUUID(buffer, offset + ResponseCodec.ITEM_ID_OFFSET));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Positions <code>view</code> over the item record with the given index.
+     * @throws IndexOutOfBoundsException if <code>index</code> is not below {@link #getCount()}
+     * @throws IllegalStateException if the response does not hold items
+     */
+    public StockItemView item(int index, StockItemView view) {
+        switch (getPayloadType()) {
+            case ResponseCodec.OFFERS_PAYLOAD: case ResponseCodec.DEMANDS_PAYLOAD:
+            case ResponseCodec.OFFER_PAYLOAD: case ResponseCodec.DEMAND_PAYLOAD:
+            case ResponseCodec.ITEMS_PAYLOAD:
+                return view.wrap(buffer, recordOffset(index, StockItemCodec.LENGTH));
+            default:
+                throw new IllegalStateException("Response does not hold items");
+        }
+    }
+
+    /**
+     * Positions <code>view</code> over the transaction record with the given index.
+     * @throws IndexOutOfBoundsException if <code>index</code> is not below {@link #getCount()}
+     * @throws IllegalStateException if the response does not hold transactions
+     */
+    public TransactionView transaction(int index, TransactionView view) {
+        if (getPayloadType() != ResponseCodec.TRANSACTIONS_PAYLOAD)
+            throw new IllegalStateException("Response does not hold transactions");
+        return view.wrap(buffer, recordOffset(index, TransactionCodec.LENGTH));
+    }
+
+    private int recordOffset(int index, int recordLength) {
+        if (index < 0 || index >= getCount())
+            throw new IndexOutOfBoundsException(index);
+        return offset + ResponseCodec.HEADER_LENGTH + index * recordLength;
+    }
+}
@@ -0,0 +1,65 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * Fixed-layout encoding of a {@link StockItem}:
+ * <pre>
+ *  0 id:uuid
+ * 16 clientId:uuid
+ * 32 price:double
+ * 40 shares:int
+ * 44 type:byte           1 for {@link Offer}, 2 for {@link Demand}
+ * 45 companyLength:byte
+ * 46 reserved:short
+ * 48 company:byte[32]
+ * </pre>
+ * The encoded item can be read in place with a {@link StockItemView}.
+ */
+public final class StockItemCodec {
+    public static final int LENGTH = 80;
+    public static final byte OFFER = 1;
+    public static final byte DEMAND = 2;
+
+    static final int ID_OFFSET = 0;
+    static final int CLIENT_ID_OFFSET = 16;
+    static final int PRICE_OFFSET = 32;
+    static final int SHARES_OFFSET = 40;
+    static final int TYPE_OFFSET = 44;
+    static final int COMPANY_LENGTH_OFFSET = 45;
+    static final int RESERVED_OFFSET = 46;
+    static final int COMPANY_OFFSET = 48;
+
+    private StockItemCodec() {}
+
+    /**
+     * Writes <code>item</code> at <code>offset</code> without moving the position of <code>buffer</code>.
+     */
+    public static void encode(StockItem item, ByteBuffer buffer, int offset) {
+        Layout.putUUID(buffer, offset + ID_OFFSET, item.getId());
+        Layout.putUUID(buffer, offset + CLIENT_ID_OFFSET, item.getClientId());
+        buffer.putDouble(offset + PRICE_OFFSET, item.getPrice());
+        buffer.putInt(offset + SHARES_OFFSET, item.getShares());
+        buffer.put(offset + TYPE_OFFSET, item instanceof Offer ? OFFER : DEMAND);
+        buffer.putShort(offset + RESERVED_OFFSET, (short) 0);
+        Layout.putCompany(buffer, offset + COMPANY_LENGTH_OFFSET, offset + COMPANY_OFFSET, item.getCompany());
+    }
+
+    /**
+     * Materializes the item at <code>offset</code> as an {@link Offer} or a {@link Demand}.
+     */
+    public static StockItem decode(ByteBuffer buffer, int offset) {
+        var id = Layout.getUUID(buffer, offset + ID_OFFSET);
+        var clientId = Layout.getUUID(buffer, offset + CLIENT_ID_OFFSET);
+        var price = buffer.getDouble(offset + PRICE_OFFSET);
+        var shares = buffer.getInt(offset + SHARES_OFFSET);
+        var company = Layout.getCompany(buffer, offset + COMPANY_LENGTH_OFFSET, offset + COMPANY_OFFSET);
+        return buffer.get(offset + TYPE_OFFSET) == OFFER
+            ? new Offer(id, clientId, company, shares, price)
+            : new Demand(id, clientId, company, shares, price);
+    }
+}
@@ -0,0 +1,65 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * A flyweight reading a {@link pcbe.stock.model.StockItem} encoded by
+ * {@link StockItemCodec} directly from a {@link ByteBuffer}.
+ * <p>
+ * A view can be moved over many items with {@link #wrap(ByteBuffer, int)}; the
+ * primitive accessors never allocate.
+ */
+public final class StockItemView {
+    private ByteBuffer buffer;
+    private int offset;
+
+    public StockItemView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public boolean isOffer() {
+        return buffer.get(offset + StockItemCodec.TYPE_OFFSET) == StockItemCodec.OFFER;
+    }
+
+    public boolean isDemand() {
+        return buffer.get(offset + StockItemCodec.TYPE_OFFSET) == StockItemCodec.DEMAND;
+    }
+
+    public UUID getId() {
+        return Layout.getUUID(buffer, offset + StockItemCodec.ID_OFFSET);
+    }
+
+    public boolean idEquals(UUID id) {
+        return Layout.uuidEquals(buffer, offset + StockItemCodec.ID_OFFSET, id);
+    }
+
+    public UUID getClientId() {
+        return Layout.getUUID(buffer, offset + StockItemCodec.CLIENT_ID_OFFSET);
+    }
+
+    public boolean clientIdEquals(UUID clientId) {
+        return Layout.uuidEquals(buffer, offset + StockItemCodec.CLIENT_ID_OFFSET, clientId);
+    }
+
+    public String getCompany() {
+        return Layout.getCompany(buffer, offset + StockItemCodec.COMPANY_LENGTH_OFFSET, offset + StockItemCodec.COMPANY_OFFSET);
+    }
+
+    /**
+     * @param company the UTF-8 bytes of the company name
+     */
+    public boolean companyEquals(byte[] company) {
+        return Layout.companyEquals(buffer, offset + StockItemCodec.COMPANY_LENGTH_OFFSET, offset + StockItemCodec.COMPANY_OFFSET, company);
+    }
+
+    public int getShares() {
+        return buffer.getInt(offset + StockItemCodec.SHARES_OFFSET);
+    }
+
+    public double getPrice() {
+        return buffer.getDouble(offset + StockItemCodec.PRICE_OFFSET);
+    }
+}
@@ -0,0 +1,66 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+
+import pcbe.stock.model.Transaction;
+
+/**
+ * Fixed-layout encoding of a {@link Transaction}:
+ * <pre>
+ *   0 id:uuid
+ *  16 offeringClientId:uuid
+ *  32 demandingClientId:uuid
+ *  48 offerId:uuid
+ *  64 demandId:uuid
+ *  80 price:double
+ *  88 shares:int
+ *  92 companyLength:byte
+ *  93 reserved:byte[3]
+ *  96 company:byte[32]
+ * </pre>
+ * The encoded transaction can be read in place with a {@link TransactionView}.
+ */
+public final class TransactionCodec {
+    public static final int LENGTH = 128;
+
+    static final int ID_OFFSET = 0;
+    static final int OFFERING_CLIENT_ID_OFFSET = 16;
+    static final int DEMANDING_CLIENT_ID_OFFSET = 32;
+    static final int OFFER_ID_OFFSET = 48;
+    static final int DEMAND_ID_OFFSET = 64;
+    static final int PRICE_OFFSET = 80;
+    static final int SHARES_OFFSET = 88;
+    static final int COMPANY_LENGTH_OFFSET = 92;
+    static final int RESERVED_OFFSET = 93;
+    static final int COMPANY_OFFSET = 96;
+
+    private TransactionCodec() {}
+
+    /**
+     * Writes <code>transaction</code> at <code>offset</code> without moving the position of <code>buffer</code>.
+     */
+    public static void encode(Transaction transaction, ByteBuffer buffer, int offset) {
+        Layout.putUUID(buffer, offset + ID_OFFSET, transaction.getId());
+        Layout.putUUID(buffer, offset + OFFERING_CLIENT_ID_OFFSET, transaction.getOfferingClientId());
+        Layout.putUUID(buffer, offset + DEMANDING_CLIENT_ID_OFFSET, transaction.getDemandingClientId());
+        Layout.putUUID(buffer, offset + OFFER_ID_OFFSET, transaction.getOfferId());
+        Layout.putUUID(buffer, offset + DEMAND_ID_OFFSET, transaction.getDemandId());
+        buffer.putDouble(offset + PRICE_OFFSET, transaction.getPrice());
+        buffer.putInt(offset + SHARES_OFFSET, transaction.getShares());
+        for (int i = RESERVED_OFFSET; i < COMPANY_OFFSET; i++)
+            buffer.put(offset + i, (byte) 0);
+        Layout.putCompany(buffer, offset + COMPANY_LENGTH_OFFSET, offset + COMPANY_OFFSET, transaction.getCompany());
+    }
+
+    public static Transaction decode(ByteBuffer buffer, int offset) {
+        return new Transaction(
+            Layout.getUUID(buffer, offset + ID_OFFSET),
+            Layout.getUUID(buffer, offset + OFFERING_CLIENT_ID_OFFSET),
+            Layout.getUUID(buffer, offset + DEMANDING_CLIENT_ID_OFFSET),
+            Layout.getUUID(buffer, offset + OFFER_ID_OFFSET),
+            Layout.getUUID(buffer, offset + DEMAND_ID_OFFSET),
+            Layout.getCompany(buffer, offset + COMPANY_LENGTH_OFFSET, offset + COMPANY_OFFSET),
+            buffer.getInt(offset + SHARES_OFFSET),
+            buffer.getDouble(offset + PRICE_OFFSET));
+    }
+}
@@ -0,0 +1,69 @@
+package pcbe.stock.codec;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * A flyweight reading a {@link pcbe.stock.model.Transaction} encoded by
+ * {@link TransactionCodec} directly from a {@link ByteBuffer}.
+ * <p>
+ * A view can be moved over many transactions with {@link #wrap(ByteBuffer, int)};
+ * the primitive accessors never allocate.
+ */
+public final class TransactionView {
+    private ByteBuffer buffer;
+    private int offset;
+
+    public TransactionView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public UUID getId() {
+        return Layout.getUUID(buffer, offset + TransactionCodec.ID_OFFSET);
+    }
+
+    public UUID getOfferingClientId() {
+        return Layout.getUUID(buffer, offset + TransactionCodec.OFFERING_CLIENT_ID_OFFSET);
+    }
+
+    public boolean offeringClientIdEquals(UUID clientId) {
+        return Layout.uuidEquals(buffer, offset + TransactionCodec.OFFERING_CLIENT_ID_OFFSET, clientId);
+    }
+
+    public UUID getDemandingClientId() {
+        return Layout.getUUID(buffer, offset + TransactionCodec.DEMANDING_CLIENT_ID_OFFSET);
+    }
+
+    public boolean demandingClientIdEquals(UUID clientId) {
+        return Layout.uuidEquals(buffer, offset + TransactionCodec.DEMANDING_CLIENT_ID_OFFSET, clientId);
+    }
+
+    public UUID getOfferId() {
+        return Layout.getUUID(buffer, offset + TransactionCodec.OFFER_ID_OFFSET);
+    }
+
+    public UUID getDemandId() {
+        return Layout.getUUID(buffer, offset + TransactionCodec.DEMAND_ID_OFFSET);
+    }
+
+    public String getCompany() {
+        return Layout.getCompany(buffer, offset + TransactionCodec.COMPANY_LENGTH_OFFSET, offset + TransactionCodec.COMPANY_OFFSET);
+    }
+
+    /**
+     * @param company the UTF-8 bytes of the company name
+     */
+    public boolean companyEquals(byte[] company) {
+        return Layout.companyEquals(buffer, offset + TransactionCodec.COMPANY_LENGTH_OFFSET, offset + TransactionCodec.COMPANY_OFFSET, company);
+    }
+
+    public int getShares() {
+        return buffer.getInt(offset + TransactionCodec.SHARES_OFFSET);
+    }
+
+    public double getPrice() {
+        return buffer.getDouble(offset + TransactionCodec.PRICE_OFFSET);
+    }
+}
@@ -0,0 +1,40 @@
+package pcbe.stock.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+@Name("pcbe.stock.MatchAttempt")
+@Label("Match Attempt")
+@Category({ "PCBE Stock", "Matching" })
+@Description("A demand and an offer were checked and, if possible, put in transaction under the write lock")
+public class MatchAttemptEvent extends Event {
+    @Label("Demand Id")
+    String demandId;
+
+    @Label("Offer Id")
+    String offerId;
+
+    @Label("Company")
+    String company;
+
+    @Label("Possible")
+    @Description("Whether the transaction could go on")
+    boolean possible;
+
+    public void endAndCommit(Demand demand, Offer offer, boolean possible) {
+        end();
+        if (!shouldCommit())
+            return;
+        demandId = demand.getId().toString();
+        offerId = offer.getId().toString();
+        company = demand.getCompany();
+        this.possible = possible;
+        commit();
+    }
+}
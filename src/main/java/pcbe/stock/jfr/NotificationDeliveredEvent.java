@@ -0,0 +1,44 @@
+package pcbe.stock.jfr;
+
+import java.util.UUID;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import pcbe.stock.model.Transaction;
+
+@Name("pcbe.stock.NotificationDelivered")
+@Label("Notification Delivered")
+@Category({ "PCBE Stock", "Notifications" })
+@Description("A buy or sale notifier of a client ran; the duration is the time spent in the notifier")
+public class NotificationDeliveredEvent extends Event {
+    @Label("Transaction Id")
+    String transactionId;
+
+    @Label("Client Id")
+    String clientId;
+
+    @Label("Kind")
+    @Description("buy or sale")
+    String kind;
+
+    @Label("Queue Time")
+    @Description("Time between the transaction and the start of the delivery")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+
+    public void endAndCommit(Transaction transaction, UUID clientId, String kind, long queuedNanos, long startNanos) {
+        end();
+        if (!shouldCommit())
+            return;
+        transactionId = transaction.getId().toString();
+        this.clientId = clientId.toString();
+        this.kind = kind;
+        queueTime = startNanos - queuedNanos;
+        commit();
+    }
+}
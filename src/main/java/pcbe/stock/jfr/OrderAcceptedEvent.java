@@ -0,0 +1,50 @@
+package pcbe.stock.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Offer;
+
+@Name("pcbe.stock.OrderAccepted")
+@Label("Order Accepted")
+@Category({ "PCBE Stock", "Orders" })
+@Description("A new offer or demand was added to the book; the duration includes waiting for the write lock")
+public class OrderAcceptedEvent extends Event {
+    @Label("Item Id")
+    String itemId;
+
+    @Label("Client Id")
+    String clientId;
+
+    @Label("Company")
+    String company;
+
+    @Label("Side")
+    String side;
+
+    @Label("Shares")
+    int shares;
+
+    @Label("Price")
+    double price;
+
+    /**
+     * Ends the event and commits it with the data of <code>item</code> if the event is enabled.
+     */
+    public void endAndCommit(StockItem item) {
+        end();
+        if (!shouldCommit())
+            return;
+        itemId = item.getId().toString();
+        clientId = item.getClientId().toString();
+        company = item.getCompany();
+        side = item instanceof Offer ? "offer" : "demand";
+        shares = item.getShares();
+        price = item.getPrice();
+        commit();
+    }
+}
@@ -0,0 +1,54 @@
+package pcbe.stock.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import pcbe.stock.model.Transaction;
+
+@Name("pcbe.stock.TradeExecuted")
+@Label("Trade Executed")
+@Category({ "PCBE Stock", "Matching" })
+@Description("A transaction was done, from the match attempt to the queueing of the notifications")
+public class TradeExecutedEvent extends Event {
+    @Label("Transaction Id")
+    String transactionId;
+
+    @Label("Offer Id")
+    String offerId;
+
+    @Label("Demand Id")
+    String demandId;
+
+    @Label("Offering Client Id")
+    String offeringClientId;
+
+    @Label("Demanding Client Id")
+    String demandingClientId;
+
+    @Label("Company")
+    String company;
+
+    @Label("Shares")
+    int shares;
+
+    @Label("Price")
+    double price;
+
+    public void endAndCommit(Transaction transaction) {
+        end();
+        if (!shouldCommit())
+            return;
+        transactionId = transaction.getId().toString();
+        offerId = transaction.getOfferId().toString();
+        demandId = transaction.getDemandId().toString();
+        offeringClientId = transaction.getOfferingClientId().toString();
+        demandingClientId = transaction.getDemandingClientId().toString();
+        company = transaction.getCompany();
+        shares = transaction.getShares();
+        price = transaction.getPrice();
+        commit();
+    }
+}
@@ -0,0 +1,41 @@
+package pcbe.stock.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+@Name("pcbe.stock.TransactionRejected")
+@Label("Transaction Rejected")
+@Category({ "PCBE Stock", "Matching" })
+@Description("A transaction between a demand and an offer was not possible")
+@StackTrace(false)
+public class TransactionRejectedEvent extends Event {
+    @Label("Demand Id")
+    String demandId;
+
+    @Label("Offer Id")
+    String offerId;
+
+    @Label("Company")
+    String company;
+
+    @Label("Reason")
+    String reason;
+
+    public static void record(Demand demand, Offer offer, String reason) {
+        var event = new TransactionRejectedEvent();
+        if (!event.shouldCommit())
+            return;
+        event.demandId = demand.getId().toString();
+        event.offerId = offer.getId().toString();
+        event.company = demand.getCompany();
+        event.reason = reason;
+        event.commit();
+    }
+}
@@ -0,0 +1,94 @@
+package pcbe.stock.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.net.Protocol;
+
+/**
+ * The file format of the command journal written by a {@link RecordingStockServer}
+ * and read by the {@link JournalReplayer}.
+ * <p>
+ * A journal starts with the <code>int</code>s {@link #MAGIC} and {@link #VERSION},
+ * followed by one {@link Protocol} frame per record. The correlation id of a frame is
+ * its sequence number in the journal, starting from 1. A command record has the opcode
+ * of the matching {@link Protocol} request and the payload:
+ * <pre>
+ * | nanos:long | clientId:uuid | status:byte | itemId:uuid | request payload |
+ * </pre>
+ * where <code>nanos</code> is the time the command reached the server, relative to the
+ * start of the recording, <code>status</code> the ordinal of the {@link pcbe.stock.model.Response.Status}
+ * returned and <code>itemId</code> the one of the response, or {@link #NO_ID}.
+ * A {@link #TRADE} record holds <code>| nanos:long | transaction |</code>. The {@link #EXPIRE}
+ * and {@link #REPRICE} records of the expiries and repricings done by the deadlines of the
+ * engine have the layout of a command, with the client and the id of the order, and so do the
+ * {@link #DEPOSIT_CURRENCY} and {@link #DEPOSIT_SHARES} records of the deposits on the accounts,
+ * with {@link #NO_ID}.
+ * <p>
+ * Records are written when the command completes, under the lock sequencing the commands,
+ * so they are in the order the commands were applied; the {@link #TRADE} records of a command
+ * precede it.
+ */
+public final class Journal {
+    public static final int MAGIC = 0x5043424A;
+    public static final int VERSION = 1;
+    /** A transaction done by the engine; <code>transaction</code>, encoded by {@link pcbe.stock.codec.TransactionCodec} */
+    public static final byte TRADE = Protocol.NOTIFY_BUY;
+    /** An order expired by its deadline; no payload */
+    public static final byte EXPIRE = 32;
+    /** An order repriced by its schedule; <code>newPrice:double</code> */
+    public static final byte REPRICE = 33;
+    /** A deposit of currency; <code>currencyUnits:double</code> */
+    public static final byte DEPOSIT_CURRENCY = 34;
+    /** A deposit of shares; <code>company:string shares:int</code> */
+    public static final byte DEPOSIT_SHARES = 35;
+    public static final UUID NO_ID = new UUID(0, 0);
+
+    private static final Logger logger = LogManager.getServerLogger();
+
+    private Journal() {}
+
+    /**
+     * Reads all the records of the journal at <code>path</code>, each one positioned
+     * on its opcode. A record truncated by a crash of the recording process ends the journal.
+     * @throws IOException if the file is not a journal
+     */
+    public static List<ByteBuffer> readAll(Path path) throws IOException {
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException(path + " is not a journal");
+            var version = input.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported journal version " + version);
+            var records = new ArrayList<ByteBuffer>();
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                if (length < Protocol.HEADER_LENGTH - Integer.BYTES || length > Protocol.MAX_FRAME_LENGTH)
+                    throw new IOException("Invalid record length " + length + " after " + records.size() + " records");
+                var record = new byte[length];
+                try {
+                    input.readFully(record);
+                } catch (EOFException e) {
+                    logger.warning("Journal " + path + " ends with a truncated record after " + records.size() + " records.");
+                    return records;
+                }
+                records.add(ByteBuffer.wrap(record));
+            }
+        }
+    }
+}
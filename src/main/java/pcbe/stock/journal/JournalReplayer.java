@@ -0,0 +1,284 @@
+package pcbe.stock.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+import pcbe.stock.client.StockClientNotifiers;
+import pcbe.stock.metrics.LatencyHistogram;
+import pcbe.stock.metrics.LatencySnapshot;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * Replays a {@link Journal} into a fresh {@link StockService} and checks that it behaves as
+ * the recorded one: every command must get the recorded response status and the
+ * transactions done must be the recorded ones.
+ * <p>
+ * Commands are replayed on one thread in the order they were recorded, either as fast as
+ * possible or at the recorded pace, and the engine matches on the calling thread, so two
+ * replays of the same journal are identical. The orders of the replayed engine expire and are
+ * repriced by the recorded {@link Journal#EXPIRE} and {@link Journal#REPRICE} records, not by
+ * its own clock. The ids of the items created during the replay are mapped to the recorded
+ * ones; transactions are compared as a multiset of their clients, items, company, shares and
+ * price, as their ids are new. A journal recorded in front of an engine matching on the calling
+ * thread, as {@link RecordingStockServer#createIfConfigured()} does, replays identically; when
+ * matching ran on a thread pool, the recorded transactions depend on how matching raced with
+ * the following commands and the replay is expected to diverge.
+ * <p>
+ * Arguments are the journal file and, optionally, <code>recorded-speed</code>.
+ */
+public class JournalReplayer {
+    private final boolean recordedSpeed;
+    private final StockService stockService = new StockService(Runnable::run);
+    private final StockServer stockServer = new StockServer(stockService);
+    private final Map<UUID, UUID> replayedIds = new HashMap<>();
+    private final Map<UUID, UUID> recordedIds = new HashMap<>();
+    private final Map<String, Integer> unmatchedTrades = new HashMap<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long commands;
+    private long statusMismatches;
+    private long recordedTrades;
+
+    /**
+     * @param recordedSpeed whether to wait for the recorded time of each command
+     */
+    public JournalReplayer(boolean recordedSpeed) {
+        this.recordedSpeed = recordedSpeed;
+        stockService.followDeadlines();
+    }
+
+    /**
+     * Replays all the records of <code>journal</code>; a replayer can be used once.
+     */
+    public Report replay(Path journal) throws IOException {
+        var records = Journal.readAll(journal);
+        var start = System.nanoTime();
+        for (var record : records)
+            replay(record, start);
+        var elapsedNanos = System.nanoTime() - start;
+        var trades = stockService.getTransactions();
+        for (var transaction : trades)
+            unmatchedTrades.merge(keyOf(transaction, recordedIds), -1, Integer::sum);
+        long missingTrades = 0, unexpectedTrades = 0;
+        for (var count : unmatchedTrades.values())
+            if (count > 0)
+                missingTrades += count;
+            else
+                unexpectedTrades -= count;
+        return new Report(commands, statusMismatches, recordedTrades, trades.size(), missingTrades, unexpectedTrades,
+            elapsedNanos, latencies.snapshot());
+    }
+
+    private void replay(ByteBuffer record, long start) {
+        var opcode = record.get();
+        record.getInt();
+        var nanos = record.getLong();
+        if (opcode == Journal.TRADE) {
+            recordedTrades++;
+            unmatchedTrades.merge(keyOf(Protocol.getTransaction(record), Map.of()), 1, Integer::sum);
+            return;
+        }
+        var clientId = Protocol.getUUID(record);
+        var status = Status.values()[record.get()];
+        var itemId = Protocol.getUUID(record);
+        if (recordedSpeed)
+            waitUntil(start + nanos);
+        if (opcode == Journal.EXPIRE || opcode == Journal.REPRICE) {
+            var replayedId = replayedIds.getOrDefault(itemId, itemId);
+            var applied = opcode == Journal.EXPIRE
+                ? stockService.expire(replayedId)
+                : stockService.reprice(replayedId, record.getDouble());
+            if (!applied)
+                statusMismatches++;
+            return;
+        }
+        var commandStart = System.nanoTime();
+        var response = execute(opcode, clientId, record);
+        latencies.recordSince(commandStart);
+        commands++;
+        if (response.getStatus() != status)
+            statusMismatches++;
+        if (opcode == Protocol.OFFER || opcode == Protocol.DEMAND)
+            if (!itemId.equals(Journal.NO_ID) && response.getItemId() != null) {
+                replayedIds.put(itemId, response.getItemId());
+                recordedIds.put(response.getItemId(), itemId);
+            }
+    }
+
+    private Response execute(byte opcode, UUID clientId, ByteBuffer payload) {
+        switch (opcode) {
+            case Protocol.REGISTER:
+                return stockServer.register(clientId, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            case Protocol.DEREGISTER:
+                return stockServer.deregister(clientId);
+            case Journal.DEPOSIT_CURRENCY:
+                stockServer.depositCurrency(clientId, payload.getDouble());
+                return Response.deposited();
+            case Journal.DEPOSIT_SHARES:
+                stockServer.depositShares(clientId, Protocol.getString(payload), payload.getInt());
+                return Response.deposited();
+            case Protocol.OFFER:
+                return stockServer.offerShares(clientId, Protocol.getString(payload), payload.getInt(), payload.getDouble(),
+                    Protocol.getTimeInForce(payload), Protocol.getRepricing(payload));
+            case Protocol.DEMAND:
+                return stockServer.demandShares(clientId, Protocol.getString(payload), payload.getInt(), payload.getDouble(),
+                    Protocol.getTimeInForce(payload), Protocol.getRepricing(payload));
+            case Protocol.CHANGE_OFFER:
+                return stockServer.changeOffer(clientId, replayedId(payload), payload.getInt(), payload.getDouble());
+            case Protocol.CHANGE_DEMAND:
+                return stockServer.changeDemand(clientId, replayedId(payload), payload.getInt(), payload.getDouble());
+            case Protocol.REPLACE:
+                return stockServer.replaceOrder(clientId, replayedId(payload), payload.getInt(), payload.getDouble(),
+                    payload.getInt(), payload.getDouble());
+            case Protocol.REMOVE:
+                return stockServer.removeItem(clientId, replayedId(payload));
+            case Protocol.CANCEL_ALL:
+                return stockServer.cancelAll(clientId, Protocol.getOptionalString(payload));
+            case Protocol.GET_OFFERS:
+                return stockServer.getOffers(clientId);
+            case Protocol.GET_DEMANDS:
+                return stockServer.getDemands(clientId);
+            case Protocol.QUERY_OFFERS: {
+                var query = Protocol.getQuery(payload);
+                query.getCursor().ifPresent(cursor -> query.after(replayedIds.getOrDefault(cursor, cursor)));
+                return stockServer.getOffers(clientId, query);
+            }
+            case Protocol.QUERY_DEMANDS: {
+                var query = Protocol.getQuery(payload);
+                query.getCursor().ifPresent(cursor -> query.after(replayedIds.getOrDefault(cursor, cursor)));
+                return stockServer.getDemands(clientId, query);
+            }
+            case Protocol.GET_OFFER:
+                return stockServer.getOfferById(clientId, replayedId(payload));
+            case Protocol.GET_DEMAND:
+                return stockServer.getDemandById(clientId, replayedId(payload));
+            case Protocol.GET_TRANSACTIONS:
+                return stockServer.getTransactionHistory(clientId);
+            default:
+                throw new IllegalArgumentException("Unknown journal opcode " + opcode);
+        }
+    }
+
+    private UUID replayedId(ByteBuffer payload) {
+        var recordedId = Protocol.getUUID(payload);
+        return replayedIds.getOrDefault(recordedId, recordedId);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+
+    /**
+     * @param recordedIds maps the ids of the replayed items to the recorded ones
+     */
+    private static String keyOf(Transaction transaction, Map<UUID, UUID> recordedIds) {
+        return transaction.getOfferingClientId() + " " + transaction.getDemandingClientId()
+            + " " + recordedIds.getOrDefault(transaction.getOfferId(), transaction.getOfferId())
+            + " " + recordedIds.getOrDefault(transaction.getDemandId(), transaction.getDemandId())
+            + " " + transaction.getCompany() + " " + transaction.getShares() + " " + transaction.getPrice();
+    }
+
+    public static class Report {
+        private final long commands;
+        private final long statusMismatches;
+        private final long recordedTrades;
+        private final long trades;
+        private final long missingTrades;
+        private final long unexpectedTrades;
+        private final long elapsedNanos;
+        private final LatencySnapshot latency;
+
+        private Report(long commands, long statusMismatches, long recordedTrades, long trades, long missingTrades,
+                long unexpectedTrades, long elapsedNanos, LatencySnapshot latency) {
+            this.commands = commands;
+            this.statusMismatches = statusMismatches;
+            this.recordedTrades = recordedTrades;
+            this.trades = trades;
+            this.missingTrades = missingTrades;
+            this.unexpectedTrades = unexpectedTrades;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        /**
+         * @return the number of commands whose response status differs from the recorded one,
+         * and of recorded expiries and repricings the replayed engine could not apply
+         */
+        public long getStatusMismatches() {
+            return statusMismatches;
+        }
+
+        public long getRecordedTrades() {
+            return recordedTrades;
+        }
+
+        public long getTrades() {
+            return trades;
+        }
+
+        /**
+         * @return the number of recorded transactions the replay did not do
+         */
+        public long getMissingTrades() {
+            return missingTrades;
+        }
+
+        /**
+         * @return the number of transactions done by the replay that were not recorded
+         */
+        public long getUnexpectedTrades() {
+            return unexpectedTrades;
+        }
+
+        /**
+         * @return whether the replay got every recorded status and did exactly the recorded transactions
+         */
+        public boolean isIdentical() {
+            return statusMismatches == 0 && missingTrades == 0 && unexpectedTrades == 0;
+        }
+
+        public double getCommandsPerSecond() {
+            return commands / (elapsedNanos / 1e9);
+        }
+
+        public LatencySnapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("commands=%d elapsed=%.2fs throughput=%.0f commands/s%n"
+                + "latency(us) p50=%.1f p99=%.1f p999=%.1f max=%.1f%n"
+                + "trades=%d recorded=%d missing=%d unexpected=%d status mismatches=%d: %s",
+                commands, elapsedNanos / 1e9, getCommandsPerSecond(),
+                latency.getP50Micros(), latency.getP99Micros(), latency.getP999Micros(), latency.getMaxMicros(),
+                trades, recordedTrades, missingTrades, unexpectedTrades, statusMismatches,
+                isIdentical() ? "identical" : "DIVERGED");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || args.length == 2 && !"recorded-speed".equals(args[1]))
+            throw new IllegalArgumentException("Usage: JournalReplayer <journal> [recorded-speed]");
+        var report = new JournalReplayer(args.length == 2).replay(Paths.get(args[0]));
+        System.out.println(report);
+        if (!report.isIdentical())
+            System.exit(1);
+    }
+}
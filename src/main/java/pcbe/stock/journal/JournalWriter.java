@@ -0,0 +1,80 @@
+package pcbe.stock.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.net.Protocol.FrameBuilder;
+
+/**
+ * Appends records to a {@link Journal} file.
+ * <p>
+ * Records are numbered and written in the order of the calls to {@link #append(FrameBuilder)},
+ * which may come from any thread. A failure to write stops the recording instead of
+ * failing the command being recorded; records appended after {@link #close()} are dropped.
+ */
+public class JournalWriter implements Closeable {
+    private static final Logger logger = LogManager.getServerLogger();
+    private static final int SEQUENCE_OFFSET = Integer.BYTES + Byte.BYTES;
+
+    private final Path path;
+    private final DataOutputStream output;
+    private final long startNanos = System.nanoTime();
+    private int sequence;
+    private boolean failed;
+    private boolean closed;
+
+    public JournalWriter(Path path) throws IOException {
+        this.path = path;
+        output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        output.writeInt(Journal.MAGIC);
+        output.writeInt(Journal.VERSION);
+    }
+
+    /**
+     * @return the timestamp of a record created now
+     */
+    public long nanosSinceStart() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @param opcode one of the request opcodes of the {@link Protocol} or {@link Journal#TRADE}
+     * @return a record to fill in and {@link #append(FrameBuilder)}
+     */
+    public FrameBuilder record(byte opcode, long nanos) {
+        return new FrameBuilder(opcode, 0).putLong(nanos);
+    }
+
+    public synchronized void append(FrameBuilder record) {
+        if (failed || closed)
+            return;
+        var frame = record.build();
+        frame.putInt(SEQUENCE_OFFSET, ++sequence);
+        try {
+            output.write(frame.array(), 0, frame.limit());
+        } catch (IOException e) {
+            failed = true;
+            logger.severe("Recording to " + path + " stopped after " + (sequence - 1) + " records: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of records appended
+     */
+    public synchronized int getRecordCount() {
+        return failed ? sequence - 1 : sequence;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        output.close();
+    }
+}
@@ -0,0 +1,296 @@
+package pcbe.stock.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.server.DeadlineSequencer;
+import pcbe.stock.server.Session;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * A {@link StockServer} recording every command it serves, with its response, and every
+ * transaction done for its clients into a {@link Journal}, to be replayed by the {@link JournalReplayer}.
+ * Commands made by client id and through a {@link Session} are both recorded.
+ * <p>
+ * Commands are sequenced: each one is executed and appended under one lock, so the journal
+ * holds them in the order they were applied, each after the transactions it did. The deadlines
+ * of the service run under the same lock, and the orders they expire and reprice are recorded
+ * as {@link Journal#EXPIRE} and {@link Journal#REPRICE} records. A journal replays identically
+ * only if the matching of a command completes before it returns, so {@link #createIfConfigured()}
+ * records in front of an engine matching on the calling thread; recording serializes the commands.
+ */
+public class RecordingStockServer extends StockServer implements Closeable {
+    /**
+     * System property holding the file to record to, e.g. <code>-Dpcbe.journal=build/orders.journal</code>.
+     * Nothing is recorded if it is not set.
+     */
+    public static final String PATH_PROPERTY = "pcbe.journal";
+
+    private static final Logger logger = LogManager.getServerLogger();
+
+    private final StockService recordedService;
+    private final JournalWriter journal;
+    private final Object sequencer = new Object();
+    /**
+     * The records of the expiries and repricings of the deadlines being sequenced, appended once
+     * the deadlines ran rather than under the write lock of the service. Guarded by the sequencer.
+     */
+    private final List<FrameBuilder> deadlineRecords = new ArrayList<>();
+
+    /**
+     * @param stockService a service running its tasks on the calling thread, for the journal to replay identically
+     */
+    public RecordingStockServer(StockService stockService, Path path) throws IOException {
+        super(stockService);
+        recordedService = stockService;
+        journal = new JournalWriter(path);
+        stockService.sequenceDeadlines(new DeadlineSequencer() {
+            @Override
+            public void sequence(Runnable deadlines) {
+                synchronized (sequencer) {
+                    deadlines.run();
+                    deadlineRecords.forEach(journal::append);
+                    deadlineRecords.clear();
+                }
+            }
+
+            @Override
+            public void expired(StockItem item) {
+                deadlineRecords.add(command(Journal.EXPIRE, journal.nanosSinceStart(), item.getClientId(), Status.Successful, item.getId()));
+            }
+
+            @Override
+            public void repriced(StockItem item) {
+                deadlineRecords.add(command(Journal.REPRICE, journal.nanosSinceStart(), item.getClientId(), Status.Changed, item.getId())
+                    .putDouble(item.getPrice()));
+            }
+        });
+        logger.info("Recording commands to " + path);
+    }
+
+    /**
+     * Creates a server recording to the file given by {@value #PATH_PROPERTY}, if it is set, in
+     * front of a new service matching on the calling thread, whose metrics are the ones visible
+     * over JMX. The transactions of a service matching on a pool depend on how the matching raced
+     * with the following commands, which a replay cannot reproduce.
+     */
+    public static Optional<RecordingStockServer> createIfConfigured() throws IOException {
+        var path = System.getProperty(PATH_PROPERTY);
+        if (path == null)
+            return Optional.empty();
+        var stockService = new StockService(Runnable::run);
+        stockService.getMetrics().export();
+        return Optional.of(new RecordingStockServer(stockService, Paths.get(path)));
+    }
+
+    /**
+     * @return the service whose commands are recorded
+     */
+    public StockService getRecordedService() {
+        return recordedService;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public int getRecordCount() {
+        return journal.getRecordCount();
+    }
+
+    /**
+     * Flushes and closes the journal once the command or the deadlines being sequenced are
+     * recorded; the server keeps serving without recording.
+     */
+    @Override
+    public void close() {
+        synchronized (sequencer) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.severe("Could not close the journal: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected Response register(Session session, Notifiers notifiers) {
+        return recorded(Protocol.REGISTER, session, () -> super.register(session, recordingTrades(notifiers)), record -> {});
+    }
+
+    /**
+     * Deposits are recorded, so the replay checks the orders against the same accounts.
+     */
+    @Override
+    public void depositCurrency(UUID clientId, double currencyUnits) {
+        recorded(Journal.DEPOSIT_CURRENCY, clientId, () -> {
+            super.depositCurrency(clientId, currencyUnits);
+            return Response.deposited();
+        }, record -> record.putDouble(currencyUnits));
+    }
+
+    @Override
+    public void depositShares(UUID clientId, String company, int shares) {
+        recorded(Journal.DEPOSIT_SHARES, clientId, () -> {
+            super.depositShares(clientId, company, shares);
+            return Response.deposited();
+        }, record -> record.putString(company).putInt(shares));
+    }
+
+    @Override
+    protected Response deregister(Session session) {
+        return recorded(Protocol.DEREGISTER, session, () -> super.deregister(session), record -> {});
+    }
+
+    @Override
+    protected Response offerShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return recorded(Protocol.OFFER, session, () -> super.offerShares(session, company, shares, price, timeInForce, repricing),
+            record -> record.putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce).putRepricing(repricing));
+    }
+
+    @Override
+    protected Response demandShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return recorded(Protocol.DEMAND, session, () -> super.demandShares(session, company, shares, price, timeInForce, repricing),
+            record -> record.putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce).putRepricing(repricing));
+    }
+
+    @Override
+    protected Response changeOffer(Session session, UUID offerId, int newShares, double newPrice) {
+        return recorded(Protocol.CHANGE_OFFER, session, () -> super.changeOffer(session, offerId, newShares, newPrice),
+            record -> record.putUUID(offerId).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response changeDemand(Session session, UUID demandId, int newShares, double newPrice) {
+        return recorded(Protocol.CHANGE_DEMAND, session, () -> super.changeDemand(session, demandId, newShares, newPrice),
+            record -> record.putUUID(demandId).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response cancelAll(Session session, String company) {
+        return recorded(Protocol.CANCEL_ALL, session, () -> super.cancelAll(session, company),
+            record -> record.putOptionalString(company));
+    }
+
+    @Override
+    protected Response replaceOrder(Session session, UUID orderId, int expectedShares, double expectedPrice,
+            int newShares, double newPrice) {
+        return recorded(Protocol.REPLACE, session,
+            () -> super.replaceOrder(session, orderId, expectedShares, expectedPrice, newShares, newPrice),
+            record -> record.putUUID(orderId).putInt(expectedShares).putDouble(expectedPrice).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response removeItem(Session session, UUID itemId) {
+        return recorded(Protocol.REMOVE, session, () -> super.removeItem(session, itemId), record -> record.putUUID(itemId));
+    }
+
+    @Override
+    protected Response getOffers(Session session) {
+        return recorded(Protocol.GET_OFFERS, session, () -> super.getOffers(session), record -> {});
+    }
+
+    @Override
+    protected Response getDemands(Session session) {
+        return recorded(Protocol.GET_DEMANDS, session, () -> super.getDemands(session), record -> {});
+    }
+
+    @Override
+    protected Response getOffers(Session session, BookQuery query) {
+        return recorded(Protocol.QUERY_OFFERS, session, () -> super.getOffers(session, query), record -> record.putQuery(query));
+    }
+
+    @Override
+    protected Response getDemands(Session session, BookQuery query) {
+        return recorded(Protocol.QUERY_DEMANDS, session, () -> super.getDemands(session, query), record -> record.putQuery(query));
+    }
+
+    @Override
+    protected Response getOfferById(Session session, UUID offerId) {
+        return recorded(Protocol.GET_OFFER, session, () -> super.getOfferById(session, offerId), record -> record.putUUID(offerId));
+    }
+
+    @Override
+    protected Response getDemandById(Session session, UUID demandId) {
+        return recorded(Protocol.GET_DEMAND, session, () -> super.getDemandById(session, demandId), record -> record.putUUID(demandId));
+    }
+
+    @Override
+    protected Response getTransactionHistory(Session session) {
+        return recorded(Protocol.GET_TRANSACTIONS, session, () -> super.getTransactionHistory(session), record -> {});
+    }
+
+    private Response recorded(byte opcode, Session session, Supplier<Response> command, Consumer<FrameBuilder> payload) {
+        return recorded(opcode, session.getClientId(), command, payload);
+    }
+
+    /**
+     * Executes <code>command</code> and appends its record under the sequencer.
+     * @param payload writes the request payload of the command to its record
+     */
+    private Response recorded(byte opcode, UUID clientId, Supplier<Response> command, Consumer<FrameBuilder> payload) {
+        synchronized (sequencer) {
+            var start = journal.nanosSinceStart();
+            var response = command.get();
+            var record = command(opcode, start, clientId, response.getStatus(), response.getItemId());
+            payload.accept(record);
+            journal.append(record);
+            return response;
+        }
+    }
+
+    private FrameBuilder command(byte opcode, long start, UUID clientId, Status status, UUID itemId) {
+        return journal.record(opcode, start)
+            .putUUID(clientId)
+            .putByte((byte) status.ordinal())
+            .putUUID(itemId == null ? Journal.NO_ID : itemId);
+    }
+
+    /**
+     * Every transaction is notified once to its demanding client, where it is recorded.
+     */
+    private Notifiers recordingTrades(Notifiers notifiers) {
+        return new Notifiers() {
+            @Override
+            public Consumer<Transaction> buyNotifier() {
+                var buyNotifier = notifiers.buyNotifier();
+                return transaction -> {
+                    journal.append(journal.record(Journal.TRADE, journal.nanosSinceStart()).putTransaction(transaction));
+                    buyNotifier.accept(transaction);
+                };
+            }
+
+            @Override
+            public Consumer<Transaction> saleNotifier() {
+                return notifiers.saleNotifier();
+            }
+
+            @Override
+            public Consumer<StockItem> expiryNotifier() {
+                return notifiers.expiryNotifier();
+            }
+        };
+    }
+}
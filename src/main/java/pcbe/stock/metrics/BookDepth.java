@@ -0,0 +1,48 @@
+package pcbe.stock.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * The live orders and shares on both sides of the book of one company, updated as
+ * items enter and leave the book so that it can be read without the engine lock.
+ */
+public class BookDepth {
+    private final LongAdder offerOrders = new LongAdder();
+    private final LongAdder offerShares = new LongAdder();
+    private final LongAdder demandOrders = new LongAdder();
+    private final LongAdder demandShares = new LongAdder();
+
+    void add(StockItem item, int sign) {
+        if (item instanceof Offer)
+            offerOrders.add(sign);
+        else
+            demandOrders.add(sign);
+        addShares(item, sign * item.getShares());
+    }
+
+    void addShares(StockItem item, int shares) {
+        if (item instanceof Offer)
+            offerShares.add(shares);
+        else
+            demandShares.add(shares);
+    }
+
+    public long getOfferOrders() {
+        return offerOrders.sum();
+    }
+
+    public long getOfferShares() {
+        return offerShares.sum();
+    }
+
+    public long getDemandOrders() {
+        return demandOrders.sum();
+    }
+
+    public long getDemandShares() {
+        return demandShares.sum();
+    }
+}
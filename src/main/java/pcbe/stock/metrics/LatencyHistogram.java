@@ -0,0 +1,97 @@
+package pcbe.stock.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with a fixed relative precision.
+ * <p>
+ * Values below 32ns have their own bucket; above that, every power of two is split in
+ * 16 buckets, so a recorded value is reported with an error of at most 1/16 (about 6%).
+ * Recording is a few bit operations and two atomic increments, with no allocation, so
+ * histograms can stay enabled in production.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int FIRST_EXPONENT = SUB_BUCKET_BITS + 1;
+    private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - 1 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a duration; negative durations are recorded as 0.
+     */
+    public void record(long nanos) {
+        var value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return a consistent enough view of the histogram: values recorded while the
+     * snapshot is taken may or may not be included
+     */
+    public LatencySnapshot snapshot() {
+        var buckets = new long[BUCKETS];
+        var count = 0L;
+        for (int i = 0; i < BUCKETS; i++)
+            count += buckets[i] = counts.get(i);
+        var maxValue = max.get();
+        return new LatencySnapshot(count, sum.sum(), maxValue,
+            Math.min(maxValue, valueAt(buckets, count, .5)), Math.min(maxValue, valueAt(buckets, count, .9)),
+            Math.min(maxValue, valueAt(buckets, count, .99)), Math.min(maxValue, valueAt(buckets, count, .999)));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        sum.reset();
+        max.reset();
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        var exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls in <code>bucket</code>
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+        var exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        var subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        var shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    private static long valueAt(long[] buckets, long count, double percentile) {
+        if (count == 0)
+            return 0;
+        var rank = (long) Math.ceil(percentile * count);
+        var seen = 0L;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return highestValueOf(i);
+        }
+        return highestValueOf(buckets.length - 1);
+    }
+}
@@ -0,0 +1,83 @@
+package pcbe.stock.metrics;
+
+/**
+ * An immutable summary of a {@link LatencyHistogram}. The getters are in microseconds,
+ * which is how the JMX attributes are shown; percentiles are rounded up to the bucket
+ * they fall in.
+ */
+public class LatencySnapshot {
+    private final long count;
+    private final long sumNanos;
+    private final long maxNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+
+    LatencySnapshot(long count, long sumNanos, long maxNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos) {
+        this.count = count;
+        this.sumNanos = sumNanos;
+        this.maxNanos = maxNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return count == 0 ? 0 : micros(sumNanos) / count;
+    }
+
+    public double getP50Micros() {
+        return micros(p50Nanos);
+    }
+
+    public double getP90Micros() {
+        return micros(p90Nanos);
+    }
+
+    public double getP99Micros() {
+        return micros(p99Nanos);
+    }
+
+    public double getP999Micros() {
+        return micros(p999Nanos);
+    }
+
+    public double getMaxMicros() {
+        return micros(maxNanos);
+    }
+
+    long sumNanos() {
+        return sumNanos;
+    }
+
+    /**
+     * @param percentile one of .5, .9, .99 and .999
+     */
+    long percentileNanos(double percentile) {
+        if (percentile == .5)
+            return p50Nanos;
+        if (percentile == .9)
+            return p90Nanos;
+        if (percentile == .99)
+            return p99Nanos;
+        if (percentile == .999)
+            return p999Nanos;
+        throw new IllegalArgumentException("Unsupported percentile " + percentile);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+            count, getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,220 @@
+package pcbe.stock.metrics;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import pcbe.log.LogManager;
+
+/**
+ * Serves the {@link StockMetrics}, the state of the task executor and the JVM heap and
+ * GC data in the Prometheus text format on <code>/metrics</code>.
+ * <p>
+ * A scrape only reads counters, histograms and gauges that the engine maintains
+ * lock-free; it never takes the lock of the {@link pcbe.stock.server.StockService}.
+ * Requests are handled on the dispatcher thread of the HTTP server.
+ */
+public class MetricsEndpoint implements Closeable {
+    /**
+     * System property holding the port to serve the metrics on, e.g. <code>-Dpcbe.metrics.port=9404</code>.
+     * The endpoint is not started if it is not set.
+     */
+    public static final String PORT_PROPERTY = "pcbe.metrics.port";
+    public static final String PATH = "/metrics";
+
+    private static final Logger logger = LogManager.getServerLogger();
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = { .5, .9, .99, .999 };
+
+    private final HttpServer server;
+    private final Supplier<StockMetrics> metrics;
+    private final ExecutorService taskExecutor;
+
+    /**
+     * @param metrics supplies the metrics to serve on each scrape, so that a reset service is followed
+     * @param taskExecutor the executor running the matching and notification tasks
+     */
+    public MetricsEndpoint(InetSocketAddress address, Supplier<StockMetrics> metrics, ExecutorService taskExecutor) throws IOException {
+        this.metrics = metrics;
+        this.taskExecutor = taskExecutor;
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+        logger.info("Metrics served on " + getAddress() + PATH);
+    }
+
+    /**
+     * Starts an endpoint on the port given by {@value #PORT_PROPERTY}, if it is set.
+     */
+    public static Optional<MetricsEndpoint> startIfConfigured(Supplier<StockMetrics> metrics, ExecutorService taskExecutor) throws IOException {
+        var port = System.getProperty(PORT_PROPERTY);
+        if (port == null)
+            return Optional.empty();
+        return Optional.of(new MetricsEndpoint(new InetSocketAddress(Integer.parseInt(port)), metrics, taskExecutor));
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var body = scrape().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the current metrics in the Prometheus text format
+     */
+    public String scrape() {
+        var text = new StringBuilder(8 * 1024);
+        writeEngine(text, metrics.get());
+        writeExecutor(text);
+        writeJvm(text);
+        return text.toString();
+    }
+
+    private void writeEngine(StringBuilder text, StockMetrics metrics) {
+        header(text, "pcbe_items", "gauge", "Items of the engine by state");
+        metrics.getItemsByState().forEach((state, count) -> sample(text, "pcbe_items", labels("state", state), count));
+
+        header(text, "pcbe_book_orders", "gauge", "Live orders in the book by company and side");
+        metrics.getBookDepthByCompany().forEach((company, depth) -> {
+            sample(text, "pcbe_book_orders", labels("company", company, "side", "offer"), depth.getOfferOrders());
+            sample(text, "pcbe_book_orders", labels("company", company, "side", "demand"), depth.getDemandOrders());
+        });
+        header(text, "pcbe_book_shares", "gauge", "Live shares in the book by company and side");
+        metrics.getBookDepthByCompany().forEach((company, depth) -> {
+            sample(text, "pcbe_book_shares", labels("company", company, "side", "offer"), depth.getOfferShares());
+            sample(text, "pcbe_book_shares", labels("company", company, "side", "demand"), depth.getDemandShares());
+        });
+
+        counter(text, "pcbe_orders_created_total", "Offers and demands created", metrics.getOrdersCreated());
+        counter(text, "pcbe_orders_changed_total", "Offers and demands changed", metrics.getOrdersChanged());
+        counter(text, "pcbe_orders_removed_total", "Offers and demands removed", metrics.getOrdersRemoved());
+        counter(text, "pcbe_orders_filled_total", "Offers and demands completely filled", metrics.getOrdersFilled());
+        counter(text, "pcbe_orders_expired_total", "Offers and demands expired by their time in force", metrics.getOrdersExpired());
+        counter(text, "pcbe_orders_repriced_total", "Repricing steps applied by the engine", metrics.getOrdersRepriced());
+        counter(text, "pcbe_deadline_wakeups_total", "Wake-ups of the timer expiring and repricing orders", metrics.getDeadlineWakeUps());
+        counter(text, "pcbe_match_attempts_total", "Transactions attempted", metrics.getMatchAttempts());
+        counter(text, "pcbe_transactions_total", "Transactions done", metrics.getTransactions());
+        counter(text, "pcbe_traded_shares_total", "Shares traded", metrics.getTradedShares());
+        counter(text, "pcbe_transactions_dropped_total", "Transactions dropped by the stream for slow subscribers", metrics.getTransactionsDropped());
+        gauge(text, "pcbe_notification_backlog", "Notifications queued but not delivered yet", metrics.getNotificationBacklog());
+        counter(text, "pcbe_replicated_commands_total", "Commands sent to the standby", metrics.getReplicatedCommands());
+        gauge(text, "pcbe_replication_lag_commands", "Commands sent to the standby and not acknowledged yet", metrics.getReplicationLag());
+
+        summaries(text, "pcbe_operation_latency_seconds", "Latency of the server operations", "operation", metrics.getOperationLatencies());
+        summaries(text, "pcbe_order_latency_seconds", "Latency of new offers and demands by company", "company", metrics.getOrderLatenciesByCompany());
+        summaries(text, "pcbe_time_to_fill_seconds", "Time from the creation of an order to its complete fill", "company", metrics.getTimeToFillByCompany());
+        summaries(text, "pcbe_lock_wait_seconds", "Time waiting for the engine lock", "lock",
+            Map.of("read", metrics.getReadLockWait(), "write", metrics.getWriteLockWait()));
+        summaries(text, "pcbe_lock_hold_seconds", "Time holding the engine lock", "lock",
+            Map.of("read", metrics.getReadLockHold(), "write", metrics.getWriteLockHold()));
+        summaries(text, "pcbe_replication_latency_seconds", "Time a command waits for the standby", "role",
+            Map.of("primary", metrics.getReplicationLatency()));
+        summaries(text, "pcbe_read_replica_staleness_seconds", "Age of the changes of the book when the read replica applies them", "replica",
+            Map.of("read", metrics.getReadReplicaStaleness()));
+    }
+
+    private void writeExecutor(StringBuilder text) {
+        if (!(taskExecutor instanceof ThreadPoolExecutor))
+            return;
+        var pool = (ThreadPoolExecutor) taskExecutor;
+        gauge(text, "pcbe_executor_pool_size", "Threads of the task executor", pool.getPoolSize());
+        gauge(text, "pcbe_executor_active_threads", "Threads of the task executor running a task", pool.getActiveCount());
+        gauge(text, "pcbe_executor_queue_length", "Tasks waiting for a thread of the task executor", pool.getQueue().size());
+        counter(text, "pcbe_executor_completed_tasks_total", "Tasks completed by the task executor", pool.getCompletedTaskCount());
+    }
+
+    private void writeJvm(StringBuilder text) {
+        var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        gauge(text, "jvm_memory_heap_used_bytes", "Used heap", heap.getUsed());
+        gauge(text, "jvm_memory_heap_committed_bytes", "Committed heap", heap.getCommitted());
+        gauge(text, "jvm_memory_heap_max_bytes", "Maximum heap, -1 if undefined", heap.getMax());
+        gauge(text, "jvm_threads", "Live threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        var collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        header(text, "jvm_gc_collections_total", "counter", "Garbage collections by collector");
+        for (var collector : collectors)
+            sample(text, "jvm_gc_collections_total", labels("gc", collector.getName()), collector.getCollectionCount());
+        header(text, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collections by collector");
+        for (var collector : collectors)
+            sample(text, "jvm_gc_collection_seconds_total", labels("gc", collector.getName()), collector.getCollectionTime() / 1e3);
+    }
+
+    private static void summaries(StringBuilder text, String name, String help, String label, Map<String, LatencySnapshot> snapshots) {
+        header(text, name, "summary", help);
+        snapshots.forEach((value, snapshot) -> {
+            for (var quantile : QUANTILES)
+                sample(text, name, labels(label, value, "quantile", Double.toString(quantile)), snapshot.percentileNanos(quantile) / 1e9);
+            sample(text, name + "_sum", labels(label, value), snapshot.sumNanos() / 1e9);
+            sample(text, name + "_count", labels(label, value), snapshot.getCount());
+        });
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, "counter", help);
+        sample(text, name, "", value);
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, "gauge", help);
+        sample(text, name, "", value);
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, long value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @param namesAndValues alternating label names and values
+     */
+    private static String labels(String... namesAndValues) {
+        var labels = new StringBuilder("{");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0)
+                labels.append(',');
+            labels.append(namesAndValues[i]).append("=\"").append(escape(namesAndValues[i + 1])).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,396 @@
+package pcbe.stock.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import pcbe.log.LogManager;
+import pcbe.stock.model.StockItem;
+
+/**
+ * Counters and latency histograms of a {@link pcbe.stock.server.StockService} and of the
+ * {@link pcbe.stock.server.StockServer}s using it.
+ * <p>
+ * Every recording method is lock-free and does not allocate once the histogram of a
+ * company exists, so the metrics are always on. Call {@link #export()} to make them
+ * visible over JMX.
+ * <p>
+ * Besides counters and histograms, the metrics keep gauges of the state of the engine,
+ * the items per state and the depth of the book, updated by the engine under its write
+ * lock so that they can be read without it.
+ */
+public class StockMetrics implements StockMetricsMXBean {
+    public static final String OBJECT_NAME = "pcbe.stock:type=StockMetrics";
+
+    private static final Logger logger = LogManager.getServerLogger();
+
+    public enum Operation {
+        Register,
+        Deregister,
+        OfferShares,
+        DemandShares,
+        ChangeOffer,
+        ChangeDemand,
+        ReplaceOrder,
+        RemoveItem,
+        CancelAll,
+        GetOffers,
+        GetDemands,
+        GetOfferById,
+        GetDemandById,
+        GetTransactionHistory,
+        GetOpenOrders,
+        GetDepth,
+        GetCandles,
+        /**
+         * A matching task of the engine, from its submission to its end.
+         */
+        Matching,
+        /**
+         * A call auction of a company, from the uncrossing of its book to the notification of its trades.
+         */
+        Auction
+    }
+
+    private final Map<Operation, LatencyHistogram> operationLatencies = new EnumMap<>(Operation.class);
+    private final Map<String, LatencyHistogram> orderLatencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> timeToFill = new ConcurrentHashMap<>();
+    private final LatencyHistogram readLockWait = new LatencyHistogram();
+    private final LatencyHistogram readLockHold = new LatencyHistogram();
+    private final LatencyHistogram writeLockWait = new LatencyHistogram();
+    private final LatencyHistogram writeLockHold = new LatencyHistogram();
+    private final LatencyHistogram replicationLatency = new LatencyHistogram();
+    private final LatencyHistogram readReplicaStaleness = new LatencyHistogram();
+    private final LongAdder ordersCreated = new LongAdder();
+    private final LongAdder ordersChanged = new LongAdder();
+    private final LongAdder ordersRemoved = new LongAdder();
+    private final LongAdder ordersFilled = new LongAdder();
+    private final LongAdder ordersExpired = new LongAdder();
+    private final LongAdder ordersRepriced = new LongAdder();
+    private final LongAdder deadlineWakeUps = new LongAdder();
+    private final LongAdder matchAttempts = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder tradedShares = new LongAdder();
+    private final LongAdder transactionsDropped = new LongAdder();
+    private final LongAdder notificationsQueued = new LongAdder();
+    private final LongAdder notificationsDelivered = new LongAdder();
+    private final LongAdder commandsReplicated = new LongAdder();
+    private final LongAdder replicationsAcknowledged = new LongAdder();
+    private final Map<String, LongAdder> itemsByState = new ConcurrentHashMap<>();
+    private final Map<String, BookDepth> bookDepths = new ConcurrentHashMap<>();
+
+    public StockMetrics() {
+        for (var operation : Operation.values())
+            operationLatencies.put(operation, new LatencyHistogram());
+    }
+
+    /**
+     * Records the latency of <code>operation</code>, started at <code>startNanos</code>.
+     */
+    public void operationDone(Operation operation, long startNanos) {
+        operationLatencies.get(operation).recordSince(startNanos);
+    }
+
+    /**
+     * Records the latency of a new offer or demand of <code>company</code>, started at <code>startNanos</code>.
+     */
+    public void orderPlaced(String company, long startNanos) {
+        orderLatencies.computeIfAbsent(company, c -> new LatencyHistogram()).recordSince(startNanos);
+    }
+
+    public void orderCreated() {
+        ordersCreated.increment();
+    }
+
+    public void orderChanged() {
+        ordersChanged.increment();
+    }
+
+    public void orderRemoved() {
+        ordersRemoved.increment();
+    }
+
+    /**
+     * Counts a complete item and records its time to fill, measured from its creation.
+     */
+    public void orderFilled(StockItem item) {
+        ordersFilled.increment();
+        timeToFill.computeIfAbsent(item.getCompany(), c -> new LatencyHistogram()).recordSince(item.getCreatedNanos());
+    }
+
+    public void orderExpired() {
+        ordersExpired.increment();
+    }
+
+    public void orderRepriced() {
+        ordersRepriced.increment();
+    }
+
+    public void deadlineWokeUp() {
+        deadlineWakeUps.increment();
+    }
+
+    public void matchAttempted() {
+        matchAttempts.increment();
+    }
+
+    public void traded(int shares) {
+        transactions.increment();
+        tradedShares.add(shares);
+    }
+
+    /**
+     * Counts a transaction that the transaction stream dropped for a subscriber falling behind.
+     */
+    public void transactionDropped() {
+        transactionsDropped.increment();
+    }
+
+    public void notificationsQueued(int notifications) {
+        notificationsQueued.add(notifications);
+    }
+
+    public void notificationDelivered() {
+        notificationsDelivered.increment();
+    }
+
+    /**
+     * Moves an item from the state <code>from</code>, <code>null</code> for a new item, to the state <code>to</code>.
+     */
+    /**
+     * Counts a command sent to the standby.
+     */
+    public void commandReplicated() {
+        commandsReplicated.increment();
+    }
+
+    /**
+     * Counts a command acknowledged by the standby and records the time the primary waited
+     * for it since <code>startNanos</code>, the latency replication adds to the command.
+     */
+    public void replicationAcknowledged(long startNanos) {
+        replicationsAcknowledged.increment();
+        replicationLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Records the staleness of a read replica applying the changes made since <code>oldestChangeNanos</code>.
+     */
+    public void readReplicaApplied(long oldestChangeNanos) {
+        readReplicaStaleness.recordSince(oldestChangeNanos);
+    }
+
+    public void itemStateChanged(String from, String to) {
+        itemsByState.computeIfAbsent(to, state -> new LongAdder()).increment();
+        if (from != null)
+            itemsByState.get(from).decrement();
+    }
+
+    public void itemIndexed(StockItem item) {
+        bookDepths.computeIfAbsent(item.getCompany(), company -> new BookDepth()).add(item, 1);
+    }
+
+    public void itemUnindexed(StockItem item) {
+        bookDepths.get(item.getCompany()).add(item, -1);
+    }
+
+    /**
+     * Accounts for shares of an item in the book being traded.
+     */
+    public void itemTraded(StockItem item, int tradedShares) {
+        bookDepths.get(item.getCompany()).addShares(item, -tradedShares);
+    }
+
+    public LatencyHistogram readLockWait() {
+        return readLockWait;
+    }
+
+    public LatencyHistogram readLockHold() {
+        return readLockHold;
+    }
+
+    public LatencyHistogram writeLockWait() {
+        return writeLockWait;
+    }
+
+    public LatencyHistogram writeLockHold() {
+        return writeLockHold;
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server as {@value #OBJECT_NAME},
+     * replacing the metrics registered before, if any.
+     */
+    public void export() {
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warning("Cannot export the stock metrics: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getOrdersCreated() {
+        return ordersCreated.sum();
+    }
+
+    @Override
+    public long getOrdersChanged() {
+        return ordersChanged.sum();
+    }
+
+    @Override
+    public long getOrdersRemoved() {
+        return ordersRemoved.sum();
+    }
+
+    @Override
+    public long getOrdersFilled() {
+        return ordersFilled.sum();
+    }
+
+    @Override
+    public long getOrdersExpired() {
+        return ordersExpired.sum();
+    }
+
+    @Override
+    public long getOrdersRepriced() {
+        return ordersRepriced.sum();
+    }
+
+    @Override
+    public long getDeadlineWakeUps() {
+        return deadlineWakeUps.sum();
+    }
+
+    @Override
+    public long getMatchAttempts() {
+        return matchAttempts.sum();
+    }
+
+    @Override
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    @Override
+    public long getTradedShares() {
+        return tradedShares.sum();
+    }
+
+    @Override
+    public long getTransactionsDropped() {
+        return transactionsDropped.sum();
+    }
+
+    @Override
+    public long getNotificationBacklog() {
+        return notificationsQueued.sum() - notificationsDelivered.sum();
+    }
+
+    @Override
+    public long getReplicatedCommands() {
+        return commandsReplicated.sum();
+    }
+
+    @Override
+    public long getReplicationLag() {
+        return commandsReplicated.sum() - replicationsAcknowledged.sum();
+    }
+
+    @Override
+    public Map<String, Long> getItemsByState() {
+        var counts = new TreeMap<String, Long>();
+        itemsByState.forEach((state, count) -> counts.put(state, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, BookDepth> getBookDepthByCompany() {
+        return new TreeMap<>(bookDepths);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getOperationLatencies() {
+        var snapshots = new TreeMap<String, LatencySnapshot>();
+        operationLatencies.forEach((operation, histogram) -> snapshots.put(operation.name(), histogram.snapshot()));
+        return snapshots;
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getOrderLatenciesByCompany() {
+        return snapshotsOf(orderLatencies);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getTimeToFillByCompany() {
+        return snapshotsOf(timeToFill);
+    }
+
+    @Override
+    public LatencySnapshot getReadLockWait() {
+        return readLockWait.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getReadLockHold() {
+        return readLockHold.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getWriteLockWait() {
+        return writeLockWait.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getWriteLockHold() {
+        return writeLockHold.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getReplicationLatency() {
+        return replicationLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getReadReplicaStaleness() {
+        return readReplicaStaleness.snapshot();
+    }
+
+    /**
+     * Clears the counters and histograms; the gauges describe the current state and are kept.
+     */
+    @Override
+    public void reset() {
+        operationLatencies.values().forEach(LatencyHistogram::reset);
+        orderLatencies.clear();
+        timeToFill.clear();
+        readLockWait.reset();
+        readLockHold.reset();
+        writeLockWait.reset();
+        writeLockHold.reset();
+        replicationLatency.reset();
+        readReplicaStaleness.reset();
+        for (var counter : new LongAdder[] { ordersCreated, ordersChanged, ordersRemoved, ordersFilled, ordersExpired, ordersRepriced,
+                deadlineWakeUps, matchAttempts, transactions, tradedShares, transactionsDropped })
+            counter.reset();
+    }
+
+    private static Map<String, LatencySnapshot> snapshotsOf(Map<String, LatencyHistogram> histograms) {
+        var snapshots = new TreeMap<String, LatencySnapshot>();
+        histograms.forEach((key, histogram) -> snapshots.put(key, histogram.snapshot()));
+        return snapshots;
+    }
+}
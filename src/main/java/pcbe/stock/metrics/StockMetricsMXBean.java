@@ -0,0 +1,55 @@
+package pcbe.stock.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link StockMetrics}, registered as {@value StockMetrics#OBJECT_NAME}.
+ * Latencies are keyed by operation or by company.
+ */
+public interface StockMetricsMXBean {
+    long getOrdersCreated();
+    long getOrdersChanged();
+    long getOrdersRemoved();
+    long getOrdersFilled();
+    long getOrdersExpired();
+    long getOrdersRepriced();
+    /**
+     * @return the times the deadline timer woke up to expire or reprice orders
+     */
+    long getDeadlineWakeUps();
+    long getMatchAttempts();
+    long getTransactions();
+    long getTradedShares();
+    /**
+     * @return the transactions that the transaction stream dropped for slow subscribers
+     */
+    long getTransactionsDropped();
+    long getNotificationBacklog();
+    long getReplicatedCommands();
+    /**
+     * @return the commands sent to the standby and not acknowledged yet
+     */
+    long getReplicationLag();
+
+    Map<String, Long> getItemsByState();
+    Map<String, BookDepth> getBookDepthByCompany();
+
+    Map<String, LatencySnapshot> getOperationLatencies();
+    Map<String, LatencySnapshot> getOrderLatenciesByCompany();
+    Map<String, LatencySnapshot> getTimeToFillByCompany();
+
+    LatencySnapshot getReadLockWait();
+    LatencySnapshot getReadLockHold();
+    LatencySnapshot getWriteLockWait();
+    LatencySnapshot getWriteLockHold();
+    LatencySnapshot getReplicationLatency();
+    /**
+     * @return the age of the changes of the book when a read replica applies them
+     */
+    LatencySnapshot getReadReplicaStaleness();
+
+    /**
+     * Clears every counter and histogram.
+     */
+    void reset();
+}
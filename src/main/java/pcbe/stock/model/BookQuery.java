@@ -0,0 +1,98 @@
+package pcbe.stock.model;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Selects a page of the <code>Waiting</code> {@link StockItem}s of one side of the book.
+ * <p>
+ * Items are returned in matching priority: offers by ascending price, demands by
+ * descending price, and items with the same price in the order they were created.
+ * When a page is full, the response carries a cursor that can be passed to
+ * {@link #after(UUID)} to get the next page.
+ * <pre>
+ * BookQuery.all().company("Intel").priceBetween(1, 5).excludingOwnItems().limit(20)
+ * </pre>
+ */
+public class BookQuery {
+    private String company;
+    private double minPrice = Double.NEGATIVE_INFINITY;
+    private double maxPrice = Double.POSITIVE_INFINITY;
+    private boolean excludeOwnItems;
+    private int limit = Integer.MAX_VALUE;
+    private UUID cursor;
+
+    private BookQuery() {}
+
+    /**
+     * @return a query matching every item, which can be narrowed down further
+     */
+    public static BookQuery all() {
+        return new BookQuery();
+    }
+
+    public BookQuery company(String company) {
+        this.company = company;
+        return this;
+    }
+
+    /**
+     * Keeps the items with <code>minPrice &lt;= price &lt;= maxPrice</code>.
+     */
+    public BookQuery priceBetween(double minPrice, double maxPrice) {
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        return this;
+    }
+
+    /**
+     * Skips the items of the client making the query.
+     */
+    public BookQuery excludingOwnItems() {
+        this.excludeOwnItems = true;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>limit</code> is not positive
+     */
+    public BookQuery limit(int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("The limit must be positive: " + limit);
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Starts the page after the item with id <code>cursor</code>, as returned by
+     * {@link Response#getNextCursor()}.
+     */
+    public BookQuery after(UUID cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public Optional<String> getCompany() {
+        return Optional.ofNullable(company);
+    }
+
+    public double getMinPrice() {
+        return minPrice;
+    }
+
+    public double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public boolean excludesOwnItems() {
+        return excludeOwnItems;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Optional<UUID> getCursor() {
+        return Optional.ofNullable(cursor);
+    }
+}
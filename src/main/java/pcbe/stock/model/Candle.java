@@ -0,0 +1,100 @@
+package pcbe.stock.model;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The trades of a company during one period: the prices of the first and of the last trade,
+ * the highest and the lowest price, and the shares traded.
+ */
+public final class Candle implements Serializable {
+    private static final long serialVersionUID = 6140318527752291840L;
+
+    private final long startMillis;
+    private final long intervalMillis;
+    private final double open;
+    private final double high;
+    private final double low;
+    private final double close;
+    private final long volume;
+    private final int trades;
+
+    public Candle(long startMillis, long intervalMillis, double open, double high, double low, double close, long volume, int trades) {
+        this.startMillis = startMillis;
+        this.intervalMillis = intervalMillis;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.volume = volume;
+        this.trades = trades;
+    }
+
+    /**
+     * @return the start of the period, in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public Instant getStart() {
+        return Instant.ofEpochMilli(startMillis);
+    }
+
+    public Duration getInterval() {
+        return Duration.ofMillis(intervalMillis);
+    }
+
+    public double getOpen() {
+        return open;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getClose() {
+        return close;
+    }
+
+    /**
+     * @return the shares traded during the period
+     */
+    public long getVolume() {
+        return volume;
+    }
+
+    public int getTrades() {
+        return trades;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Candle))
+            return false;
+        var other = (Candle) obj;
+        return startMillis == other.startMillis && intervalMillis == other.intervalMillis && open == other.open
+            && high == other.high && low == other.low && close == other.close && volume == other.volume
+            && trades == other.trades;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(startMillis) * 31 + Long.hashCode(intervalMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "Candle [start=" + getStart() + ", interval=" + getInterval() + ", open=" + open + ", high=" + high
+            + ", low=" + low + ", close=" + close + ", volume=" + volume + ", trades=" + trades + "]";
+    }
+}
@@ -0,0 +1,33 @@
+package pcbe.stock.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The best price levels of both sides of the book of a company: the offers cheapest first
+ * and the demands highest price first.
+ */
+public final class MarketDepth implements Serializable {
+    private static final long serialVersionUID = -2217436559260383471L;
+
+    private final List<PriceLevel> offerLevels;
+    private final List<PriceLevel> demandLevels;
+
+    public MarketDepth(List<PriceLevel> offerLevels, List<PriceLevel> demandLevels) {
+        this.offerLevels = offerLevels;
+        this.demandLevels = demandLevels;
+    }
+
+    public List<PriceLevel> getOfferLevels() {
+        return offerLevels;
+    }
+
+    public List<PriceLevel> getDemandLevels() {
+        return demandLevels;
+    }
+
+    @Override
+    public String toString() {
+        return "MarketDepth [offers=" + offerLevels + ", demands=" + demandLevels + "]";
+    }
+}
@@ -5,4 +5,12 @@ import java.util.function.Consumer;
 public interface Notifiers {
     Consumer<Transaction> buyNotifier();
     Consumer<Transaction> saleNotifier();
-}
\ No newline at end of file
+
+    /**
+     * Receives the orders of the client leaving the book because of their {@link TimeInForce},
+     * with the shares left unfilled.
+     */
+    default Consumer<StockItem> expiryNotifier() {
+        return item -> {};
+    }
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package pcbe.stock.model;
+
+import java.io.Serializable;
+
+/**
+ * The orders resting at one price on one side of the book of a company.
+ */
+public final class PriceLevel implements Serializable {
+    private static final long serialVersionUID = 3482619563201734907L;
+
+    private final double price;
+    private final long shares;
+    private final int orders;
+
+    public PriceLevel(double price, long shares, int orders) {
+        this.price = price;
+        this.shares = shares;
+        this.orders = orders;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * @return the shares of all the orders at this price
+     */
+    public long getShares() {
+        return shares;
+    }
+
+    public int getOrders() {
+        return orders;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PriceLevel))
+            return false;
+        var other = (PriceLevel) obj;
+        return price == other.price && shares == other.shares && orders == other.orders;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(price) * 31 * 31 + Long.hashCode(shares) * 31 + orders;
+    }
+
+    @Override
+    public String toString() {
+        return shares + "@" + price + " (" + orders + " orders)";
+    }
+}
@@ -0,0 +1,112 @@
+package pcbe.stock.model;
+
+import java.io.Serializable;
+import java.time.Duration;
+
+/**
+ * How the engine reprices an order while it waits in the book: every interval, its price
+ * is multiplied by a factor, until it reaches a limit. A decaying offer has a factor below 1
+ * and a floor; an escalating demand has a factor above 1 and a cap.
+ * <p>
+ * The engine matches equal prices only, so repriced prices are rounded to hundredths
+ * and the last step lands on the limit itself.
+ */
+public final class RepricingSchedule implements Serializable {
+    private static final long serialVersionUID = 4398121864913271053L;
+
+    /**
+     * Dividing by the scale, rather than multiplying by its inverse, yields the double closest to the decimal price.
+     */
+    private static final double PRICE_SCALE = 100;
+    /**
+     * Leaves the price of the order alone.
+     */
+    public static final RepricingSchedule NONE = new RepricingSchedule(1, Long.MAX_VALUE, 0);
+
+    private final double factor;
+    private final long intervalMillis;
+    private final double limitPrice;
+
+    private RepricingSchedule(double factor, long intervalMillis, double limitPrice) {
+        this.factor = factor;
+        this.intervalMillis = intervalMillis;
+        this.limitPrice = limitPrice;
+    }
+
+    /**
+     * @param factor multiplies the price at each step, between 0 and 1
+     * @param floorPrice the price under which the order is not repriced
+     * @throws IllegalArgumentException if the factor does not lower the price
+     */
+    public static RepricingSchedule decaying(double factor, Duration interval, double floorPrice) {
+        if (factor <= 0 || factor >= 1)
+            throw new IllegalArgumentException("A decaying factor must be between 0 and 1, not " + factor);
+        return of(factor, interval.toMillis(), floorPrice);
+    }
+
+    /**
+     * @param factor multiplies the price at each step, above 1
+     * @param capPrice the price over which the order is not repriced
+     * @throws IllegalArgumentException if the factor does not raise the price
+     */
+    public static RepricingSchedule escalating(double factor, Duration interval, double capPrice) {
+        if (factor <= 1)
+            throw new IllegalArgumentException("An escalating factor must be above 1, not " + factor);
+        return of(factor, interval.toMillis(), capPrice);
+    }
+
+    /**
+     * @return {@link #NONE} if <code>factor</code> is 1
+     * @throws IllegalArgumentException if the factor, the interval or the limit is not a positive
+     * number, since every price the schedule leads to is bounded by the limit
+     */
+    public static RepricingSchedule of(double factor, long intervalMillis, double limitPrice) {
+        if (factor == 1)
+            return NONE;
+        if (!(factor > 0) || Double.isInfinite(factor) || intervalMillis <= 0)
+            throw new IllegalArgumentException("Invalid repricing every " + intervalMillis + "ms by " + factor);
+        if (!(limitPrice > 0) || Double.isInfinite(limitPrice))
+            throw new IllegalArgumentException("Invalid repricing limit " + limitPrice);
+        return new RepricingSchedule(factor, intervalMillis, limitPrice);
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return the floor of a decaying schedule, the cap of an escalating one
+     */
+    public double getLimitPrice() {
+        return limitPrice;
+    }
+
+    public boolean isRepricing() {
+        return factor != 1;
+    }
+
+    /**
+     * @return the price following <code>price</code>, rounded and bounded by the limit, so
+     * strictly positive for a positive <code>price</code>
+     */
+    public double next(double price) {
+        var next = Math.round(price * factor * PRICE_SCALE) / PRICE_SCALE;
+        return factor < 1 ? Math.max(next, limitPrice) : Math.min(Math.max(next, price), limitPrice);
+    }
+
+    /**
+     * @return whether an order at <code>price</code> is not repriced anymore
+     */
+    public boolean hasReachedLimit(double price) {
+        return !isRepricing() || (factor < 1 ? price <= limitPrice : price >= limitPrice);
+    }
+
+    @Override
+    public String toString() {
+        return isRepricing() ? "x" + factor + " every " + intervalMillis + "ms up to " + limitPrice : "None";
+    }
+}
@@ -2,6 +2,7 @@ package pcbe.stock.model;
 
 import static java.util.Arrays.asList;
 
+import java.io.Serializable;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -12,13 +13,19 @@ import pcbe.stock.model.StockItem.Offer;
 /**
  * Response returned by the server to client requests.
  */
-public class Response {
+public class Response implements Serializable {
+    private static final long serialVersionUID = 5812604197405718622L;
+
     private Status status;
     private UUID itemId;
     private Set<Offer> offers;
     private Set<Demand> demands;
     private StockItem item;
     private List<Transaction> transactions;
+    private List<StockItem> items;
+    private MarketDepth depth;
+    private List<Candle> candles;
+    private UUID nextCursor;
 
     private Response(Status status) {
         this.status = status;
@@ -52,10 +59,37 @@ public class Response {
         return Demand.class.cast(item);
     }
 
+    public StockItem getItem() {
+        return item;
+    }
+
     public List<Transaction> getTransactions() {
         return transactions;
     }
 
+    /**
+     * @return the offers and demands of a client, see {@link #orders(List)}
+     */
+    public List<StockItem> getItems() {
+        return items;
+    }
+
+    public MarketDepth getDepth() {
+        return depth;
+    }
+
+    public List<Candle> getCandles() {
+        return candles;
+    }
+
+    /**
+     * @return the cursor of the next page of a {@link BookQuery}, or <code>null</code>
+     * if this is the last page
+     */
+    public UUID getNextCursor() {
+        return nextCursor;
+    }
+
    public enum Status {
         Successful,
         AlreadyRegistered,
@@ -63,7 +97,29 @@ public class Response {
         Created,
         DoesNotExist,
         OngoingTransaction,
-        Changed;
+        Changed,
+        /**
+         * The account of the client cannot pay for the demand or deliver the shares offered.
+         */
+        InsufficientFunds,
+        /**
+         * The order to replace does not have the expected shares and price; the response carries it as it is.
+         */
+        Conflict,
+        /**
+         * The order cannot enter the book, or be changed, as asked, e.g. its company has a name too long
+         * to be encoded or its shares or its price are not positive.
+         */
+        InvalidOrder,
+        /**
+         * The request failed on an unexpected error of the server; the client stays connected.
+         */
+        Failed,
+        /**
+         * The response does not fit in a frame of the gateway, e.g. the whole book of a busy market;
+         * the book can be queried by pages instead.
+         */
+        TooLarge;
 
         public boolean isSuccessful() {
             return asList(Successful, Created, Changed).contains(this);
@@ -78,6 +134,10 @@ public class Response {
         return new Response(Status.Successful);
     }
 
+    public static Response deregistered() {
+        return new Response(Status.Successful);
+    }
+
 	public static Response notRegistered() {
 		return new Response(Status.NotRegistered);
 	}
@@ -98,19 +158,63 @@ public class Response {
         return new Response(Status.Changed);
 	}
 
+	/**
+	 * @param item the order as it is after the replacement
+	 */
+	public static Response replaced(StockItem item) {
+		var response = new Response(Status.Changed);
+        response.item = item;
+        return response;
+	}
+
+	/**
+	 * @param current the order as it is in the book
+	 */
+	public static Response conflict(StockItem current) {
+		var response = new Response(Status.Conflict);
+        response.item = current;
+        return response;
+	}
+
 	public static Response ongoingTransaction() {
 		return new Response(Status.OngoingTransaction);
 	}
 
+	public static Response insufficientFunds() {
+		return new Response(Status.InsufficientFunds);
+	}
+
+	public static Response invalidOrder() {
+		return new Response(Status.InvalidOrder);
+	}
+
+	public static Response failed() {
+		return new Response(Status.Failed);
+	}
+
+	public static Response tooLarge() {
+		return new Response(Status.TooLarge);
+	}
+
 	public static Response offers(Set<Offer> offers) {
+		return offers(offers, null);
+	}
+
+	public static Response offers(Set<Offer> offers, UUID nextCursor) {
 		var response = new Response(Status.Successful);
         response.offers = offers;
+        response.nextCursor = nextCursor;
         return response;
 	}
 
 	public static Response demands(Set<Demand> demands) {
+		return demands(demands, null);
+    }
+
+	public static Response demands(Set<Demand> demands, UUID nextCursor) {
 		var response = new Response(Status.Successful);
         response.demands = demands;
+        response.nextCursor = nextCursor;
         return response;
     }
     
@@ -135,4 +239,29 @@ public class Response {
 	public static Response removed() {
 		return new Response(Status.Successful);
 	}
+
+	public static Response deposited() {
+		return new Response(Status.Successful);
+	}
+
+	/**
+	 * @param orders the open orders of a client, or the ones just cancelled
+	 */
+	public static Response orders(List<StockItem> orders) {
+		var response = new Response(Status.Successful);
+        response.items = orders;
+        return response;
+	}
+
+	public static Response depth(MarketDepth depth) {
+		var response = new Response(Status.Successful);
+        response.depth = depth;
+        return response;
+	}
+
+	public static Response candles(List<Candle> candles) {
+		var response = new Response(Status.Successful);
+        response.candles = candles;
+        return response;
+	}
 }
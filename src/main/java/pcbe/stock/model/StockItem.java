@@ -2,17 +2,36 @@ package pcbe.stock.model;
 
 import static pcbe.UUIDUtil.prefixOf;
 
+import java.io.Serializable;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+public abstract class StockItem implements Serializable {
+	/**
+	 * The longest name of a company, in UTF-8 bytes, that the fixed layouts of the
+	 * {@link pcbe.stock.codec} package can hold; the engine rejects orders for longer ones.
+	 */
+	public static final int MAX_COMPANY_BYTES = 32;
+
+	private static final long serialVersionUID = 3208957462917418561L;
+	private static final AtomicLong sequences = new AtomicLong();
 
-public abstract class StockItem {
 	private UUID id;
+	private long sequence;
+	private transient long createdNanos;
 	private UUID clientId;
 	private String company;
 	private int shares;
 	private double price;
 
-	private StockItem(UUID id, UUID clientId, String company, int shares, double price) {
+	protected StockItem(UUID id, UUID clientId, String company, int shares, double price) {
+		this(id, sequences.incrementAndGet(), System.nanoTime(), clientId, company, shares, price);
+	}
+
+	private StockItem(UUID id, long sequence, long createdNanos, UUID clientId, String company, int shares, double price) {
 		this.id = id;
+		this.sequence = sequence;
+		this.createdNanos = createdNanos;
 		this.clientId = clientId;
 		this.company = company;
 		this.shares = shares;
@@ -24,13 +43,29 @@ public abstract class StockItem {
 	}
 
 	protected StockItem(StockItem stockItem) {
-		this(stockItem.id, stockItem.clientId, stockItem.company, stockItem.shares, stockItem.price);
+		this(stockItem.id, stockItem.sequence, stockItem.createdNanos, stockItem.clientId, stockItem.company, stockItem.shares, stockItem.price);
 	}
 
 	public UUID getId() {
 		return id;
 	}
 
+	/**
+	 * The creation order of the item; copies keep the sequence of the original.
+	 * Items with the same price are matched in the order of their sequence.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * The {@link System#nanoTime()} of the creation of the item, used to measure the
+	 * time to fill. It is not serialized, as it is meaningless in another JVM.
+	 */
+	public long getCreatedNanos() {
+		return createdNanos;
+	}
+
 	public UUID getClientId() {
 		return clientId;
 	}
@@ -56,20 +91,32 @@ public abstract class StockItem {
 	}
 
 	public static class Offer extends StockItem {
+		private static final long serialVersionUID = -4455806426457069218L;
+
 		public Offer(UUID clientId, String company, int shares, double price) {
 			super(clientId, company, shares, price);
 		}
 
+		public Offer(UUID id, UUID clientId, String company, int shares, double price) {
+			super(id, clientId, company, shares, price);
+		}
+
 		public Offer(Offer offer) {
 			super(offer);
 		}
 	}
 
 	public static class Demand extends StockItem {
+		private static final long serialVersionUID = 2270135961837441263L;
+
 		public Demand(UUID clientId, String company, int shares, double price) {
 			super(clientId, company, shares, price);
 		}
 
+		public Demand(UUID id, UUID clientId, String company, int shares, double price) {
+			super(id, clientId, company, shares, price);
+		}
+
 		public Demand(Demand demand) {
 			super(demand);
 		}
@@ -0,0 +1,98 @@
+package pcbe.stock.model;
+
+import java.io.Serializable;
+import java.time.Duration;
+
+/**
+ * How long an order stays in the book, enforced by the engine.
+ * <p>
+ * An expired order, or the unfilled rest of an immediate one, leaves the book and is
+ * reported to its client through {@link Notifiers#expiryNotifier()}.
+ */
+public final class TimeInForce implements Serializable {
+    private static final long serialVersionUID = -2817265037413935514L;
+
+    public enum Type {
+        /**
+         * Stays until filled or removed.
+         */
+        GoodTillCancelled,
+        /**
+         * Trades what it can when it enters the book; the rest expires.
+         */
+        ImmediateOrCancel,
+        /**
+         * Enters the book only if the book can fill it completely at once, and expires otherwise.
+         */
+        FillOrKill,
+        /**
+         * Expires at a time, in milliseconds since the epoch.
+         */
+        GoodTillTime
+    }
+
+    public static final TimeInForce GOOD_TILL_CANCELLED = new TimeInForce(Type.GoodTillCancelled, Long.MAX_VALUE);
+    public static final TimeInForce IMMEDIATE_OR_CANCEL = new TimeInForce(Type.ImmediateOrCancel, Long.MAX_VALUE);
+    public static final TimeInForce FILL_OR_KILL = new TimeInForce(Type.FillOrKill, Long.MAX_VALUE);
+
+    private final Type type;
+    private final long expiresAtMillis;
+
+    private TimeInForce(Type type, long expiresAtMillis) {
+        this.type = type;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * @param expiresAtMillis the expiry time in milliseconds since the epoch
+     */
+    public static TimeInForce goodTillTime(long expiresAtMillis) {
+        return new TimeInForce(Type.GoodTillTime, expiresAtMillis);
+    }
+
+    /**
+     * @return an order expiring after <code>lifetime</code>
+     */
+    public static TimeInForce goodFor(Duration lifetime) {
+        return goodTillTime(System.currentTimeMillis() + lifetime.toMillis());
+    }
+
+    /**
+     * @param expiresAtMillis ignored unless <code>type</code> is {@link Type#GoodTillTime}
+     */
+    public static TimeInForce of(Type type, long expiresAtMillis) {
+        switch (type) {
+            case GoodTillCancelled:
+                return GOOD_TILL_CANCELLED;
+            case ImmediateOrCancel:
+                return IMMEDIATE_OR_CANCEL;
+            case FillOrKill:
+                return FILL_OR_KILL;
+            default:
+                return goodTillTime(expiresAtMillis);
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the expiry time of a {@link Type#GoodTillTime} order, {@link Long#MAX_VALUE} for the others
+     */
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * @return whether the unfilled rest of the order expires once it has been matched
+     */
+    public boolean isImmediate() {
+        return type == Type.ImmediateOrCancel || type == Type.FillOrKill;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.GoodTillTime ? type + "(" + expiresAtMillis + ")" : type.toString();
+    }
+}
@@ -2,9 +2,12 @@ package pcbe.stock.model;
 
 import static pcbe.UUIDUtil.prefixOf;
 
+import java.io.Serializable;
 import java.util.UUID;
 
-public final class Transaction {
+public final class Transaction implements Serializable {
+	private static final long serialVersionUID = -7619213036473370215L;
+
 	private UUID id;
 	private UUID offeringClientId;
 	private UUID demandingClientId;
@@ -15,7 +18,11 @@ public final class Transaction {
 	private double price;
 
 	public Transaction(UUID offeringClientId, UUID demandingClientId, UUID offerId, UUID demandId, String company, int shares, double price) {
-		this.id = UUID.randomUUID();
+		this(UUID.randomUUID(), offeringClientId, demandingClientId, offerId, demandId, company, shares, price);
+	}
+
+	public Transaction(UUID id, UUID offeringClientId, UUID demandingClientId, UUID offerId, UUID demandId, String company, int shares, double price) {
+		this.id = id;
 		this.offeringClientId = offeringClientId;
 		this.demandingClientId = demandingClientId;
 		this.offerId = offerId;
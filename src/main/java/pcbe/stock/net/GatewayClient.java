@@ -0,0 +1,318 @@
+package pcbe.stock.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.net.Protocol.ProtocolException;
+
+/**
+ * A client of a {@link StockGateway}, mirroring the methods of
+ * {@link pcbe.stock.server.StockServer}.
+ * <p>
+ * Requests can be pipelined: the <code>async</code> methods return as soon as the
+ * request is written and the response completes the returned future. A reader thread
+ * completes the futures and delivers the pushed notifications to the {@link Notifiers}
+ * given to {@link #register(UUID, Notifiers)}; a notifier throwing is logged and does not
+ * stop the reader. Once the reader stopped, every pending and later request fails.
+ */
+public class GatewayClient implements Closeable {
+    private static final Logger logger = LogManager.getClientLogger();
+
+    private final SocketChannel channel;
+    private final Map<Integer, CompletableFuture<Response>> pendingResponses = new ConcurrentHashMap<>();
+    private final AtomicInteger correlationIds = new AtomicInteger();
+    private final Thread reader;
+    private volatile Notifiers notifiers;
+    /**
+     * Why the reader stopped, or <code>null</code> while it runs. Set before the pending responses
+     * are failed, so a request registered after that sees it.
+     */
+    private volatile Exception disconnection;
+
+    public GatewayClient(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        reader = new Thread(this::readFrames, "gateway-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public Response register(UUID clientId, Notifiers notifiers) {
+        this.notifiers = notifiers;
+        return await(request(Protocol.REGISTER).putUUID(clientId));
+    }
+
+    public Response deregister() {
+        return await(request(Protocol.DEREGISTER));
+    }
+
+    public Response offerShares(String company, int shares, double price) {
+        return await(offerSharesAsync(company, shares, price));
+    }
+
+    public CompletableFuture<Response> offerSharesAsync(String company, int shares, double price) {
+        return send(request(Protocol.OFFER).putString(company).putInt(shares).putDouble(price));
+    }
+
+    public Response offerShares(String company, int shares, double price, TimeInForce timeInForce) {
+        return await(offerSharesAsync(company, shares, price, timeInForce));
+    }
+
+    public CompletableFuture<Response> offerSharesAsync(String company, int shares, double price, TimeInForce timeInForce) {
+        return send(request(Protocol.OFFER).putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce));
+    }
+
+    public Response offerShares(String company, int shares, double price, TimeInForce timeInForce, RepricingSchedule repricing) {
+        return await(offerSharesAsync(company, shares, price, timeInForce, repricing));
+    }
+
+    public CompletableFuture<Response> offerSharesAsync(String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return send(request(Protocol.OFFER).putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce)
+            .putRepricing(repricing));
+    }
+
+    public Response demandShares(String company, int shares, double price) {
+        return await(demandSharesAsync(company, shares, price));
+    }
+
+    public CompletableFuture<Response> demandSharesAsync(String company, int shares, double price) {
+        return send(request(Protocol.DEMAND).putString(company).putInt(shares).putDouble(price));
+    }
+
+    public Response demandShares(String company, int shares, double price, TimeInForce timeInForce) {
+        return await(demandSharesAsync(company, shares, price, timeInForce));
+    }
+
+    public CompletableFuture<Response> demandSharesAsync(String company, int shares, double price, TimeInForce timeInForce) {
+        return send(request(Protocol.DEMAND).putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce));
+    }
+
+    public Response demandShares(String company, int shares, double price, TimeInForce timeInForce, RepricingSchedule repricing) {
+        return await(demandSharesAsync(company, shares, price, timeInForce, repricing));
+    }
+
+    public CompletableFuture<Response> demandSharesAsync(String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return send(request(Protocol.DEMAND).putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce)
+            .putRepricing(repricing));
+    }
+
+    public Response changeOffer(UUID offerId, int newShares, double newPrice) {
+        return await(request(Protocol.CHANGE_OFFER).putUUID(offerId).putInt(newShares).putDouble(newPrice));
+    }
+
+    public Response changeDemand(UUID demandId, int newShares, double newPrice) {
+        return await(request(Protocol.CHANGE_DEMAND).putUUID(demandId).putInt(newShares).putDouble(newPrice));
+    }
+
+    public Response replaceOrder(UUID orderId, int expectedShares, double expectedPrice, int newShares, double newPrice) {
+        return await(replaceOrderAsync(orderId, expectedShares, expectedPrice, newShares, newPrice));
+    }
+
+    public CompletableFuture<Response> replaceOrderAsync(UUID orderId, int expectedShares, double expectedPrice, int newShares, double newPrice) {
+        return send(request(Protocol.REPLACE).putUUID(orderId).putInt(expectedShares).putDouble(expectedPrice)
+            .putInt(newShares).putDouble(newPrice));
+    }
+
+    public Response removeItem(UUID itemId) {
+        return await(request(Protocol.REMOVE).putUUID(itemId));
+    }
+
+    public Response getOffers() {
+        return await(request(Protocol.GET_OFFERS));
+    }
+
+    public Response getDemands() {
+        return await(request(Protocol.GET_DEMANDS));
+    }
+
+    public Response getOffers(BookQuery query) {
+        return await(request(Protocol.QUERY_OFFERS).putQuery(query));
+    }
+
+    public Response getDemands(BookQuery query) {
+        return await(request(Protocol.QUERY_DEMANDS).putQuery(query));
+    }
+
+    public Response getOfferById(UUID offerId) {
+        return await(request(Protocol.GET_OFFER).putUUID(offerId));
+    }
+
+    public Response getDemandById(UUID demandId) {
+        return await(request(Protocol.GET_DEMAND).putUUID(demandId));
+    }
+
+    public Response getTransactionHistory() {
+        return await(request(Protocol.GET_TRANSACTIONS));
+    }
+
+    public Response getOpenOrders() {
+        return await(request(Protocol.GET_OPEN_ORDERS));
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>levels</code> is not positive
+     */
+    public Response getDepth(String company, int levels) {
+        if (levels <= 0)
+            throw new IllegalArgumentException("The levels must be positive: " + levels);
+        return await(request(Protocol.GET_DEPTH).putString(company).putInt(levels));
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>count</code> is not positive
+     */
+    public Response getCandles(String company, Duration interval, int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("The count must be positive: " + count);
+        return await(request(Protocol.GET_CANDLES).putString(company).putLong(interval.toMillis()).putInt(count));
+    }
+
+    public Response cancelAll() {
+        return cancelAll(null);
+    }
+
+    /**
+     * @param company the company of the orders to remove, or <code>null</code> for every company
+     */
+    public Response cancelAll(String company) {
+        return await(request(Protocol.CANCEL_ALL).putOptionalString(company));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private FrameBuilder request(byte opcode) {
+        return new FrameBuilder(opcode, correlationIds.incrementAndGet());
+    }
+
+    private CompletableFuture<Response> send(FrameBuilder request) {
+        var frame = request.build();
+        var correlationId = frame.getInt(Integer.BYTES + Byte.BYTES);
+        var response = new CompletableFuture<Response>();
+        pendingResponses.put(correlationId, response);
+        var cause = disconnection;
+        if (cause != null) {
+            pendingResponses.remove(correlationId);
+            response.completeExceptionally(cause);
+            return response;
+        }
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining())
+                    channel.write(frame);
+            }
+        } catch (IOException e) {
+            pendingResponses.remove(correlationId);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    private Response await(FrameBuilder request) {
+        return await(send(request));
+    }
+
+    private Response await(CompletableFuture<Response> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void readFrames() {
+        var lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        try {
+            while (true) {
+                readFully(lengthBuffer.clear());
+                var length = lengthBuffer.getInt(0);
+                if (length < Protocol.HEADER_LENGTH - Integer.BYTES || length > Protocol.MAX_FRAME_LENGTH)
+                    throw new ProtocolException("Invalid frame length " + length);
+                var frame = ByteBuffer.allocate(length);
+                readFully(frame);
+                handleFrame(frame.flip());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.fine("Gateway connection closed: " + e.getMessage());
+            disconnection = e;
+            pendingResponses.values().forEach(response -> response.completeExceptionally(e));
+            pendingResponses.clear();
+        }
+    }
+
+    private void handleFrame(ByteBuffer frame) {
+        var opcode = frame.get();
+        var correlationId = frame.getInt();
+        switch (opcode) {
+            case Protocol.RESPONSE:
+                var response = pendingResponses.remove(correlationId);
+                if (response != null)
+                    response.complete(Protocol.getResponse(frame));
+                break;
+            case Protocol.NOTIFY_BUY:
+                deliverNotification(Notifiers::buyNotifier, frame);
+                break;
+            case Protocol.NOTIFY_SALE:
+                deliverNotification(Notifiers::saleNotifier, frame);
+                break;
+            case Protocol.NOTIFY_EXPIRY:
+                var item = Protocol.getItem(frame);
+                var currentNotifiers = notifiers;
+                if (currentNotifiers != null)
+                    deliver(currentNotifiers.expiryNotifier(), item);
+                break;
+            default:
+                throw new ProtocolException("Unknown opcode " + opcode);
+        }
+    }
+
+    private void deliverNotification(Function<Notifiers, Consumer<Transaction>> notifier, ByteBuffer frame) {
+        var transaction = Protocol.getTransaction(frame);
+        var currentNotifiers = notifiers;
+        if (currentNotifiers != null)
+            deliver(notifier.apply(currentNotifiers), transaction);
+    }
+
+    private static <T> void deliver(Consumer<T> notifier, T notification) {
+        try {
+            notifier.accept(notification);
+        } catch (RuntimeException e) {
+            logger.warning("Notifier failed on " + notification + ": " + e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new IOException("End of stream");
+    }
+}
@@ -0,0 +1,170 @@
+package pcbe.stock.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.net.Protocol.ProtocolException;
+
+/**
+ * Drives a {@link StockGateway} with many concurrent connections from a single thread.
+ * <p>
+ * Every connection registers a new client and then keeps one offer or demand in flight
+ * at a time, on a small grid of companies and prices so that orders match. At the end
+ * the throughput and the request latency percentiles are printed.
+ * <p>
+ * Arguments: <code>[host] [port] [connections] [seconds]</code>
+ */
+public class GatewayLoadClient {
+    private static final String[] COMPANIES = { "Apple Inc.", "Amazon", "Intel", "Sony" };
+    private static final int MAX_LATENCY_SAMPLES = 1 << 20;
+
+    private final InetSocketAddress address;
+    private final int connectionCount;
+    private final long durationNanos;
+    private final Random random = new Random(42);
+    private final long[] latencySamples = new long[MAX_LATENCY_SAMPLES];
+    private long completedRequests;
+    private long notifications;
+
+    public GatewayLoadClient(InetSocketAddress address, int connectionCount, long duration, TimeUnit unit) {
+        this.address = address;
+        this.connectionCount = connectionCount;
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Runs the load and returns the report.
+     */
+    public String run() throws IOException {
+        try (var selector = Selector.open()) {
+            for (int i = 0; i < connectionCount; i++) {
+                var channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(address);
+                channel.register(selector, SelectionKey.OP_CONNECT, new LoadConnection(channel));
+            }
+            var start = System.nanoTime();
+            var deadline = start + durationNanos;
+            while (System.nanoTime() < deadline) {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1);
+                for (var key : selector.selectedKeys()) {
+                    var connection = (LoadConnection) key.attachment();
+                    if (key.isConnectable())
+                        connection.connected(key);
+                    else if (key.isReadable())
+                        connection.read();
+                }
+                selector.selectedKeys().clear();
+            }
+            var elapsedNanos = System.nanoTime() - start;
+            for (var key : selector.keys())
+                key.channel().close();
+            return report(elapsedNanos);
+        }
+    }
+
+    private String report(long elapsedNanos) {
+        var samples = Arrays.copyOf(latencySamples, (int) Math.min(completedRequests, MAX_LATENCY_SAMPLES));
+        Arrays.sort(samples);
+        var seconds = elapsedNanos / 1e9;
+        return String.format(
+            "connections=%d requests=%d throughput=%.0f req/s notifications=%d latency(us) p50=%d p99=%d p999=%d max=%d",
+            connectionCount, completedRequests, completedRequests / seconds, notifications,
+            percentileMicros(samples, .5), percentileMicros(samples, .99), percentileMicros(samples, .999),
+            percentileMicros(samples, 1));
+    }
+
+    private static long percentileMicros(long[] sortedSamples, double percentile) {
+        if (sortedSamples.length == 0)
+            return 0;
+        var index = (int) Math.ceil(percentile * sortedSamples.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sortedSamples[Math.max(0, index)]);
+    }
+
+    private void recordLatency(long nanos) {
+        latencySamples[(int) (completedRequests++ % MAX_LATENCY_SAMPLES)] = nanos;
+    }
+
+    private class LoadConnection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private int correlationId;
+        private long sentAt;
+        private boolean registered;
+
+        LoadConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void connected(SelectionKey key) throws IOException {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            send(new FrameBuilder(Protocol.REGISTER, ++correlationId).putUUID(UUID.randomUUID()));
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                channel.close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= Integer.BYTES) {
+                var length = readBuffer.getInt(readBuffer.position());
+                if (readBuffer.remaining() < Integer.BYTES + length)
+                    break;
+                var frameEnd = readBuffer.position() + Integer.BYTES + length;
+                var opcode = readBuffer.get(readBuffer.position() + Integer.BYTES);
+                readBuffer.position(frameEnd);
+                if (opcode == Protocol.RESPONSE)
+                    responseReceived();
+                else
+                    notifications++;
+            }
+            readBuffer.compact();
+        }
+
+        private void responseReceived() throws IOException {
+            if (registered)
+                recordLatency(System.nanoTime() - sentAt);
+            registered = true;
+            sendOrder();
+        }
+
+        private void sendOrder() throws IOException {
+            var opcode = random.nextBoolean() ? Protocol.OFFER : Protocol.DEMAND;
+            var company = COMPANIES[random.nextInt(COMPANIES.length)];
+            send(new FrameBuilder(opcode, ++correlationId)
+                .putString(company)
+                .putInt(10 * (random.nextInt(10) + 1))
+                .putDouble(random.nextInt(5) + 1));
+        }
+
+        private void send(FrameBuilder request) throws IOException {
+            var frame = request.build();
+            sentAt = System.nanoTime();
+            channel.write(frame);
+            if (frame.hasRemaining())
+                throw new ProtocolException("Socket send buffer full with a single request in flight");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        var host = args.length > 0 ? args[0] : "localhost";
+        var port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        var connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        var seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        var loadClient = new GatewayLoadClient(new InetSocketAddress(host, port), connections, seconds, TimeUnit.SECONDS);
+        System.out.println(loadClient.run());
+    }
+}
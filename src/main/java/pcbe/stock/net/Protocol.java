@@ -0,0 +1,372 @@
+package pcbe.stock.net;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import pcbe.stock.codec.ResponseCodec;
+import pcbe.stock.codec.StockItemCodec;
+import pcbe.stock.codec.TransactionCodec;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.model.Transaction;
+
+/**
+ * The length-prefixed binary protocol spoken by the {@link StockGateway}.
+ * <p>
+ * Every frame starts with an <code>int</code> holding the length of the rest of the frame,
+ * followed by a one byte opcode and an <code>int</code> correlation id:
+ * <pre>
+ * | length:int | opcode:byte | correlationId:int | payload |
+ * </pre>
+ * Requests are answered by a {@link #RESPONSE} frame with the same correlation id.
+ * Notifications are pushed with the {@link #NOTIFY_BUY}, {@link #NOTIFY_SALE} and
+ * {@link #NOTIFY_EXPIRY} opcodes and a correlation id of 0.
+ * <p>
+ * All numbers are big endian; strings are an unsigned <code>short</code> length followed by UTF-8 bytes.
+ * Responses and transactions use the fixed layouts of the {@link pcbe.stock.codec} package.
+ */
+public final class Protocol {
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final int HEADER_LENGTH = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+
+    /** <code>clientId:uuid</code> */
+    public static final byte REGISTER = 1;
+    /**
+     * <code>company:string shares:int price:double [timeInForce [repricing]]</code>, see
+     * {@link FrameBuilder#putTimeInForce(TimeInForce)} and {@link FrameBuilder#putRepricing(RepricingSchedule)}
+     */
+    public static final byte OFFER = 2;
+    /** Same payload as {@link #OFFER} */
+    public static final byte DEMAND = 3;
+    /** <code>itemId:uuid shares:int price:double</code> */
+    public static final byte CHANGE_OFFER = 4;
+    /** <code>itemId:uuid shares:int price:double</code> */
+    public static final byte CHANGE_DEMAND = 5;
+    /** <code>itemId:uuid</code> */
+    public static final byte REMOVE = 6;
+    /** no payload */
+    public static final byte GET_OFFERS = 7;
+    /** no payload */
+    public static final byte GET_DEMANDS = 8;
+    /** <code>itemId:uuid</code> */
+    public static final byte GET_OFFER = 9;
+    /** <code>itemId:uuid</code> */
+    public static final byte GET_DEMAND = 10;
+    /** no payload */
+    public static final byte GET_TRANSACTIONS = 11;
+    /** <code>query</code>, see {@link FrameBuilder#putQuery(BookQuery)} */
+    public static final byte QUERY_OFFERS = 12;
+    /** <code>query</code>, see {@link FrameBuilder#putQuery(BookQuery)} */
+    public static final byte QUERY_DEMANDS = 13;
+    /** no payload */
+    public static final byte DEREGISTER = 14;
+    /** <code>itemId:uuid expectedShares:int expectedPrice:double shares:int price:double</code> */
+    public static final byte REPLACE = 15;
+    /** no payload */
+    public static final byte GET_OPEN_ORDERS = 16;
+    /** <code>[company:string]</code>, every company when absent */
+    public static final byte CANCEL_ALL = 17;
+    /** <code>company:string levels:int</code> */
+    public static final byte GET_DEPTH = 18;
+    /** <code>company:string intervalMillis:long count:int</code> */
+    public static final byte GET_CANDLES = 19;
+
+    /** <code>response</code>, encoded by {@link ResponseCodec} */
+    public static final byte RESPONSE = 64;
+    /** <code>transaction</code>, encoded by {@link TransactionCodec} */
+    public static final byte NOTIFY_BUY = 65;
+    /** <code>transaction</code>, encoded by {@link TransactionCodec} */
+    public static final byte NOTIFY_SALE = 66;
+    /** <code>item</code>, encoded by {@link StockItemCodec} */
+    public static final byte NOTIFY_EXPIRY = 67;
+
+    private static final byte QUERY_HAS_COMPANY = 1;
+    private static final byte QUERY_EXCLUDES_OWN_ITEMS = 2;
+    private static final byte QUERY_HAS_CURSOR = 4;
+
+    private Protocol() {}
+
+    /**
+     * Decodes the {@link Response} starting at the position of <code>frame</code>.
+     * The response can also be read in place with a {@link pcbe.stock.codec.ResponseView}.
+     * @throws ProtocolException if the response is malformed
+     */
+    public static Response getResponse(ByteBuffer frame) {
+        try {
+            return ResponseCodec.decode(frame, frame.position());
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new ProtocolException("Malformed response", e);
+        }
+    }
+
+    /**
+     * Decodes the {@link Transaction} starting at the position of <code>frame</code>.
+     * @throws ProtocolException if the transaction is truncated
+     */
+    public static Transaction getTransaction(ByteBuffer frame) {
+        try {
+            return TransactionCodec.decode(frame, frame.position());
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Malformed transaction", e);
+        }
+    }
+
+    /**
+     * Decodes the {@link StockItem} starting at the position of <code>frame</code>.
+     * @throws ProtocolException if the item is malformed
+     */
+    public static StockItem getItem(ByteBuffer frame) {
+        try {
+            return StockItemCodec.decode(frame, frame.position());
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new ProtocolException("Malformed item", e);
+        }
+    }
+
+    /**
+     * Reads the optional time in force ending an order.
+     * @return {@link TimeInForce#GOOD_TILL_CANCELLED} if the order has none
+     */
+    public static TimeInForce getTimeInForce(ByteBuffer buffer) {
+        if (!buffer.hasRemaining())
+            return TimeInForce.GOOD_TILL_CANCELLED;
+        var type = buffer.get();
+        var expiresAtMillis = buffer.getLong();
+        if (type < 0 || type >= TimeInForce.Type.values().length)
+            throw new ProtocolException("Unknown time in force " + type);
+        return TimeInForce.of(TimeInForce.Type.values()[type], expiresAtMillis);
+    }
+
+    /**
+     * Reads the optional repricing schedule ending an order, after its time in force.
+     * @return {@link RepricingSchedule#NONE} if the order has none
+     * @throws IllegalArgumentException if the schedule is well formed but invalid, which makes
+     * the order invalid rather than the frame
+     */
+    public static RepricingSchedule getRepricing(ByteBuffer buffer) {
+        if (!buffer.hasRemaining())
+            return RepricingSchedule.NONE;
+        return RepricingSchedule.of(buffer.getDouble(), buffer.getLong(), buffer.getDouble());
+    }
+
+    public static BookQuery getQuery(ByteBuffer buffer) {
+        var flags = buffer.get();
+        var query = BookQuery.all();
+        if ((flags & QUERY_HAS_COMPANY) != 0)
+            query.company(getString(buffer));
+        if ((flags & QUERY_EXCLUDES_OWN_ITEMS) != 0)
+            query.excludingOwnItems();
+        query.priceBetween(buffer.getDouble(), buffer.getDouble());
+        try {
+            query.limit(buffer.getInt());
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+        if ((flags & QUERY_HAS_CURSOR) != 0)
+            query.after(getUUID(buffer));
+        return query;
+    }
+
+    /**
+     * @throws ProtocolException if the number of price levels is not positive
+     */
+    public static int getLevels(ByteBuffer buffer) {
+        return getPositiveInt(buffer, "levels");
+    }
+
+    /**
+     * @throws ProtocolException if the number of candles is not positive
+     */
+    public static int getCount(ByteBuffer buffer) {
+        return getPositiveInt(buffer, "count");
+    }
+
+    private static int getPositiveInt(ByteBuffer buffer, String name) {
+        var value = buffer.getInt();
+        if (value <= 0)
+            throw new ProtocolException("The " + name + " must be positive: " + value);
+        return value;
+    }
+
+    public static UUID getUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        var bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return the string ending the payload, or <code>null</code> if nothing remains
+     */
+    public static String getOptionalString(ByteBuffer buffer) {
+        return buffer.hasRemaining() ? getString(buffer) : null;
+    }
+
+    /**
+     * A growable buffer used to build a single frame. The length prefix is
+     * filled in by {@link #build()}.
+     */
+    public static final class FrameBuilder {
+        private ByteBuffer buffer;
+
+        public FrameBuilder(byte opcode, int correlationId) {
+            this(opcode, correlationId, 128);
+        }
+
+        public FrameBuilder(byte opcode, int correlationId, int initialCapacity) {
+            buffer = ByteBuffer.allocate(Math.max(initialCapacity, HEADER_LENGTH));
+            buffer.putInt(0);
+            buffer.put(opcode);
+            buffer.putInt(correlationId);
+        }
+
+        public FrameBuilder putByte(byte value) {
+            ensureRemaining(Byte.BYTES);
+            buffer.put(value);
+            return this;
+        }
+
+        public FrameBuilder putInt(int value) {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public FrameBuilder putLong(long value) {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public FrameBuilder putDouble(double value) {
+            ensureRemaining(Double.BYTES);
+            buffer.putDouble(value);
+            return this;
+        }
+
+        public FrameBuilder putUUID(UUID value) {
+            ensureRemaining(2 * Long.BYTES);
+            buffer.putLong(value.getMostSignificantBits());
+            buffer.putLong(value.getLeastSignificantBits());
+            return this;
+        }
+
+        public FrameBuilder putString(String value) {
+            var bytes = value.getBytes(UTF_8);
+            if (bytes.length > 0xFFFF)
+                throw new ProtocolException("String too long: " + bytes.length + " bytes");
+            ensureRemaining(Short.BYTES + bytes.length);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+            return this;
+        }
+
+        /**
+         * Ends the payload with <code>value</code>, or with nothing if it is <code>null</code>.
+         */
+        public FrameBuilder putOptionalString(String value) {
+            return value == null ? this : putString(value);
+        }
+
+        /**
+         * Encodes <code>query</code> as:
+         * <code>flags:byte [company:string] minPrice:double maxPrice:double limit:int [cursor:uuid]</code>.
+         */
+        public FrameBuilder putQuery(BookQuery query) {
+            var flags = 0;
+            if (query.getCompany().isPresent())
+                flags |= QUERY_HAS_COMPANY;
+            if (query.excludesOwnItems())
+                flags |= QUERY_EXCLUDES_OWN_ITEMS;
+            if (query.getCursor().isPresent())
+                flags |= QUERY_HAS_CURSOR;
+            putByte((byte) flags);
+            query.getCompany().ifPresent(this::putString);
+            putDouble(query.getMinPrice());
+            putDouble(query.getMaxPrice());
+            putInt(query.getLimit());
+            query.getCursor().ifPresent(this::putUUID);
+            return this;
+        }
+
+        /**
+         * Encodes <code>timeInForce</code> as: <code>type:byte expiresAtMillis:long</code>,
+         * the type being the ordinal of its {@link TimeInForce.Type}.
+         */
+        public FrameBuilder putTimeInForce(TimeInForce timeInForce) {
+            putByte((byte) timeInForce.getType().ordinal());
+            return putLong(timeInForce.getExpiresAtMillis());
+        }
+
+        /**
+         * Encodes <code>repricing</code> as: <code>factor:double intervalMillis:long limitPrice:double</code>.
+         */
+        public FrameBuilder putRepricing(RepricingSchedule repricing) {
+            putDouble(repricing.getFactor());
+            putLong(repricing.getIntervalMillis());
+            return putDouble(repricing.getLimitPrice());
+        }
+
+        public FrameBuilder putItem(StockItem item) {
+            ensureRemaining(StockItemCodec.LENGTH);
+            StockItemCodec.encode(item, buffer, buffer.position());
+            buffer.position(buffer.position() + StockItemCodec.LENGTH);
+            return this;
+        }
+
+        public FrameBuilder putResponse(Response response) {
+            var length = ResponseCodec.encodedLength(response);
+            ensureRemaining(length);
+            ResponseCodec.encode(response, buffer, buffer.position());
+            buffer.position(buffer.position() + length);
+            return this;
+        }
+
+        public FrameBuilder putTransaction(Transaction transaction) {
+            ensureRemaining(TransactionCodec.LENGTH);
+            TransactionCodec.encode(transaction, buffer, buffer.position());
+            buffer.position(buffer.position() + TransactionCodec.LENGTH);
+            return this;
+        }
+
+        /**
+         * @return a buffer ready to be written, holding the whole frame
+         * @throws ProtocolException if the frame exceeds {@link Protocol#MAX_FRAME_LENGTH}
+         */
+        public ByteBuffer build() {
+            var length = buffer.position() - Integer.BYTES;
+            if (length > MAX_FRAME_LENGTH)
+                throw new ProtocolException("Frame too long: " + length + " bytes");
+            buffer.putInt(0, length);
+            return buffer.flip();
+        }
+
+        private void ensureRemaining(int bytes) {
+            if (buffer.remaining() >= bytes)
+                return;
+            var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            grown.put(buffer.flip());
+            buffer = grown;
+        }
+    }
+
+    public static class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 4212385939574563210L;
+
+        public ProtocolException(String message) {
+            super(message);
+        }
+
+        public ProtocolException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,604 @@
+package pcbe.stock.net;
+
+import static pcbe.UUIDUtil.prefixOf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.Executor;
+import pcbe.stock.client.StockClientNotifiers;
+import pcbe.stock.codec.ResponseCodec;
+import pcbe.stock.codec.StockItemCodec;
+import pcbe.stock.codec.TransactionCodec;
+import pcbe.stock.journal.RecordingStockServer;
+import pcbe.stock.metrics.MetricsEndpoint;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.net.Protocol.ProtocolException;
+import pcbe.stock.server.Session;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * A TCP front-end for a {@link StockServer} speaking the {@link Protocol}.
+ * <p>
+ * Connections are accepted on a dedicated thread and spread round-robin over a
+ * small pool of event loops, each one owning a {@link Selector}. A single event
+ * loop serves many connections, so the gateway needs a handful of threads no
+ * matter how many clients are connected.
+ * <p>
+ * A connection must send a {@link Protocol#REGISTER} request before any other
+ * request; all the following requests are made on behalf of the registered client.
+ * Buy and sale notifications are pushed on the same connection.
+ * <p>
+ * The event loops only move bytes: the requests of a connection are handed to a worker
+ * executor, which serves them one at a time in the order they arrived, so a request
+ * waiting for the engine does not hold up the other connections of its event loop.
+ * The bytes of a connection not served or not written yet are capped: above
+ * {@value #MAX_QUEUED_BYTES_PROPERTY}, the gateway stops reading from the client until
+ * half of them are gone, and a client that lets its notifications pile up to
+ * {@value #SLOW_CONSUMER_FACTOR} times the cap is disconnected.
+ */
+public class StockGateway implements Closeable {
+    /**
+     * System property holding the bytes a connection may have queued before the gateway stops
+     * reading from it, e.g. <code>-Dpcbe.gateway.maxQueuedBytes=262144</code>.
+     * The default is {@value #DEFAULT_MAX_QUEUED_BYTES}.
+     */
+    public static final String MAX_QUEUED_BYTES_PROPERTY = "pcbe.gateway.maxQueuedBytes";
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    public static final int SLOW_CONSUMER_FACTOR = 4;
+
+    private static final Logger logger = LogManager.getServerLogger();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The requests a worker serves for a connection before giving its thread back to the executor.
+     */
+    private static final int DRAIN_BATCH = 64;
+
+    private final StockServer stockServer;
+    private final java.util.concurrent.Executor workers;
+    private final long maxQueuedBytes = Long.getLong(MAX_QUEUED_BYTES_PROPERTY, DEFAULT_MAX_QUEUED_BYTES);
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final Thread acceptor;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean running = true;
+    private int nextEventLoop;
+
+    /**
+     * Binds the gateway to <code>address</code> and starts serving, the requests on the default executor.
+     * @param eventLoopCount the number of threads multiplexing the connections
+     */
+    public StockGateway(StockServer stockServer, InetSocketAddress address, int eventLoopCount) throws IOException {
+        this(stockServer, address, eventLoopCount, Executor.getDefault());
+    }
+
+    /**
+     * Binds the gateway to <code>address</code> and starts serving.
+     * @param eventLoopCount the number of threads multiplexing the connections
+     * @param workers the executor serving the requests
+     */
+    public StockGateway(StockServer stockServer, InetSocketAddress address, int eventLoopCount,
+            java.util.concurrent.Executor workers) throws IOException {
+        this.stockServer = stockServer;
+        this.workers = workers;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+            eventLoops[i].start();
+        }
+        acceptor = new Thread(this::acceptConnections, "gateway-acceptor");
+        acceptor.start();
+        logger.info("Gateway listening on " + getAddress() + " with " + eventLoopCount + " event loops.");
+    }
+
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (var eventLoop : eventLoops)
+            eventLoop.selector.wakeup();
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                var channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[nextEventLoop].accept(channel);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warning("Cannot accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Dispatches the request in <code>frame</code> to the server and returns the response frame.
+     * A request failing on an unexpected error is answered with {@link Response#failed()}, and a
+     * response longer than {@link Protocol#MAX_FRAME_LENGTH} with {@link Response#tooLarge()}:
+     * closing the connection would close the session, and with it cancel the open orders of the client.
+     * @throws ProtocolException if the frame is malformed
+     */
+    private ByteBuffer handle(Connection connection, byte opcode, int correlationId, ByteBuffer frame) {
+        Response response;
+        try {
+            response = dispatch(connection, opcode, frame);
+        } catch (ProtocolException | BufferUnderflowException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            logger.severe("Request with opcode " + opcode + " of connection " + connection + " failed: " + e);
+            response = Response.failed();
+        }
+        var length = Protocol.HEADER_LENGTH - Integer.BYTES + ResponseCodec.encodedLength(response);
+        if (length > Protocol.MAX_FRAME_LENGTH) {
+            logger.warning("Response to opcode " + opcode + " of connection " + connection + " too large: " + length + " bytes");
+            response = Response.tooLarge();
+        }
+        return responseFrame(correlationId, response);
+    }
+
+    private static ByteBuffer responseFrame(int correlationId, Response response) {
+        return new FrameBuilder(Protocol.RESPONSE, correlationId, Protocol.HEADER_LENGTH + ResponseCodec.encodedLength(response))
+            .putResponse(response)
+            .build();
+    }
+
+    private Response dispatch(Connection connection, byte opcode, ByteBuffer frame) {
+        if (opcode == Protocol.REGISTER)
+            return register(connection, Protocol.getUUID(frame));
+        var session = connection.session;
+        if (session == null)
+            return Response.notRegistered();
+        switch (opcode) {
+            case Protocol.DEREGISTER:
+                connection.session = null;
+                return session.deregister();
+            case Protocol.OFFER:
+            case Protocol.DEMAND:
+                return addOrder(session, opcode, frame);
+            case Protocol.CHANGE_OFFER:
+                return session.changeOffer(Protocol.getUUID(frame), frame.getInt(), frame.getDouble());
+            case Protocol.CHANGE_DEMAND:
+                return session.changeDemand(Protocol.getUUID(frame), frame.getInt(), frame.getDouble());
+            case Protocol.REPLACE:
+                return session.replaceOrder(Protocol.getUUID(frame), frame.getInt(), frame.getDouble(), frame.getInt(), frame.getDouble());
+            case Protocol.REMOVE:
+                return session.removeItem(Protocol.getUUID(frame));
+            case Protocol.CANCEL_ALL:
+                return session.cancelAll(Protocol.getOptionalString(frame));
+            case Protocol.GET_OPEN_ORDERS:
+                return session.getOpenOrders();
+            case Protocol.GET_DEPTH:
+                return session.getDepth(Protocol.getString(frame), Protocol.getLevels(frame));
+            case Protocol.GET_CANDLES:
+                return session.getCandles(Protocol.getString(frame), Duration.ofMillis(frame.getLong()), Protocol.getCount(frame));
+            case Protocol.GET_OFFERS:
+                return session.getOffers();
+            case Protocol.GET_DEMANDS:
+                return session.getDemands();
+            case Protocol.GET_OFFER:
+                return session.getOfferById(Protocol.getUUID(frame));
+            case Protocol.GET_DEMAND:
+                return session.getDemandById(Protocol.getUUID(frame));
+            case Protocol.GET_TRANSACTIONS:
+                return session.getTransactionHistory();
+            case Protocol.QUERY_OFFERS:
+                return session.getOffers(Protocol.getQuery(frame));
+            case Protocol.QUERY_DEMANDS:
+                return session.getDemands(Protocol.getQuery(frame));
+            default:
+                throw new ProtocolException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Reads an {@link Protocol#OFFER} or a {@link Protocol#DEMAND} and adds it; an invalid
+     * repricing schedule is answered like any other invalid order.
+     */
+    private static Response addOrder(Session session, byte opcode, ByteBuffer frame) {
+        var company = Protocol.getString(frame);
+        var shares = frame.getInt();
+        var price = frame.getDouble();
+        var timeInForce = Protocol.getTimeInForce(frame);
+        RepricingSchedule repricing;
+        try {
+            repricing = Protocol.getRepricing(frame);
+        } catch (IllegalArgumentException e) {
+            return Response.invalidOrder();
+        }
+        return opcode == Protocol.OFFER
+            ? session.offerShares(company, shares, price, timeInForce, repricing)
+            : session.demandShares(company, shares, price, timeInForce, repricing);
+    }
+
+    private Response register(Connection connection, UUID clientId) {
+        if (connection.session != null)
+            return Response.alreadyRegistered();
+        var notifiers = new StockClientNotifiers(
+            transaction -> connection.notify(notification(Protocol.NOTIFY_BUY, transaction)),
+            transaction -> connection.notify(notification(Protocol.NOTIFY_SALE, transaction)),
+            item -> connection.notify(expiryNotification(item)));
+        var session = stockServer.openSession(clientId, notifiers);
+        if (session.isEmpty())
+            return Response.alreadyRegistered();
+        connection.session = session.get();
+        return Response.registeredSuccessfully();
+    }
+
+    private static ByteBuffer notification(byte opcode, Transaction transaction) {
+        return new FrameBuilder(opcode, 0, Protocol.HEADER_LENGTH + TransactionCodec.LENGTH)
+            .putTransaction(transaction)
+            .build();
+    }
+
+    private static ByteBuffer expiryNotification(StockItem item) {
+        return new FrameBuilder(Protocol.NOTIFY_EXPIRY, 0, Protocol.HEADER_LENGTH + StockItemCodec.LENGTH)
+            .putItem(item)
+            .build();
+    }
+
+    /**
+     * A thread multiplexing a set of connections over one {@link Selector}.
+     * <p>
+     * Other threads never touch the selector directly; they queue new channels
+     * and connections with pending writes and wake the selector up.
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("gateway-event-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void accept(SocketChannel channel) {
+            acceptedChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerAcceptedChannels();
+                    flushPendingWrites();
+                    for (var key : selector.selectedKeys()) {
+                        var connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.flush();
+                        } catch (IOException | ProtocolException e) {
+                            logger.fine("Closing connection " + connection + ": " + e.getMessage());
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            logger.severe("Closing connection " + connection + " after unexpected error: " + e);
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                logger.severe("Event loop " + getName() + " failed: " + e.getMessage());
+            } finally {
+                selector.keys().forEach(key -> ((Connection) key.attachment()).close());
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.fine(e.getMessage());
+                }
+            }
+        }
+
+        private void registerAcceptedChannels() throws IOException {
+            SocketChannel channel;
+            while ((channel = acceptedChannels.poll()) != null) {
+                var connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.incrementAndGet();
+            }
+        }
+
+        private void flushPendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a single client connection. Only the owning {@link EventLoop}
+     * reads from and writes to the channel; {@link #send(ByteBuffer)} may be
+     * called from any thread.
+     * <p>
+     * The requests read are queued in a lane drained by at most one task of the workers
+     * at a time, like the matching tasks of a company in the engine.
+     */
+    private class Connection {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> requests = new ConcurrentLinkedQueue<>();
+        /**
+         * The requests read and not served yet; a drain is scheduled or running while it is positive.
+         */
+        private final AtomicInteger pendingRequests = new AtomicInteger();
+        /**
+         * The bytes of the requests not served yet and of the frames not written yet.
+         */
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+        /**
+         * Whether the event loop stopped reading because too many bytes are queued; owned by the event loop.
+         */
+        private boolean readPaused;
+        private volatile Session session;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+        }
+
+        void send(ByteBuffer frame) {
+            if (closed.get())
+                return;
+            queuedBytes.addAndGet(frame.remaining());
+            outbound.add(frame);
+            if (writeScheduled.compareAndSet(false, true))
+                eventLoop.scheduleWrite(this);
+        }
+
+        /**
+         * Sends a notification, unless the client let so many bytes pile up that it is disconnected.
+         */
+        void notify(ByteBuffer frame) {
+            if (queuedBytes.get() > SLOW_CONSUMER_FACTOR * maxQueuedBytes) {
+                logger.warning("Closing connection " + this + ": " + queuedBytes.get() + " bytes queued for a slow consumer.");
+                close();
+                return;
+            }
+            send(frame);
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= Integer.BYTES) {
+                var length = readBuffer.getInt(readBuffer.position());
+                if (length < Protocol.HEADER_LENGTH - Integer.BYTES || length > Protocol.MAX_FRAME_LENGTH)
+                    throw new ProtocolException("Invalid frame length " + length);
+                if (readBuffer.remaining() < Integer.BYTES + length)
+                    break;
+                var frameEnd = readBuffer.position() + Integer.BYTES + length;
+                readBuffer.position(readBuffer.position() + Integer.BYTES);
+                var frame = ByteBuffer.allocate(length).put(readBuffer.slice().limit(length)).flip();
+                readBuffer.position(frameEnd);
+                submit(frame);
+            }
+            readBuffer.compact();
+            ensureReadCapacity();
+            if (!readPaused && queuedBytes.get() >= maxQueuedBytes) {
+                readPaused = true;
+                updateInterest((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+                logger.fine("Stopped reading from connection " + this + ": " + queuedBytes.get() + " bytes queued.");
+            }
+        }
+
+        /**
+         * Queues a request copied out of the read buffer for the workers.
+         */
+        private void submit(ByteBuffer frame) {
+            queuedBytes.addAndGet(frame.remaining());
+            requests.add(frame);
+            if (pendingRequests.getAndIncrement() == 0)
+                scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            try {
+                workers.execute(this::drainRequests);
+            } catch (RejectedExecutionException e) {
+                logger.warning("Closing connection " + this + ": the gateway is shutting down.");
+                close();
+            }
+        }
+
+        private void drainRequests() {
+            var served = 0;
+            try {
+                ByteBuffer frame;
+                while (served < DRAIN_BATCH && (frame = requests.poll()) != null) {
+                    served++;
+                    if (!closed.get())
+                        serve(frame);
+                }
+            } finally {
+                if (pendingRequests.addAndGet(-served) > 0 && !closed.get())
+                    scheduleDrain();
+            }
+        }
+
+        /**
+         * Serves one request, closing the connection only if its frame breaks the protocol.
+         */
+        private void serve(ByteBuffer frame) {
+            try {
+                handleFrame(frame);
+            } catch (ProtocolException e) {
+                logger.fine("Closing connection " + this + ": " + e.getMessage());
+                close();
+            } catch (RuntimeException e) {
+                logger.severe("Unexpected error serving connection " + this + ": " + e);
+            }
+        }
+
+        private void handleFrame(ByteBuffer frame) {
+            var requestBytes = frame.remaining();
+            var opcode = frame.get();
+            var correlationId = frame.getInt();
+            ByteBuffer response;
+            try {
+                response = handle(this, opcode, correlationId, frame);
+            } catch (BufferUnderflowException e) {
+                throw new ProtocolException("Truncated request with opcode " + opcode);
+            } finally {
+                queuedBytes.addAndGet(-requestBytes);
+            }
+            send(response);
+        }
+
+        /**
+         * Grows the read buffer when a frame larger than the buffer is being received.
+         */
+        private void ensureReadCapacity() {
+            if (readBuffer.position() < Integer.BYTES)
+                return;
+            var needed = Integer.BYTES + readBuffer.getInt(0);
+            if (needed > readBuffer.capacity()) {
+                var grown = ByteBuffer.allocate(needed);
+                grown.put(readBuffer.flip());
+                readBuffer = grown;
+            }
+        }
+
+        void flush() throws IOException {
+            while (!closed.get()) {
+                ByteBuffer frame;
+                while ((frame = outbound.peek()) != null) {
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        resumeReadingIfDrained();
+                        updateInterest(true);
+                        return;
+                    }
+                    outbound.poll();
+                    queuedBytes.addAndGet(-frame.limit());
+                }
+                resumeReadingIfDrained();
+                updateInterest(false);
+                writeScheduled.set(false);
+                if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+
+        private void resumeReadingIfDrained() {
+            if (readPaused && queuedBytes.get() < maxQueuedBytes / 2) {
+                readPaused = false;
+                logger.fine("Resumed reading from connection " + this + ".");
+            }
+        }
+
+        private void updateInterest(boolean writing) {
+            if (key.isValid())
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            connections.decrementAndGet();
+            outbound.clear();
+            var registered = session;
+            if (registered != null)
+                registered.close();
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.fine(e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            var registered = session;
+            return registered != null ? "of client " + prefixOf(registered.getClientId()) : String.valueOf(channel);
+        }
+    }
+
+    /**
+     * Starts a gateway in front of a new {@link StockServer}.
+     * <p>
+     * Arguments: <code>[port] [eventLoops]</code>
+     */
+    public static void main(String[] args) throws IOException {
+        var port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        var eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        var recorder = RecordingStockServer.createIfConfigured();
+        var stockService = recorder.map(RecordingStockServer::getRecordedService).orElseGet(StockService::getDefault);
+        var stockServer = recorder.isPresent() ? recorder.get() : new StockServer(stockService);
+        var gateway = new StockGateway(stockServer, new InetSocketAddress(port), eventLoops);
+        var metricsEndpoint = MetricsEndpoint.startIfConfigured(stockService::getMetrics, Executor.getDefault());
+        System.out.println("Gateway listening on " + gateway.getAddress() + ". ENTER to stop.");
+        int read;
+        while ((read = System.in.read()) != '\n' && read != -1);
+        gateway.close();
+        recorder.ifPresent(RecordingStockServer::close);
+        metricsEndpoint.ifPresent(MetricsEndpoint::close);
+        Executor.getDefault().shutdownNow();
+    }
+}
@@ -0,0 +1,375 @@
+package pcbe.stock.replication;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.Executor;
+import pcbe.stock.journal.Journal;
+import pcbe.stock.metrics.MetricsEndpoint;
+import pcbe.stock.metrics.StockMetrics;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.net.StockGateway;
+import pcbe.stock.server.DeadlineSequencer;
+import pcbe.stock.server.Session;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * The primary of a primary/backup pair: a {@link StockServer} streaming the commands that
+ * change its book to a {@link Standby}, which applies them to its own engine.
+ * <p>
+ * Commands changing the book are sequenced: each one is executed and appended to the stream
+ * under one lock, so the standby receives them in the order the primary applied them. The
+ * stream is a {@link Journal}, each record numbered by its sequence, and the standby
+ * acknowledges the sequence of the last record it applied. A command is answered only once
+ * the standby acknowledged it, so an order acknowledged to a client survives the loss of
+ * the primary. The standby creates the items with the ids of the primary, so clients can
+ * keep using them after a takeover.
+ * <p>
+ * Replication is deterministic only if the matching of the primary completes before the
+ * command returns: the {@link StockService} must run its tasks on the calling thread.
+ * The deadlines of the service run under the same lock and the orders they expire and
+ * reprice are streamed as {@link Journal#EXPIRE} and {@link Journal#REPRICE} records,
+ * which the standby applies instead of running its own deadlines. These records are
+ * flushed once applied, without waiting for their acknowledgment.
+ * <p>
+ * The time a command waits for its acknowledgment and the commands not acknowledged yet
+ * are exported with the {@link StockMetrics} of the service. If the standby is lost or does
+ * not acknowledge within {@link #ACKNOWLEDGMENT_TIMEOUT_MILLIS}, the primary logs it and
+ * goes on alone.
+ */
+public class ReplicatingStockServer extends StockServer implements Closeable {
+    public static final long ACKNOWLEDGMENT_TIMEOUT_MILLIS = 5_000;
+
+    private static final Logger logger = LogManager.getServerLogger();
+    private static final int SEQUENCE_OFFSET = Integer.BYTES + Byte.BYTES;
+
+    private final StockMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final Socket socket;
+    private final BufferedOutputStream output;
+    private final Object sequencer = new Object();
+    private final Object acknowledgments = new Object();
+    private int sequence;
+    private volatile int sentSequence;
+    private int flushedSequence;
+    private int acknowledgedSequence;
+    private volatile boolean failed;
+    /**
+     * The records of the expiries and repricings of the deadlines being sequenced, sent once
+     * the deadlines ran rather than under the write lock of the service. Guarded by the sequencer.
+     */
+    private final List<FrameBuilder> deadlineRecords = new ArrayList<>();
+
+    /**
+     * Connects to the standby listening on <code>standby</code>.
+     * @param stockService a service running its tasks on the calling thread
+     */
+    public ReplicatingStockServer(StockService stockService, InetSocketAddress standby) throws IOException {
+        super(stockService);
+        metrics = stockService.getMetrics();
+        socket = new Socket(standby.getAddress(), standby.getPort());
+        socket.setTcpNoDelay(true);
+        output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        var header = new DataOutputStream(output);
+        header.writeInt(Journal.MAGIC);
+        header.writeInt(Journal.VERSION);
+        header.flush();
+        var acknowledgmentReader = new Thread(this::readAcknowledgments, "replication-acknowledgments");
+        acknowledgmentReader.setDaemon(true);
+        acknowledgmentReader.start();
+        stockService.sequenceDeadlines(new DeadlineSequencer() {
+            @Override
+            public void sequence(Runnable deadlines) {
+                int recordSequence;
+                synchronized (sequencer) {
+                    deadlines.run();
+                    for (var record : deadlineRecords)
+                        send(record);
+                    deadlineRecords.clear();
+                    recordSequence = sequence;
+                }
+                flushUpTo(recordSequence);
+            }
+
+            @Override
+            public void expired(StockItem item) {
+                deadlineRecords.add(record(Journal.EXPIRE, item.getClientId(), Status.Successful, item.getId()));
+            }
+
+            @Override
+            public void repriced(StockItem item) {
+                deadlineRecords.add(record(Journal.REPRICE, item.getClientId(), Status.Changed, item.getId())
+                    .putDouble(item.getPrice()));
+            }
+        });
+        logger.info("Replicating to the standby " + standby);
+    }
+
+    /**
+     * @return whether the standby still receives the commands
+     */
+    public boolean isReplicating() {
+        return !failed;
+    }
+
+    /**
+     * Stops replicating; the standby takes over once it has applied the commands sent so far.
+     */
+    @Override
+    public void close() {
+        failed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.fine("Cannot close the replication socket: " + e.getMessage());
+        }
+        synchronized (acknowledgments) {
+            acknowledgments.notifyAll();
+        }
+    }
+
+    @Override
+    protected Response offerShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return replicated(Protocol.OFFER, session, () -> super.offerShares(session, company, shares, price, timeInForce, repricing),
+            record -> record.putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce).putRepricing(repricing));
+    }
+
+    @Override
+    protected Response demandShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return replicated(Protocol.DEMAND, session, () -> super.demandShares(session, company, shares, price, timeInForce, repricing),
+            record -> record.putString(company).putInt(shares).putDouble(price).putTimeInForce(timeInForce).putRepricing(repricing));
+    }
+
+    @Override
+    protected Response changeOffer(Session session, UUID offerId, int newShares, double newPrice) {
+        return replicated(Protocol.CHANGE_OFFER, session, () -> super.changeOffer(session, offerId, newShares, newPrice),
+            record -> record.putUUID(offerId).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response changeDemand(Session session, UUID demandId, int newShares, double newPrice) {
+        return replicated(Protocol.CHANGE_DEMAND, session, () -> super.changeDemand(session, demandId, newShares, newPrice),
+            record -> record.putUUID(demandId).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response replaceOrder(Session session, UUID orderId, int expectedShares, double expectedPrice,
+            int newShares, double newPrice) {
+        return replicated(Protocol.REPLACE, session,
+            () -> super.replaceOrder(session, orderId, expectedShares, expectedPrice, newShares, newPrice),
+            record -> record.putUUID(orderId).putInt(expectedShares).putDouble(expectedPrice).putInt(newShares).putDouble(newPrice));
+    }
+
+    @Override
+    protected Response removeItem(Session session, UUID itemId) {
+        return replicated(Protocol.REMOVE, session, () -> super.removeItem(session, itemId),
+            record -> record.putUUID(itemId));
+    }
+
+    @Override
+    protected Response cancelAll(Session session, String company) {
+        return replicated(Protocol.CANCEL_ALL, session, () -> super.cancelAll(session, company),
+            record -> record.putOptionalString(company));
+    }
+
+    /**
+     * Deregistering cancels the orders of the client, so the standby cancels them too.
+     */
+    @Override
+    protected Response deregister(Session session) {
+        return replicated(Protocol.DEREGISTER, session, () -> super.deregister(session), record -> {});
+    }
+
+    /**
+     * Deposits are replicated, so the standby checks the orders against the same accounts.
+     */
+    @Override
+    public void depositCurrency(UUID clientId, double currencyUnits) {
+        replicated(Journal.DEPOSIT_CURRENCY, clientId, () -> {
+            super.depositCurrency(clientId, currencyUnits);
+            return Response.deposited();
+        }, record -> record.putDouble(currencyUnits));
+    }
+
+    @Override
+    public void depositShares(UUID clientId, String company, int shares) {
+        replicated(Journal.DEPOSIT_SHARES, clientId, () -> {
+            super.depositShares(clientId, company, shares);
+            return Response.deposited();
+        }, record -> record.putString(company).putInt(shares));
+    }
+
+    private Response replicated(byte opcode, Session session, Supplier<Response> command, Consumer<FrameBuilder> payload) {
+        return replicated(opcode, session.getClientId(), command, payload);
+    }
+
+    /**
+     * Executes <code>command</code> and, if it changed the book, sends it to the standby
+     * and waits for its acknowledgment.
+     * @param payload writes the request payload of the command to its record
+     */
+    private Response replicated(byte opcode, UUID clientId, Supplier<Response> command, Consumer<FrameBuilder> payload) {
+        int recordSequence;
+        Response response;
+        synchronized (sequencer) {
+            var record = record(opcode, clientId, null, null);
+            response = command.get();
+            if (!response.isSuccessful() || failed)
+                return response;
+            var itemId = response.getItemId();
+            record.putByte((byte) response.getStatus().ordinal()).putUUID(itemId == null ? Journal.NO_ID : itemId);
+            payload.accept(record);
+            if (!send(record))
+                return response;
+            recordSequence = sequence;
+        }
+        metrics.commandReplicated();
+        var waitStart = System.nanoTime();
+        flushUpTo(recordSequence);
+        if (awaitAcknowledgment(recordSequence))
+            metrics.replicationAcknowledged(waitStart);
+        return response;
+    }
+
+    /**
+     * Starts a record timestamped now, with its status and item if they are known yet.
+     */
+    private FrameBuilder record(byte opcode, UUID clientId, Status status, UUID itemId) {
+        var record = new FrameBuilder(opcode, 0)
+            .putLong(System.nanoTime() - startNanos)
+            .putUUID(clientId);
+        if (status != null)
+            record.putByte((byte) status.ordinal()).putUUID(itemId);
+        return record;
+    }
+
+    /**
+     * Numbers <code>record</code> and writes it to the stream. Must be called holding the sequencer.
+     * @return whether it was written
+     */
+    private boolean send(FrameBuilder record) {
+        if (failed)
+            return false;
+        var frame = record.build();
+        frame.putInt(SEQUENCE_OFFSET, ++sequence);
+        try {
+            output.write(frame.array(), 0, frame.limit());
+        } catch (IOException e) {
+            fail("Cannot send record " + sequence + " to the standby: " + e.getMessage());
+            return false;
+        }
+        sentSequence = sequence;
+        return true;
+    }
+
+    /**
+     * Flushes the records sent so far, unless a concurrent flush already sent <code>recordSequence</code>.
+     */
+    private void flushUpTo(int recordSequence) {
+        synchronized (output) {
+            if (flushedSequence >= recordSequence || failed)
+                return;
+            var sent = sentSequence;
+            try {
+                output.flush();
+                flushedSequence = sent;
+            } catch (IOException e) {
+                fail("Cannot send commands to the standby: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether the standby acknowledged <code>recordSequence</code>
+     */
+    private boolean awaitAcknowledgment(int recordSequence) {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACKNOWLEDGMENT_TIMEOUT_MILLIS);
+        synchronized (acknowledgments) {
+            try {
+                long remaining;
+                while (acknowledgedSequence < recordSequence && !failed) {
+                    if ((remaining = deadline - System.nanoTime()) <= 0) {
+                        fail("The standby did not acknowledge command " + recordSequence + " in time.");
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(acknowledgments, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return acknowledgedSequence >= recordSequence;
+        }
+    }
+
+    private void readAcknowledgments() {
+        try (var input = new DataInputStream(socket.getInputStream())) {
+            while (true) {
+                var acknowledged = input.readInt();
+                synchronized (acknowledgments) {
+                    acknowledgedSequence = acknowledged;
+                    acknowledgments.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            if (!failed)
+                fail("Lost the standby: " + e.getMessage());
+        }
+    }
+
+    private void fail(String reason) {
+        if (failed)
+            return;
+        logger.severe(reason + " The primary goes on without a standby.");
+        close();
+    }
+
+    /**
+     * Starts a gateway in front of a primary replicating to a running {@link Standby}.
+     * <p>
+     * Arguments: <code>port standbyHost:standbyPort [eventLoops]</code>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2)
+            throw new IllegalArgumentException("Usage: ReplicatingStockServer <port> <standbyHost:standbyPort> [eventLoops]");
+        var separator = args[1].lastIndexOf(':');
+        if (separator < 0)
+            throw new IllegalArgumentException("Standby address " + args[1] + " is not host:port");
+        var standby = new InetSocketAddress(args[1].substring(0, separator), Integer.parseInt(args[1].substring(separator + 1)));
+        var eventLoops = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        var stockService = new StockService(Runnable::run);
+        stockService.getMetrics().export();
+        var primary = new ReplicatingStockServer(stockService, standby);
+        var gateway = new StockGateway(primary, new InetSocketAddress(Integer.parseInt(args[0])), eventLoops);
+        var metricsEndpoint = MetricsEndpoint.startIfConfigured(stockService::getMetrics, Executor.getDefault());
+        System.out.println("Primary listening on " + gateway.getAddress() + ", replicating to " + standby + ". ENTER to stop.");
+        int read;
+        while ((read = System.in.read()) != '\n' && read != -1);
+        gateway.close();
+        primary.close();
+        metricsEndpoint.ifPresent(MetricsEndpoint::close);
+        Executor.getDefault().shutdownNow();
+    }
+}
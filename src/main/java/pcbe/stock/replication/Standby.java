@@ -0,0 +1,253 @@
+package pcbe.stock.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.Executor;
+import pcbe.stock.journal.Journal;
+import pcbe.stock.metrics.MetricsEndpoint;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.net.StockGateway;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * The backup of a primary/backup pair: applies the commands streamed by a
+ * {@link ReplicatingStockServer} to its own engine and takes over when the primary is lost.
+ * <p>
+ * Records are applied on one thread in the order of their sequence, by an engine matching
+ * on that thread, so the book of the standby follows the one of the primary. Its orders
+ * expire and are repriced by the {@link Journal#EXPIRE} and {@link Journal#REPRICE} records
+ * of the primary rather than by its own clock, until it takes over. The sequence
+ * of the last record applied is acknowledged whenever no other record is waiting, which
+ * batches the acknowledgments of a burst of commands.
+ * <p>
+ * When the connection to the primary ends, the standby opens a {@link StockGateway} in front
+ * of its engine on the client address. Clients register again and keep using the ids of
+ * their items.
+ */
+public class Standby implements Closeable {
+    private static final Logger logger = LogManager.getServerLogger();
+
+    private final StockService stockService = new StockService(Runnable::run);
+    private final ServerSocket replicationSocket;
+    private final InetSocketAddress clientAddress;
+    private final int eventLoops;
+    private final Thread applier;
+    private volatile int appliedSequence;
+    private volatile StockGateway gateway;
+    private volatile boolean closed;
+
+    /**
+     * Waits for the primary on <code>replicationAddress</code>.
+     * @param clientAddress the address to serve the clients on after a takeover
+     */
+    public Standby(InetSocketAddress replicationAddress, InetSocketAddress clientAddress, int eventLoops) throws IOException {
+        this.clientAddress = clientAddress;
+        this.eventLoops = eventLoops;
+        stockService.followDeadlines();
+        replicationSocket = new ServerSocket(replicationAddress.getPort(), 1, replicationAddress.getAddress());
+        applier = new Thread(this::replicate, "standby-replication");
+        applier.setDaemon(true);
+        applier.start();
+        logger.info("Standby waiting for the primary on " + getReplicationAddress());
+    }
+
+    public InetSocketAddress getReplicationAddress() {
+        return (InetSocketAddress) replicationSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * The engine of the standby; its book must not be changed but by the replication.
+     */
+    public StockService getStockService() {
+        return stockService;
+    }
+
+    /**
+     * @return the sequence of the last command applied
+     */
+    public int getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return the gateway serving the clients since the takeover, if the standby took over
+     */
+    public Optional<StockGateway> getGateway() {
+        return Optional.ofNullable(gateway);
+    }
+
+    /**
+     * Waits for the commands of the primary until it is lost, then takes over.
+     */
+    private void replicate() {
+        try (var primary = replicationSocket.accept()) {
+            primary.setTcpNoDelay(true);
+            logger.info("Primary connected from " + primary.getRemoteSocketAddress());
+            apply(primary);
+        } catch (IOException e) {
+            if (!closed)
+                logger.severe("Lost the primary after command " + appliedSequence + ": " + e.getMessage());
+        }
+        try {
+            replicationSocket.close();
+            if (!closed)
+                takeOver();
+        } catch (IOException e) {
+            logger.severe("Cannot take over: " + e.getMessage());
+        }
+    }
+
+    private void apply(Socket primary) throws IOException {
+        var input = new DataInputStream(new BufferedInputStream(primary.getInputStream(), 64 * 1024));
+        var acknowledgments = new DataOutputStream(new BufferedOutputStream(primary.getOutputStream()));
+        if (input.readInt() != Journal.MAGIC)
+            throw new IOException("The primary does not send a journal");
+        var version = input.readInt();
+        if (version != Journal.VERSION)
+            throw new IOException("Unsupported journal version " + version);
+        while (true) {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                logger.warning("The primary stopped replicating after command " + appliedSequence + ".");
+                return;
+            }
+            if (length < Protocol.HEADER_LENGTH - Integer.BYTES || length > Protocol.MAX_FRAME_LENGTH)
+                throw new IOException("Invalid record length " + length + " after command " + appliedSequence);
+            var record = new byte[length];
+            input.readFully(record);
+            apply(ByteBuffer.wrap(record));
+            if (input.available() == 0) {
+                acknowledgments.writeInt(appliedSequence);
+                acknowledgments.flush();
+            }
+        }
+    }
+
+    /**
+     * Applies one command record; see {@link Journal} for its layout.
+     */
+    private void apply(ByteBuffer record) {
+        var opcode = record.get();
+        var recordSequence = record.getInt();
+        record.getLong();
+        var clientId = Protocol.getUUID(record);
+        record.get();
+        var itemId = Protocol.getUUID(record);
+        try {
+            switch (opcode) {
+                case Protocol.OFFER:
+                    stockService.addOffer(itemId, clientId, Protocol.getString(record), record.getInt(), record.getDouble(),
+                        Protocol.getTimeInForce(record), Protocol.getRepricing(record));
+                    break;
+                case Protocol.DEMAND:
+                    stockService.addDemand(itemId, clientId, Protocol.getString(record), record.getInt(), record.getDouble(),
+                        Protocol.getTimeInForce(record), Protocol.getRepricing(record));
+                    break;
+                case Protocol.CHANGE_OFFER:
+                    stockService.changeOffer(Protocol.getUUID(record), record.getInt(), record.getDouble());
+                    break;
+                case Protocol.CHANGE_DEMAND:
+                    stockService.changeDemand(Protocol.getUUID(record), record.getInt(), record.getDouble());
+                    break;
+                case Protocol.REPLACE:
+                    stockService.replaceItem(Protocol.getUUID(record), clientId, record.getInt(), record.getDouble(),
+                        record.getInt(), record.getDouble());
+                    break;
+                case Protocol.REMOVE:
+                    stockService.removeItem(Protocol.getUUID(record));
+                    break;
+                case Protocol.CANCEL_ALL:
+                    stockService.cancelAll(clientId, Protocol.getOptionalString(record));
+                    break;
+                case Protocol.DEREGISTER:
+                    stockService.cancelAll(clientId);
+                    break;
+                case Journal.DEPOSIT_CURRENCY:
+                    stockService.getLedger().depositCurrency(clientId, record.getDouble());
+                    break;
+                case Journal.DEPOSIT_SHARES:
+                    stockService.getLedger().depositShares(clientId, Protocol.getString(record), record.getInt());
+                    break;
+                case Journal.EXPIRE:
+                    if (!stockService.expire(itemId))
+                        logger.severe("Order " + itemId + " of record " + recordSequence + " cannot expire on the standby, which diverged from the primary.");
+                    break;
+                case Journal.REPRICE:
+                    if (!stockService.reprice(itemId, record.getDouble()))
+                        logger.severe("Order " + itemId + " of record " + recordSequence + " cannot be repriced on the standby, which diverged from the primary.");
+                    break;
+                default:
+                    logger.warning("Ignoring command " + recordSequence + " with opcode " + opcode + ".");
+            }
+        } catch (RuntimeException e) {
+            logger.severe("Command " + recordSequence + " failed on the standby, which diverged from the primary: " + e.getMessage());
+        }
+        appliedSequence = recordSequence;
+    }
+
+    /**
+     * Serves the clients from the replicated book.
+     */
+    private synchronized void takeOver() throws IOException {
+        if (gateway != null)
+            return;
+        stockService.leadDeadlines();
+        gateway = new StockGateway(new StockServer(stockService), clientAddress, eventLoops);
+        logger.warning("Standby took over after command " + appliedSequence + ", serving clients on " + gateway.getAddress() + ".");
+    }
+
+    /**
+     * Waits for the standby to take over, e.g. after the primary is stopped.
+     * @return the gateway serving the clients
+     */
+    public StockGateway awaitTakeOver() throws InterruptedException {
+        applier.join();
+        return getGateway().orElseThrow(() -> new IllegalStateException("The standby was closed before taking over"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        replicationSocket.close();
+        var takenOver = gateway;
+        if (takenOver != null)
+            takenOver.close();
+    }
+
+    /**
+     * Starts a standby waiting for a primary.
+     * <p>
+     * Arguments: <code>replicationPort clientPort [eventLoops]</code>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2)
+            throw new IllegalArgumentException("Usage: Standby <replicationPort> <clientPort> [eventLoops]");
+        var eventLoops = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        var standby = new Standby(new InetSocketAddress(Integer.parseInt(args[0])), new InetSocketAddress(Integer.parseInt(args[1])), eventLoops);
+        standby.getStockService().getMetrics().export();
+        var metricsEndpoint = MetricsEndpoint.startIfConfigured(standby.getStockService()::getMetrics, Executor.getDefault());
+        System.out.println("Standby replicating on " + standby.getReplicationAddress() + ". ENTER to stop.");
+        int read;
+        while ((read = System.in.read()) != '\n' && read != -1);
+        standby.close();
+        metricsEndpoint.ifPresent(MetricsEndpoint::close);
+        Executor.getDefault().shutdownNow();
+    }
+}
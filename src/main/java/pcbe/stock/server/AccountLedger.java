@@ -0,0 +1,201 @@
+package pcbe.stock.server;
+
+import static pcbe.UUIDUtil.prefixOf;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * The currency and the shares of the clients, held by the {@link StockService}.
+ * <p>
+ * Each account is a slot of primitive arrays: its available and reserved currency, and,
+ * per company, its available and reserved shares. An order entering the book reserves
+ * what it may spend, the currency of a demand or the shares of an offer, and is rejected
+ * with an {@link InsufficientFundsException} if the account does not have it; a change
+ * reserves or releases the difference and a removal releases the rest. A transaction
+ * settles both accounts in the same step: the reserved currency of the buyer pays the
+ * seller, the difference with the demanded price returns to the buyer, and the reserved
+ * shares of the seller move to the buyer.
+ * <p>
+ * Every operation is a few array accesses under the monitor of the ledger. A client gets
+ * an account with its first deposit; the orders of clients without an account are not checked.
+ */
+public class AccountLedger {
+    private static final int INITIAL_ACCOUNTS = 64;
+
+    private final Map<UUID, Integer> slots = new HashMap<>();
+    private final Map<String, Integer> companies = new HashMap<>();
+    private double[] currency = new double[INITIAL_ACCOUNTS];
+    private double[] reservedCurrency = new double[INITIAL_ACCOUNTS];
+    /**
+     * Per slot, the available shares of each company at twice its index, the reserved ones right after.
+     */
+    private int[][] shares = new int[INITIAL_ACCOUNTS][];
+
+    /**
+     * @throws IllegalArgumentException if <code>currencyUnits</code> is not a positive finite number
+     */
+    public synchronized void depositCurrency(UUID clientId, double currencyUnits) {
+        if (!(currencyUnits > 0) || Double.isInfinite(currencyUnits))
+            throw new IllegalArgumentException("A deposit must be a positive finite number of currency units: " + currencyUnits);
+        currency[slotOf(clientId)] += currencyUnits;
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>shares</code> is not positive
+     */
+    public synchronized void depositShares(UUID clientId, String company, int shares) {
+        if (shares <= 0)
+            throw new IllegalArgumentException("A deposit must be a positive number of shares: " + shares);
+        holdingsOf(slotOf(clientId), company)[2 * companyIndexOf(company)] += shares;
+    }
+
+    public synchronized boolean hasAccount(UUID clientId) {
+        return slots.containsKey(clientId);
+    }
+
+    /**
+     * @return the currency the client can still spend on demands
+     */
+    public synchronized double getCurrency(UUID clientId) {
+        var slot = slots.get(clientId);
+        return slot == null ? 0 : currency[slot];
+    }
+
+    /**
+     * @return the currency reserved by the demands of the client in the book
+     */
+    public synchronized double getReservedCurrency(UUID clientId) {
+        var slot = slots.get(clientId);
+        return slot == null ? 0 : reservedCurrency[slot];
+    }
+
+    /**
+     * @return the shares of <code>company</code> the client can still offer
+     */
+    public synchronized int getShares(UUID clientId, String company) {
+        return holding(clientId, company, 0);
+    }
+
+    /**
+     * @return the shares of <code>company</code> reserved by the offers of the client in the book
+     */
+    public synchronized int getReservedShares(UUID clientId, String company) {
+        return holding(clientId, company, 1);
+    }
+
+    private int holding(UUID clientId, String company, int reserved) {
+        var slot = slots.get(clientId);
+        var index = companies.get(company);
+        if (slot == null || index == null || shares[slot] == null || shares[slot].length <= 2 * index)
+            return 0;
+        return shares[slot][2 * index + reserved];
+    }
+
+    /**
+     * Reserves what a new order may spend.
+     * @throws InsufficientFundsException if the account of its client does not have it
+     */
+    synchronized void reserve(StockItem item) {
+        if (item.getShares() <= 0)
+            throw new IllegalArgumentException("Cannot reserve " + item.getShares() + " shares");
+        adjust(item, item.getShares(), item.getPrice() * item.getShares());
+    }
+
+    /**
+     * Reserves or releases the difference between an order in the book and its new shares and price.
+     * @throws InsufficientFundsException if the account of its client does not have it
+     */
+    synchronized void reserveChange(StockItem item, int newShares, double newPrice) {
+        adjust(item, newShares - item.getShares(), newPrice * newShares - item.getPrice() * item.getShares());
+    }
+
+    /**
+     * Releases what an order leaving the book had still reserved.
+     */
+    synchronized void release(StockItem item) {
+        adjust(item, -item.getShares(), -item.getPrice() * item.getShares());
+    }
+
+    /**
+     * Moves <code>tradedShares</code> at <code>price</code> from the seller of <code>offer</code>
+     * to the buyer of <code>demand</code>, out of their reservations.
+     */
+    synchronized void settle(Demand demand, Offer offer, int tradedShares, double price) {
+        if (tradedShares <= 0 || !(price > 0) || Double.isInfinite(price))
+            throw new IllegalArgumentException("Cannot settle " + tradedShares + " shares at " + price);
+        var buyer = slots.get(demand.getClientId());
+        if (buyer != null) {
+            reservedCurrency[buyer] -= demand.getPrice() * tradedShares;
+            currency[buyer] += (demand.getPrice() - price) * tradedShares;
+            holdingsOf(buyer, demand.getCompany())[2 * companyIndexOf(demand.getCompany())] += tradedShares;
+        }
+        var seller = slots.get(offer.getClientId());
+        if (seller != null) {
+            holdingsOf(seller, offer.getCompany())[2 * companyIndexOf(offer.getCompany()) + 1] -= tradedShares;
+            currency[seller] += price * tradedShares;
+        }
+    }
+
+    /**
+     * Moves <code>sharesDelta</code> shares of an offer, or <code>currencyDelta</code> currency
+     * of a demand, from the available to the reserved ones of its client.
+     */
+    private void adjust(StockItem item, int sharesDelta, double currencyDelta) {
+        if (!Double.isFinite(currencyDelta))
+            throw new IllegalArgumentException("Cannot reserve " + currencyDelta + " currency units for item " + prefixOf(item.getId()));
+        var slot = slots.get(item.getClientId());
+        if (slot == null)
+            return;
+        if (item instanceof Demand) {
+            if (currencyDelta > currency[slot])
+                throw new InsufficientFundsException("Client " + prefixOf(item.getClientId()) + " has " + currency[slot]
+                    + " currency units but needs " + currencyDelta);
+            currency[slot] -= currencyDelta;
+            reservedCurrency[slot] += currencyDelta;
+        } else {
+            var holdings = holdingsOf(slot, item.getCompany());
+            var available = 2 * companyIndexOf(item.getCompany());
+            if (sharesDelta > holdings[available])
+                throw new InsufficientFundsException("Client " + prefixOf(item.getClientId()) + " has " + holdings[available]
+                    + " shares of " + item.getCompany() + " but needs " + sharesDelta);
+            holdings[available] -= sharesDelta;
+            holdings[available + 1] += sharesDelta;
+        }
+    }
+
+    private int slotOf(UUID clientId) {
+        var slot = slots.get(clientId);
+        if (slot != null)
+            return slot;
+        slot = slots.size();
+        if (slot == currency.length) {
+            currency = Arrays.copyOf(currency, 2 * slot);
+            reservedCurrency = Arrays.copyOf(reservedCurrency, 2 * slot);
+            shares = Arrays.copyOf(shares, 2 * slot);
+        }
+        slots.put(clientId, slot);
+        return slot;
+    }
+
+    private int companyIndexOf(String company) {
+        return companies.computeIfAbsent(company, c -> companies.size());
+    }
+
+    /**
+     * @return the holdings of the account, grown to hold <code>company</code>
+     */
+    private int[] holdingsOf(int slot, String company) {
+        var length = 2 * (companyIndexOf(company) + 1);
+        var holdings = shares[slot];
+        if (holdings == null || holdings.length < length)
+            shares[slot] = holdings = holdings == null ? new int[length] : Arrays.copyOf(holdings, length);
+        return holdings;
+    }
+}
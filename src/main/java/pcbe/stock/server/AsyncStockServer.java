@@ -0,0 +1,164 @@
+package pcbe.stock.server;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.TimeInForce;
+
+/**
+ * An asynchronous view of a {@link StockServer}: every request returns a future of its response.
+ * <p>
+ * A request is accepted on the calling thread, through the server and its subclasses, so the
+ * requests of a thread reach the book in the order they are made. The matching of an order runs
+ * later on the executor of the {@link StockService}; the future of a successful order, change or
+ * replacement completes once that matching is done and the order rests in the book, was filled or
+ * expired, see {@link StockService#whenSettled(UUID)}. A client can thus pipeline orders without
+ * waiting for them, and compose on their futures to read the book after them.
+ * <p>
+ * The futures of the other requests, and of the rejected ones, are completed when returned.
+ * Those of the orders complete on the thread ending their matching, so the functions composed on
+ * them should not block.
+ */
+public class AsyncStockServer {
+    private final StockServer server;
+    private final StockService stockService;
+
+    public AsyncStockServer(StockServer server) {
+        this.server = server;
+        this.stockService = server.getStockService();
+    }
+
+    public StockServer getServer() {
+        return server;
+    }
+
+    public CompletableFuture<Response> register(UUID clientId, Notifiers notifiers) {
+        return completedFuture(server.register(clientId, notifiers));
+    }
+
+    public CompletableFuture<Response> deregister(UUID clientId) {
+        return completedFuture(server.deregister(clientId));
+    }
+
+    public CompletableFuture<Response> offerShares(UUID clientId, String company, int shares, double price) {
+        return offerShares(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    public CompletableFuture<Response> offerShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+        return offerShares(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    /**
+     * @return a future of the response, completed once the offer is matched
+     */
+    public CompletableFuture<Response> offerShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        var response = server.offerShares(clientId, company, shares, price, timeInForce, repricing);
+        return settled(response, response.getItemId());
+    }
+
+    public CompletableFuture<Response> demandShares(UUID clientId, String company, int shares, double price) {
+        return demandShares(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    public CompletableFuture<Response> demandShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+        return demandShares(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    /**
+     * @return a future of the response, completed once the demand is matched
+     */
+    public CompletableFuture<Response> demandShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        var response = server.demandShares(clientId, company, shares, price, timeInForce, repricing);
+        return settled(response, response.getItemId());
+    }
+
+    /**
+     * @return a future of the response, completed once the changed offer is matched
+     */
+    public CompletableFuture<Response> changeOffer(UUID clientId, UUID offerId, int newShares, double newPrice) {
+        return settled(server.changeOffer(clientId, offerId, newShares, newPrice), offerId);
+    }
+
+    /**
+     * @return a future of the response, completed once the changed demand is matched
+     */
+    public CompletableFuture<Response> changeDemand(UUID clientId, UUID demandId, int newShares, double newPrice) {
+        return settled(server.changeDemand(clientId, demandId, newShares, newPrice), demandId);
+    }
+
+    /**
+     * @return a future of the response, completed once the replaced order is matched,
+     * see {@link StockServer#replaceOrder(UUID, UUID, int, double, int, double)}
+     */
+    public CompletableFuture<Response> replaceOrder(UUID clientId, UUID orderId, int expectedShares, double expectedPrice,
+            int newShares, double newPrice) {
+        return settled(server.replaceOrder(clientId, orderId, expectedShares, expectedPrice, newShares, newPrice), orderId);
+    }
+
+    public CompletableFuture<Response> removeItem(UUID clientId, UUID itemId) {
+        return completedFuture(server.removeItem(clientId, itemId));
+    }
+
+    public CompletableFuture<Response> cancelAll(UUID clientId) {
+        return completedFuture(server.cancelAll(clientId));
+    }
+
+    public CompletableFuture<Response> cancelAll(UUID clientId, String company) {
+        return completedFuture(server.cancelAll(clientId, company));
+    }
+
+    public CompletableFuture<Response> getOpenOrders(UUID clientId) {
+        return completedFuture(server.getOpenOrders(clientId));
+    }
+
+    public CompletableFuture<Response> getDepth(UUID clientId, String company, int levels) {
+        return completedFuture(server.getDepth(clientId, company, levels));
+    }
+
+    public CompletableFuture<Response> getCandles(UUID clientId, String company, Duration interval, int count) {
+        return completedFuture(server.getCandles(clientId, company, interval, count));
+    }
+
+    public CompletableFuture<Response> getOffers(UUID clientId) {
+        return completedFuture(server.getOffers(clientId));
+    }
+
+    public CompletableFuture<Response> getDemands(UUID clientId) {
+        return completedFuture(server.getDemands(clientId));
+    }
+
+    public CompletableFuture<Response> getOffers(UUID clientId, BookQuery query) {
+        return completedFuture(server.getOffers(clientId, query));
+    }
+
+    public CompletableFuture<Response> getDemands(UUID clientId, BookQuery query) {
+        return completedFuture(server.getDemands(clientId, query));
+    }
+
+    public CompletableFuture<Response> getOfferById(UUID clientId, UUID offerId) {
+        return completedFuture(server.getOfferById(clientId, offerId));
+    }
+
+    public CompletableFuture<Response> getDemandById(UUID clientId, UUID demandId) {
+        return completedFuture(server.getDemandById(clientId, demandId));
+    }
+
+    public CompletableFuture<Response> getTransactionHistory(UUID clientId) {
+        return completedFuture(server.getTransactionHistory(clientId));
+    }
+
+    private CompletableFuture<Response> settled(Response response, UUID itemId) {
+        if (!response.isSuccessful())
+            return completedFuture(response);
+        return stockService.whenSettled(itemId).thenApply(matched -> response);
+    }
+}
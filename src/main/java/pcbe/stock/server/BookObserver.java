@@ -0,0 +1,20 @@
+package pcbe.stock.server;
+
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.Transaction;
+
+/**
+ * Follows the changes of the book of a {@link StockService}, see {@link StockService#observeBook(BookObserver)}.
+ * <p>
+ * The changes of the items are signalled under the write lock of the service, in the order
+ * they happen, so an observer must only record them.
+ */
+interface BookObserver {
+    /**
+     * @param item a copy of the item after the change
+     * @param waiting whether the item is <code>Waiting</code>, i.e. visible in the book
+     */
+    void itemChanged(StockItem item, boolean waiting);
+
+    void traded(Transaction transaction);
+}
@@ -0,0 +1,49 @@
+package pcbe.stock.server;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.MarketDepth;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.Transaction;
+
+/**
+ * The queries of the <code>Waiting</code> orders and of the trades, answered by the
+ * {@link StockService} itself or by a {@link ReadReplica} following it.
+ * <p>
+ * The items returned are copies.
+ */
+public interface BookReader {
+    Set<Offer> getOffers();
+
+    Set<Demand> getDemands();
+
+    /**
+     * @return the page of offers selected by <code>query</code>, cheapest first
+     */
+    List<Offer> getOffers(UUID clientId, BookQuery query);
+
+    /**
+     * @return the page of demands selected by <code>query</code>, highest price first
+     */
+    List<Demand> getDemands(UUID clientId, BookQuery query);
+
+    Optional<Offer> getOffer(UUID offerId);
+
+    Optional<Demand> getDemand(UUID demandId);
+
+    /**
+     * @return the first <code>levels</code> price levels of each side of the book of <code>company</code>
+     * @throws IllegalArgumentException if <code>levels</code> is not positive
+     */
+    MarketDepth getDepth(String company, int levels);
+
+    /**
+     * @return the trades, in the order they were done
+     */
+    List<Transaction> getTransactions();
+}
@@ -0,0 +1,172 @@
+package pcbe.stock.server;
+
+import static java.util.stream.Collectors.toList;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pcbe.stock.model.Candle;
+import pcbe.stock.model.Transaction;
+
+/**
+ * The {@link Candle}s of the trades of each company, at a few intervals, updated as the trades
+ * are made so that the recent ones are read without going through the transaction history.
+ * <p>
+ * Each company has a series per interval: a ring buffer of the last <code>capacity</code>
+ * periods with trades, each one a slot of primitive arrays. A trade updates the current candle
+ * of each series of its company, or starts the next one, in constant time and without
+ * allocating. Periods without trades have no candle.
+ * <p>
+ * The series of a company are guarded by a lock of their own, so the trades of different
+ * companies are recorded in parallel, and never under the lock of the book.
+ */
+public class CandleChart {
+    /**
+     * System property holding the intervals of the candles of a {@link StockService}, comma separated,
+     * e.g. <code>-Dpcbe.candles.intervalsMillis=1000,60000</code>. The default is {@link #DEFAULT_INTERVALS}.
+     */
+    public static final String INTERVALS_PROPERTY = "pcbe.candles.intervalsMillis";
+    /**
+     * System property holding the number of candles kept per company and interval,
+     * e.g. <code>-Dpcbe.candles.capacity=4096</code>. The default is {@value #DEFAULT_CAPACITY}.
+     */
+    public static final String CAPACITY_PROPERTY = "pcbe.candles.capacity";
+    public static final List<Duration> DEFAULT_INTERVALS = List.of(Duration.ofSeconds(1), Duration.ofMinutes(1), Duration.ofHours(1));
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final long[] intervalsMillis;
+    private final int capacity;
+    private final Map<String, Series[]> seriesByCompany = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity the number of candles kept per company and interval
+     */
+    public CandleChart(List<Duration> intervals, int capacity) {
+        if (intervals.isEmpty() || intervals.stream().anyMatch(interval -> interval.toMillis() <= 0))
+            throw new IllegalArgumentException("Invalid candle intervals " + intervals);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid candle capacity " + capacity);
+        this.intervalsMillis = intervals.stream().mapToLong(Duration::toMillis).distinct().toArray();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a chart with the intervals given by {@value #INTERVALS_PROPERTY} and the capacity
+     * given by {@value #CAPACITY_PROPERTY}, or their defaults.
+     */
+    public static CandleChart fromProperties() {
+        var intervalsMillis = System.getProperty(INTERVALS_PROPERTY);
+        var intervals = intervalsMillis == null
+            ? DEFAULT_INTERVALS
+            : Arrays.stream(intervalsMillis.split(",")).map(String::trim).map(Long::parseLong).map(Duration::ofMillis).collect(toList());
+        return new CandleChart(intervals, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    }
+
+    public List<Duration> getIntervals() {
+        return Arrays.stream(intervalsMillis).mapToObj(Duration::ofMillis).collect(toList());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds <code>transaction</code>, made at <code>timeMillis</code>, to the candles of its company.
+     * A trade made before the start of the current candle of a series counts in that candle.
+     */
+    public void record(Transaction transaction, long timeMillis) {
+        var series = seriesByCompany.computeIfAbsent(transaction.getCompany(), company -> newSeries());
+        synchronized (series) {
+            for (var interval : series)
+                interval.record(transaction.getPrice(), transaction.getShares(), timeMillis);
+        }
+    }
+
+    /**
+     * @return the last <code>count</code> candles of <code>company</code> at <code>interval</code>,
+     * oldest first, the current one included; none if the chart has no candles at that interval
+     * @throws IllegalArgumentException if <code>count</code> is not positive
+     */
+    public List<Candle> getCandles(String company, Duration interval, int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("The count must be positive: " + count);
+        var series = seriesByCompany.get(company);
+        if (series == null)
+            return List.of();
+        var intervalMillis = interval.toMillis();
+        synchronized (series) {
+            for (var candidate : series)
+                if (candidate.intervalMillis == intervalMillis)
+                    return candidate.last(count);
+        }
+        return List.of();
+    }
+
+    private Series[] newSeries() {
+        var series = new Series[intervalsMillis.length];
+        for (int i = 0; i < series.length; i++)
+            series[i] = new Series(intervalsMillis[i], capacity);
+        return series;
+    }
+
+    /**
+     * The candles of a company at one interval. Guarded by the array of the series of the company.
+     */
+    private static class Series {
+        final long intervalMillis;
+        final long[] start;
+        final double[] open;
+        final double[] high;
+        final double[] low;
+        final double[] close;
+        final long[] volume;
+        final int[] trades;
+        /**
+         * The slot of the current candle.
+         */
+        int last = -1;
+        int size;
+
+        Series(long intervalMillis, int capacity) {
+            this.intervalMillis = intervalMillis;
+            start = new long[capacity];
+            open = new double[capacity];
+            high = new double[capacity];
+            low = new double[capacity];
+            close = new double[capacity];
+            volume = new long[capacity];
+            trades = new int[capacity];
+        }
+
+        void record(double price, int shares, long timeMillis) {
+            var periodStart = timeMillis - Math.floorMod(timeMillis, intervalMillis);
+            if (size == 0 || periodStart > start[last]) {
+                last = (last + 1) % start.length;
+                size = Math.min(size + 1, start.length);
+                start[last] = periodStart;
+                open[last] = high[last] = low[last] = price;
+                volume[last] = 0;
+                trades[last] = 0;
+            }
+            high[last] = Math.max(high[last], price);
+            low[last] = Math.min(low[last], price);
+            close[last] = price;
+            volume[last] += shares;
+            trades[last]++;
+        }
+
+        List<Candle> last(int count) {
+            var n = Math.min(count, size);
+            var candles = new ArrayList<Candle>(n);
+            for (int i = n - 1; i >= 0; i--) {
+                var slot = Math.floorMod(last - i, start.length);
+                candles.add(new Candle(start[slot], intervalMillis, open[slot], high[slot], low[slot], close[slot], volume[slot], trades[slot]));
+            }
+            return candles;
+        }
+    }
+}
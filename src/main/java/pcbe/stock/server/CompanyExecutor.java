@@ -0,0 +1,75 @@
+package pcbe.stock.server;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the matching tasks of each company one at a time, in the order they were submitted,
+ * and the tasks of different companies in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Each company has a lane: a queue of tasks drained by at most one task of the pool at a time.
+ * A drain runs at most {@link #DRAIN_BATCH} tasks before giving its thread back to the pool, so a
+ * busy company does not hold a worker while the lanes of other companies wait: the idle workers
+ * steal the lanes queued behind it.
+ */
+class CompanyExecutor {
+    static final int DRAIN_BATCH = 64;
+
+    private final ForkJoinPool pool;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    CompanyExecutor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs <code>task</code> after the tasks of <code>company</code> submitted before it.
+     * @throws RejectedExecutionException if the pool is shut down
+     */
+    void execute(String company, Runnable task) {
+        lanes.computeIfAbsent(company, lane -> new Lane()).submit(task);
+    }
+
+    private class Lane {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * The tasks submitted and not run yet; a drain is scheduled or running while it is positive.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (pending.getAndIncrement() == 0)
+                schedule();
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                tasks.clear();
+                pending.set(0);
+                throw e;
+            }
+        }
+
+        private void drain() {
+            var ran = 0;
+            try {
+                Runnable task;
+                while (ran < DRAIN_BATCH && (task = tasks.poll()) != null) {
+                    ran++;
+                    task.run();
+                }
+            } finally {
+                if (pending.addAndGet(-ran) > 0)
+                    schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package pcbe.stock.server;
+
+import pcbe.stock.model.StockItem;
+
+/**
+ * Sequences the expiries and repricings done by the deadlines of a {@link StockService} with
+ * the commands of a server replicating or recording them, see
+ * {@link StockService#sequenceDeadlines(DeadlineSequencer)}.
+ * <p>
+ * A follower of the service applies them with {@link StockService#expire(java.util.UUID)} and
+ * {@link StockService#reprice(java.util.UUID, double)} instead of running its own deadlines,
+ * see {@link StockService#followDeadlines()}.
+ */
+public interface DeadlineSequencer {
+    /**
+     * Runs <code>deadlines</code>, which expires and reprices the orders that came due, in
+     * sequence with the commands. Called on the deadline timer of the service.
+     */
+    void sequence(Runnable deadlines);
+
+    /**
+     * Called under the write lock of the service for each order expired by its deadline.
+     */
+    void expired(StockItem item);
+
+    /**
+     * Called under the write lock of the service for each order moved to its next price,
+     * before it is matched again.
+     */
+    void repriced(StockItem item);
+}
@@ -0,0 +1,12 @@
+package pcbe.stock.server;
+
+/**
+ * Thrown when the account of a client cannot fund an order, see {@link AccountLedger}.
+ */
+public class InsufficientFundsException extends RuntimeException {
+    private static final long serialVersionUID = 6250418873190457726L;
+
+    public InsufficientFundsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package pcbe.stock.server;
+
+/**
+ * Thrown when an order cannot enter the book, or be changed, as asked, e.g. when its company has
+ * a name longer than {@link pcbe.stock.model.StockItem#MAX_COMPANY_BYTES} or its price is not a
+ * positive finite number.
+ */
+public class InvalidOrderException extends RuntimeException {
+    private static final long serialVersionUID = -2874415906237785634L;
+
+    public InvalidOrderException(String message) {
+        super(message);
+    }
+}
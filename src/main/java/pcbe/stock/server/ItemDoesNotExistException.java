@@ -0,0 +1,13 @@
+package pcbe.stock.server;
+
+/**
+ * Thrown when a command names an item that the service never had, or an item of the other side
+ * of the book, e.g. a demand given to {@link StockService#changeOffer(java.util.UUID, int, double)}.
+ */
+public class ItemDoesNotExistException extends RuntimeException {
+    private static final long serialVersionUID = 6120948714322960457L;
+
+    public ItemDoesNotExistException(String message) {
+        super(message);
+    }
+}
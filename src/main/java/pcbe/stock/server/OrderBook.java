@@ -0,0 +1,178 @@
+package pcbe.stock.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import pcbe.stock.model.MarketDepth;
+import pcbe.stock.model.PriceLevel;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+
+/**
+ * Index of the live (<code>Waiting</code> or in <code>Transaction</code>) items of
+ * the {@link StockService}, kept in matching priority.
+ * <p>
+ * This class is not thread safe; it is guarded by the lock of the {@link StockService}.
+ * The price of an item must not change while the item is in the book: it has to be
+ * removed, changed and added back. A change of its shares must be signalled with
+ * {@link #sharesTraded(StockItem, int)}, which keeps the totals of its price level.
+ */
+class OrderBook {
+    final Side<Offer> offers = new Side<>(false);
+    final Side<Demand> demands = new Side<>(true);
+
+    void add(StockItem item) {
+        if (item instanceof Offer)
+            offers.add(Offer.class.cast(item));
+        else
+            demands.add(Demand.class.cast(item));
+    }
+
+    void remove(StockItem item) {
+        if (item instanceof Offer)
+            offers.remove(Offer.class.cast(item));
+        else
+            demands.remove(Demand.class.cast(item));
+    }
+
+    /**
+     * Takes <code>shares</code> traded by <code>item</code> off the total of its price level.
+     */
+    void sharesTraded(StockItem item, int shares) {
+        if (item instanceof Offer)
+            offers.sharesTraded(Offer.class.cast(item), shares);
+        else
+            demands.sharesTraded(Demand.class.cast(item), shares);
+    }
+
+    boolean isEmpty() {
+        return offers.size() == 0 && demands.size() == 0;
+    }
+
+    /**
+     * @return the first <code>levels</code> price levels of each side
+     * @throws IllegalArgumentException if <code>levels</code> is not positive
+     */
+    MarketDepth depth(int levels) {
+        if (levels <= 0)
+            throw new IllegalArgumentException("The levels must be positive: " + levels);
+        return new MarketDepth(offers.depth(levels), demands.depth(levels));
+    }
+
+    /**
+     * One side of the book: price levels in priority order, each level holding
+     * its items in the order of their {@link StockItem#getSequence()}.
+     */
+    static class Side<T extends StockItem> {
+        private final boolean highestPriceFirst;
+        private final NavigableMap<Double, Level<T>> levels;
+        private int size;
+
+        Side(boolean highestPriceFirst) {
+            this.highestPriceFirst = highestPriceFirst;
+            this.levels = highestPriceFirst ? new TreeMap<>(Collections.reverseOrder()) : new TreeMap<>();
+        }
+
+        void add(T item) {
+            var level = levels.computeIfAbsent(item.getPrice(), price -> new Level<>());
+            if (level.items.put(item.getSequence(), item) == null) {
+                size++;
+                level.shares += item.getShares();
+            }
+        }
+
+        void remove(T item) {
+            var level = levels.get(item.getPrice());
+            if (level == null || level.items.remove(item.getSequence()) == null)
+                return;
+            size--;
+            level.shares -= item.getShares();
+            if (level.items.isEmpty())
+                levels.remove(item.getPrice());
+        }
+
+        void sharesTraded(T item, int shares) {
+            var level = levels.get(item.getPrice());
+            if (level != null && level.items.containsKey(item.getSequence()))
+                level.shares -= shares;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the items with exactly the given price, oldest first
+         */
+        Collection<T> atPrice(double price) {
+            var level = levels.get(price);
+            return level == null ? Collections.emptyList() : level.items.values();
+        }
+
+        /**
+         * @return the first <code>maxLevels</code> price levels in priority order, read from
+         * their totals in time proportional to <code>maxLevels</code>
+         */
+        List<PriceLevel> depth(int maxLevels) {
+            var depth = new ArrayList<PriceLevel>(Math.min(maxLevels, levels.size()));
+            for (var level : levels.entrySet()) {
+                if (depth.size() == maxLevels)
+                    break;
+                depth.add(new PriceLevel(level.getKey(), level.getValue().shares, level.getValue().items.size()));
+            }
+            return depth;
+        }
+
+        /**
+         * @return the items with <code>minPrice &lt;= price &lt;= maxPrice</code> in priority order
+         */
+        Stream<T> stream(double minPrice, double maxPrice) {
+            return stream(minPrice, maxPrice, null);
+        }
+
+        /**
+         * Lazily streams the items with <code>minPrice &lt;= price &lt;= maxPrice</code> in priority
+         * order, starting after the position of <code>after</code> if it is given.
+         * <p>
+         * <code>after</code> does not need to be in the book anymore; only its price and sequence are used.
+         */
+        Stream<T> stream(double minPrice, double maxPrice, StockItem after) {
+            var from = highestPriceFirst ? maxPrice : minPrice;
+            var to = highestPriceFirst ? minPrice : maxPrice;
+            var afterSequence = Long.MIN_VALUE;
+            if (after != null && compare(after.getPrice(), from) >= 0) {
+                from = after.getPrice();
+                afterSequence = after.getSequence();
+            }
+            if (compare(from, to) > 0)
+                return Stream.empty();
+            var firstPrice = from;
+            var firstSequence = afterSequence;
+            return levels.subMap(from, true, to, true).entrySet().stream()
+                .flatMap(level -> compare(level.getKey(), firstPrice) == 0
+                    ? level.getValue().items.tailMap(firstSequence, false).values().stream()
+                    : level.getValue().items.values().stream());
+        }
+
+        /**
+         * Compares two prices in the priority order of this side.
+         */
+        private int compare(double price, double otherPrice) {
+            return highestPriceFirst ? Double.compare(otherPrice, price) : Double.compare(price, otherPrice);
+        }
+    }
+
+    /**
+     * The items at one price, by sequence, and the total of their shares.
+     */
+    private static class Level<T extends StockItem> {
+        final NavigableMap<Long, T> items = new TreeMap<>();
+        long shares;
+    }
+}
@@ -0,0 +1,25 @@
+package pcbe.stock.server;
+
+import pcbe.stock.model.StockItem;
+
+/**
+ * Thrown when an order to replace does not have the expected shares and price anymore,
+ * see {@link StockService#replaceItem(java.util.UUID, java.util.UUID, int, double, int, double)}.
+ */
+public class OrderConflictException extends RuntimeException {
+    private static final long serialVersionUID = -4326788710458962817L;
+
+    private final StockItem current;
+
+    public OrderConflictException(StockItem current) {
+        super("Order " + current.getId() + " has " + current.getShares() + " shares at " + current.getPrice());
+        this.current = current;
+    }
+
+    /**
+     * @return a copy of the order as it is in the book
+     */
+    public StockItem getCurrent() {
+        return current;
+    }
+}
@@ -0,0 +1,314 @@
+package pcbe.stock.server;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.Collectors.collectingAndThen;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.metrics.StockMetrics;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.MarketDepth;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.Transaction;
+
+/**
+ * A read model of the book and of the trades of a {@link StockService}, answering the queries
+ * without taking the lock of the engine.
+ * <p>
+ * The engine only appends a copy of each changed item and each trade to a queue, see
+ * {@link BookObserver}; a thread of the replica applies them to its own book in the order they
+ * happened. The queries and that thread share a lock of their own, so however many queries
+ * come, the order entry never waits for them.
+ * <p>
+ * The replica lags behind the engine by the changes queued and not applied yet. Its staleness,
+ * the age of the oldest of them, is bounded: a query waits while it exceeds the
+ * <code>maxStaleness</code> of the replica. The staleness of the changes when applied is
+ * recorded in the {@link StockMetrics} of the service.
+ */
+public class ReadReplica implements BookReader, Closeable {
+    /**
+     * System property holding the staleness bound of the replica created by
+     * {@link #startIfConfigured(StockService)}, e.g. <code>-Dpcbe.readReplica.maxStalenessMillis=50</code>.
+     */
+    public static final String MAX_STALENESS_PROPERTY = "pcbe.readReplica.maxStalenessMillis";
+
+    private static final Logger logger = LogManager.getServerLogger();
+    private static final int MAX_BATCH = 1024;
+    private static final OrderBook EMPTY_BOOK = new OrderBook();
+
+    private final StockService stockService;
+    private final StockMetrics metrics;
+    private final long maxStalenessNanos;
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final BookObserver observer = new BookObserver() {
+        @Override
+        public void itemChanged(StockItem item, boolean waiting) {
+            changes.add(new Change(item, waiting, null));
+        }
+
+        @Override
+        public void traded(Transaction transaction) {
+            changes.add(new Change(null, false, transaction));
+        }
+    };
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final OrderBook book = new OrderBook();
+    private final Map<String, OrderBook> booksByCompany = new HashMap<>();
+    /**
+     * The last known copy of every item, to resume the queries after a cursor that left the book.
+     */
+    private final Map<UUID, StockItem> itemsById = new HashMap<>();
+    private final Set<UUID> waitingIds = new HashSet<>();
+    private final List<Transaction> transactions = new ArrayList<>();
+    /**
+     * The time the oldest change being applied was made, 0 if none is.
+     */
+    private volatile long applyingSince;
+    private final Thread applier;
+    private volatile boolean closed;
+
+    /**
+     * Starts following the book of <code>stockService</code>.
+     * @param maxStaleness the age of the changes not applied yet beyond which the queries wait
+     * @throws IllegalStateException if the service already has items
+     */
+    public ReadReplica(StockService stockService, Duration maxStaleness) {
+        if (maxStaleness.isNegative())
+            throw new IllegalArgumentException("Invalid staleness bound " + maxStaleness);
+        this.stockService = stockService;
+        this.metrics = stockService.getMetrics();
+        this.maxStalenessNanos = maxStaleness.toNanos();
+        stockService.observeBook(observer);
+        applier = new Thread(this::applyChanges, "read-replica");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Starts a replica of <code>stockService</code> with the bound given by {@value #MAX_STALENESS_PROPERTY}, if it is set.
+     */
+    public static Optional<ReadReplica> startIfConfigured(StockService stockService) {
+        var maxStalenessMillis = System.getProperty(MAX_STALENESS_PROPERTY);
+        if (maxStalenessMillis == null)
+            return Optional.empty();
+        return Optional.of(new ReadReplica(stockService, Duration.ofMillis(Long.parseLong(maxStalenessMillis))));
+    }
+
+    /**
+     * @return the age of the oldest change not applied yet, zero if the replica is up to date
+     */
+    public Duration getStaleness() {
+        return Duration.ofNanos(stalenessNanos());
+    }
+
+    @Override
+    public Set<Offer> getOffers() {
+        return read(() -> book.offers.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+            .map(Offer::new)
+            .collect(collectingAndThen(toCollection(LinkedHashSet::new), Collections::unmodifiableSet)));
+    }
+
+    @Override
+    public Set<Demand> getDemands() {
+        return read(() -> book.demands.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+            .map(Demand::new)
+            .collect(collectingAndThen(toCollection(LinkedHashSet::new), Collections::unmodifiableSet)));
+    }
+
+    @Override
+    public List<Offer> getOffers(UUID clientId, BookQuery query) {
+        return queryBook(clientId, query, Offer.class, orderBook -> orderBook.offers, Offer::new);
+    }
+
+    @Override
+    public List<Demand> getDemands(UUID clientId, BookQuery query) {
+        return queryBook(clientId, query, Demand.class, orderBook -> orderBook.demands, Demand::new);
+    }
+
+    @Override
+    public Optional<Offer> getOffer(UUID offerId) {
+        return getWaitingItem(offerId, Offer.class).map(Offer::new);
+    }
+
+    @Override
+    public Optional<Demand> getDemand(UUID demandId) {
+        return getWaitingItem(demandId, Demand.class).map(Demand::new);
+    }
+
+    @Override
+    public MarketDepth getDepth(String company, int levels) {
+        return read(() -> booksByCompany.getOrDefault(company, EMPTY_BOOK).depth(levels));
+    }
+
+    @Override
+    public List<Transaction> getTransactions() {
+        return read(() -> unmodifiableList(new ArrayList<>(transactions)));
+    }
+
+    /**
+     * Stops following the engine; the queries are answered from the book as it was.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        stockService.stopObservingBook(observer);
+        applier.interrupt();
+    }
+
+    private <T extends StockItem> Optional<T> getWaitingItem(UUID itemId, Class<T> cls) {
+        return read(() -> Optional.ofNullable(itemsById.get(itemId))
+            .filter(cls::isInstance)
+            .filter(item -> waitingIds.contains(itemId))
+            .map(cls::cast));
+    }
+
+    private <T extends StockItem> List<T> queryBook(UUID clientId, BookQuery query, Class<T> cls,
+            Function<OrderBook, OrderBook.Side<T>> side, UnaryOperator<T> copy) {
+        return read(() -> {
+            var orderBook = query.getCompany().isPresent() ? booksByCompany.get(query.getCompany().get()) : book;
+            if (orderBook == null)
+                return List.<T>of();
+            var after = query.getCursor().map(itemsById::get).filter(cls::isInstance).orElse(null);
+            return side.apply(orderBook).stream(query.getMinPrice(), query.getMaxPrice(), after)
+                .filter(item -> !query.excludesOwnItems() || !item.getClientId().equals(clientId))
+                .limit(query.getLimit())
+                .map(copy)
+                .collect(toList());
+        });
+    }
+
+    /**
+     * Answers a query once the staleness of the replica is within its bound.
+     */
+    private <T> T read(Supplier<T> query) {
+        awaitFreshness();
+        lock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void awaitFreshness() {
+        if (stalenessNanos() <= maxStalenessNanos || closed)
+            return;
+        synchronized (this) {
+            try {
+                while (stalenessNanos() > maxStalenessNanos && !closed)
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(maxStalenessNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long stalenessNanos() {
+        var since = applyingSince;
+        if (since == 0) {
+            var oldest = changes.peek();
+            if (oldest == null)
+                return 0;
+            since = oldest.nanos;
+        }
+        return Math.max(0, System.nanoTime() - since);
+    }
+
+    private void applyChanges() {
+        var batch = new ArrayList<Change>(MAX_BATCH);
+        try {
+            while (!closed) {
+                var first = changes.take();
+                applyingSince = first.nanos;
+                batch.add(first);
+                changes.drainTo(batch, MAX_BATCH - 1);
+                lock.writeLock().lock();
+                try {
+                    batch.forEach(this::apply);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                metrics.readReplicaApplied(first.nanos);
+                applyingSince = 0;
+                batch.clear();
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!closed)
+                logger.severe("The read replica stopped following the engine.");
+        }
+    }
+
+    private void apply(Change change) {
+        if (change.transaction != null) {
+            transactions.add(change.transaction);
+            return;
+        }
+        var item = change.item;
+        var previous = itemsById.put(item.getId(), item);
+        if (previous != null && waitingIds.remove(item.getId()))
+            unindex(previous);
+        if (change.waiting) {
+            waitingIds.add(item.getId());
+            index(item);
+        }
+    }
+
+    private void index(StockItem item) {
+        book.add(item);
+        booksByCompany.computeIfAbsent(item.getCompany(), company -> new OrderBook()).add(item);
+    }
+
+    private void unindex(StockItem item) {
+        book.remove(item);
+        var companyBook = booksByCompany.get(item.getCompany());
+        if (companyBook == null)
+            return;
+        companyBook.remove(item);
+        if (companyBook.isEmpty())
+            booksByCompany.remove(item.getCompany());
+    }
+
+    /**
+     * A changed item or a trade, with the time it happened.
+     */
+    private static class Change {
+        final long nanos = System.nanoTime();
+        final StockItem item;
+        final boolean waiting;
+        final Transaction transaction;
+
+        Change(StockItem item, boolean waiting, Transaction transaction) {
+            this.item = item;
+            this.waiting = waiting;
+            this.transaction = transaction;
+        }
+    }
+}
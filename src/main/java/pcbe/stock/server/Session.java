@@ -0,0 +1,149 @@
+package pcbe.stock.server;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.TimeInForce;
+
+/**
+ * A handle on a client registered to a {@link StockServer}, returned by
+ * {@link StockServer#openSession(UUID, Notifiers)}.
+ * <p>
+ * Requests made through a session do not look the client up in the registry of the
+ * server: checking that the client is still registered is a read of a volatile field.
+ * {@link #close()} deregisters the client; the requests made afterwards are answered
+ * with {@link Response.Status#NotRegistered}.
+ */
+public class Session implements AutoCloseable {
+    private final StockServer server;
+    private final UUID clientId;
+    private volatile boolean open;
+
+    /**
+     * Creates a closed session, opened once the client is registered.
+     */
+    Session(StockServer server, UUID clientId) {
+        this.server = server;
+        this.clientId = clientId;
+    }
+
+    public UUID getClientId() {
+        return clientId;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    void setOpen(boolean open) {
+        this.open = open;
+    }
+
+    public Response offerShares(String company, int shares, double price) {
+        return offerShares(company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    public Response offerShares(String company, int shares, double price, TimeInForce timeInForce) {
+        return offerShares(company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    public Response offerShares(String company, int shares, double price, TimeInForce timeInForce, RepricingSchedule repricing) {
+        return server.offerShares(this, company, shares, price, timeInForce, repricing);
+    }
+
+    public Response demandShares(String company, int shares, double price) {
+        return demandShares(company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    public Response demandShares(String company, int shares, double price, TimeInForce timeInForce) {
+        return demandShares(company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    public Response demandShares(String company, int shares, double price, TimeInForce timeInForce, RepricingSchedule repricing) {
+        return server.demandShares(this, company, shares, price, timeInForce, repricing);
+    }
+
+    public Response changeOffer(UUID offerId, int newShares, double newPrice) {
+        return server.changeOffer(this, offerId, newShares, newPrice);
+    }
+
+    public Response changeDemand(UUID demandId, int newShares, double newPrice) {
+        return server.changeDemand(this, demandId, newShares, newPrice);
+    }
+
+    public Response replaceOrder(UUID orderId, int expectedShares, double expectedPrice, int newShares, double newPrice) {
+        return server.replaceOrder(this, orderId, expectedShares, expectedPrice, newShares, newPrice);
+    }
+
+    public Response removeItem(UUID itemId) {
+        return server.removeItem(this, itemId);
+    }
+
+    public Response getOffers() {
+        return server.getOffers(this);
+    }
+
+    public Response getDemands() {
+        return server.getDemands(this);
+    }
+
+    public Response getOffers(BookQuery query) {
+        return server.getOffers(this, query);
+    }
+
+    public Response getDemands(BookQuery query) {
+        return server.getDemands(this, query);
+    }
+
+    public Response getOfferById(UUID offerId) {
+        return server.getOfferById(this, offerId);
+    }
+
+    public Response getDemandById(UUID demandId) {
+        return server.getDemandById(this, demandId);
+    }
+
+    public Response getTransactionHistory() {
+        return server.getTransactionHistory(this);
+    }
+
+    public Response getOpenOrders() {
+        return server.getOpenOrders(this);
+    }
+
+    public Response getDepth(String company, int levels) {
+        return server.getDepth(this, company, levels);
+    }
+
+    public Response getCandles(String company, Duration interval, int count) {
+        return server.getCandles(this, company, interval, count);
+    }
+
+    public Response cancelAll() {
+        return server.cancelAll(this, null);
+    }
+
+    public Response cancelAll(String company) {
+        return server.cancelAll(this, company);
+    }
+
+    /**
+     * Deregisters the client, see {@link StockServer#deregister(UUID)}.
+     * @return {@link Response.Status#NotRegistered} if the session is already closed
+     */
+    public Response deregister() {
+        return server.deregister(this);
+    }
+
+    /**
+     * Deregisters the client; does nothing if the session is already closed.
+     */
+    @Override
+    public void close() {
+        deregister();
+    }
+}
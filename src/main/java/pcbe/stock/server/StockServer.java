@@ -1,126 +1,504 @@
 package pcbe.stock.server;
 
-import static java.util.Collections.synchronizedMap;
+import static java.util.Collections.unmodifiableSet;
 import static pcbe.UUIDUtil.prefixOf;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import pcbe.log.LogManager;
 import pcbe.stock.client.StockClient;
+import pcbe.stock.metrics.StockMetrics;
+import pcbe.stock.metrics.StockMetrics.Operation;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
 import pcbe.stock.model.Response;
 import pcbe.stock.model.StockItem;
+import pcbe.stock.model.TimeInForce;
 
+/**
+ * Serves the requests of the registered clients.
+ * <p>
+ * The methods taking a client id look the client up in a lock-free registry. Clients holding
+ * the {@link Session} returned by {@link #openSession(UUID, Notifiers)} skip that lookup.
+ * Subclasses intercepting requests override the methods taking a {@link Session}, which
+ * serve both.
+ */
 public class StockServer {
 
 	private static final Logger logger = LogManager.getServerLogger();
-	private final StockService stockService = StockService.getDefault();
-	private Map<UUID, StockClient> clients = synchronizedMap(new HashMap<>());
+	private final StockService stockService;
+	private final BookReader bookReader;
+	private final StockMetrics metrics;
+	private final Map<UUID, Session> clients = new ConcurrentHashMap<>();
+
+	public StockServer() {
+		this(StockService.getDefault());
+	}
+
+	public StockServer(StockService stockService) {
+		this(stockService, stockService);
+	}
+
+	/**
+	 * Serves the orders with <code>stockService</code> and the queries of the book and of the
+	 * trades with <code>bookReader</code>, e.g. a {@link ReadReplica} of the service.
+	 */
+	public StockServer(StockService stockService, BookReader bookReader) {
+		this.stockService = stockService;
+		this.bookReader = bookReader;
+		this.metrics = stockService.getMetrics();
+	}
 
 	public Response register(StockClient stockClient) {
-		if (clients.containsKey(stockClient.getId()))
-			return Response.alreadyRegistered();
-		clients.put(stockClient.getId(), stockClient);
-		stockService.configureNotifiers(stockClient.getId(), stockClient.getNotifiers());
-		logger.info("Client " + prefixOf(stockClient.getId()) + " registered successfully.");
-		return Response.registeredSuccessfully();
+		return register(stockClient.getId(), stockClient.getNotifiers());
+	}
+
+	/**
+	 * Registers a client that is not necessarily a {@link StockClient} living in
+	 * this process, e.g. a remote client connected through a gateway.
+	 */
+	public Response register(UUID clientId, Notifiers notifiers) {
+		return register(new Session(this, clientId), notifiers);
+	}
+
+	/**
+	 * Registers a client and returns the handle to make its requests with.
+	 * @return an empty optional if the client is already registered
+	 */
+	public Optional<Session> openSession(UUID clientId, Notifiers notifiers) {
+		var session = new Session(this, clientId);
+		return register(session, notifiers).isSuccessful()
+			? Optional.of(session)
+			: Optional.empty();
+	}
+
+	/**
+	 * Deregisters a client, closing its session, cancelling its orders, see
+	 * {@link #cancelAll(UUID)}, and dropping its notifiers.
+	 */
+	public Response deregister(UUID clientId) {
+		return deregister(sessionOf(clientId));
 	}
 
 	public Response offerShares(UUID clientId, String company, int shares, double price) {
-		if (!clients.containsKey(clientId))
-			return Response.notRegistered();
-		var offerId = stockService.addOffer(clientId, company, shares, price);
-		return Response.created(offerId);
+		return offerShares(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+	}
+
+	/**
+	 * Offers shares staying in the book as long as <code>timeInForce</code> allows; the client
+	 * is notified of their expiry through {@link Notifiers#expiryNotifier()}.
+	 */
+	public Response offerShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+		return offerShares(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+	}
+
+	/**
+	 * Offers shares that the engine reprices following <code>repricing</code> while they wait in the book.
+	 */
+	public Response offerShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+			RepricingSchedule repricing) {
+		return offerShares(sessionOf(clientId), company, shares, price, timeInForce, repricing);
 	}
 
 	public Response demandShares(UUID clientId, String company, int shares, double price) {
-		if (!clients.containsKey(clientId))
-			return Response.notRegistered();
-		var demandId = stockService.addDemand(clientId, company, shares, price);
-		return Response.created(demandId);
+		return demandShares(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+	}
+
+	/**
+	 * Demands shares, see {@link #offerShares(UUID, String, int, double, TimeInForce)}.
+	 */
+	public Response demandShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+		return demandShares(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+	}
+
+	/**
+	 * Demands shares, see {@link #offerShares(UUID, String, int, double, TimeInForce, RepricingSchedule)}.
+	 */
+	public Response demandShares(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+			RepricingSchedule repricing) {
+		return demandShares(sessionOf(clientId), company, shares, price, timeInForce, repricing);
 	}
 
 	public Response changeOffer(UUID clientId, UUID offerId, int newShares, double newPrice) {
-		if (!clients.containsKey(clientId))
-			return Response.notRegistered();
-		try {
-			stockService.changeOffer(offerId, newShares, newPrice);
-		} catch (AlreadyInTransactionException e) {
-			return Response.ongoingTransaction();
-		}
-		return Response.changed();
+		return changeOffer(sessionOf(clientId), offerId, newShares, newPrice);
 	}
 
 	public Response changeDemand(UUID clientId, UUID demandId, int newShares, double newPrice) {
-		if (!clients.containsKey(clientId))
-			return Response.notRegistered();
-		try {
-			stockService.changeDemand(demandId, newShares, newPrice);
-		} catch (AlreadyInTransactionException e) {
-			return Response.ongoingTransaction();
-		}
-		return Response.changed();
+		return changeDemand(sessionOf(clientId), demandId, newShares, newPrice);
+	}
+
+	/**
+	 * Replaces the shares and the price of an offer or a demand of the client, only if it still has
+	 * <code>expectedShares</code> at <code>expectedPrice</code>. The response carries the order: replaced,
+	 * with the status {@link Response.Status#Changed}, or as it is in the book, with the status
+	 * {@link Response.Status#Conflict}, so the client can retry with it at once.
+	 */
+	public Response replaceOrder(UUID clientId, UUID orderId, int expectedShares, double expectedPrice, int newShares, double newPrice) {
+		return replaceOrder(sessionOf(clientId), orderId, expectedShares, expectedPrice, newShares, newPrice);
 	}
 
 	public Response getOffers(UUID clientId) {
-		return clients.containsKey(clientId)
-			? Response.offers(stockService.getOffers())
-			: Response.notRegistered();
+		return getOffers(sessionOf(clientId));
 	}
-	
+
 	public Response getDemands(UUID clientId) {
-		return clients.containsKey(clientId)
-		? Response.demands(stockService.getDemands())
-		: Response.notRegistered();
+		return getDemands(sessionOf(clientId));
+	}
+
+	/**
+	 * Returns the page of offers selected by <code>query</code>, cheapest first.
+	 * If the page is full, {@link Response#getNextCursor()} continues the query.
+	 */
+	public Response getOffers(UUID clientId, BookQuery query) {
+		return getOffers(sessionOf(clientId), query);
+	}
+
+	/**
+	 * Returns the page of demands selected by <code>query</code>, highest price first.
+	 * If the page is full, {@link Response#getNextCursor()} continues the query.
+	 */
+	public Response getDemands(UUID clientId, BookQuery query) {
+		return getDemands(sessionOf(clientId), query);
 	}
 
 	public Response getOfferById(UUID clientId, UUID offerId) {
-		return clients.containsKey(clientId)
+		return getOfferById(sessionOf(clientId), offerId);
+	}
+
+	public Response getDemandById(UUID clientId, UUID demandId) {
+		return getDemandById(sessionOf(clientId), demandId);
+	}
+
+	public Response getTransactionHistory(UUID clientId) {
+		return getTransactionHistory(sessionOf(clientId));
+	}
+
+	public Response removeItem(UUID clientId, UUID itemId) {
+		return removeItem(sessionOf(clientId), itemId);
+	}
+
+	/**
+	 * Returns the offers and demands of the client still in the book, oldest first,
+	 * in {@link Response#getItems()}.
+	 */
+	public Response getOpenOrders(UUID clientId) {
+		return getOpenOrders(sessionOf(clientId));
+	}
+
+	/**
+	 * Returns the first <code>levels</code> price levels of each side of the book of <code>company</code>,
+	 * with the total shares and the number of orders at each price, in {@link Response#getDepth()}.
+	 * @throws IllegalArgumentException if <code>levels</code> is not positive
+	 */
+	public Response getDepth(UUID clientId, String company, int levels) {
+		return getDepth(sessionOf(clientId), company, levels);
+	}
+
+	/**
+	 * Returns the last <code>count</code> candles of <code>company</code> at <code>interval</code>, oldest first,
+	 * in {@link Response#getCandles()}; none if the service keeps no candles at that interval, see {@link CandleChart}.
+	 * @throws IllegalArgumentException if <code>count</code> is not positive
+	 */
+	public Response getCandles(UUID clientId, String company, Duration interval, int count) {
+		return getCandles(sessionOf(clientId), company, interval, count);
+	}
+
+	/**
+	 * Removes every order of the client; the response carries the removed orders in {@link Response#getItems()}.
+	 * An order in a transaction expires once the transaction ends, see {@link StockService#cancelAll(UUID, String)}.
+	 */
+	public Response cancelAll(UUID clientId) {
+		return cancelAll(sessionOf(clientId), null);
+	}
+
+	/**
+	 * Removes the orders of the client for <code>company</code>, see {@link #cancelAll(UUID)}.
+	 */
+	public Response cancelAll(UUID clientId, String company) {
+		return cancelAll(sessionOf(clientId), company);
+	}
+
+	/**
+	 * Credits the account of a client, opening it if needed; from then on, its orders
+	 * are checked against its account, see {@link AccountLedger}.
+	 * @throws IllegalArgumentException if <code>currencyUnits</code> is not a positive finite number
+	 */
+	public void depositCurrency(UUID clientId, double currencyUnits) {
+		stockService.getLedger().depositCurrency(clientId, currencyUnits);
+	}
+
+	/**
+	 * Credits the account of a client with shares, see {@link #depositCurrency(UUID, double)}.
+	 * @throws IllegalArgumentException if <code>shares</code> is not positive
+	 */
+	public void depositShares(UUID clientId, String company, int shares) {
+		stockService.getLedger().depositShares(clientId, company, shares);
+	}
+
+	StockService getStockService() {
+		return stockService;
+	}
+
+	/**
+	 * @return the session of the client, or a closed one if the client is not registered
+	 */
+	private Session sessionOf(UUID clientId) {
+		var session = clients.get(clientId);
+		return session != null ? session : new Session(this, clientId);
+	}
+
+	protected Response register(Session session, Notifiers notifiers) {
+		return timed(Operation.Register, () -> {
+			var clientId = session.getClientId();
+			if (clients.putIfAbsent(clientId, session) != null)
+				return Response.alreadyRegistered();
+			stockService.configureNotifiers(clientId, notifiers);
+			session.setOpen(true);
+			logger.info("Client " + prefixOf(clientId) + " registered successfully.");
+			return Response.registeredSuccessfully();
+		});
+	}
+
+	protected Response deregister(Session session) {
+		return timed(Operation.Deregister, () -> {
+			var clientId = session.getClientId();
+			if (!clients.remove(clientId, session))
+				return Response.notRegistered();
+			session.setOpen(false);
+			stockService.cancelAll(clientId);
+			stockService.removeNotifiers(clientId);
+			logger.info("Client " + prefixOf(clientId) + " deregistered.");
+			return Response.deregistered();
+		});
+	}
+
+	protected Response offerShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+			RepricingSchedule repricing) {
+		return timedOrder(Operation.OfferShares, company, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				var offerId = stockService.addOffer(session.getClientId(), company, shares, price, timeInForce, repricing);
+				return Response.created(offerId);
+			} catch (InsufficientFundsException e) {
+				return Response.insufficientFunds();
+			} catch (InvalidOrderException e) {
+				return Response.invalidOrder();
+			}
+		});
+	}
+
+	protected Response demandShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+			RepricingSchedule repricing) {
+		return timedOrder(Operation.DemandShares, company, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				var demandId = stockService.addDemand(session.getClientId(), company, shares, price, timeInForce, repricing);
+				return Response.created(demandId);
+			} catch (InsufficientFundsException e) {
+				return Response.insufficientFunds();
+			} catch (InvalidOrderException e) {
+				return Response.invalidOrder();
+			}
+		});
+	}
+
+	protected Response changeOffer(Session session, UUID offerId, int newShares, double newPrice) {
+		return timed(Operation.ChangeOffer, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				stockService.changeOffer(offerId, newShares, newPrice);
+			} catch (ItemDoesNotExistException e) {
+				return Response.doesNotExist(offerId);
+			} catch (AlreadyInTransactionException e) {
+				return Response.ongoingTransaction();
+			} catch (InsufficientFundsException e) {
+				return Response.insufficientFunds();
+			} catch (InvalidOrderException e) {
+				return Response.invalidOrder();
+			}
+			return Response.changed();
+		});
+	}
+
+	protected Response changeDemand(Session session, UUID demandId, int newShares, double newPrice) {
+		return timed(Operation.ChangeDemand, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				stockService.changeDemand(demandId, newShares, newPrice);
+			} catch (ItemDoesNotExistException e) {
+				return Response.doesNotExist(demandId);
+			} catch (AlreadyInTransactionException e) {
+				return Response.ongoingTransaction();
+			} catch (InsufficientFundsException e) {
+				return Response.insufficientFunds();
+			} catch (InvalidOrderException e) {
+				return Response.invalidOrder();
+			}
+			return Response.changed();
+		});
+	}
+
+	protected Response replaceOrder(Session session, UUID orderId, int expectedShares, double expectedPrice,
+			int newShares, double newPrice) {
+		return timed(Operation.ReplaceOrder, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				return stockService.replaceItem(orderId, session.getClientId(), expectedShares, expectedPrice, newShares, newPrice)
+					.map(Response::replaced)
+					.orElseGet(() -> Response.doesNotExist(orderId));
+			} catch (OrderConflictException e) {
+				return Response.conflict(e.getCurrent());
+			} catch (AlreadyInTransactionException e) {
+				return Response.ongoingTransaction();
+			} catch (InsufficientFundsException e) {
+				return Response.insufficientFunds();
+			} catch (InvalidOrderException e) {
+				return Response.invalidOrder();
+			}
+		});
+	}
+
+	protected Response getOffers(Session session) {
+		return timed(Operation.GetOffers, () -> session.isOpen()
+			? Response.offers(bookReader.getOffers())
+			: Response.notRegistered());
+	}
+	
+	protected Response getDemands(Session session) {
+		return timed(Operation.GetDemands, () -> session.isOpen()
+			? Response.demands(bookReader.getDemands())
+			: Response.notRegistered());
+	}
+
+	protected Response getOffers(Session session, BookQuery query) {
+		return timed(Operation.GetOffers, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			var offers = bookReader.getOffers(session.getClientId(), query);
+			return Response.offers(unmodifiableSet(new LinkedHashSet<>(offers)), nextCursor(offers, query));
+		});
+	}
+
+	protected Response getDemands(Session session, BookQuery query) {
+		return timed(Operation.GetDemands, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			var demands = bookReader.getDemands(session.getClientId(), query);
+			return Response.demands(unmodifiableSet(new LinkedHashSet<>(demands)), nextCursor(demands, query));
+		});
+	}
+
+	private UUID nextCursor(List<? extends StockItem> page, BookQuery query) {
+		return page.size() == query.getLimit()
+			? page.get(page.size() - 1).getId()
+			: null;
+	}
+
+	protected Response getOfferById(Session session, UUID offerId) {
+		return timed(Operation.GetOfferById, () -> session.isOpen()
 			? tryFindOffer(offerId)
-			: Response.notRegistered();
+			: Response.notRegistered());
 	}
 
 	private Response tryFindOffer(UUID offerId) {
-		var foundOffer = stockService.getOffers().stream().filter(withId(offerId)).findAny();
-		return foundOffer.isPresent()
-			? Response.offer(foundOffer.get())
-			: Response.doesNotExist(offerId);
+		return bookReader.getOffer(offerId)
+			.map(Response::offer)
+			.orElseGet(() -> Response.doesNotExist(offerId));
 	}
 	
-	public Response getDemandById(UUID clientId, UUID demandId) {
-		return clients.containsKey(clientId)
+	protected Response getDemandById(Session session, UUID demandId) {
+		return timed(Operation.GetDemandById, () -> session.isOpen()
 			? tryFindDemand(demandId)
-			: Response.notRegistered();
+			: Response.notRegistered());
 	}
 
 	private Response tryFindDemand(UUID demandId) {
-		var foundDemand = stockService.getDemands().stream().filter(withId(demandId)).findAny();
-		return foundDemand.isPresent()
-			? Response.demand(foundDemand.get())
-			: Response.doesNotExist(demandId);
+		return bookReader.getDemand(demandId)
+			.map(Response::demand)
+			.orElseGet(() -> Response.doesNotExist(demandId));
 	}
 
-	private Predicate<StockItem> withId(UUID offerId) {
-		return item -> item.getId().equals(offerId);
+	protected Response getTransactionHistory(Session session) {
+		return timed(Operation.GetTransactionHistory, () -> session.isOpen()
+			? Response.transactions(bookReader.getTransactions())
+			: Response.notRegistered());
 	}
 
-	public Response getTransactionHistory(UUID clientId) {
-		return clients.containsKey(clientId)
-			? Response.transactions(stockService.getTransactions())
-			: Response.notRegistered();
+	protected Response removeItem(Session session, UUID itemId) {
+		return timed(Operation.RemoveItem, () -> {
+			if (!session.isOpen())
+				return Response.notRegistered();
+			try {
+				stockService.removeItem(itemId);
+			} catch (ItemDoesNotExistException e) {
+				return Response.doesNotExist(itemId);
+			} catch (AlreadyInTransactionException e) {
+				return Response.ongoingTransaction();
+			}
+			return Response.removed();
+		});
 	}
 
-	public Response removeItem(UUID clientId, UUID itemId) {
-		if (!clients.containsKey(clientId))
-			return Response.notRegistered();
+	protected Response getOpenOrders(Session session) {
+		return timed(Operation.GetOpenOrders, () -> session.isOpen()
+			? Response.orders(stockService.getOpenOrders(session.getClientId()))
+			: Response.notRegistered());
+	}
+
+	protected Response getDepth(Session session, String company, int levels) {
+		return timed(Operation.GetDepth, () -> session.isOpen()
+			? Response.depth(bookReader.getDepth(company, levels))
+			: Response.notRegistered());
+	}
+
+	protected Response getCandles(Session session, String company, Duration interval, int count) {
+		return timed(Operation.GetCandles, () -> session.isOpen()
+			? Response.candles(stockService.getCandles(company, interval, count))
+			: Response.notRegistered());
+	}
+
+	/**
+	 * @param company the company of the orders to remove, or <code>null</code> for every company
+	 */
+	protected Response cancelAll(Session session, String company) {
+		return timed(Operation.CancelAll, () -> session.isOpen()
+			? Response.orders(stockService.cancelAll(session.getClientId(), company))
+			: Response.notRegistered());
+	}
+
+	private Response timed(Operation operation, Supplier<Response> request) {
+		var start = System.nanoTime();
 		try {
-			stockService.removeItem(itemId);
-		} catch (AlreadyInTransactionException e) {
-			return Response.ongoingTransaction();
+			return request.get();
+		} finally {
+			metrics.operationDone(operation, start);
+		}
 	}
-		return Response.removed();
+
+	/**
+	 * Like {@link #timed(Operation, Supplier)}, also recording the latency per company.
+	 */
+	private Response timedOrder(Operation operation, String company, Supplier<Response> request) {
+		var start = System.nanoTime();
+		try {
+			return request.get();
+		} finally {
+			metrics.operationDone(operation, start);
+			metrics.orderPlaced(company, start);
+		}
 	}
 }
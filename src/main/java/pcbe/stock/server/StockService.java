@@ -1,69 +1,228 @@
 package pcbe.stock.server;
 
 import static java.lang.System.lineSeparator;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.unmodifiableList;
 import static java.util.function.Predicate.not;
 import static java.util.stream.Collectors.collectingAndThen;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.partitioningBy;
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
 import static pcbe.UUIDUtil.prefixOf;
 import static pcbe.stock.server.StockService.StockItemState.*;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Predicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 import pcbe.log.LogManager;
 import pcbe.stock.Executor;
+import pcbe.stock.jfr.MatchAttemptEvent;
+import pcbe.stock.jfr.NotificationDeliveredEvent;
+import pcbe.stock.jfr.OrderAcceptedEvent;
+import pcbe.stock.jfr.TradeExecutedEvent;
+import pcbe.stock.jfr.TransactionRejectedEvent;
+import pcbe.stock.metrics.LatencyHistogram;
+import pcbe.stock.metrics.StockMetrics;
+import pcbe.stock.metrics.StockMetrics.Operation;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Candle;
+import pcbe.stock.model.MarketDepth;
 import pcbe.stock.model.Notifiers;
 import pcbe.stock.model.StockItem;
 import pcbe.stock.model.StockItem.Demand;
 import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.TimeInForce;
 import pcbe.stock.model.Transaction;
 
-public class StockService {
+public class StockService implements BookReader {
 
     private static final Logger logger = LogManager.getServerLogger();
-    private static StockService stockService = new StockService();
     private static final boolean FAIRNESS = true;
+    private static final OrderBook EMPTY_BOOK = new OrderBook();
+    /**
+     * The delay before trying again to expire or reprice an order that was in a transaction when it came due.
+     */
+    private static final long DEADLINE_RETRY_MILLIS = 1;
+    /**
+     * System property holding the interval of the call auctions of the companies given to
+     * {@link #startAuctionsIfConfigured(Collection)}, e.g. <code>-Dpcbe.auction.intervalMillis=200</code>.
+     * The companies are matched continuously if it is not set.
+     */
+    public static final String AUCTION_INTERVAL_PROPERTY = "pcbe.auction.intervalMillis";
+    private static StockService stockService = newExportedService();
 
     public static StockService getDefault() {
         return stockService;
     }
 
     public static void reset() {
-        stockService = new StockService();
+        stockService = newExportedService();
     };
 
-    private StockService() {}
+    /**
+     * The metrics of the default service are the ones visible over JMX.
+     */
+    private static StockService newExportedService() {
+        var service = new StockService();
+        service.metrics.export();
+        return service;
+    }
+
+    private StockService() {
+        this(Executor.getDefault(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a service that runs matching and notifications on <code>taskExecutor</code>.
+     * <p>
+     * With an executor that runs tasks on the calling thread, each call returns only after
+     * its matching is done, which makes the service deterministic for benchmarks and simulations.
+     */
+    public StockService(java.util.concurrent.Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+        this.matchingExecutor = null;
+        this.transactionPublisher = new TransactionPublisher(taskExecutor, metrics);
+    }
+
+    /**
+     * Creates a service that runs notifications on <code>taskExecutor</code> and matching on
+     * <code>matchingPool</code>, one task at a time per company.
+     * <p>
+     * The orders of a company are matched in the order they were accepted, while the companies
+     * are matched in parallel: the workers of the pool steal the companies queued behind a busy
+     * one, so the cores stay busy when the activity is skewed towards a few companies. The
+     * matching tasks of different companies still share the lock of the book to trade.
+     */
+    public StockService(java.util.concurrent.Executor taskExecutor, ForkJoinPool matchingPool) {
+        this.taskExecutor = taskExecutor;
+        this.matchingExecutor = new CompanyExecutor(matchingPool);
+        this.transactionPublisher = new TransactionPublisher(taskExecutor, metrics);
+    }
 
+    private final java.util.concurrent.Executor taskExecutor;
+    /**
+     * Runs the matching tasks per company, or <code>null</code> to run them on the task executor.
+     */
+    private final CompanyExecutor matchingExecutor;
+    private final TransactionPublisher transactionPublisher;
+    private final StockMetrics metrics = new StockMetrics();
+    private final AccountLedger ledger = new AccountLedger();
     private final ReadWriteLock lock = new ReentrantReadWriteLock(FAIRNESS);
     private Map<UUID, Notifiers> clientNotifiers = new ConcurrentHashMap<>();
     private Map<StockItem, StockItemState> stockItems = new HashMap<>();
+    private Map<UUID, StockItem> itemsById = new HashMap<>();
+    private OrderBook book = new OrderBook();
+    private Map<String, OrderBook> booksByCompany = new HashMap<>();
+    /**
+     * The <code>Waiting</code> items and the items in <code>Transaction</code> of each client,
+     * in the order they were created. Guarded by the write lock.
+     */
+    private Map<UUID, Map<UUID, StockItem>> openOrdersByClient = new HashMap<>();
     private List<Transaction> transactions = new CopyOnWriteArrayList<>();
+    /**
+     * The expiries of the good-till-time orders and the next repricing of the repriced ones,
+     * soonest first. Orders leaving the book before their deadline stay queued and are skipped
+     * when it comes. Guarded by the write lock.
+     */
+    private PriorityQueue<Deadline> deadlines = new PriorityQueue<>();
+    private Timer deadlineTimer;
+    /**
+     * The one wake-up scheduled on the deadline timer, at <code>nextDeadlineMillis</code>;
+     * a sooner deadline cancels it and schedules its own.
+     */
+    private TimerTask deadlineTask;
+    private long nextDeadlineMillis = Long.MAX_VALUE;
+    private volatile DeadlineSequencer deadlineSequencer;
+    /**
+     * Whether the deadlines are applied by {@link #expire(UUID)} and {@link #reprice(UUID, double)}
+     * instead of the deadline timer, see {@link #followDeadlines()}. Guarded by the write lock.
+     */
+    private boolean followingDeadlines;
+    /**
+     * The size of the deadline queue of a follower after its last pruning.
+     */
+    private int prunedDeadlines;
+    /**
+     * The matching tasks submitted and not done yet, by the id of the item they match;
+     * an item matched again maps to its latest task.
+     */
+    private final Map<UUID, CompletableFuture<Void>> pendingMatchings = new ConcurrentHashMap<>();
+    /**
+     * The companies matched by call auctions instead of continuously.
+     */
+    private final Map<String, Auction> auctions = new ConcurrentHashMap<>();
+    private Timer auctionTimer;
+    private final List<BookObserver> bookObservers = new CopyOnWriteArrayList<>();
+    private final CandleChart candles = CandleChart.fromProperties();
 
     public void configureNotifiers(UUID clientId, Notifiers notifiers) {
         clientNotifiers.put(clientId, notifiers);
     }
 
+    /**
+     * Stops notifying the client; its pending notifications are dropped.
+     */
+    public void removeNotifiers(UUID clientId) {
+        clientNotifiers.remove(clientId);
+    }
+
+    /**
+     * The stream of the transactions done from now on, delivered on the executor of the service
+     * to each subscriber as it requests them.
+     */
+    public TransactionPublisher getTransactionPublisher() {
+        return transactionPublisher;
+    }
+
+    /**
+     * The counters and latency histograms of this service, shared with the
+     * {@link StockServer}s using it.
+     */
+    public StockMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The accounts checked when orders enter the book and settled by the transactions.
+     */
+    public AccountLedger getLedger() {
+        return ledger;
+    }
+
     /**
      * Returns a set of {@link Offer}s that are <code>Waiting</code>.
      * <p>
@@ -71,9 +230,11 @@ public class StockService {
      * <p>
      * The returned set is unmodifiable.
      */
+    @Override
     public Set<Offer> getOffers() {
-        return getItems(Offer.class, Waiting).stream().map(Offer::new)
-                .collect(collectingAndThen(toSet(), Collections::unmodifiableSet));
+        return doUnderReadLock(() -> book.offers.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+                .filter(this::isWaiting).map(Offer::new)
+                .collect(collectingAndThen(toCollection(LinkedHashSet::new), Collections::unmodifiableSet)));
     }
 
     /**
@@ -83,29 +244,263 @@ public class StockService {
      * <p>
      * The returned set is unmodifiable.
      */
+    @Override
     public Set<Demand> getDemands() {
-        return getItems(Demand.class, Waiting).stream().map(Demand::new)
-                .collect(collectingAndThen(toSet(), Collections::unmodifiableSet));
+        return doUnderReadLock(() -> book.demands.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+                .filter(this::isWaiting).map(Demand::new)
+                .collect(collectingAndThen(toCollection(LinkedHashSet::new), Collections::unmodifiableSet)));
+    }
+
+    /**
+     * Returns the page of <code>Waiting</code> {@link Offer}s selected by <code>query</code>,
+     * cheapest first.
+     * <p>
+     * The offers are read from the price index, so the cost is proportional to the
+     * size of the page rather than to the size of the book.
+     * <p>
+     * The items returned are copies of the items in the <code>stockItems</code> map.
+     * @param clientId the client making the query, used by {@link BookQuery#excludingOwnItems()}
+     */
+    @Override
+    public List<Offer> getOffers(UUID clientId, BookQuery query) {
+        return queryBook(clientId, query, Offer.class, orderBook -> orderBook.offers, Offer::new);
+    }
+
+    /**
+     * Returns the page of <code>Waiting</code> {@link Demand}s selected by <code>query</code>,
+     * highest price first.
+     * <p>
+     * The demands are read from the price index, so the cost is proportional to the
+     * size of the page rather than to the size of the book.
+     * <p>
+     * The items returned are copies of the items in the <code>stockItems</code> map.
+     * @param clientId the client making the query, used by {@link BookQuery#excludingOwnItems()}
+     */
+    @Override
+    public List<Demand> getDemands(UUID clientId, BookQuery query) {
+        return queryBook(clientId, query, Demand.class, orderBook -> orderBook.demands, Demand::new);
+    }
+
+    /**
+     * Returns a copy of the <code>Waiting</code> {@link Offer} with id <code>offerId</code>, if any.
+     */
+    @Override
+    public Optional<Offer> getOffer(UUID offerId) {
+        return getWaitingItem(offerId, Offer.class).map(Offer::new);
+    }
+
+    /**
+     * Returns a copy of the <code>Waiting</code> {@link Demand} with id <code>demandId</code>, if any.
+     */
+    @Override
+    public Optional<Demand> getDemand(UUID demandId) {
+        return getWaitingItem(demandId, Demand.class).map(Demand::new);
+    }
+
+    /**
+     * Returns the first <code>levels</code> price levels of each side of the book of <code>company</code>.
+     * <p>
+     * The total shares and the order count of each level are kept up to date as the orders
+     * enter, trade and leave the book, so the cost is proportional to <code>levels</code>.
+     * The levels count the orders in <code>Transaction</code> as well.
+     */
+    @Override
+    public MarketDepth getDepth(String company, int levels) {
+        return doUnderReadLock(() -> bookOf(company).depth(levels));
+    }
+
+    private <T extends StockItem> Optional<T> getWaitingItem(UUID itemId, Class<T> cls) {
+        return doUnderReadLock(() -> Optional.ofNullable(itemsById.get(itemId))
+            .filter(cls::isInstance)
+            .filter(this::isWaiting)
+            .map(cls::cast));
+    }
+
+    private <T extends StockItem> List<T> queryBook(UUID clientId, BookQuery query, Class<T> cls,
+            Function<OrderBook, OrderBook.Side<T>> side, UnaryOperator<T> copy) {
+        return doUnderReadLock(() -> {
+            var orderBook = query.getCompany().isPresent() ? booksByCompany.get(query.getCompany().get()) : book;
+            if (orderBook == null)
+                return List.<T>of();
+            var after = query.getCursor().map(itemsById::get).filter(cls::isInstance).orElse(null);
+            return side.apply(orderBook).stream(query.getMinPrice(), query.getMaxPrice(), after)
+                .filter(this::isWaiting)
+                .filter(item -> !query.excludesOwnItems() || !item.getClientId().equals(clientId))
+                .limit(query.getLimit())
+                .map(copy)
+                .collect(toList());
+        });
+    }
+
+    private boolean isWaiting(StockItem item) {
+        return stockItems.get(item) == Waiting;
+    }
+
+    /**
+     * Returns copies of the offers and demands of the client still in the book, <code>Waiting</code>
+     * or in <code>Transaction</code>, oldest first.
+     * <p>
+     * The orders are read from an index per client, so the cost is proportional to the
+     * number of orders of the client rather than to the size of the book.
+     */
+    public List<StockItem> getOpenOrders(UUID clientId) {
+        return doUnderReadLock(() -> {
+            var orders = openOrdersByClient.get(clientId);
+            if (orders == null)
+                return List.<StockItem>of();
+            return orders.values().stream().map(StockService::copyOf).collect(toList());
+        });
+    }
+
+    /**
+     * Removes every order of the client, see {@link #cancelAll(UUID, String)}.
+     */
+    public List<StockItem> cancelAll(UUID clientId) {
+        return cancelAll(clientId, null);
+    }
+
+    /**
+     * Removes the <code>Waiting</code> orders of the client for <code>company</code> in one step
+     * under the write lock. An order in a transaction cannot be removed yet: it expires as soon
+     * as the transaction leaves it in the book, like an immediate order.
+     * <p>
+     * The orders are found through the index per client, see {@link #getOpenOrders(UUID)}.
+     * @param company the company of the orders to remove, or <code>null</code> for every company
+     * @return copies of the removed orders
+     */
+    public List<StockItem> cancelAll(UUID clientId, String company) {
+        return doUnderWriteLock(() -> {
+            var orders = openOrdersByClient.get(clientId);
+            if (orders == null)
+                return List.<StockItem>of();
+            var removed = new ArrayList<StockItem>();
+            for (var item : orders.values().toArray(new StockItem[0])) {
+                if (company != null && !company.equals(item.getCompany()))
+                    continue;
+                if (isWaiting(item)) {
+                    removeUnderLock(item);
+                    removed.add(copyOf(item));
+                } else
+                    scheduleDeadline(new Deadline(System.currentTimeMillis() + DEADLINE_RETRY_MILLIS, item, null));
+            }
+            logger.finest(() -> stringFrom("Cancelled ", removed.size(), " orders of client ", prefixOf(clientId)));
+            return removed;
+        });
     }
 
     /**
      * Returns an unmodifiable list of complete {@link Transaction}s.
      */
+    @Override
     public List<Transaction> getTransactions() {
         return unmodifiableList(transactions);
     }
 
+    /**
+     * The candles of the trades, recorded as each trade is made.
+     */
+    public CandleChart getCandleChart() {
+        return candles;
+    }
+
+    /**
+     * @return the last <code>count</code> candles of <code>company</code> at <code>interval</code>,
+     * oldest first, see {@link CandleChart#getCandles(String, Duration, int)}
+     */
+    public List<Candle> getCandles(String company, Duration interval, int count) {
+        return candles.getCandles(company, interval, count);
+    }
+
+    /**
+     * Signals every later change of the book to <code>observer</code>.
+     * @throws IllegalStateException if the service already has items, which the observer would miss
+     */
+    void observeBook(BookObserver observer) {
+        doUnderWriteLock(() -> {
+            if (!stockItems.isEmpty())
+                throw new IllegalStateException("The book must be observed before the first order");
+            bookObservers.add(observer);
+        });
+    }
+
+    void stopObservingBook(BookObserver observer) {
+        bookObservers.remove(observer);
+    }
+
+    /**
+     * Signals the change of <code>item</code> to the observers of the book. Must be called under the write lock.
+     */
+    private void bookChanged(StockItem item) {
+        if (bookObservers.isEmpty())
+            return;
+        var copy = copyOf(item);
+        var waiting = isWaiting(item);
+        for (var observer : bookObservers)
+            observer.itemChanged(copy, waiting);
+    }
+
+    /**
+     * Adds the trade to the candles and signals it to the observers of the book.
+     */
+    private void traded(Transaction transaction) {
+        candles.record(transaction, System.currentTimeMillis());
+        for (var observer : bookObservers)
+            observer.traded(transaction);
+    }
+
     /**
      * Creates a new {@link Demand} with the given parameters and adds it to the <code>stockItems</code> map.
      * <p>
      * After the {@link Demand} is added, possible transactions will be executed on a separate thread.
      * @return the id of the created {@link Demand}
+     * @throws InsufficientFundsException if the account of the client cannot pay for the demand
+     * @throws InvalidOrderException if the name of the company is too long, see {@link StockItem#MAX_COMPANY_BYTES},
+     * or the shares or the price are not positive
      */
     public UUID addDemand(UUID clientId, String company, int shares, double price) {
-        var demand = new Demand(clientId, company, shares, price);
-        addItem(demand);
-        logger.finest(stringFrom("New demand added: ", demand));
-        doTransactionsWithDemand(demand);
+        return addDemand(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    /**
+     * Creates a new {@link Demand} staying in the book as long as <code>timeInForce</code> allows.
+     * A fill-or-kill demand that the book cannot fill expires without entering the book.
+     * @return the id of the created {@link Demand}
+     * @throws InsufficientFundsException if the account of the client cannot pay for the demand
+     */
+    public UUID addDemand(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+        return addDemand(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    /**
+     * Creates a new {@link Demand} that the engine reprices following <code>repricing</code>
+     * while it waits in the book, matching it again after each step.
+     * @return the id of the created {@link Demand}
+     * @throws InsufficientFundsException if the account of the client cannot pay for the demand
+     */
+    public UUID addDemand(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return addDemand(UUID.randomUUID(), clientId, company, shares, price, timeInForce, repricing);
+    }
+
+    /**
+     * Creates a {@link Demand} with the id given by another service, e.g. one being replicated,
+     * so that the clients can keep using the id if this service takes over.
+     * @throws RuntimeException if an item with the id <code>demandId</code> already exists
+     */
+    public UUID addDemand(UUID demandId, UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        validateOrder(company, shares, price);
+        var event = new OrderAcceptedEvent();
+        event.begin();
+        var demand = new Demand(demandId, clientId, company, shares, price);
+        var accepted = addItem(demand, timeInForce, repricing);
+        event.endAndCommit(demand);
+        if (!accepted) {
+            notifyExpired(demand);
+            return demand.getId();
+        }
+        logger.finest(() -> stringFrom("New demand added: ", demand));
+        doTransactionsWithDemand(demand, timeInForce.isImmediate());
         return demand.getId();
     }
 
@@ -113,35 +508,151 @@ public class StockService {
      * Creates a new {@link Offer} with the given parameters and adds it to the <code>stockItems</code> map.
      * After the {@link Offer} is added, possible transactions will be executed on a separate thread.
      * @return the id of the created {@link Offer}
+     * @throws InsufficientFundsException if the account of the client does not hold the shares
+     * @throws InvalidOrderException if the name of the company is too long, see {@link StockItem#MAX_COMPANY_BYTES},
+     * or the shares or the price are not positive
      */
     public UUID addOffer(UUID clientId, String company, int shares, double price) {
-        var offer = new Offer(clientId, company, shares, price);
-        addItem(offer);
-        logger.finest(stringFrom("New offer added: ", offer));
-        doTransactionsWithOffer(offer);
+        return addOffer(clientId, company, shares, price, TimeInForce.GOOD_TILL_CANCELLED);
+    }
+
+    /**
+     * Creates a new {@link Offer} staying in the book as long as <code>timeInForce</code> allows,
+     * see {@link #addDemand(UUID, String, int, double, TimeInForce)}.
+     * @return the id of the created {@link Offer}
+     * @throws InsufficientFundsException if the account of the client does not hold the shares
+     */
+    public UUID addOffer(UUID clientId, String company, int shares, double price, TimeInForce timeInForce) {
+        return addOffer(clientId, company, shares, price, timeInForce, RepricingSchedule.NONE);
+    }
+
+    /**
+     * Creates a new {@link Offer} repriced by the engine, see {@link #addDemand(UUID, String, int, double, TimeInForce, RepricingSchedule)}.
+     * @return the id of the created {@link Offer}
+     * @throws InsufficientFundsException if the account of the client does not hold the shares
+     */
+    public UUID addOffer(UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return addOffer(UUID.randomUUID(), clientId, company, shares, price, timeInForce, repricing);
+    }
+
+    /**
+     * Creates an {@link Offer} with the id given by another service,
+     * see {@link #addDemand(UUID, UUID, String, int, double, TimeInForce, RepricingSchedule)}.
+     * @throws RuntimeException if an item with the id <code>offerId</code> already exists
+     */
+    public UUID addOffer(UUID offerId, UUID clientId, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        validateOrder(company, shares, price);
+        var event = new OrderAcceptedEvent();
+        event.begin();
+        var offer = new Offer(offerId, clientId, company, shares, price);
+        var accepted = addItem(offer, timeInForce, repricing);
+        event.endAndCommit(offer);
+        if (!accepted) {
+            notifyExpired(offer);
+            return offer.getId();
+        }
+        logger.finest(() -> stringFrom("New offer added: ", offer));
+        doTransactionsWithOffer(offer, timeInForce.isImmediate());
         return offer.getId();
     }
 
+    /**
+     * Checks that an order can enter the book: its company must have a name the codecs can encode,
+     * or every later query or notification carrying it would fail, and its terms must be valid.
+     * @throws InvalidOrderException if it cannot
+     */
+    private static void validateOrder(String company, int shares, double price) {
+        if (company == null || company.getBytes(UTF_8).length > StockItem.MAX_COMPANY_BYTES)
+            throw new InvalidOrderException("The name of a company must fit in " + StockItem.MAX_COMPANY_BYTES
+                + " bytes of UTF-8: " + company);
+        validateTerms(shares, price);
+    }
+
+    /**
+     * Checks the shares and the price of an order entering or changed in the book. A price that
+     * is not a positive finite number would be reserved, and then settled, in the accounts.
+     * @throws InvalidOrderException if the shares or the price are not positive
+     */
+    private static void validateTerms(int shares, double price) {
+        if (shares <= 0)
+            throw new InvalidOrderException("The shares of an order must be positive: " + shares);
+        if (!(price > 0) || Double.isInfinite(price))
+            throw new InvalidOrderException("The price of an order must be a positive finite number: " + price);
+    }
+
     /**
      * Updates the demand with the new parameters if possible.
      * After the {@link Demand} is changed, possible transactions will be executed on a separate thread.
-     * @throws RuntimeException if a demand with the id <code>demandId</code> does not exist
+     * @throws ItemDoesNotExistException if a demand with the id <code>demandId</code> does not exist
+     * @throws InsufficientFundsException if the account of the client cannot pay for the new demand
+     * @throws InvalidOrderException if the new shares or the new price are not positive
      */
     public void changeDemand(UUID demandId, int newShares, double newPrice) {
-        var demand = changeItem(demandId, newShares, newPrice);
-        logger.finest(stringFrom("Demand changed: ", demand));
-        doTransactionsWithDemand(Demand.class.cast(demand));
+        var demand = changeItem(Demand.class, demandId, newShares, newPrice);
+        logger.finest(() -> stringFrom("Demand changed: ", demand));
+        doTransactionsWithDemand(Demand.class.cast(demand), false);
     }
 
     /**
      * Updates the offer with the new parameters if possible.
      * After the {@link Offer} is changed, possible transactions will be executed on a separate thread.
-     * @throws RuntimeException if an offer with the id <code>offerId</code> does not exist
+     * @throws ItemDoesNotExistException if an offer with the id <code>offerId</code> does not exist
+     * @throws InsufficientFundsException if the account of the client does not hold the new shares
+     * @throws InvalidOrderException if the new shares or the new price are not positive
      */
     public void changeOffer(UUID offerId, int newShares, double newPrice) {
-        var offer = changeItem(offerId, newShares, newPrice);
-        logger.finest(stringFrom("Offer changed: ", offer));
-        doTransactionsWithOffer(Offer.class.cast(offer));
+        var offer = changeItem(Offer.class, offerId, newShares, newPrice);
+        logger.finest(() -> stringFrom("Offer changed: ", offer));
+        doTransactionsWithOffer(Offer.class.cast(offer), false);
+    }
+
+    /**
+     * Replaces the shares and the price of a <code>Waiting</code> item of the client in one step
+     * under the write lock, if the item still has <code>expectedShares</code> and <code>expectedPrice</code>.
+     * The item is looked up by its id and keeps its id; possible transactions with its new price
+     * are executed as after a change.
+     * @return a copy of the replaced item, or an empty optional if the client has no such item in the book
+     * @throws OrderConflictException with a copy of the item if it does not have the expected shares and price
+     * @throws AlreadyInTransactionException if the item is in another transaction
+     * @throws InsufficientFundsException if the account of the client cannot fund the new shares and price
+     * @throws InvalidOrderException if the new shares or the new price are not positive
+     */
+    public Optional<StockItem> replaceItem(UUID itemId, UUID clientId, int expectedShares, double expectedPrice,
+            int newShares, double newPrice) {
+        validateTerms(newShares, newPrice);
+        var replaced = doUnderWriteLock(() -> {
+            var item = itemsById.get(itemId);
+            if (item == null || !item.getClientId().equals(clientId))
+                return null;
+            switch (stockItems.get(item)) {
+                case Transaction:
+                    throw new AlreadyInTransactionException();
+                case Waiting:
+                    break;
+                default:
+                    return null;
+            }
+            if (item.getShares() != expectedShares || item.getPrice() != expectedPrice)
+                throw new OrderConflictException(copyOf(item));
+            ledger.reserveChange(item, newShares, newPrice);
+            unindex(item);
+            item.setShares(newShares);
+            item.setPrice(newPrice);
+            index(item);
+            metrics.orderChanged();
+            return Map.entry(item, copyOf(item));
+        });
+        if (replaced == null)
+            return Optional.empty();
+        var item = replaced.getKey();
+        logger.finest(() -> stringFrom("Item replaced: ", item));
+        if (item instanceof Offer)
+            doTransactionsWithOffer((Offer) item, false);
+        else
+            doTransactionsWithDemand((Demand) item, false);
+        return Optional.of(replaced.getValue());
     }
 
     /**
@@ -153,9 +664,13 @@ public class StockService {
      * <p>
      * In order to avoid doing transactions with demands or offers that have 0 shares,
      * each iteration will check that.
+     * @param immediate whether the unfilled rest of the demand expires after matching
      */
-    private void doTransactionsWithDemand(Demand demand) {
-        Executor.getDefault().submit(() -> {
+    private void doTransactionsWithDemand(Demand demand, boolean immediate) {
+        if (deferToAuction(demand, immediate))
+            return;
+        var submitted = System.nanoTime();
+        submitMatching(demand, () -> {
             for (Offer offer : getMatchingOffers(demand)) {
                 if (demand.getShares() == 0)
                     break;
@@ -165,6 +680,9 @@ public class StockService {
                 if (demand.getShares() == 0)
                     break;
             }
+            if (immediate)
+                expireRest(demand);
+            metrics.operationDone(Operation.Matching, submitted);
         });
     }
 
@@ -177,9 +695,13 @@ public class StockService {
      * <p>
      * In order to avoid doing transactions with demands or offers that have 0 shares,
      * each iteration will check that.
+     * @param immediate whether the unfilled rest of the offer expires after matching
      */
-    private void doTransactionsWithOffer(Offer offer) {
-        Executor.getDefault().submit(() -> {
+    private void doTransactionsWithOffer(Offer offer, boolean immediate) {
+        if (deferToAuction(offer, immediate))
+            return;
+        var submitted = System.nanoTime();
+        submitMatching(offer, () -> {
             for (Demand demand : getMatchingDemands(offer)) {
                 if (offer.getShares() == 0)
                     break;
@@ -189,7 +711,594 @@ public class StockService {
                 if (offer.getShares() == 0)
                     break;
             }
+            if (immediate)
+                expireRest(offer);
+            metrics.operationDone(Operation.Matching, submitted);
+        });
+    }
+
+    /**
+     * Runs <code>matching</code> after the matching tasks of the company of <code>item</code>, see
+     * {@link #executeMatching(String, Runnable)}, tracked as the pending matching of the item
+     * until it is done, see {@link #whenSettled(UUID)}.
+     */
+    private void submitMatching(StockItem item, Runnable matching) {
+        var itemId = item.getId();
+        var settled = new CompletableFuture<Void>();
+        pendingMatchings.put(itemId, settled);
+        try {
+            executeMatching(item.getCompany(), () -> {
+                try {
+                    matching.run();
+                } finally {
+                    pendingMatchings.remove(itemId, settled);
+                    settled.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingMatchings.remove(itemId, settled);
+            settled.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a future completed once the matching of the item submitted so far is done: the item
+     * then rests in the book, was filled or expired. Transactions rejected during the matching leave
+     * the item in the book. The notifications of the trades may still be on their way.
+     * <p>
+     * The future is already completed if no matching of the item is pending, e.g. for an unknown id
+     * or with an executor running the tasks on the calling thread.
+     */
+    public CompletableFuture<Void> whenSettled(UUID itemId) {
+        var pending = pendingMatchings.get(itemId);
+        return pending != null ? pending.copy() : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Runs a matching task of <code>company</code> on the matching pool, after the ones submitted
+     * before it, or on the task executor if the service has no matching pool.
+     */
+    private void executeMatching(String company, Runnable task) {
+        if (matchingExecutor != null)
+            matchingExecutor.execute(company, task);
+        else
+            taskExecutor.execute(task);
+    }
+
+    /**
+     * Expires the unfilled rest of an immediate order once it has been matched. If a concurrent
+     * match holds it in a transaction, the deadline index retries right after.
+     */
+    private void expireRest(StockItem item) {
+        var expired = doUnderWriteLock(() -> {
+            if (stockItems.get(item) == Transaction) {
+                scheduleDeadline(new Deadline(System.currentTimeMillis() + DEADLINE_RETRY_MILLIS, item, null));
+                return false;
+            }
+            return expireUnderLock(item);
         });
+        if (expired)
+            notifyExpired(item);
+    }
+
+    /**
+     * Whether the <code>Waiting</code> items of other clients at the price of <code>item</code>
+     * can fill it completely. Must be called under the write lock.
+     */
+    private boolean canFill(StockItem item) {
+        var orderBook = bookOf(item.getCompany());
+        var counterparts = item instanceof Demand ? orderBook.offers.atPrice(item.getPrice()) : orderBook.demands.atPrice(item.getPrice());
+        long shares = 0;
+        for (var counterpart : counterparts)
+            if (!counterpart.getClientId().equals(item.getClientId()) && isWaiting(counterpart)
+                    && (shares += counterpart.getShares()) >= item.getShares())
+                return true;
+        return false;
+    }
+
+    /**
+     * Runs the deadlines of the service through <code>sequencer</code>, which replicates or
+     * records the expiries and the repricings in sequence with the commands.
+     * @throws IllegalStateException if the deadlines already have a sequencer
+     */
+    public void sequenceDeadlines(DeadlineSequencer sequencer) {
+        doUnderWriteLock(() -> {
+            if (deadlineSequencer != null)
+                throw new IllegalStateException("The deadlines are already sequenced");
+            deadlineSequencer = sequencer;
+            return null;
+        });
+    }
+
+    /**
+     * Stops running the deadlines on the timer of the service: its orders expire and are repriced
+     * only by {@link #expire(UUID)} and {@link #reprice(UUID, double)}, as the deadlines of a
+     * leader did, until {@link #leadDeadlines()}. The deadlines of the orders are still queued,
+     * so the service can take over from its leader.
+     */
+    public void followDeadlines() {
+        doUnderWriteLock(() -> {
+            followingDeadlines = true;
+            if (deadlineTask != null)
+                deadlineTask.cancel();
+            nextDeadlineMillis = Long.MAX_VALUE;
+            return null;
+        });
+    }
+
+    /**
+     * Runs the queued deadlines on the timer of the service again, see {@link #followDeadlines()}.
+     */
+    public void leadDeadlines() {
+        doUnderWriteLock(() -> {
+            followingDeadlines = false;
+            if (!deadlines.isEmpty())
+                scheduleDeadlineTimer(deadlines.peek().atMillis);
+            return null;
+        });
+    }
+
+    /**
+     * Expires the order <code>itemId</code> as a deadline of the leader of the service did,
+     * see {@link #followDeadlines()}.
+     * @return whether the order was in the book
+     */
+    public boolean expire(UUID itemId) {
+        var expired = doUnderWriteLock(() -> {
+            var item = itemsById.get(itemId);
+            return item != null && expireUnderLock(item) ? item : null;
+        });
+        if (expired == null)
+            return false;
+        notifyExpired(expired);
+        return true;
+    }
+
+    /**
+     * Moves the order <code>itemId</code> to <code>newPrice</code> as the repricing schedule of
+     * the leader of the service did, queues its next step and matches it again,
+     * see {@link #followDeadlines()}.
+     * @return whether the order was in the book and its client could pay for it
+     */
+    public boolean reprice(UUID itemId, double newPrice) {
+        var repriced = doUnderWriteLock(() -> {
+            var item = itemsById.get(itemId);
+            if (item == null || !repriceUnderLock(item, newPrice))
+                return null;
+            var repricing = removeRepricingDeadline(item);
+            if (repricing != null && !repricing.hasReachedLimit(newPrice))
+                scheduleDeadline(new Deadline(System.currentTimeMillis() + repricing.getIntervalMillis(), item, repricing));
+            return item;
+        });
+        if (repriced == null)
+            return false;
+        matchAgain(repriced);
+        return true;
+    }
+
+    /**
+     * Takes the next repricing of <code>item</code> out of the deadline queue, a linear search
+     * done only by followers. Must be called under the write lock.
+     * @return its schedule, or <code>null</code> if it has none queued
+     */
+    private RepricingSchedule removeRepricingDeadline(StockItem item) {
+        for (var iterator = deadlines.iterator(); iterator.hasNext();) {
+            var deadline = iterator.next();
+            if (deadline.item == item && deadline.repricing != null) {
+                iterator.remove();
+                return deadline.repricing;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues <code>deadline</code> and wakes the deadline timer earlier if needed.
+     * Must be called under the write lock.
+     */
+    private void scheduleDeadline(Deadline deadline) {
+        deadlines.add(deadline);
+        if (followingDeadlines)
+            pruneDeadlines();
+        else if (deadline.atMillis < nextDeadlineMillis)
+            scheduleDeadlineTimer(deadline.atMillis);
+    }
+
+    /**
+     * Drops the deadlines of the orders that left the book, which the timer of a follower never
+     * skips, once the queue doubled since the last pruning. Must be called under the write lock.
+     */
+    private void pruneDeadlines() {
+        if (deadlines.size() < 2 * prunedDeadlines + 64)
+            return;
+        deadlines.removeIf(deadline -> {
+            var state = stockItems.get(deadline.item);
+            return state != Waiting && state != Transaction;
+        });
+        prunedDeadlines = deadlines.size();
+    }
+
+    private void scheduleDeadlineTimer(long atMillis) {
+        nextDeadlineMillis = atMillis;
+        if (deadlineTimer == null)
+            deadlineTimer = new Timer("order-deadlines", true);
+        if (deadlineTask != null && deadlineTask.cancel())
+            deadlineTimer.purge();
+        deadlineTask = new TimerTask() {
+            @Override
+            public void run() {
+                var sequencer = deadlineSequencer;
+                if (sequencer != null)
+                    sequencer.sequence(StockService.this::processDueDeadlines);
+                else
+                    processDueDeadlines();
+            }
+        };
+        deadlineTimer.schedule(deadlineTask, Math.max(0, atMillis - System.currentTimeMillis()));
+    }
+
+    /**
+     * Expires and reprices the orders whose deadline came, one at a time: the client of an
+     * expired order is notified and a repriced order is matched again before the next deadline,
+     * so a follower applying them in the same order ends with the same book. Runs on the deadline
+     * timer, woken at the soonest deadline; a wake-up with nothing due does nothing.
+     * <p>
+     * A deadline failing with an unexpected exception is logged and dropped, so one bad order
+     * does not stop the timer and with it the deadlines of every other order.
+     */
+    private void processDueDeadlines() {
+        metrics.deadlineWokeUp();
+        var now = System.currentTimeMillis();
+        var retries = new ArrayList<Deadline>();
+        Deadline applied;
+        while ((applied = doUnderWriteLock(() -> applyDueDeadline(now, retries))) != null) {
+            var item = applied.item;
+            try {
+                if (applied.repricing == null)
+                    notifyExpired(item);
+                else
+                    matchAgain(item);
+            } catch (RuntimeException e) {
+                logger.severe(() -> stringFrom("Could not match or notify item ", prefixOf(item.getId()), " after its deadline: ", e));
+            }
+        }
+        doUnderWriteLock(() -> {
+            deadlines.addAll(retries);
+            nextDeadlineMillis = Long.MAX_VALUE;
+            if (followingDeadlines)
+                return null;
+            if (!deadlines.isEmpty())
+                scheduleDeadlineTimer(deadlines.peek().atMillis);
+            else if (deadlineTask != null)
+                deadlineTask.cancel();
+            return null;
+        });
+    }
+
+    /**
+     * Takes the deadlines that came at <code>now</code> out of the queue, soonest first, until
+     * one expires or reprices its order. Must be called under the write lock.
+     * @param retries collects the deadlines of the orders in a transaction, to retry right after,
+     * and the next steps of the repricings
+     * @return the deadline applied, or <code>null</code> if none is left
+     */
+    private Deadline applyDueDeadline(long now, List<Deadline> retries) {
+        var sequencer = deadlineSequencer;
+        while (!deadlines.isEmpty() && deadlines.peek().atMillis <= now) {
+            var deadline = deadlines.poll();
+            var item = deadline.item;
+            try {
+                if (stockItems.get(item) == Transaction)
+                    retries.add(new Deadline(now + DEADLINE_RETRY_MILLIS, item, deadline.repricing));
+                else if (deadline.repricing == null) {
+                    if (expireUnderLock(item)) {
+                        if (sequencer != null)
+                            sequencer.expired(item);
+                        return deadline;
+                    }
+                } else if (isWaiting(item) && repriceUnderLock(item, deadline.repricing.next(item.getPrice()))) {
+                    if (!deadline.repricing.hasReachedLimit(item.getPrice()))
+                        retries.add(new Deadline(now + deadline.repricing.getIntervalMillis(), item, deadline.repricing));
+                    if (sequencer != null)
+                        sequencer.repriced(item);
+                    return deadline;
+                }
+            } catch (RuntimeException e) {
+                logger.severe(() -> stringFrom("Dropped the deadline of item ", prefixOf(item.getId()), ": ", e));
+            }
+        }
+        return null;
+    }
+
+    private void matchAgain(StockItem item) {
+        if (item instanceof Offer)
+            doTransactionsWithOffer((Offer) item, false);
+        else
+            doTransactionsWithDemand((Demand) item, false);
+    }
+
+    /**
+     * Moves <code>item</code> to <code>newPrice</code>, in place in the book, if it is <code>Waiting</code>
+     * and its client can pay for it. Must be called under the write lock.
+     * @return whether the item was repriced
+     */
+    private boolean repriceUnderLock(StockItem item, double newPrice) {
+        if (!isWaiting(item) || newPrice == item.getPrice())
+            return false;
+        try {
+            ledger.reserveChange(item, item.getShares(), newPrice);
+        } catch (InsufficientFundsException e) {
+            logger.fine(() -> stringFrom("Stopped repricing item ", prefixOf(item.getId()), ": ", e.getMessage()));
+            return false;
+        }
+        unindex(item);
+        item.setPrice(newPrice);
+        index(item);
+        metrics.orderRepriced();
+        logger.finest(() -> stringFrom("Item repriced: ", item));
+        return true;
+    }
+
+    /**
+     * Takes <code>item</code> out of the book if it is <code>Waiting</code>. Must be called under the write lock.
+     * @return whether the item expired
+     */
+    private boolean expireUnderLock(StockItem item) {
+        if (!isWaiting(item))
+            return false;
+        ledger.release(item);
+        setState(item, Expired);
+        unindex(item);
+        metrics.orderExpired();
+        logger.finest(() -> stringFrom("Item expired: ", item));
+        return true;
+    }
+
+    private static StockItem copyOf(StockItem item) {
+        return item instanceof Offer ? new Offer((Offer) item) : new Demand((Demand) item);
+    }
+
+    private void notifyExpired(StockItem item) {
+        var expired = copyOf(item);
+        metrics.notificationsQueued(1);
+        taskExecutor.execute(() -> {
+            try {
+                var notifiers = clientNotifiers.get(expired.getClientId());
+                if (notifiers != null)
+                    notifiers.expiryNotifier().accept(expired);
+            } finally {
+                metrics.notificationDelivered();
+            }
+        });
+    }
+
+    private static class Deadline implements Comparable<Deadline> {
+        final long atMillis;
+        final StockItem item;
+        /**
+         * The schedule repricing the item at this deadline, or <code>null</code> if the item expires.
+         */
+        final RepricingSchedule repricing;
+
+        Deadline(long atMillis, StockItem item, RepricingSchedule repricing) {
+            this.atMillis = atMillis;
+            this.item = item;
+            this.repricing = repricing;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            var byTime = Long.compare(atMillis, other.atMillis);
+            return byTime != 0 ? byTime : Long.compare(item.getSequence(), other.item.getSequence());
+        }
+    }
+
+    /**
+     * The call auctions of a company, run by a task of the auction timer.
+     */
+    private static class Auction {
+        final TimerTask task;
+        /**
+         * The immediate orders entered since the last auction, expiring after the next one.
+         */
+        final Queue<StockItem> immediateOrders = new ConcurrentLinkedQueue<>();
+
+        Auction(TimerTask task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Matches the orders of <code>company</code> by call auctions every <code>interval</code> instead
+     * of continuously: orders accumulate in the book without being matched, then each auction
+     * executes all the crossing volume at a single price in one pass, see {@link #runAuction(String)}.
+     * <p>
+     * An immediate order of the company waits for the next auction; what it leaves unfilled expires then.
+     * @throws IllegalStateException if the company is already matched by auctions
+     */
+    public void startAuctions(String company, Duration interval) {
+        if (interval.isNegative() || interval.isZero())
+            throw new IllegalArgumentException("Invalid auction interval " + interval);
+        var task = new TimerTask() {
+            @Override
+            public void run() {
+                executeMatching(company, () -> runAuction(company));
+            }
+        };
+        if (auctions.putIfAbsent(company, new Auction(task)) != null)
+            throw new IllegalStateException("Company " + company + " is already matched by auctions");
+        synchronized (auctions) {
+            if (auctionTimer == null)
+                auctionTimer = new Timer("order-auctions", true);
+            auctionTimer.scheduleAtFixedRate(task, interval.toMillis(), interval.toMillis());
+        }
+        logger.info("Company " + company + " matched by auctions every " + interval.toMillis() + "ms.");
+    }
+
+    /**
+     * Starts the auctions of <code>companies</code> at the interval given by {@value #AUCTION_INTERVAL_PROPERTY}, if it is set.
+     */
+    public void startAuctionsIfConfigured(Collection<String> companies) {
+        var intervalMillis = System.getProperty(AUCTION_INTERVAL_PROPERTY);
+        if (intervalMillis == null)
+            return;
+        for (var company : companies)
+            startAuctions(company, Duration.ofMillis(Long.parseLong(intervalMillis)));
+    }
+
+    /**
+     * Runs a last auction of <code>company</code> and matches its orders continuously from then on.
+     */
+    public void stopAuctions(String company) {
+        var auction = auctions.remove(company);
+        if (auction == null)
+            return;
+        auction.task.cancel();
+        uncross(company);
+        expireAfterAuction(auction);
+        logger.info("Company " + company + " matched continuously.");
+    }
+
+    public boolean isAuctioned(String company) {
+        return auctions.containsKey(company);
+    }
+
+    /**
+     * Runs a call auction of <code>company</code> now, whether or not it is matched by auctions.
+     * <p>
+     * The clearing price is the price of the book that executes the most shares; among those, the one
+     * leaving the fewest shares unexecuted on either side, then the lowest. Under one hold of the
+     * write lock, the <code>Waiting</code> demands at or above it are filled against the <code>Waiting</code>
+     * offers at or below it, each side in its priority order, all at the clearing price. The clients
+     * pay the clearing price; a buyer gets back what its demand had reserved above it.
+     * <p>
+     * The trades are added to the history, published and notified as one batch, under the same hold.
+     * @return the trades of the auction
+     */
+    public List<Transaction> runAuction(String company) {
+        var trades = uncross(company);
+        var auction = auctions.get(company);
+        if (auction != null)
+            expireAfterAuction(auction);
+        return trades;
+    }
+
+    private List<Transaction> uncross(String company) {
+        var start = System.nanoTime();
+        var trades = doUnderWriteLock(() -> {
+            var orderBook = booksByCompany.get(company);
+            if (orderBook == null)
+                return List.<Transaction>of();
+            var demands = orderBook.demands.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+                .filter(this::isWaiting).collect(toList());
+            var offers = orderBook.offers.stream(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY)
+                .filter(this::isWaiting).collect(toList());
+            if (demands.isEmpty() || offers.isEmpty() || demands.get(0).getPrice() < offers.get(0).getPrice())
+                return List.<Transaction>of();
+            var price = clearingPrice(demands, offers);
+            var executed = new ArrayList<Transaction>();
+            var firstOffer = 0;
+            for (var demand : demands) {
+                if (demand.getPrice() < price)
+                    break;
+                for (int i = firstOffer; i < offers.size() && demand.getShares() > 0; i++) {
+                    var offer = offers.get(i);
+                    if (offer.getPrice() > price)
+                        break;
+                    if (offer.getShares() > 0 && !offer.getClientId().equals(demand.getClientId()))
+                        executed.add(tradeUnderLock(demand, offer, price));
+                    if (offer.getShares() == 0 && i == firstOffer)
+                        firstOffer++;
+                }
+            }
+            transactions.addAll(executed);
+            executed.forEach(this::tradeDone);
+            return executed;
+        });
+        if (trades.isEmpty())
+            return trades;
+        metrics.operationDone(Operation.Auction, start);
+        logger.fine(() -> stringFrom("Auction of ", company, ": ", trades.size(), " trades at ", trades.get(0).getPrice()));
+        return trades;
+    }
+
+    /**
+     * @param demands the <code>Waiting</code> demands of a company, highest price first
+     * @param offers the <code>Waiting</code> offers of the company, cheapest first
+     * @return the price executing the most shares, see {@link #runAuction(String)}
+     */
+    private static double clearingPrice(List<Demand> demands, List<Offer> offers) {
+        var prices = new TreeSet<Double>();
+        demands.forEach(demand -> prices.add(demand.getPrice()));
+        offers.forEach(offer -> prices.add(offer.getPrice()));
+        var bestPrice = Double.NaN;
+        long bestVolume = -1;
+        long bestImbalance = Long.MAX_VALUE;
+        var demandIndex = demands.size() - 1;
+        long demanded = demands.stream().mapToLong(Demand::getShares).sum();
+        var offerIndex = 0;
+        long offered = 0;
+        for (var price : prices) {
+            while (demandIndex >= 0 && demands.get(demandIndex).getPrice() < price)
+                demanded -= demands.get(demandIndex--).getShares();
+            while (offerIndex < offers.size() && offers.get(offerIndex).getPrice() <= price)
+                offered += offers.get(offerIndex++).getShares();
+            var volume = Math.min(demanded, offered);
+            var imbalance = Math.abs(demanded - offered);
+            if (volume > bestVolume || volume == bestVolume && imbalance < bestImbalance) {
+                bestPrice = price;
+                bestVolume = volume;
+                bestImbalance = imbalance;
+            }
+        }
+        return bestPrice;
+    }
+
+    /**
+     * Trades <code>demand</code> with <code>offer</code> at <code>price</code>, completing the filled ones.
+     * Must be called under the write lock, with both items <code>Waiting</code>.
+     */
+    private Transaction tradeUnderLock(Demand demand, Offer offer, double price) {
+        var tradedShares = Math.min(offer.getShares(), demand.getShares());
+        ledger.settle(demand, offer, tradedShares, price);
+        offer.setShares(offer.getShares() - tradedShares);
+        demand.setShares(demand.getShares() - tradedShares);
+        metrics.itemTraded(offer, tradedShares);
+        metrics.itemTraded(demand, tradedShares);
+        for (var item : List.<StockItem>of(demand, offer)) {
+            sharesTraded(item, tradedShares);
+            if (item.getShares() == 0) {
+                setState(item, Complete);
+                unindex(item);
+                metrics.orderFilled(item);
+            } else {
+                bookChanged(item);
+            }
+        }
+        return new Transaction(offer.getClientId(), demand.getClientId(), offer.getId(), demand.getId(), demand.getCompany(),
+            tradedShares, price);
+    }
+
+    private void expireAfterAuction(Auction auction) {
+        StockItem item;
+        while ((item = auction.immediateOrders.poll()) != null)
+            expireRest(item);
+    }
+
+    /**
+     * Leaves the matching of <code>item</code> to the next auction if its company is auctioned.
+     * @return whether the item waits for the auction
+     */
+    private boolean deferToAuction(StockItem item, boolean immediate) {
+        if (auctions.isEmpty())
+            return false;
+        var auction = auctions.get(item.getCompany());
+        if (auction == null)
+            return false;
+        if (immediate)
+            auction.immediateOrders.add(item);
+        return true;
     }
 
     /**
@@ -197,9 +1306,9 @@ public class StockService {
      * or in <code>Transaction</code> that match with <code>offer</code>.
      */
     private Collection<Demand> getMatchingDemands(Offer offer) {
-        return getItems(Demand.class, Waiting, Transaction).stream()
+        return doUnderReadLock(() -> bookOf(offer.getCompany()).demands.atPrice(offer.getPrice()).stream()
             .filter(demand -> match(demand, offer))
-            .collect(toList());
+            .collect(toList()));
     }
 
     /**
@@ -207,9 +1316,49 @@ public class StockService {
      * or in <code>Transaction</code> that match with <code>demand</code>.
      */
     private Collection<Offer> getMatchingOffers(Demand demand) {
-        return getItems(Offer.class, Waiting, Transaction).stream()
+        return doUnderReadLock(() -> bookOf(demand.getCompany()).offers.atPrice(demand.getPrice()).stream()
             .filter(offer -> match(demand, offer))
-            .collect(toList());
+            .collect(toList()));
+    }
+
+    /**
+     * @return the book of <code>company</code>, or an empty book if the company has no live items
+     */
+    private OrderBook bookOf(String company) {
+        return booksByCompany.getOrDefault(company, EMPTY_BOOK);
+    }
+
+    /**
+     * Adds <code>item</code> to the price indexes. Must be called under the write lock.
+     */
+    private void index(StockItem item) {
+        book.add(item);
+        metrics.itemIndexed(item);
+        booksByCompany.computeIfAbsent(item.getCompany(), company -> new OrderBook()).add(item);
+        bookChanged(item);
+    }
+
+    /**
+     * Takes the <code>shares</code> traded by <code>item</code> off the depth of its price level.
+     * Must be called under the write lock, before the item leaves the price indexes.
+     */
+    private void sharesTraded(StockItem item, int shares) {
+        book.sharesTraded(item, shares);
+        bookOf(item.getCompany()).sharesTraded(item, shares);
+    }
+
+    /**
+     * Removes <code>item</code> from the price indexes. Must be called under the write lock.
+     */
+    private void unindex(StockItem item) {
+        book.remove(item);
+        metrics.itemUnindexed(item);
+        var companyBook = booksByCompany.get(item.getCompany());
+        if (companyBook == null)
+            return;
+        companyBook.remove(item);
+        if (companyBook.isEmpty())
+            booksByCompany.remove(item.getCompany());
     }
 
     /**
@@ -222,7 +1371,9 @@ public class StockService {
      * state and the transaction is done.
      * <p>
      * After the transaction is complete, the items with 0 remaining shares are set to <code>Complete</code>
-     * ,the other items are set to <code>Waiting</code> and the clients are notified.
+     * ,the other items are set to <code>Waiting</code> and the clients are notified. The items change
+     * state, and the transaction is added to the history, published and notified, under one hold of
+     * the write lock, so the observers of the book and of the trades see them in the same order.
      * <p>
      * If the transaction can be completed, the amount of traded shares is:
      * <p>
@@ -231,7 +1382,14 @@ public class StockService {
      * @throws RuntimeException if <code>demand</code> or <code>offer</code> are not in the <code>stockItems</code> map
      */
     private void doTransaction(Demand demand, Offer offer) {
-        if (!makeSureTransactionIsPossibleAndSetStates(demand, offer))
+        metrics.matchAttempted();
+        var tradeEvent = new TradeExecutedEvent();
+        tradeEvent.begin();
+        var attemptEvent = new MatchAttemptEvent();
+        attemptEvent.begin();
+        var possible = makeSureTransactionIsPossibleAndSetStates(demand, offer);
+        attemptEvent.endAndCommit(demand, offer, possible);
+        if (!possible)
             return;
         var company = demand.getCompany();
         var price = Math.min(offer.getPrice(), demand.getPrice());
@@ -239,16 +1397,21 @@ public class StockService {
         var offerClientId = offer.getClientId();
         var tradedShares = Math.min(offer.getShares(), demand.getShares());
         logBeforeTransaction(demand, offer, tradedShares);
-        offer.setShares(offer.getShares() - tradedShares);
-        demand.setShares(demand.getShares() - tradedShares);
-        var transaction = new Transaction(offerClientId, demandClientId, offer.getId(), demand.getId(), company, tradedShares, price);
-        transactions.add(transaction);
-        var partition = Stream.of(demand, offer).collect(partitioningBy(item -> item.getShares() == 0));
-        var completeItems = partition.get(true);
-        var incompleteItems = partition.get(false);
-        setItemsStateToComplete(completeItems);
-        setItemsStateToWaiting(incompleteItems);
-        notifyClients(demandClientId, offerClientId, transaction);
+        var transaction = doUnderWriteLock(() -> {
+            ledger.settle(demand, offer, tradedShares, price);
+            offer.setShares(offer.getShares() - tradedShares);
+            demand.setShares(demand.getShares() - tradedShares);
+            metrics.itemTraded(offer, tradedShares);
+            metrics.itemTraded(demand, tradedShares);
+            var partition = Stream.of(demand, offer).collect(partitioningBy(item -> item.getShares() == 0));
+            setItemsStateToComplete(partition.get(true), tradedShares);
+            setItemsStateToWaiting(partition.get(false), tradedShares);
+            var done = new Transaction(offerClientId, demandClientId, offer.getId(), demand.getId(), company, tradedShares, price);
+            transactions.add(done);
+            tradeDone(done);
+            return done;
+        });
+        tradeEvent.endAndCommit(transaction);
         logAfterTransaction(transaction);
     }
     
@@ -267,29 +1430,46 @@ public class StockService {
     }
 
     /**
-     * Aquires the write lock and sets the state of each <code>itemToPutToWaiting</code> to <code>Waiting</code>.
+     * Sets the state of each <code>itemToPutToWaiting</code> to <code>Waiting</code>. Must be called under the write lock.
+     * @param tradedShares the shares the items just traded, taken off the depth of their price levels
      * @throws RuntimeException if any of the items are not in <code>Transaction</code>
      */
-    private void setItemsStateToWaiting(List<StockItem> itemsToPutToWaiting) {
-        doUnderWriteLock(() -> {
-            if(itemsToPutToWaiting.stream().map(stockItems::get).anyMatch(not(Transaction::equals)))
-                throw new RuntimeException("Only items in transaction can be put back to waiting.");
-            itemsToPutToWaiting.forEach(item -> stockItems.put(item, Waiting));
+    private void setItemsStateToWaiting(List<StockItem> itemsToPutToWaiting, int tradedShares) {
+        if(itemsToPutToWaiting.stream().map(stockItems::get).anyMatch(not(Transaction::equals)))
+            throw new RuntimeException("Only items in transaction can be put back to waiting.");
+        itemsToPutToWaiting.forEach(item -> {
+            sharesTraded(item, tradedShares);
+            setState(item, Waiting);
         });
     }
 
     /**
-     * Aquries the write lock and sets the state of each <code>itemToComplete</code> to <code>Complete</code>.
+     * Sets the state of each <code>itemToComplete</code> to <code>Complete</code>. Must be called under the write lock.
+     * @param tradedShares the shares the items just traded, taken off the depth of their price levels
      * @throws RuntimeException if any of the items are not in <code>Transaction</code>
      */
-    private void setItemsStateToComplete(List<StockItem> itemsToComplete) {
-        doUnderWriteLock(() -> {
-            if(itemsToComplete.stream().map(stockItems::get).anyMatch(not(Transaction::equals)))
-                throw new RuntimeException("Only items in transaction can be completed.");
-            itemsToComplete.forEach(item -> stockItems.put(item, Complete));
+    private void setItemsStateToComplete(List<StockItem> itemsToComplete, int tradedShares) {
+        if(itemsToComplete.stream().map(stockItems::get).anyMatch(not(Transaction::equals)))
+            throw new RuntimeException("Only items in transaction can be completed.");
+        itemsToComplete.forEach(item -> {
+            sharesTraded(item, tradedShares);
+            setState(item, Complete);
+            unindex(item);
+            metrics.orderFilled(item);
         });
     }
 
+    /**
+     * Signals <code>transaction</code>, already in the history, to the observers, the subscribers
+     * and its clients. Must be called under the write lock, with the changes of the items it traded.
+     */
+    private void tradeDone(Transaction transaction) {
+        traded(transaction);
+        transactionPublisher.publish(transaction);
+        metrics.traded(transaction.getShares());
+        notifyClients(transaction.getDemandingClientId(), transaction.getOfferingClientId(), transaction);
+    }
+
     /**
      * Aquires the write lock and sets the state of the item with id <code>itemId</code> to <code>Removed</code>.
      * <p>
@@ -297,34 +1477,84 @@ public class StockService {
      * 
      * @param itemId the id of the item
      * @throws AlreadyInTransactionException if the item with id <code>itemId</code> is in a transaction
-     * @throws RuntimeException if no item in the <code>stockItems</code> map has the id <code>itemId</code>
+     * @throws ItemDoesNotExistException if no item in the <code>stockItems</code> map has the id <code>itemId</code>
      */
     public void removeItem(UUID itemId) {
         doUnderWriteLock(() -> {
-            var optionalItem = stockItems.entrySet().stream()
-                .filter(entry -> itemId.equals(entry.getKey().getId())).findAny();
-            if (!optionalItem.isPresent())
-                throw new RuntimeException(stringFrom("Cannot remove item ", itemId, " because it does not exist."));
-            var item = optionalItem.get();
-            switch (item.getValue()) {
+            var item = itemsById.get(itemId);
+            if (item == null)
+                throw new ItemDoesNotExistException(stringFrom("Cannot remove item ", itemId, " because it does not exist."));
+            var state = stockItems.get(item);
+            switch (state) {
                 case Transaction:
                     throw new AlreadyInTransactionException();
                 case Waiting:
-                    stockItems.put(item.getKey(), Removed);
-                    logger.finest(stringFrom("Item removed: ", item.getKey()));
+                    removeUnderLock(item);
                     break; 
-                case Removed: case Complete:
-                    logger.fine(stringFrom("Trying to remove item ", itemId, " but item is ", item.getValue()));
+                case Removed: case Complete: case Expired:
+                    logger.fine(() -> stringFrom("Trying to remove item ", itemId, " but item is ", state));
             }
         });
     }
 
+    /**
+     * Takes the <code>Waiting</code> <code>item</code> out of the book. Must be called under the write lock.
+     */
+    private void removeUnderLock(StockItem item) {
+        ledger.release(item);
+        setState(item, Removed);
+        unindex(item);
+        metrics.orderRemoved();
+        logger.finest(() -> stringFrom("Item removed: ", item));
+    }
+
     /**
      * Notifies the client with id <code>demandClientId</code> about his sale and client with id <code>offerClientId</code about his buy.
      */
     private void notifyClients(UUID demandClientId, UUID offerClientId, Transaction transaction) {
-        Executor.getDefault().submit(() -> clientNotifiers.get(offerClientId).saleNotifier().accept(transaction));
-        Executor.getDefault().submit(() -> clientNotifiers.get(demandClientId).buyNotifier().accept(transaction));
+        metrics.notificationsQueued(2);
+        notifyClient(offerClientId, Notifiers::saleNotifier, "sale", transaction);
+        notifyClient(demandClientId, Notifiers::buyNotifier, "buy", transaction);
+    }
+
+    private void notifyClient(UUID clientId, Function<Notifiers, Consumer<Transaction>> notifier, String kind, Transaction transaction) {
+        var queued = System.nanoTime();
+        taskExecutor.execute(() -> {
+            var event = new NotificationDeliveredEvent();
+            event.begin();
+            var start = System.nanoTime();
+            try {
+                var notifiers = clientNotifiers.get(clientId);
+                if (notifiers != null)
+                    notifier.apply(notifiers).accept(transaction);
+            } finally {
+                metrics.notificationDelivered();
+                event.endAndCommit(transaction, clientId, kind, queued, start);
+            }
+        });
+    }
+
+    /**
+     * Puts <code>item</code> in <code>state</code> and updates the lock-free count of items per state.
+     * Must be called under the write lock.
+     */
+    private void setState(StockItem item, StockItemState state) {
+        var previous = stockItems.put(item, state);
+        metrics.itemStateChanged(previous == null ? null : previous.name(), state.name());
+        if (previous == null)
+            openOrdersByClient.computeIfAbsent(item.getClientId(), clientId -> new LinkedHashMap<>()).put(item.getId(), item);
+        else if (state != Waiting && state != Transaction)
+            forgetOpenOrder(item);
+        bookChanged(item);
+    }
+
+    private void forgetOpenOrder(StockItem item) {
+        var orders = openOrdersByClient.get(item.getClientId());
+        if (orders == null)
+            return;
+        orders.remove(item.getId());
+        if (orders.isEmpty())
+            openOrdersByClient.remove(item.getClientId());
     }
 
     /**
@@ -338,74 +1568,48 @@ public class StockService {
      */
     private boolean makeSureTransactionIsPossibleAndSetStates(Demand demand, Offer offer) {
         return doUnderWriteLock(() -> {        
-            if (!match(demand, offer)) {
-                logger.fine(getCannotMakeTransactionMessage(demand, offer, "demand and offer do not match"));
-                return false;
-            }
+            if (!match(demand, offer))
+                return rejectTransaction(demand, offer, "demand and offer do not match");
             if (!stockItems.containsKey(demand))
                 throw new RuntimeException(getCannotMakeTransactionMessage(demand, offer, "demand does not exist"));
             if (!stockItems.containsKey(offer))
                 throw new RuntimeException(getCannotMakeTransactionMessage(demand, offer, "demand does not exist"));
             var demandState = stockItems.get(demand);
             switch(demandState) {
-                case Transaction: case Removed: case Complete:
-                    logger.fine(getCannotMakeTransactionMessage(demand, offer, stringFrom("demand is is ", demandState)));
-                    return false;
+                case Transaction: case Removed: case Complete: case Expired:
+                    return rejectTransaction(demand, offer, stringFrom("demand is ", demandState));
                 case Waiting: 
                     break;
             };
             var offerState = stockItems.get(offer);
             switch(offerState) {
-                case Transaction: case Removed: case Complete:
-                    logger.fine(getCannotMakeTransactionMessage(demand, offer, stringFrom("offer is ", offerState)));
-                    return false;
+                case Transaction: case Removed: case Complete: case Expired:
+                    return rejectTransaction(demand, offer, stringFrom("offer is ", offerState));
                 case Waiting: 
                     break;
             };
-            stockItems.put(demand, Transaction);
-            stockItems.put(offer, Transaction);
+            setState(demand, Transaction);
+            setState(offer, Transaction);
             return true;
         });
     }
 
     /**
-     * Aquires the read lock and computes a collection of the items that:
-     * <ul>
-     *  <li>are in a state present in <code>states</code>
-     *  <li>are an instance of <code>cls</code>
-     * </ul>
-     * The objects returned are keys of the <code>stockItems</code> map.
-     * 
-     * @param <T>
-     * @param cls one of
-     * <ul>
-     *  <li><code>Offer.class</code>
-     *  <li><code>Demand.class</code>
-     *  <li><code>StockItem.class</code>
-     * </ul>
-     * @param states 
-     */
-    private <T extends StockItem> Collection<T> getItems(Class<T> cls, StockItemState ... states) {
-        return doUnderReadLock(() -> 
-            stockItems.entrySet().stream()
-                .filter(inStates(states))
-                .map(Entry::getKey)
-                .filter(cls::isInstance)
-                .map(cls::cast)
-                .collect(toList())
-        );
-    }
-
-    private Predicate<Entry<StockItem, StockItemState>> inStates(StockItemState ... states) {
-        return entry -> Arrays.stream(states).anyMatch(entry.getValue()::equals);
+     * Logs and records why a transaction between <code>demand</code> and <code>offer</code> is not possible.
+     * @return <code>false</code>
+     */
+    private boolean rejectTransaction(Demand demand, Offer offer, String reason) {
+        logger.fine(() -> getCannotMakeTransactionMessage(demand, offer, reason));
+        TransactionRejectedEvent.record(demand, offer, reason);
+        return false;
     }
 
     private void logAfterTransaction(Transaction transaction) {
-        logger.info(stringFrom("Transaction complete: ", transaction));
+        logger.info(() -> stringFrom("Transaction complete: ", transaction));
     }
 
     private void logBeforeTransaction(Demand demand, Offer offer, int tradedShares) {
-        logger.info(stringFrom(
+        logger.info(() -> stringFrom(
             "Making a transaction for ", tradedShares, " between:", lineSeparator(),
             demand, lineSeparator(),
             offer
@@ -416,15 +1620,26 @@ public class StockService {
      * Aquires the write lock and adds <code>stockItem</code> to the <code>stockItems</code> map.
      * @throws RuntimeException if the <code>stockItem</code> is already in the <code>stockItems</code> map.
      */
-	private void addItem(StockItem stockItem) {
-        doUnderWriteLock(() -> {
+	private boolean addItem(StockItem stockItem, TimeInForce timeInForce, RepricingSchedule repricing) {
+        return doUnderWriteLock(() -> {
             if (stockItems.containsKey(stockItem)) {
                 throw new RuntimeException(stringFrom(
                     "Trying to add but item with id ", prefixOf(stockItem.getId()), " already exists.", lineSeparator(),
                     stockItem.getClass().getSimpleName(), ": ", stockItem
                 ));
             }
-            stockItems.put(stockItem, Waiting);
+            if (timeInForce.getType() == TimeInForce.Type.FillOrKill && !canFill(stockItem))
+                return false;
+            ledger.reserve(stockItem);
+            setState(stockItem, Waiting);
+            itemsById.put(stockItem.getId(), stockItem);
+            index(stockItem);
+            metrics.orderCreated();
+            if (timeInForce.getType() == TimeInForce.Type.GoodTillTime)
+                scheduleDeadline(new Deadline(timeInForce.getExpiresAtMillis(), stockItem, null));
+            if (!timeInForce.isImmediate() && !repricing.hasReachedLimit(stockItem.getPrice()))
+                scheduleDeadline(new Deadline(System.currentTimeMillis() + repricing.getIntervalMillis(), stockItem, repricing));
+            return true;
         });
     }
 
@@ -435,32 +1650,36 @@ public class StockService {
      * <p>
      * If the item has been removed or is complete, the method will not update the item.
      * 
+     * @param side the class of the items the change is for
      * @param itemId the id of the item
      * @param newShares the new number of shares
      * @param newPrice the new price per share
-     * @throws RuntimeException if no item in <code>stockItems</code> has the id <code>itemId</code>
+     * @throws ItemDoesNotExistException if no item of <code>side</code> in <code>stockItems</code> has the id <code>itemId</code>
      * @throws AlreadyInTransactionException if the item is in another transaction
      * @return the item with id <code>itemId</code>
      */
-    private StockItem changeItem(UUID itemId, int newShares, double newPrice) {
+    private StockItem changeItem(Class<? extends StockItem> side, UUID itemId, int newShares, double newPrice) {
+        validateTerms(newShares, newPrice);
         return doUnderWriteLock(() -> {
-            var optionalItem = stockItems.entrySet().stream()
-                .filter(e -> e.getKey().getId().equals(itemId))
-                .findFirst();
-            if (optionalItem.isEmpty())
-                throw new RuntimeException(stringFrom("Trying to change item with id ", itemId, " but it does not exist"));
-            var item = optionalItem.get();
-            switch (item.getValue()) {
+            var item = itemsById.get(itemId);
+            if (!side.isInstance(item))
+                throw new ItemDoesNotExistException(stringFrom("Trying to change ", side.getSimpleName(), " with id ", itemId, " but it does not exist"));
+            var state = stockItems.get(item);
+            switch (state) {
                 case Transaction:
                     throw new AlreadyInTransactionException();
                 case Waiting:
-                    item.getKey().setShares(newShares);
-                    item.getKey().setPrice(newPrice);
+                    ledger.reserveChange(item, newShares, newPrice);
+                    unindex(item);
+                    item.setShares(newShares);
+                    item.setPrice(newPrice);
+                    index(item);
+                    metrics.orderChanged();
                     break;
-                case Removed: case Complete:
-                    logger.fine(stringFrom("Trying to remove item ", itemId, " but item is ", item.getValue()));
+                case Removed: case Complete: case Expired:
+                    logger.fine(() -> stringFrom("Trying to remove item ", itemId, " but item is ", state));
             }
-            return item.getKey();
+            return item;
         });
     }
 
@@ -481,7 +1700,7 @@ public class StockService {
      * and returns the result.
      */
     private <T> T doUnderReadLock(Callable<T> action) {
-        return doUnderLock(lock.readLock(), action);
+        return doUnderLock(lock.readLock(), metrics.readLockWait(), metrics.readLockHold(), action);
     }
 
     /**
@@ -489,14 +1708,14 @@ public class StockService {
      * and returns the result.
      */
     private <T> T doUnderWriteLock(Callable<T> action) {
-        return doUnderLock(lock.writeLock(), action);
+        return doUnderLock(lock.writeLock(), metrics.writeLockWait(), metrics.writeLockHold(), action);
     }
 
     /**
      * Executes the given {@link Runnable} under <code>lock.writeLock</code>.
      */
     private void doUnderWriteLock(Runnable action) {
-        doUnderLock(lock.writeLock(), Executors.callable(action));
+        doUnderWriteLock(Executors.callable(action));
     }
 
     /**
@@ -504,10 +1723,16 @@ public class StockService {
      * {@link RuntimeException}s are passed to the caller and {@link Exception}s are wrapped in
      * a {@link RuntimeException} and rethrown.
      * <p>
+     * The time spent waiting for <code>lock</code> and holding it are recorded in
+     * <code>wait</code> and <code>hold</code>.
+     * <p>
      * This method will always release the aquired lock.
      */
-    private <T> T doUnderLock(Lock lock, Callable<T> callable) {
+    private <T> T doUnderLock(Lock lock, LatencyHistogram wait, LatencyHistogram hold, Callable<T> callable) {
+        var start = System.nanoTime();
         lock.lock();
+        var acquired = System.nanoTime();
+        wait.record(acquired - start);
         try {
             return callable.call();
         } catch (RuntimeException e) {
@@ -517,6 +1742,7 @@ public class StockService {
             throw new RuntimeException(e);
         } finally {
             lock.unlock();
+            hold.recordSince(acquired);
         }
     }
 
@@ -544,6 +1770,12 @@ public class StockService {
          * <p>
          * It cannot take part in transactions and cannot be changed.
          */
-        Complete 
+        Complete,
+        /**
+         * The item has left the book because of its {@link TimeInForce}.
+         * <p>
+         * It cannot take part in transactions and cannot be changed.
+         */
+        Expired
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package pcbe.stock.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pcbe.stock.metrics.StockMetrics;
+import pcbe.stock.model.Transaction;
+
+/**
+ * Publishes the transactions of a {@link StockService} as they are done, see
+ * {@link StockService#getTransactionPublisher()}.
+ * <p>
+ * Each subscriber gets its own bounded buffer and receives as many transactions as it requested.
+ * Publishing only appends to the buffers, so a slow subscriber does not hold back the matching:
+ * when its buffer is full, the {@link OverflowPolicy} of its subscription decides what is lost.
+ * The transactions are delivered on the executor of the service, in the order they were done,
+ * by one task at a time per subscriber.
+ * <p>
+ * A subscriber receives the transactions done after its subscription; the earlier ones are in
+ * {@link StockService#getTransactions()}.
+ */
+public class TransactionPublisher implements Flow.Publisher<Transaction> {
+    public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        /**
+         * Drops the oldest buffered transaction to make room for the new one.
+         */
+        DropOldest,
+        /**
+         * Drops the new transaction.
+         */
+        DropNewest,
+        /**
+         * Cancels the subscription, signalling {@link BufferOverflowException} to the subscriber.
+         */
+        Cancel
+    }
+
+    /**
+     * Signalled to a subscriber cancelled by the {@link OverflowPolicy#Cancel} policy.
+     */
+    public static class BufferOverflowException extends RuntimeException {
+        private static final long serialVersionUID = -6157226380964981870L;
+
+        BufferOverflowException(int capacity) {
+            super("The subscriber fell more than " + capacity + " transactions behind");
+        }
+    }
+
+    private final java.util.concurrent.Executor deliveryExecutor;
+    private final StockMetrics metrics;
+    private final List<TransactionSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    TransactionPublisher(java.util.concurrent.Executor deliveryExecutor, StockMetrics metrics) {
+        this.deliveryExecutor = deliveryExecutor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Subscribes with a buffer of {@value #DEFAULT_BUFFER_CAPACITY} transactions, dropping the oldest ones on overflow.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Transaction> subscriber) {
+        subscribe(subscriber, DEFAULT_BUFFER_CAPACITY, OverflowPolicy.DropOldest);
+    }
+
+    /**
+     * @param bufferCapacity the transactions kept for the subscriber until it requests them
+     * @throws IllegalArgumentException if <code>bufferCapacity</code> is not positive
+     */
+    public void subscribe(Flow.Subscriber<? super Transaction> subscriber, int bufferCapacity, OverflowPolicy overflowPolicy) {
+        if (bufferCapacity <= 0)
+            throw new IllegalArgumentException("Invalid buffer capacity " + bufferCapacity);
+        for (var subscription : subscriptions)
+            if (subscription.subscriber == subscriber) {
+                subscriber.onError(new IllegalStateException("Already subscribed"));
+                return;
+            }
+        var subscription = new TransactionSubscription(subscriber, bufferCapacity, overflowPolicy);
+        subscriber.onSubscribe(subscription);
+        if (!subscription.cancelled)
+            subscriptions.add(subscription);
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Offers <code>transaction</code> to every subscriber without waiting for any.
+     */
+    void publish(Transaction transaction) {
+        for (var subscription : subscriptions)
+            subscription.offer(transaction);
+    }
+
+    private class TransactionSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Transaction> subscriber;
+        private final int capacity;
+        private final OverflowPolicy overflowPolicy;
+        /**
+         * Guarded by itself.
+         */
+        private final ArrayDeque<Transaction> buffer;
+        private final AtomicLong requested = new AtomicLong();
+        /**
+         * The signals to drain since the last drain started; a drain task runs while it is positive.
+         */
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        TransactionSubscription(Flow.Subscriber<? super Transaction> subscriber, int capacity, OverflowPolicy overflowPolicy) {
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+            this.overflowPolicy = overflowPolicy;
+            buffer = new ArrayDeque<>(Math.min(capacity, DEFAULT_BUFFER_CAPACITY));
+        }
+
+        void offer(Transaction transaction) {
+            synchronized (buffer) {
+                if (buffer.size() == capacity && overflowPolicy != OverflowPolicy.Cancel) {
+                    metrics.transactionDropped();
+                    if (overflowPolicy == OverflowPolicy.DropNewest)
+                        return;
+                    buffer.poll();
+                }
+                if (buffer.size() < capacity)
+                    buffer.add(transaction);
+                else
+                    error = new BufferOverflowException(capacity);
+            }
+            if (error != null)
+                fail(error);
+            else
+                drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requested " + n + " transactions, not a positive number"));
+                return;
+            }
+            requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Cancels the subscription, dropping the buffered transactions, and signals <code>cause</code>.
+         */
+        private void fail(Throwable cause) {
+            error = cause;
+            subscriptions.remove(this);
+            drain();
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() == 0)
+                deliveryExecutor.execute(this::deliver);
+        }
+
+        /**
+         * Delivers the requested transactions until no drain is pending.
+         */
+        private void deliver() {
+            var drains = 1;
+            do {
+                var delivered = 0L;
+                var limit = requested.get();
+                while (delivered < limit && !cancelled && error == null) {
+                    Transaction transaction;
+                    synchronized (buffer) {
+                        transaction = buffer.poll();
+                    }
+                    if (transaction == null)
+                        break;
+                    subscriber.onNext(transaction);
+                    delivered++;
+                }
+                if (delivered > 0 && limit != Long.MAX_VALUE)
+                    requested.addAndGet(-delivered);
+                var cause = error;
+                if (cause != null && !cancelled) {
+                    cancel();
+                    subscriber.onError(cause);
+                }
+            } while ((drains = pendingDrains.addAndGet(-drains)) != 0);
+        }
+    }
+}
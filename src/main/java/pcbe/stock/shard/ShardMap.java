@@ -0,0 +1,42 @@
+package pcbe.stock.shard;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns each company to one of the shards of a {@link ShardedStockServer}.
+ * <p>
+ * Companies without an explicit assignment are placed by the hash of their name, which
+ * is the same in every JVM, so routers configured with the same shards in the same order
+ * agree on the placement without sharing state.
+ */
+public class ShardMap {
+    private final int shardCount;
+    private final Map<String, Integer> assignments = new HashMap<>();
+
+    public ShardMap(int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("At least one shard is needed");
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Places <code>company</code> on <code>shard</code>, e.g. to isolate a heavily traded company.
+     * Must be done before the map is used by a server.
+     */
+    public ShardMap assign(String company, int shard) {
+        if (shard < 0 || shard >= shardCount)
+            throw new IllegalArgumentException("No shard " + shard + " among " + shardCount);
+        assignments.put(company, shard);
+        return this;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(String company) {
+        var shard = assignments.get(company);
+        return shard != null ? shard : Math.floorMod(company.hashCode(), shardCount);
+    }
+}
@@ -0,0 +1,532 @@
+package pcbe.stock.shard;
+
+import static java.util.Collections.unmodifiableSet;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import pcbe.log.LogManager;
+import pcbe.stock.Executor;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Notifiers;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.GatewayClient;
+import pcbe.stock.net.StockGateway;
+import pcbe.stock.server.Session;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * A {@link StockServer} routing the requests to shards, each one a {@link StockGateway}
+ * in front of the engine of a subset of the companies, usually in its own process.
+ * <p>
+ * A registered client is registered to every shard, through one connection per shard,
+ * so the buy and sale notifications of all the shards reach its {@link Notifiers}.
+ * Offers and demands go to the shard of their company, see {@link ShardMap}; the shard of
+ * each order of a client is remembered until it trades, expires or is removed, so the
+ * requests on an order are sent to one shard, and the shards are searched for the others.
+ * <p>
+ * Requests spanning the companies are sent to every shard and merged: the transaction
+ * history is the concatenation of the histories of the shards, and a page of offers or
+ * demands of all the companies is the best priced page among the pages of the shards,
+ * continued from the shard and the price of its last item.
+ * <p>
+ * The router keeps no book: the {@link StockService} given to the {@link StockServer}
+ * only holds the registry of the clients.
+ */
+public class ShardedStockServer extends StockServer implements Closeable {
+    private static final Logger logger = LogManager.getServerLogger();
+    /**
+     * The event loops of a routing gateway wait for the shards to answer, so they are many more than the cores.
+     */
+    private static final int ROUTER_EVENT_LOOPS = 8 * Runtime.getRuntime().availableProcessors();
+
+    private final ShardMap shardMap;
+    private final List<InetSocketAddress> shards;
+    private final Map<UUID, ShardConnections> connections = new ConcurrentHashMap<>();
+
+    public ShardedStockServer(List<InetSocketAddress> shards) {
+        this(new ShardMap(shards.size()), shards);
+    }
+
+    /**
+     * @param shards the addresses of the shards, in the order of the shard numbers of <code>shardMap</code>
+     */
+    public ShardedStockServer(ShardMap shardMap, List<InetSocketAddress> shards) {
+        super(new StockService(Runnable::run));
+        if (shardMap.getShardCount() != shards.size())
+            throw new IllegalArgumentException(shardMap.getShardCount() + " shards mapped but " + shards.size() + " given");
+        this.shardMap = shardMap;
+        this.shards = List.copyOf(shards);
+    }
+
+    /**
+     * Closes the connections of all the clients to the shards.
+     */
+    @Override
+    public void close() {
+        connections.values().forEach(client -> closeAll(client.clients));
+        connections.clear();
+    }
+
+    /**
+     * @return the number of orders whose shard is remembered, over all the clients
+     */
+    public int getRoutedItemCount() {
+        return connections.values().stream().mapToInt(client -> client.itemShards.size()).sum();
+    }
+
+    @Override
+    protected Response register(Session session, Notifiers notifiers) {
+        var response = super.register(session, notifiers);
+        if (!response.isSuccessful())
+            return response;
+        var clientId = session.getClientId();
+        var connection = new ShardConnections(shards.size());
+        var clients = connection.clients;
+        try {
+            for (int shard = 0; shard < clients.length; shard++) {
+                clients[shard] = new GatewayClient(shards.get(shard));
+                var shardResponse = clients[shard].register(clientId, evictingItems(notifiers, connection));
+                if (!shardResponse.isSuccessful()) {
+                    closeAll(clients);
+                    super.deregister(session);
+                    return shardResponse;
+                }
+            }
+        } catch (IOException e) {
+            closeAll(clients);
+            super.deregister(session);
+            throw new UncheckedIOException("Cannot connect client " + clientId + " to the shards", e);
+        }
+        connections.put(clientId, connection);
+        return response;
+    }
+
+    /**
+     * The shards cancel the orders of a deregistered client, so their shards are forgotten with its connections.
+     */
+    @Override
+    protected Response deregister(Session session) {
+        var response = super.deregister(session);
+        var connection = connections.remove(session.getClientId());
+        if (connection != null) {
+            for (var client : connection.clients)
+                client.deregister();
+            closeAll(connection.clients);
+        }
+        return response;
+    }
+
+    @Override
+    protected Response offerShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return placeOrder(session, company, client -> client.offerShares(company, shares, price, timeInForce, repricing));
+    }
+
+    @Override
+    protected Response demandShares(Session session, String company, int shares, double price, TimeInForce timeInForce,
+            RepricingSchedule repricing) {
+        return placeOrder(session, company, client -> client.demandShares(company, shares, price, timeInForce, repricing));
+    }
+
+    private Response placeOrder(Session session, String company, Function<GatewayClient, Response> order) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var shard = shardMap.shardOf(company);
+        var response = order.apply(connection.clients[shard]);
+        if (response.isSuccessful())
+            connection.routed(response.getItemId(), shard);
+        return response;
+    }
+
+    @Override
+    protected Response changeOffer(Session session, UUID offerId, int newShares, double newPrice) {
+        return onItem(session, offerId, GatewayClient::getOfferById, client -> client.changeOffer(offerId, newShares, newPrice));
+    }
+
+    @Override
+    protected Response changeDemand(Session session, UUID demandId, int newShares, double newPrice) {
+        return onItem(session, demandId, GatewayClient::getDemandById, client -> client.changeDemand(demandId, newShares, newPrice));
+    }
+
+    @Override
+    protected Response replaceOrder(Session session, UUID orderId, int expectedShares, double expectedPrice,
+            int newShares, double newPrice) {
+        return onItem(session, orderId, ShardedStockServer::getItemById,
+            client -> client.replaceOrder(orderId, expectedShares, expectedPrice, newShares, newPrice));
+    }
+
+    @Override
+    protected Response removeItem(Session session, UUID itemId) {
+        var response = onItem(session, itemId, ShardedStockServer::getItemById, client -> client.removeItem(itemId));
+        var connection = connectionsOf(session);
+        if (response.isSuccessful() && connection != null)
+            connection.itemShards.remove(itemId);
+        return response;
+    }
+
+    @Override
+    protected Response cancelAll(Session session, String company) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        Response response;
+        if (company != null) {
+            response = connection.clients[shardMap.shardOf(company)].cancelAll(company);
+        } else {
+            var removed = new ArrayList<StockItem>();
+            for (var client : connection.clients)
+                removed.addAll(client.cancelAll().getItems());
+            response = Response.orders(removed);
+        }
+        if (response.isSuccessful())
+            response.getItems().forEach(item -> connection.itemShards.remove(item.getId()));
+        return response;
+    }
+
+    @Override
+    protected Response getOpenOrders(Session session) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        return Response.orders(connection.getOpenOrders());
+    }
+
+    @Override
+    protected Response getDepth(Session session, String company, int levels) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        return connection.clients[shardMap.shardOf(company)].getDepth(company, levels);
+    }
+
+    @Override
+    protected Response getCandles(Session session, String company, Duration interval, int count) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        return connection.clients[shardMap.shardOf(company)].getCandles(company, interval, count);
+    }
+
+    @Override
+    protected Response getOfferById(Session session, UUID offerId) {
+        return onItem(session, offerId, GatewayClient::getOfferById, client -> client.getOfferById(offerId));
+    }
+
+    @Override
+    protected Response getDemandById(Session session, UUID demandId) {
+        return onItem(session, demandId, GatewayClient::getDemandById, client -> client.getDemandById(demandId));
+    }
+
+    /**
+     * Sends <code>request</code> to the shard of the item, found with <code>lookup</code> if its
+     * shard is not remembered. Only the shards of the orders of the client are remembered, as
+     * only their trades and expiries are notified to it.
+     */
+    private Response onItem(Session session, UUID itemId, BiFunction<GatewayClient, UUID, Response> lookup,
+            Function<GatewayClient, Response> request) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var clients = connection.clients;
+        var shard = connection.itemShards.get(itemId);
+        if (shard == null) {
+            for (int candidate = 0; candidate < clients.length && shard == null; candidate++) {
+                var found = lookup.apply(clients[candidate], itemId);
+                if (found.getStatus() != Status.DoesNotExist) {
+                    shard = candidate;
+                    if (found.getItem() != null && found.getItem().getClientId().equals(session.getClientId()))
+                        connection.itemShards.put(itemId, shard);
+                }
+            }
+            if (shard == null)
+                return Response.doesNotExist(itemId);
+        }
+        var response = request.apply(clients[shard]);
+        if (response.getStatus() == Status.DoesNotExist)
+            connection.itemShards.remove(itemId);
+        return response;
+    }
+
+    private static Response getItemById(GatewayClient client, UUID itemId) {
+        var offer = client.getOfferById(itemId);
+        return offer.getStatus() == Status.DoesNotExist ? client.getDemandById(itemId) : offer;
+    }
+
+    @Override
+    protected Response getOffers(Session session) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var offers = new HashSet<Offer>();
+        for (var client : connection.clients)
+            offers.addAll(client.getOffers().getOffers());
+        return Response.offers(unmodifiableSet(offers));
+    }
+
+    @Override
+    protected Response getDemands(Session session) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var demands = new HashSet<Demand>();
+        for (var client : connection.clients)
+            demands.addAll(client.getDemands().getDemands());
+        return Response.demands(unmodifiableSet(demands));
+    }
+
+    @Override
+    protected Response getOffers(Session session, BookQuery query) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var clients = connection.clients;
+        if (query.getCompany().isPresent())
+            return clients[shardMap.shardOf(query.getCompany().get())].getOffers(query);
+        var offers = mergePages(clients, query, GatewayClient::getOfferById, true,
+            (client, shardQuery) -> client.getOffers(shardQuery).getOffers());
+        return Response.offers(unmodifiableSet(new LinkedHashSet<>(offers)), nextCursor(offers, query));
+    }
+
+    @Override
+    protected Response getDemands(Session session, BookQuery query) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var clients = connection.clients;
+        if (query.getCompany().isPresent())
+            return clients[shardMap.shardOf(query.getCompany().get())].getDemands(query);
+        var demands = mergePages(clients, query, GatewayClient::getDemandById, false,
+            (client, shardQuery) -> client.getDemands(shardQuery).getDemands());
+        return Response.demands(unmodifiableSet(new LinkedHashSet<>(demands)), nextCursor(demands, query));
+    }
+
+    /**
+     * Merges the pages of the shards by price, then by shard, so the cursor of a merged page,
+     * its last item at price <code>p</code> on shard <code>s</code>, is continued by the items
+     * after it on shard <code>s</code>, the items priced worse than <code>p</code> on the shards
+     * before <code>s</code> and the items priced <code>p</code> or worse on the shards after it.
+     * A cursor found on no shard is ignored, as a single engine ignores it.
+     * @param ascending whether the items are best priced first by ascending price, as the offers are
+     */
+    private static <T extends StockItem> List<T> mergePages(GatewayClient[] clients, BookQuery query,
+            BiFunction<GatewayClient, UUID, Response> lookup, boolean ascending,
+            BiFunction<GatewayClient, BookQuery, Collection<T>> page) {
+        var cursorShard = -1;
+        StockItem after = null;
+        if (query.getCursor().isPresent())
+            for (int shard = 0; shard < clients.length && after == null; shard++) {
+                var found = lookup.apply(clients[shard], query.getCursor().get());
+                if (found.isSuccessful()) {
+                    cursorShard = shard;
+                    after = found.getItem();
+                }
+            }
+        var items = new ArrayList<T>();
+        for (int shard = 0; shard < clients.length; shard++) {
+            var minPrice = query.getMinPrice();
+            var maxPrice = query.getMaxPrice();
+            if (after != null && shard != cursorShard) {
+                var price = after.getPrice();
+                if (ascending)
+                    minPrice = Math.max(minPrice, shard < cursorShard ? Math.nextUp(price) : price);
+                else
+                    maxPrice = Math.min(maxPrice, shard < cursorShard ? Math.nextDown(price) : price);
+            }
+            if (minPrice > maxPrice)
+                continue;
+            var shardQuery = BookQuery.all().priceBetween(minPrice, maxPrice).limit(query.getLimit());
+            if (query.excludesOwnItems())
+                shardQuery.excludingOwnItems();
+            if (shard == cursorShard)
+                shardQuery.after(after.getId());
+            items.addAll(page.apply(clients[shard], shardQuery));
+        }
+        Comparator<T> byPrice = Comparator.comparingDouble(StockItem::getPrice);
+        return items.stream()
+            .sorted(ascending ? byPrice : byPrice.reversed())
+            .limit(query.getLimit())
+            .collect(toList());
+    }
+
+    private static UUID nextCursor(List<? extends StockItem> page, BookQuery query) {
+        return page.size() == query.getLimit()
+            ? page.get(page.size() - 1).getId()
+            : null;
+    }
+
+    @Override
+    protected Response getTransactionHistory(Session session) {
+        var connection = connectionsOf(session);
+        if (connection == null)
+            return Response.notRegistered();
+        var transactions = new ArrayList<Transaction>();
+        for (var client : connection.clients)
+            transactions.addAll(client.getTransactionHistory().getTransactions());
+        return Response.transactions(transactions);
+    }
+
+    /**
+     * @return the connections of the client to the shards, or <code>null</code> if it is not registered
+     */
+    private ShardConnections connectionsOf(Session session) {
+        return session.isOpen() ? connections.get(session.getClientId()) : null;
+    }
+
+    /**
+     * The shards of the orders of the client are forgotten when they trade or expire.
+     */
+    private static Notifiers evictingItems(Notifiers notifiers, ShardConnections connection) {
+        return new Notifiers() {
+            @Override
+            public Consumer<Transaction> buyNotifier() {
+                var buyNotifier = notifiers.buyNotifier();
+                return transaction -> {
+                    connection.left(transaction.getDemandId());
+                    buyNotifier.accept(transaction);
+                };
+            }
+
+            @Override
+            public Consumer<Transaction> saleNotifier() {
+                var saleNotifier = notifiers.saleNotifier();
+                return transaction -> {
+                    connection.left(transaction.getOfferId());
+                    saleNotifier.accept(transaction);
+                };
+            }
+
+            @Override
+            public Consumer<StockItem> expiryNotifier() {
+                var expiryNotifier = notifiers.expiryNotifier();
+                return item -> {
+                    connection.left(item.getId());
+                    expiryNotifier.accept(item);
+                };
+            }
+        };
+    }
+
+    private static void closeAll(GatewayClient[] clients) {
+        for (var client : clients)
+            if (client != null)
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    logger.fine("Cannot close shard connection: " + e.getMessage());
+                }
+    }
+
+    /**
+     * The connections of a registered client to the shards, one per shard, and the shards of its orders.
+     */
+    private static final class ShardConnections {
+        final GatewayClient[] clients;
+        /**
+         * The shard of each order of the client created or found through the router.
+         */
+        final Map<UUID, Integer> itemShards = new ConcurrentHashMap<>();
+        /**
+         * The orders that traded or expired while their shard was not remembered, such as an
+         * order filled as it was created, whose trades are notified before it is created.
+         */
+        private final Set<UUID> leftUnrouted = ConcurrentHashMap.newKeySet();
+        private int prunedSize;
+
+        ShardConnections(int shardCount) {
+            clients = new GatewayClient[shardCount];
+        }
+
+        List<StockItem> getOpenOrders() {
+            var orders = new ArrayList<StockItem>();
+            for (var client : clients)
+                orders.addAll(client.getOpenOrders().getItems());
+            return orders;
+        }
+
+        /**
+         * Remembers the shard of a created order, unless it already left the book.
+         */
+        void routed(UUID itemId, int shard) {
+            if (!leftUnrouted.remove(itemId))
+                itemShards.put(itemId, shard);
+            prune();
+        }
+
+        /**
+         * Forgets the shard of an order that traded or expired. A partially filled order is
+         * searched again by its next request.
+         */
+        void left(UUID itemId) {
+            if (itemShards.remove(itemId) == null)
+                leftUnrouted.add(itemId);
+        }
+
+        /**
+         * A trade notified after the response of a request racing with it may leave an order
+         * behind, so the orders remembered are pruned to the open orders of the client whenever
+         * they double.
+         */
+        private synchronized void prune() {
+            if (itemShards.size() + leftUnrouted.size() < 2 * prunedSize + 64)
+                return;
+            var open = getOpenOrders().stream().map(StockItem::getId).collect(toSet());
+            itemShards.keySet().retainAll(open);
+            leftUnrouted.clear();
+            prunedSize = itemShards.size();
+        }
+    }
+
+    /**
+     * Starts a gateway in front of a router to running shard gateways.
+     * <p>
+     * Arguments: <code>port host:port...</code>, the shards in the same order for every router
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2)
+            throw new IllegalArgumentException("Usage: ShardedStockServer <port> <host:port>...");
+        var shards = new ArrayList<InetSocketAddress>();
+        for (int i = 1; i < args.length; i++) {
+            var separator = args[i].lastIndexOf(':');
+            if (separator < 0)
+                throw new IllegalArgumentException("Shard address " + args[i] + " is not host:port");
+            shards.add(new InetSocketAddress(args[i].substring(0, separator), Integer.parseInt(args[i].substring(separator + 1))));
+        }
+        var router = new ShardedStockServer(shards);
+        var gateway = new StockGateway(router, new InetSocketAddress(Integer.parseInt(args[0])), ROUTER_EVENT_LOOPS);
+        System.out.println("Routing " + gateway.getAddress() + " to " + shards + ". ENTER to stop.");
+        int read;
+        while ((read = System.in.read()) != '\n' && read != -1);
+        gateway.close();
+        router.close();
+        Executor.getDefault().shutdownNow();
+    }
+}
@@ -0,0 +1,467 @@
+package pcbe.stock.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import pcbe.stock.client.StockClientNotifiers;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Response;
+import pcbe.stock.server.Session;
+import pcbe.stock.server.StockServer;
+import pcbe.stock.server.StockService;
+
+/**
+ * Drives a fresh {@link StockServer} with a large population of simulated clients
+ * and reports the throughput and the latency of the requests.
+ * <p>
+ * Unlike the {@link pcbe.stock.client.StockClient}s started by the {@link pcbe.stock.CLI}, the
+ * simulated clients have no threads or timers of their own: a fixed number of worker
+ * threads pick a client and an operation from a {@link Random} seeded by the
+ * {@link Config}, so a run with one worker and the inline engine is reproducible
+ * request by request and produces the same trades every time.
+ * <p>
+ * Arguments are <code>key=value</code> pairs, see {@link Config#parse(String[])}.
+ */
+public class LoadSimulation {
+    private static final double REFERENCE_PRICE = 100;
+    private static final int OPEN_ORDERS_PER_CLIENT = 4;
+    private static final int QUERY_PAGE_SIZE = 10;
+    private static final int MAX_LATENCY_SAMPLES_PER_WORKER = 1 << 20;
+
+    private final Config config;
+
+    public LoadSimulation(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the simulation to the end and returns the report.
+     */
+    public Report run() throws InterruptedException {
+        if (config.threads > config.clients)
+            throw new IllegalArgumentException("Every worker needs at least one client: " + config);
+        var pool = config.async ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        try {
+            var stockService = pool == null ? new StockService(Runnable::run)
+                : config.parallelMatching ? new StockService(pool, pool) : new StockService(pool);
+            var server = new StockServer(stockService);
+            var trades = new LongAdder();
+            var clients = new SimulatedClient[config.clients];
+            for (int i = 0; i < clients.length; i++) {
+                var notifiers = new StockClientNotifiers(transaction -> trades.increment(), transaction -> {});
+                clients[i] = new SimulatedClient(server.openSession(new UUID(config.seed, i), notifiers).orElseThrow());
+            }
+            var workers = new ArrayList<Worker>();
+            for (int w = 0; w < config.threads; w++)
+                workers.add(new Worker(w, clients));
+            var start = System.nanoTime();
+            var deadline = config.seconds > 0 ? start + TimeUnit.SECONDS.toNanos(config.seconds) : Long.MAX_VALUE;
+            var threads = new ArrayList<Thread>();
+            for (var worker : workers) {
+                var thread = new Thread(() -> worker.run(deadline), "simulation-worker-" + worker.index);
+                threads.add(thread);
+                thread.start();
+            }
+            for (var thread : threads)
+                thread.join();
+            if (pool != null)
+                pool.awaitQuiescence(1, TimeUnit.MINUTES);
+            var elapsedNanos = System.nanoTime() - start;
+            return new Report(config, workers, trades.sum(), checksumOf(stockService), elapsedNanos);
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Hashes the trade tape in execution order, ignoring the randomly generated ids,
+     * so that two runs can be compared with a single number.
+     */
+    private static long checksumOf(StockService stockService) {
+        var checksum = 1L;
+        for (var transaction : stockService.getTransactions())
+            checksum = 31 * checksum + Objects.hash(transaction.getOfferingClientId(), transaction.getDemandingClientId(),
+                transaction.getCompany(), transaction.getShares(), transaction.getPrice());
+        return checksum;
+    }
+
+    /**
+     * A client without a thread: its identity and the last few orders it placed.
+     * Only the worker owning the client touches it.
+     */
+    private static class SimulatedClient {
+        final Session session;
+        final UUID[] orders = new UUID[OPEN_ORDERS_PER_CLIENT];
+        final boolean[] isOffer = new boolean[OPEN_ORDERS_PER_CLIENT];
+        int nextSlot;
+
+        SimulatedClient(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Remembers a new order, forgetting the oldest one. A forgotten order keeps
+         * resting in the book until it is filled.
+         */
+        void placed(UUID orderId, boolean offer) {
+            orders[nextSlot] = orderId;
+            isOffer[nextSlot] = offer;
+            nextSlot = (nextSlot + 1) % OPEN_ORDERS_PER_CLIENT;
+        }
+    }
+
+    private class Worker {
+        final int index;
+        final SimulatedClient[] clients;
+        final Random random;
+        final long operations;
+        final long[] latencySamples;
+        long completed;
+        long orders;
+        long rejected;
+
+        Worker(int index, SimulatedClient[] clients) {
+            this.index = index;
+            this.clients = clients;
+            this.random = new Random(config.seed * 31 + index);
+            this.operations = config.operations / config.threads + (index < config.operations % config.threads ? 1 : 0);
+            this.latencySamples = new long[(int) Math.min(operations, MAX_LATENCY_SAMPLES_PER_WORKER)];
+        }
+
+        void run(long deadline) {
+            while (completed < operations && System.nanoTime() < deadline) {
+                var client = clients[ownedClient()];
+                var start = System.nanoTime();
+                var response = perform(client);
+                var latency = System.nanoTime() - start;
+                if (!response.isSuccessful())
+                    rejected++;
+                if (latencySamples.length > 0)
+                    latencySamples[(int) (completed % latencySamples.length)] = latency;
+                completed++;
+            }
+        }
+
+        /**
+         * @return the index of a client owned by this worker
+         */
+        private int ownedClient() {
+            var owned = (clients.length - index + config.threads - 1) / config.threads;
+            return index + config.threads * random.nextInt(owned);
+        }
+
+        private Response perform(SimulatedClient client) {
+            var operation = random.nextInt(config.totalWeight());
+            if ((operation -= config.offerWeight) < 0)
+                return placeOrder(client, true);
+            if ((operation -= config.demandWeight) < 0)
+                return placeOrder(client, false);
+            if ((operation -= config.changeWeight) < 0)
+                return changeOrder(client);
+            if ((operation -= config.removeWeight) < 0)
+                return removeOrder(client);
+            return client.session.getOffers(BookQuery.all().company(randomCompany()).limit(QUERY_PAGE_SIZE));
+        }
+
+        private Response placeOrder(SimulatedClient client, boolean offer) {
+            var company = randomCompany();
+            var shares = randomShares();
+            var price = randomPrice();
+            var response = offer
+                ? client.session.offerShares(company, shares, price)
+                : client.session.demandShares(company, shares, price);
+            orders++;
+            if (response.isSuccessful())
+                client.placed(response.getItemId(), offer);
+            return response;
+        }
+
+        private Response changeOrder(SimulatedClient client) {
+            var slot = random.nextInt(OPEN_ORDERS_PER_CLIENT);
+            if (client.orders[slot] == null)
+                return placeOrder(client, random.nextBoolean());
+            return client.isOffer[slot]
+                ? client.session.changeOffer(client.orders[slot], randomShares(), randomPrice())
+                : client.session.changeDemand(client.orders[slot], randomShares(), randomPrice());
+        }
+
+        private Response removeOrder(SimulatedClient client) {
+            var slot = random.nextInt(OPEN_ORDERS_PER_CLIENT);
+            if (client.orders[slot] == null)
+                return placeOrder(client, random.nextBoolean());
+            var response = client.session.removeItem(client.orders[slot]);
+            if (response.isSuccessful())
+                client.orders[slot] = null;
+            return response;
+        }
+
+        private String randomCompany() {
+            return "SYM" + random.nextInt(config.symbols);
+        }
+
+        private int randomShares() {
+            return 10 * (random.nextInt(10) + 1);
+        }
+
+        /**
+         * Prices are whole ticks around the reference price: orders only match at
+         * equal prices, so a narrow grid keeps the trade rate realistic.
+         */
+        private double randomPrice() {
+            return REFERENCE_PRICE + random.nextInt(config.priceLevels) - config.priceLevels / 2;
+        }
+    }
+
+    /**
+     * The parameters of a simulation. Defaults: 10000 clients, 16 symbols, 1000000 operations,
+     * a <code>40:40:10:5:5</code> mix, seed 42, one worker and the inline engine.
+     */
+    public static class Config {
+        private int clients = 10_000;
+        private int symbols = 16;
+        private int priceLevels = 5;
+        private long operations = 1_000_000;
+        private long seconds;
+        private int offerWeight = 40;
+        private int demandWeight = 40;
+        private int changeWeight = 10;
+        private int removeWeight = 5;
+        private int queryWeight = 5;
+        private long seed = 42;
+        private int threads = 1;
+        private boolean async;
+        private boolean parallelMatching;
+
+        /**
+         * Parses <code>key=value</code> arguments:
+         * <ul>
+         *  <li><code>clients</code> the number of simulated clients, up to 100000 and more
+         *  <li><code>symbols</code> the number of companies traded
+         *  <li><code>levels</code> the number of distinct prices orders are placed at
+         *  <li><code>operations</code> the total number of requests
+         *  <li><code>seconds</code> stops earlier after this duration, 0 for no limit
+         *  <li><code>mix</code> the weights of <code>offer:demand:change:remove:query</code>
+         *  <li><code>seed</code> the seed of the random generators
+         *  <li><code>threads</code> the number of worker threads; only 1 is reproducible
+         *  <li><code>async</code> runs matching and notifications on a thread pool
+         *   instead of the calling thread, as the default {@link StockService} does
+         *  <li><code>parallelMatching</code> with <code>async</code>, matches the symbols in parallel,
+         *   each one a task at a time
+         * </ul>
+         * @throws IllegalArgumentException if an argument is unknown or invalid
+         */
+        public static Config parse(String[] args) {
+            var config = new Config();
+            for (var arg : args) {
+                var separator = arg.indexOf('=');
+                if (separator < 0)
+                    throw new IllegalArgumentException("Expected key=value but got " + arg);
+                var value = arg.substring(separator + 1);
+                switch (arg.substring(0, separator)) {
+                    case "clients": config.clients(Integer.parseInt(value)); break;
+                    case "symbols": config.symbols(Integer.parseInt(value)); break;
+                    case "levels": config.priceLevels(Integer.parseInt(value)); break;
+                    case "operations": config.operations(Long.parseLong(value)); break;
+                    case "seconds": config.seconds(Long.parseLong(value)); break;
+                    case "mix": config.mix(value); break;
+                    case "seed": config.seed(Long.parseLong(value)); break;
+                    case "threads": config.threads(Integer.parseInt(value)); break;
+                    case "async": config.async(Boolean.parseBoolean(value)); break;
+                    case "parallelMatching": config.parallelMatching(Boolean.parseBoolean(value)); break;
+                    default: throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+            return config;
+        }
+
+        public Config clients(int clients) {
+            this.clients = requirePositive(clients, "clients");
+            return this;
+        }
+
+        public Config symbols(int symbols) {
+            this.symbols = requirePositive(symbols, "symbols");
+            return this;
+        }
+
+        public Config priceLevels(int priceLevels) {
+            this.priceLevels = requirePositive(priceLevels, "levels");
+            return this;
+        }
+
+        public Config operations(long operations) {
+            if (operations < 0)
+                throw new IllegalArgumentException("operations must not be negative: " + operations);
+            this.operations = operations;
+            return this;
+        }
+
+        public Config seconds(long seconds) {
+            this.seconds = seconds;
+            return this;
+        }
+
+        /**
+         * @param mix the weights of <code>offer:demand:change:remove:query</code>, e.g. <code>40:40:10:5:5</code>
+         */
+        public Config mix(String mix) {
+            var weights = Arrays.stream(mix.split(":")).mapToInt(Integer::parseInt).toArray();
+            if (weights.length != 5 || Arrays.stream(weights).anyMatch(weight -> weight < 0) || Arrays.stream(weights).sum() == 0)
+                throw new IllegalArgumentException("Expected offer:demand:change:remove:query weights but got " + mix);
+            offerWeight = weights[0];
+            demandWeight = weights[1];
+            changeWeight = weights[2];
+            removeWeight = weights[3];
+            queryWeight = weights[4];
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Config threads(int threads) {
+            this.threads = requirePositive(threads, "threads");
+            return this;
+        }
+
+        public Config async(boolean async) {
+            this.async = async;
+            return this;
+        }
+
+        public Config parallelMatching(boolean parallelMatching) {
+            this.parallelMatching = parallelMatching;
+            return this;
+        }
+
+        private int totalWeight() {
+            return offerWeight + demandWeight + changeWeight + removeWeight + queryWeight;
+        }
+
+        private static int requirePositive(int value, String name) {
+            if (value <= 0)
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("clients=%d symbols=%d levels=%d operations=%d seconds=%d mix=%d:%d:%d:%d:%d seed=%d threads=%d async=%b"
+                + " parallelMatching=%b",
+                clients, symbols, priceLevels, operations, seconds,
+                offerWeight, demandWeight, changeWeight, removeWeight, queryWeight, seed, threads, async, parallelMatching);
+        }
+    }
+
+    /**
+     * The outcome of a run. The latencies are those of single requests to the
+     * {@link StockServer}; with the inline engine they include the matching.
+     */
+    public static class Report {
+        private final Config config;
+        private final long operations;
+        private final long orders;
+        private final long rejected;
+        private final long trades;
+        private final long checksum;
+        private final long elapsedNanos;
+        private final long[] sortedLatencies;
+
+        private Report(Config config, Iterable<Worker> workers, long trades, long checksum, long elapsedNanos) {
+            this.config = config;
+            this.trades = trades;
+            this.checksum = checksum;
+            this.elapsedNanos = elapsedNanos;
+            long operations = 0, orders = 0, rejected = 0;
+            var samples = new long[0];
+            for (var worker : workers) {
+                operations += worker.completed;
+                orders += worker.orders;
+                rejected += worker.rejected;
+                var workerSamples = (int) Math.min(worker.completed, worker.latencySamples.length);
+                var offset = samples.length;
+                samples = Arrays.copyOf(samples, offset + workerSamples);
+                System.arraycopy(worker.latencySamples, 0, samples, offset, workerSamples);
+            }
+            Arrays.sort(samples);
+            this.operations = operations;
+            this.orders = orders;
+            this.rejected = rejected;
+            this.sortedLatencies = samples;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getOrders() {
+            return orders;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getTrades() {
+            return trades;
+        }
+
+        /**
+         * @return a hash of the trades in execution order; equal for two reproducible runs
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public double getOrdersPerSecond() {
+            return orders / seconds();
+        }
+
+        public double getTradesPerSecond() {
+            return trades / seconds();
+        }
+
+        /**
+         * @param percentile between 0 exclusive and 1 inclusive
+         * @return the request latency at <code>percentile</code>, in nanoseconds
+         */
+        public long getLatencyNanos(double percentile) {
+            if (sortedLatencies.length == 0)
+                return 0;
+            var index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)];
+        }
+
+        private double seconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%n"
+                + "operations=%d rejected=%d elapsed=%.2fs%n"
+                + "orders=%d (%.0f/s) trades=%d (%.0f/s) checksum=%016x%n"
+                + "latency(us) p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+                config, operations, rejected, seconds(),
+                orders, getOrdersPerSecond(), trades, getTradesPerSecond(), checksum,
+                micros(.5), micros(.9), micros(.99), micros(.999), micros(1));
+        }
+
+        private double micros(double percentile) {
+            return getLatencyNanos(percentile) / 1e3;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println(new LoadSimulation(Config.parse(args)).run());
+    }
+}
@@ -2,30 +2,109 @@ package pcbe;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.RepeatedTest.LONG_DISPLAY_NAME;
 import static org.junit.platform.commons.util.ReflectionUtils.tryToReadFieldValue;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 
+import pcbe.stock.Executor;
+import pcbe.stock.archive.TransactionArchive;
+import pcbe.stock.archive.TransactionArchiver;
 import pcbe.stock.client.StockClient;
 import pcbe.stock.client.StockClientGenerator;
+import pcbe.stock.client.StockClientNotifiers;
+import pcbe.stock.codec.ResponseCodec;
+import pcbe.stock.codec.ResponseView;
+import pcbe.stock.codec.StockItemView;
+import pcbe.stock.codec.TransactionCodec;
+import pcbe.stock.codec.TransactionView;
+import pcbe.stock.journal.JournalReplayer;
+import pcbe.stock.journal.RecordingStockServer;
+import pcbe.stock.metrics.LatencyHistogram;
+import pcbe.stock.metrics.MetricsEndpoint;
+import pcbe.stock.metrics.StockMetrics.Operation;
+import pcbe.stock.model.BookQuery;
+import pcbe.stock.model.Candle;
+import pcbe.stock.model.MarketDepth;
+import pcbe.stock.model.PriceLevel;
+import pcbe.stock.model.RepricingSchedule;
+import pcbe.stock.model.Response;
+import pcbe.stock.model.Response.Status;
+import pcbe.stock.model.StockItem;
+import pcbe.stock.model.StockItem.Demand;
+import pcbe.stock.model.StockItem.Offer;
+import pcbe.stock.model.TimeInForce;
+import pcbe.stock.model.Transaction;
+import pcbe.stock.net.GatewayClient;
+import pcbe.stock.net.Protocol;
+import pcbe.stock.net.Protocol.FrameBuilder;
+import pcbe.stock.net.StockGateway;
+import pcbe.stock.replication.ReplicatingStockServer;
+import pcbe.stock.replication.Standby;
+import pcbe.stock.server.AsyncStockServer;
+import pcbe.stock.server.CandleChart;
+import pcbe.stock.server.ReadReplica;
+import pcbe.stock.server.Session;
 import pcbe.stock.server.StockServer;
 import pcbe.stock.server.StockService;
+import pcbe.stock.server.TransactionPublisher;
+import pcbe.stock.shard.ShardMap;
+import pcbe.stock.shard.ShardedStockServer;
+import pcbe.stock.simulation.LoadSimulation;
 
 /**
  * This class holds all the unit tests of the application.
@@ -34,6 +113,45 @@ class UnitTests {
 
     private static final int LIFESPAN = 120;
 
+    /**
+     * Polls <code>condition</code> until it holds, failing after five seconds.
+     */
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the condition");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * A server over a service matching on the calling thread, with a seller and a buyer registered
+     * before each test. The nested classes extending it change the service or the server by
+     * overriding their factories, which run before their own set-up.
+     */
+    abstract class TwoClients {
+        StockService service;
+        StockServer server;
+        UUID seller = UUID.randomUUID();
+        UUID buyer = UUID.randomUUID();
+
+        StockService createService() {
+            return new StockService(Runnable::run);
+        }
+
+        StockServer createServer(StockService service) {
+            return new StockServer(service);
+        }
+
+        @BeforeEach
+        void registerClients() {
+            service = createService();
+            server = createServer(service);
+            server.register(seller, new StockClientNotifiers(t -> {}, t -> {}));
+            server.register(buyer, new StockClientNotifiers(t -> {}, t -> {}));
+        }
+    }
+
     @Test
     void cannotInstantiateInvalidClient() {
         assertThrows(RuntimeException.class, () -> new StockClient(null, 0));
@@ -105,4 +223,1454 @@ class UnitTests {
 
     }
 
+    @Nested
+    class BookQueries {
+
+        StockServer server;
+        UUID client = UUID.randomUUID();
+        UUID otherClient = UUID.randomUUID();
+
+        @BeforeEach
+        void fillBook() {
+            StockService.reset();
+            server = new StockServer();
+            server.register(client, new StockClientNotifiers(t -> {}, t -> {}));
+            server.register(otherClient, new StockClientNotifiers(t -> {}, t -> {}));
+            for (int price = 10; price >= 1; price--)
+                server.offerShares(price % 2 == 0 ? client : otherClient, price % 3 == 0 ? "Intel" : "Sony", 10, price);
+        }
+
+        @Test
+        void pagesFollowPriceOrderUntilTheCursorRunsOut() {
+            var prices = new ArrayList<Double>();
+            UUID cursor = null;
+            do {
+                var page = server.getOffers(client, BookQuery.all().limit(4).after(cursor));
+                assertThat(page.getOffers().size(), lessThanOrEqualTo(4));
+                page.getOffers().forEach(offer -> prices.add(offer.getPrice()));
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            assertEquals(List.of(1., 2., 3., 4., 5., 6., 7., 8., 9., 10.), prices);
+        }
+
+        @Test
+        void filtersAreAppliedByTheServer() {
+            var offers = server.getOffers(client, BookQuery.all().company("Sony").priceBetween(2, 8).excludingOwnItems()).getOffers();
+            assertThat(offers, hasSize(2));
+            assertTrue(offers.stream().allMatch(offer -> offer.getCompany().equals("Sony") && !offer.getClientId().equals(client)));
+        }
+
+        @Test
+        void demandsComeHighestPriceFirst() {
+            server.demandShares(client, "Sony", 10, 100);
+            server.demandShares(client, "Sony", 10, 200);
+            var best = server.getDemands(otherClient, BookQuery.all().company("Sony").limit(1));
+            assertEquals(200, best.getDemands().iterator().next().getPrice());
+            assertTrue(best.getNextCursor() != null);
+        }
+
+        @Test
+        void removedItemsCannotBeFound() {
+            var offerId = server.offerShares(client, "Sony", 10, 50).getItemId();
+            assertEquals(offerId, server.getOfferById(client, offerId).getOffer().getId());
+            server.removeItem(client, offerId);
+            assertEquals(Status.DoesNotExist, server.getOfferById(client, offerId).getStatus());
+        }
+    }
+
+    @Nested
+    class Codec {
+
+        ByteBuffer roundTrip(Response response) {
+            var buffer = ByteBuffer.allocate(ResponseCodec.encodedLength(response));
+            assertEquals(buffer.capacity(), ResponseCodec.encode(response, buffer, 0));
+            return buffer;
+        }
+
+        @Test
+        void everyStatusSurvivesARoundTrip() {
+            var itemId = UUID.randomUUID();
+            for (var response : List.of(Response.registeredSuccessfully(), Response.alreadyRegistered(),
+                    Response.notRegistered(), Response.created(itemId), Response.doesNotExist(itemId),
+                    Response.ongoingTransaction(), Response.changed())) {
+                var decoded = ResponseCodec.decode(roundTrip(response), 0);
+                assertEquals(response.getStatus(), decoded.getStatus());
+                assertEquals(response.getItemId(), decoded.getItemId());
+            }
+        }
+
+        @Test
+        void itemsCanBeReadInPlace() {
+            var offer = new Offer(UUID.randomUUID(), "Samsung Electronics", 150, 12.5);
+            var view = new ResponseView().wrap(roundTrip(Response.offers(Set.of(offer))), 0);
+            var item = view.item(0, new StockItemView());
+            assertEquals(1, view.getCount());
+            assertTrue(item.isOffer() && item.idEquals(offer.getId()) && item.clientIdEquals(offer.getClientId()));
+            assertEquals(offer.getCompany(), item.getCompany());
+            assertEquals(offer.getShares(), item.getShares());
+            assertEquals(offer.getPrice(), item.getPrice());
+            var demand = new Demand(UUID.randomUUID(), "Intel", 10, 3);
+            assertEquals(demand.getId(), ResponseCodec.decode(roundTrip(Response.demand(demand)), 0).getDemand().getId());
+        }
+
+        @Test
+        void transactionsCanBeReadInPlace() {
+            var transaction = new Transaction(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "Sony", 20, 4);
+            var view = new ResponseView().wrap(roundTrip(Response.transactions(List.of(transaction))), 0);
+            var transactionView = view.transaction(0, new TransactionView());
+            assertEquals(transaction.getId(), transactionView.getId());
+            assertEquals(transaction.getOfferId(), transactionView.getOfferId());
+            assertEquals(transaction.getDemandId(), transactionView.getDemandId());
+            assertEquals(transaction.getShares(), transactionView.getShares());
+            assertEquals(transaction.getPrice(), transactionView.getPrice());
+            assertThrows(IndexOutOfBoundsException.class, () -> view.transaction(1, transactionView));
+        }
+
+        @Test
+        void depthSurvivesARoundTrip() {
+            var depth = new MarketDepth(List.of(new PriceLevel(5, 9, 2), new PriceLevel(7, 4, 1)), List.of(new PriceLevel(4, 2, 1)));
+            var decoded = ResponseCodec.decode(roundTrip(Response.depth(depth)), 0).getDepth();
+            assertEquals(depth.getOfferLevels(), decoded.getOfferLevels());
+            assertEquals(depth.getDemandLevels(), decoded.getDemandLevels());
+        }
+
+        @Test
+        void candlesSurviveARoundTrip() {
+            var candles = List.of(new Candle(60_000, 60_000, 5, 7, 4, 6, 30, 3), new Candle(120_000, 60_000, 6, 6, 6, 6, 1, 1));
+            assertEquals(candles, ResponseCodec.decode(roundTrip(Response.candles(candles)), 0).getCandles());
+        }
+    }
+
+    @Nested
+    class OverLoopback {
+
+        StockGateway gateway;
+
+        @BeforeEach
+        void startGateway() throws IOException {
+            StockService.reset();
+            gateway = new StockGateway(new StockServer(), new InetSocketAddress("localhost", 0), 2);
+        }
+
+        @AfterEach
+        void stopGateway() throws IOException {
+            gateway.close();
+        }
+
+        @Test
+        void requestsBeforeRegisteringAreRejected() throws IOException {
+            try (var client = new GatewayClient(gateway.getAddress())) {
+                assertEquals(Status.NotRegistered, client.offerShares("Intel", 10, 1).getStatus());
+            }
+        }
+
+        @Test
+        void matchingOrdersAreNotifiedToBothClients() throws IOException, InterruptedException {
+            var bought = new CountDownLatch(1);
+            var sold = new CountDownLatch(1);
+            try (var seller = new GatewayClient(gateway.getAddress()); var buyer = new GatewayClient(gateway.getAddress())) {
+                seller.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> sold.countDown()));
+                buyer.register(UUID.randomUUID(), new StockClientNotifiers(t -> bought.countDown(), t -> {}));
+                var offerId = seller.offerShares("Intel", 10, 2).getItemId();
+                assertEquals(offerId, seller.getOfferById(offerId).getOffer().getId());
+                assertEquals(Status.Created, buyer.demandShares("Intel", 10, 2).getStatus());
+                assertTrue(bought.await(5, TimeUnit.SECONDS));
+                assertTrue(sold.await(5, TimeUnit.SECONDS));
+                assertThat(buyer.getTransactionHistory().getTransactions(), hasSize(1));
+            }
+        }
+
+        @Test
+        void ordersForACompanyTooLongToEncodeAreRejected() throws IOException {
+            try (var client = new GatewayClient(gateway.getAddress())) {
+                client.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                var company = "C".repeat(StockItem.MAX_COMPANY_BYTES + 1);
+                assertEquals(Status.InvalidOrder, client.offerShares(company, 10, 1).getStatus());
+                assertEquals(Status.InvalidOrder, client.demandShares(company, 10, 1).getStatus());
+                assertEquals(Status.Created, client.offerShares(company.substring(1), 10, 1).getStatus());
+                assertThat(client.getOffers().getOffers(), hasSize(1));
+            }
+        }
+
+        @Test
+        void aFailingNotifierDoesNotStopTheClient() throws Exception {
+            var sold = new CountDownLatch(1);
+            try (var seller = new GatewayClient(gateway.getAddress()); var buyer = new GatewayClient(gateway.getAddress())) {
+                seller.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> sold.countDown()));
+                buyer.register(UUID.randomUUID(), new StockClientNotifiers(t -> {
+                    throw new IllegalStateException("Failing notifier");
+                }, t -> {}));
+                seller.offerShares("Intel", 10, 2);
+                assertEquals(Status.Created, buyer.demandSharesAsync("Intel", 10, 2).get(5, TimeUnit.SECONDS).getStatus());
+                assertTrue(sold.await(5, TimeUnit.SECONDS));
+                assertEquals(Status.Created, buyer.demandSharesAsync("Sony", 1, 1).get(5, TimeUnit.SECONDS).getStatus());
+            }
+        }
+
+        @Test
+        void requestsFailOnceTheGatewayHungUp() throws Exception {
+            try (var fakeGateway = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+                try (var client = new GatewayClient((InetSocketAddress) fakeGateway.getLocalAddress());
+                        var peer = fakeGateway.accept()) {
+                    peer.shutdownOutput();
+                    for (int i = 0; i < 2; i++) {
+                        var response = client.offerSharesAsync("Intel", 10, 2);
+                        assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+                    }
+                }
+            }
+        }
+
+        @Test
+        void aMistakenIdDoesNotCostTheClientItsOrders() throws IOException {
+            try (var client = new GatewayClient(gateway.getAddress())) {
+                client.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                var offerId = client.offerShares("Intel", 10, 2).getItemId();
+                var unknownId = UUID.randomUUID();
+                assertEquals(Status.DoesNotExist, client.removeItem(unknownId).getStatus());
+                assertEquals(unknownId, client.changeOffer(unknownId, 5, 2).getItemId());
+                assertEquals(Status.DoesNotExist, client.changeDemand(offerId, 5, 2).getStatus());
+                assertEquals(10, client.getOfferById(offerId).getOffer().getShares());
+                assertThat(client.getOpenOrders().getItems(), hasSize(1));
+                assertEquals(1, gateway.getConnectionCount());
+            }
+        }
+
+        @Test
+        void aRequestFailingInTheServerIsAnsweredWithoutClosingTheConnection() throws IOException {
+            var failing = new StockServer(new StockService(Runnable::run)) {
+                @Override
+                protected Response getDemands(Session session) {
+                    throw new IllegalStateException("Failing server");
+                }
+            };
+            try (var failingGateway = new StockGateway(failing, new InetSocketAddress("localhost", 0), 1);
+                    var client = new GatewayClient(failingGateway.getAddress())) {
+                client.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                client.offerShares("Intel", 10, 2);
+                assertEquals(Status.Failed, client.getDemands().getStatus());
+                assertThat(client.getOpenOrders().getItems(), hasSize(1));
+            }
+        }
+
+        @Test
+        void aResponseTooLargeForAFrameIsRefusedWithoutClosingTheConnection() throws IOException {
+            var trade = new Transaction(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "Intel", 1, 1);
+            var busy = new StockServer(new StockService(Runnable::run)) {
+                @Override
+                protected Response getTransactionHistory(Session session) {
+                    return Response.transactions(Collections.nCopies(Protocol.MAX_FRAME_LENGTH / TransactionCodec.LENGTH + 1, trade));
+                }
+            };
+            try (var busyGateway = new StockGateway(busy, new InetSocketAddress("localhost", 0), 1);
+                    var client = new GatewayClient(busyGateway.getAddress())) {
+                client.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                assertEquals(Status.TooLarge, client.getTransactionHistory().getStatus());
+                assertEquals(Status.Created, client.offerShares("Intel", 10, 2).getStatus());
+            }
+        }
+
+        Response exchange(SocketChannel channel, FrameBuilder request) throws IOException {
+            var frame = request.build();
+            while (frame.hasRemaining())
+                channel.write(frame);
+            var length = ByteBuffer.allocate(Integer.BYTES);
+            while (length.hasRemaining())
+                assertThat(channel.read(length), not(-1));
+            var response = ByteBuffer.allocate(length.getInt(0));
+            while (response.hasRemaining())
+                assertThat(channel.read(response), not(-1));
+            response.flip().position(Protocol.HEADER_LENGTH - Integer.BYTES);
+            return Protocol.getResponse(response);
+        }
+
+        @Test
+        void anOrderWithAnInvalidRepricingIsRejectedWithoutClosingTheConnection() throws IOException {
+            try (var channel = SocketChannel.open(gateway.getAddress())) {
+                assertEquals(Status.Successful, exchange(channel, new FrameBuilder(Protocol.REGISTER, 1).putUUID(UUID.randomUUID())).getStatus());
+                for (var limit : new double[] { Double.NaN, 0, -1 }) {
+                    var demand = new FrameBuilder(Protocol.DEMAND, 2).putString("Intel").putInt(1).putDouble(10)
+                        .putTimeInForce(TimeInForce.GOOD_TILL_CANCELLED).putDouble(2).putLong(5).putDouble(limit);
+                    assertEquals(Status.InvalidOrder, exchange(channel, demand).getStatus());
+                }
+                assertEquals(Status.Created, exchange(channel, new FrameBuilder(Protocol.DEMAND, 3).putString("Intel").putInt(1).putDouble(10)).getStatus());
+            }
+        }
+
+        @Test
+        void aRequestWaitingForTheEngineDoesNotHoldUpOtherConnections() throws Exception {
+            var release = new CountDownLatch(1);
+            var stalling = new StockServer(new StockService(Runnable::run)) {
+                @Override
+                protected Response getDemands(Session session) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.getDemands(session);
+                }
+            };
+            try (var oneLoop = new StockGateway(stalling, new InetSocketAddress("localhost", 0), 1);
+                    var stalled = new GatewayClient(oneLoop.getAddress()); var other = new GatewayClient(oneLoop.getAddress())) {
+                stalled.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                var stalledResponse = Executor.getDefault().submit(() -> stalled.getDemands());
+                other.register(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {}));
+                assertEquals(Status.Created, other.offerShares("Intel", 10, 2).getStatus());
+                assertFalse(stalledResponse.isDone());
+                release.countDown();
+                assertEquals(Status.Successful, stalledResponse.get(5, TimeUnit.SECONDS).getStatus());
+            }
+        }
+
+        @Test
+        void aClientNotReadingItsResponsesIsNoLongerRead() throws IOException, InterruptedException {
+            var request = ByteBuffer.allocate(Protocol.HEADER_LENGTH);
+            request.putInt(Protocol.HEADER_LENGTH - Integer.BYTES).put(Protocol.GET_OFFERS).putInt(1);
+            var requests = ByteBuffer.allocate(64 * 1024);
+            while (requests.remaining() >= request.capacity())
+                requests.put(request.array());
+            requests.flip();
+            long written = 0;
+            try (var channel = SocketChannel.open(gateway.getAddress())) {
+                channel.configureBlocking(false);
+                var stalledSince = System.nanoTime();
+                while (written < 256 * 1024 * 1024 && System.nanoTime() - stalledSince < TimeUnit.SECONDS.toNanos(1)) {
+                    if (!requests.hasRemaining())
+                        requests.rewind();
+                    var bytes = channel.write(requests);
+                    if (bytes > 0) {
+                        written += bytes;
+                        stalledSince = System.nanoTime();
+                    } else
+                        Thread.sleep(1);
+                }
+            }
+            assertThat(written, lessThan(32L * 1024 * 1024));
+        }
+    }
+
+    @Nested
+    class Sharding {
+
+        StockService[] shards;
+        StockGateway[] gateways;
+        ShardedStockServer router;
+
+        @BeforeEach
+        void startShards() throws IOException {
+            shards = new StockService[] { new StockService(Runnable::run), new StockService(Runnable::run) };
+            gateways = new StockGateway[shards.length];
+            for (int i = 0; i < shards.length; i++)
+                gateways[i] = new StockGateway(new StockServer(shards[i]), new InetSocketAddress("localhost", 0), 1);
+            router = new ShardedStockServer(new ShardMap(2).assign("A", 0).assign("B", 1),
+                List.of(gateways[0].getAddress(), gateways[1].getAddress()));
+        }
+
+        @AfterEach
+        void stopShards() throws IOException {
+            router.close();
+            for (var gateway : gateways)
+                gateway.close();
+        }
+
+        @Test
+        void ordersGoToTheShardOfTheirCompany() {
+            var seller = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+            var offerB = seller.offerShares("B", 10, 50).getItemId();
+            seller.offerShares("A", 10, 100);
+            assertThat(shards[0].getOffers(), hasSize(1));
+            assertThat(shards[1].getOffers(), hasSize(1));
+
+            assertEquals(Status.Changed, seller.changeOffer(offerB, 10, 60).getStatus());
+            assertEquals(60, shards[1].getOffer(offerB).get().getPrice());
+            assertThat(seller.getOffers().getOffers(), hasSize(2));
+            assertEquals(offerB, seller.getOffers(BookQuery.all().limit(1)).getOffers().iterator().next().getId());
+            assertEquals(Status.DoesNotExist, seller.removeItem(UUID.randomUUID()).getStatus());
+        }
+
+        @Test
+        void historyAndNotificationsOfAllShardsAreMerged() throws InterruptedException {
+            var sold = new CountDownLatch(2);
+            var seller = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> sold.countDown())).get();
+            var buyer = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+            seller.offerShares("A", 10, 100);
+            seller.offerShares("B", 10, 50);
+            buyer.demandShares("A", 10, 100);
+            buyer.demandShares("B", 10, 50);
+            assertTrue(sold.await(5, TimeUnit.SECONDS));
+            assertThat(buyer.getTransactionHistory().getTransactions(), hasSize(2));
+        }
+
+        @Test
+        void pagesOfAllTheShardsAreContinuedByTheirCursor() {
+            var seller = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+            var expected = new ArrayList<UUID>();
+            for (var price : new double[] { 1, 2 })
+                expected.add(seller.offerShares("A", 1, price).getItemId());
+            expected.add(seller.offerShares("B", 1, 2).getItemId());
+            expected.add(seller.offerShares("A", 1, 3).getItemId());
+            expected.add(seller.offerShares("A", 1, 3).getItemId());
+            expected.add(seller.offerShares("B", 1, 3).getItemId());
+            expected.add(seller.offerShares("B", 1, 4).getItemId());
+
+            var paged = new ArrayList<UUID>();
+            UUID cursor = null;
+            do {
+                var page = seller.getOffers(BookQuery.all().limit(2).after(cursor));
+                page.getOffers().forEach(offer -> paged.add(offer.getId()));
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            assertEquals(expected, paged);
+            var demandId = seller.demandShares("B", 1, 1).getItemId();
+            seller.demandShares("A", 1, 0.5);
+            var demands = seller.getDemands(BookQuery.all().limit(1));
+            assertEquals(demandId, demands.getNextCursor());
+            assertThat(seller.getDemands(BookQuery.all().limit(1).after(demandId)).getDemands(), hasSize(1));
+        }
+
+        @Test
+        void theShardsOfTheOrdersAreForgottenWhenTheyLeaveTheBook() throws InterruptedException {
+            var sold = new LinkedBlockingQueue<Transaction>();
+            var seller = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, sold::add)).get();
+            var buyer = router.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+            seller.offerShares("A", 10, 100);
+            buyer.demandShares("A", 10, 100);
+            seller.offerShares("B", 10, 50, TimeInForce.goodFor(Duration.ofMillis(10)));
+            var removedId = buyer.demandShares("B", 1, 1).getItemId();
+            buyer.removeItem(removedId);
+            buyer.demandShares("A", 1, 1);
+            buyer.demandShares("B", 1, 1);
+            buyer.cancelAll();
+            awaitUntil(() -> router.getRoutedItemCount() == 0);
+
+            var partId = seller.offerShares("A", 10, 100).getItemId();
+            buyer.demandShares("A", 4, 100);
+            while (!sold.poll(5, TimeUnit.SECONDS).getOfferId().equals(partId));
+            assertEquals(Status.Changed, seller.changeOffer(partId, 6, 101).getStatus());
+            assertEquals(1, router.getRoutedItemCount());
+            seller.deregister();
+            assertEquals(0, router.getRoutedItemCount());
+        }
+
+        @Test
+        void aShardRunsInItsOwnProcess() throws IOException, InterruptedException, URISyntaxException {
+            var java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            var classes = Paths.get(StockGateway.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+            var process = new ProcessBuilder(java, "--enable-preview", "-Dpcbe.log.level=OFF", "-cp", classes,
+                StockGateway.class.getName(), "0", "1").redirectError(Redirect.INHERIT).start();
+            try {
+                var output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                var listening = Pattern.compile(":(\\d+)\\. ENTER to stop").matcher("");
+                String line;
+                do {
+                    line = output.readLine();
+                    assertNotNull(line);
+                } while (!listening.reset(line).find());
+                var shard = new InetSocketAddress("localhost", Integer.parseInt(listening.group(1)));
+                var processRouter = new ShardedStockServer(new ShardMap(2).assign("A", 0).assign("B", 1),
+                    List.of(gateways[0].getAddress(), shard));
+                var seller = processRouter.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var buyer = processRouter.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var offerId = seller.offerShares("B", 10, 50).getItemId();
+                buyer.demandShares("B", 4, 50);
+                awaitUntil(() -> {
+                    var offer = seller.getOfferById(offerId);
+                    return offer.isSuccessful() && offer.getOffer().getShares() == 6;
+                });
+                assertThat(buyer.getTransactionHistory().getTransactions(), hasSize(1));
+                assertThat(shards[1].getOffers(), hasSize(0));
+                processRouter.close();
+
+                process.getOutputStream().close();
+                assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+            } finally {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    @Nested
+    class Accounts extends TwoClients {
+
+        @BeforeEach
+        void fundClients() {
+            server.depositShares(seller, "A", 10);
+            server.depositCurrency(buyer, 500);
+        }
+
+        @Test
+        void unfundedOrdersDoNotReachTheBook() {
+            assertEquals(Status.InsufficientFunds, server.offerShares(seller, "A", 11, 40).getStatus());
+            assertEquals(Status.InsufficientFunds, server.demandShares(buyer, "A", 10, 51).getStatus());
+            var demandId = server.demandShares(buyer, "B", 5, 100).getItemId();
+            assertEquals(Status.InsufficientFunds, server.changeDemand(buyer, demandId, 6, 100).getStatus());
+            assertThat(service.getOffers(), hasSize(0));
+            assertEquals(0, service.getLedger().getCurrency(buyer));
+            server.removeItem(buyer, demandId);
+            assertEquals(500, service.getLedger().getCurrency(buyer));
+            assertEquals(0, service.getLedger().getReservedCurrency(buyer));
+        }
+
+        @Test
+        void ordersWithoutPositiveSharesAndPriceAreRejected() {
+            assertEquals(Status.InvalidOrder, server.offerShares(seller, "A", 0, 40).getStatus());
+            assertEquals(Status.InvalidOrder, server.offerShares(seller, "A", -1, 40).getStatus());
+            assertEquals(Status.InvalidOrder, server.demandShares(buyer, "A", 1, Double.NaN).getStatus());
+            assertEquals(Status.InvalidOrder, server.demandShares(buyer, "A", 1, Double.POSITIVE_INFINITY).getStatus());
+            assertEquals(Status.InvalidOrder, server.demandShares(buyer, "A", 1, -10).getStatus());
+            var demandId = server.demandShares(buyer, "A", 5, 100).getItemId();
+            assertEquals(Status.InvalidOrder, server.changeDemand(buyer, demandId, 5, Double.NaN).getStatus());
+            assertEquals(Status.InvalidOrder, server.changeDemand(buyer, demandId, 0, 100).getStatus());
+            assertEquals(Status.InvalidOrder, server.replaceOrder(buyer, demandId, 5, 100, 5, 0).getStatus());
+            assertEquals(0, service.getLedger().getCurrency(buyer));
+            assertEquals(500, service.getLedger().getReservedCurrency(buyer));
+            assertThrows(IllegalArgumentException.class, () -> server.depositCurrency(buyer, Double.NaN));
+            assertThrows(IllegalArgumentException.class, () -> server.depositShares(seller, "A", -5));
+            assertEquals(10, service.getLedger().getShares(seller, "A"));
+        }
+
+        @Test
+        void transactionsSettleTheAccounts() {
+            server.offerShares(seller, "A", 10, 40);
+            server.demandShares(buyer, "A", 4, 40);
+            var ledger = service.getLedger();
+            assertEquals(340, ledger.getCurrency(buyer));
+            assertEquals(0, ledger.getReservedCurrency(buyer));
+            assertEquals(4, ledger.getShares(buyer, "A"));
+            assertEquals(160, ledger.getCurrency(seller));
+            assertEquals(0, ledger.getShares(seller, "A"));
+            assertEquals(6, ledger.getReservedShares(seller, "A"));
+        }
+    }
+
+    @Nested
+    class OrderExpiry {
+        StockService service;
+        UUID seller = UUID.randomUUID();
+        UUID buyer = UUID.randomUUID();
+        LinkedBlockingQueue<StockItem> expired = new LinkedBlockingQueue<>();
+
+        @BeforeEach
+        void configureClients() {
+            service = new StockService(Runnable::run);
+            service.configureNotifiers(seller, new StockClientNotifiers(t -> {}, t -> {}, expired::add));
+            service.configureNotifiers(buyer, new StockClientNotifiers(t -> {}, t -> {}, expired::add));
+        }
+
+        @Test
+        void goodTillTimeOrdersExpireInTheEngine() throws InterruptedException {
+            service.getLedger().depositCurrency(buyer, 100);
+            var demandId = service.addDemand(buyer, "A", 5, 10, TimeInForce.goodFor(Duration.ofMillis(50)));
+            var demand = expired.poll(5, TimeUnit.SECONDS);
+            assertEquals(demandId, demand.getId());
+            assertThat(service.getDemands(), hasSize(0));
+            assertEquals(100, service.getLedger().getCurrency(buyer));
+            assertEquals(1, service.getMetrics().getOrdersExpired());
+        }
+
+        @Test
+        void soonerDeadlinesReplaceTheWakeUpOfTheTimer() throws InterruptedException {
+            var blocker = UUID.randomUUID();
+            var unblocked = new CountDownLatch(1);
+            service.configureNotifiers(blocker, new StockClientNotifiers(t -> {}, t -> {}, item -> {
+                try {
+                    unblocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            service.addOffer(blocker, "A", 1, 10, TimeInForce.goodFor(Duration.ofMillis(1)));
+            var start = System.currentTimeMillis() + 50;
+            for (int i = 0; i < 1000; i++)
+                service.addOffer(seller, "A", 1, 10, TimeInForce.goodTillTime(start + 200 - i / 5));
+            Thread.sleep(Math.max(0, start + 201 - System.currentTimeMillis()));
+            unblocked.countDown();
+            for (int i = 0; i < 1000; i++)
+                assertNotNull(expired.poll(5, TimeUnit.SECONDS));
+            var lastId = service.addOffer(seller, "B", 1, 10, TimeInForce.goodFor(Duration.ofMillis(20)));
+            assertEquals(lastId, expired.poll(5, TimeUnit.SECONDS).getId());
+            assertThat(service.getMetrics().getDeadlineWakeUps(), lessThanOrEqualTo(3L));
+        }
+
+        @Test
+        void theRestOfAnImmediateOrderExpires() {
+            service.addOffer(seller, "A", 3, 10);
+            service.addDemand(buyer, "A", 5, 10, TimeInForce.IMMEDIATE_OR_CANCEL);
+            assertThat(service.getTransactions(), hasSize(1));
+            assertThat(service.getDemands(), hasSize(0));
+            assertEquals(2, expired.poll().getShares());
+        }
+
+        @Test
+        void fillOrKillOrdersTradeCompletelyOrNotAtAll() {
+            service.addOffer(seller, "A", 3, 10);
+            service.addDemand(buyer, "A", 5, 10, TimeInForce.FILL_OR_KILL);
+            assertThat(service.getTransactions(), hasSize(0));
+            assertEquals(5, expired.poll().getShares());
+            service.addDemand(buyer, "A", 3, 10, TimeInForce.FILL_OR_KILL);
+            assertThat(service.getTransactions(), hasSize(1));
+            assertThat(service.getOffers(), hasSize(0));
+            assertTrue(expired.isEmpty());
+        }
+    }
+
+    @Nested
+    class Repricing {
+        StockService service = new StockService(Runnable::run);
+        UUID seller = UUID.randomUUID();
+        UUID buyer = UUID.randomUUID();
+
+        @Test
+        void decayingOffersMeetTheDemandsUnderTheirPrice() throws InterruptedException {
+            var bought = new LinkedBlockingQueue<Transaction>();
+            service.configureNotifiers(buyer, new StockClientNotifiers(bought::add, t -> {}));
+            service.addDemand(buyer, "A", 5, 8.1);
+            service.addOffer(seller, "A", 5, 10, TimeInForce.GOOD_TILL_CANCELLED,
+                RepricingSchedule.decaying(0.9, Duration.ofMillis(10), 8));
+            assertEquals(8.1, bought.poll(5, TimeUnit.SECONDS).getPrice());
+            assertEquals(2, service.getMetrics().getOrdersRepriced());
+        }
+
+        @Test
+        void escalationStopsAtTheCapOrWhenTheAccountCannotPay() throws InterruptedException {
+            service.getLedger().depositCurrency(buyer, 60);
+            service.addDemand(buyer, "B", 3, 10, TimeInForce.GOOD_TILL_CANCELLED,
+                RepricingSchedule.escalating(2, Duration.ofMillis(5), 100));
+            service.addDemand(buyer, "A", 1, 10, TimeInForce.GOOD_TILL_CANCELLED,
+                RepricingSchedule.escalating(2, Duration.ofMillis(5), 15));
+            // The deadline of B comes before the one of A, so B cannot pay once A reaches its cap
+            awaitUntil(() -> service.getDemands().stream().anyMatch(demand -> demand.getPrice() == 15));
+            var prices = service.getDemands().stream().collect(Collectors.toMap(Demand::getCompany, Demand::getPrice));
+            assertEquals(15.0, prices.get("A"));
+            assertEquals(10.0, prices.get("B"));
+            assertEquals(45, service.getLedger().getReservedCurrency(buyer));
+        }
+
+        @Test
+        void repricedPricesAreRoundedToHundredths() {
+            var decay = RepricingSchedule.decaying(0.9, Duration.ofSeconds(1), 0.01);
+            assertEquals(1.11, decay.next(1.23));
+            assertEquals(0.5, decay.next(0.56));
+            assertEquals(0.01, decay.next(0.01));
+            assertEquals(0.004, RepricingSchedule.escalating(1.1, Duration.ofSeconds(1), 1).next(0.004));
+            assertThrows(IllegalArgumentException.class, () -> RepricingSchedule.escalating(0.9, Duration.ofSeconds(1), 10));
+        }
+
+        @Test
+        void aFailingDeadlineDoesNotStopTheOthers() throws InterruptedException {
+            var expired = new LinkedBlockingQueue<StockItem>();
+            service.configureNotifiers(seller, new StockClientNotifiers(t -> {}, t -> {}, item -> {
+                throw new IllegalStateException("Failing notifier");
+            }));
+            service.configureNotifiers(buyer, new StockClientNotifiers(t -> {}, t -> {}, expired::add));
+            service.addOffer(seller, "A", 5, 10, TimeInForce.goodFor(Duration.ofMillis(10)));
+            service.addDemand(buyer, "A", 5, 1, TimeInForce.goodFor(Duration.ofMillis(10)),
+                RepricingSchedule.escalating(2, Duration.ofMillis(5), 2));
+            assertEquals("A", expired.poll(5, TimeUnit.SECONDS).getCompany());
+            assertEquals(1, service.getMetrics().getOrdersRepriced());
+        }
+
+        @Test
+        void limitsMustBePositivePrices() {
+            for (var limit : new double[] { Double.NaN, Double.POSITIVE_INFINITY, 0, -1 }) {
+                assertThrows(IllegalArgumentException.class, () -> RepricingSchedule.decaying(0.9, Duration.ofSeconds(1), limit));
+                assertThrows(IllegalArgumentException.class, () -> RepricingSchedule.of(2, 1000, limit));
+            }
+            assertThrows(IllegalArgumentException.class, () -> RepricingSchedule.of(Double.NaN, 1000, 10));
+        }
+
+        @Test
+        void aSimulatedClientGetsBackWhatItPutAsideForAnEscalatingDemand() throws Exception {
+            var server = new StockServer(service);
+            server.register(seller, new StockClientNotifiers(t -> {}, t -> {}));
+            service.startAuctions("A", Duration.ofHours(1));
+            server.offerShares(seller, "A", 10, 2);
+            var client = new StockClient(UUID.randomUUID(), LIFESPAN);
+            client.registerTo(server);
+            client.addCurrencyUnits(100);
+
+            // The demand of 10 shares at 2 may escalate up to 3, so 30 is put aside
+            client.demandShares();
+            assertCurrency(client, 70, 30);
+            service.expire(server.getOpenOrders(client.getId()).getItems().get(0).getId());
+            assertCurrency(client, 100, 0);
+
+            client.demandShares();
+            assertThat(service.runAuction("A"), hasSize(1));
+            assertCurrency(client, 80, 0);
+            service.stopAuctions("A");
+        }
+
+        void assertCurrency(StockClient client, double currencyUnits, double restrictedCurrencyUnits) throws Exception {
+            assertEquals(currencyUnits, tryToReadFieldValue(StockClient.class, "currencyUnits", client).get());
+            assertEquals(restrictedCurrencyUnits, tryToReadFieldValue(StockClient.class, "restrictedCurrencyUnits", client).get());
+        }
+    }
+
+    @Nested
+    class ReplaceOrder extends TwoClients {
+
+        @Test
+        void replacesTheOrderOnlyIfItIsAsExpected() {
+            var offerId = server.offerShares(seller, "A", 10, 5).getItemId();
+            var replaced = server.replaceOrder(seller, offerId, 10, 5, 7, 6);
+            assertEquals(Status.Changed, replaced.getStatus());
+            assertEquals(6.0, replaced.getOffer().getPrice());
+
+            var conflict = server.replaceOrder(seller, offerId, 10, 5, 3, 3);
+            assertEquals(Status.Conflict, conflict.getStatus());
+            assertEquals(7, conflict.getOffer().getShares());
+            assertEquals(6.0, conflict.getOffer().getPrice());
+        }
+
+        @Test
+        void onlyTheOwnerReplacesItsOrder() {
+            var demandId = server.demandShares(seller, "A", 10, 5).getItemId();
+            assertEquals(Status.DoesNotExist, server.replaceOrder(buyer, demandId, 10, 5, 1, 1).getStatus());
+            assertEquals(Status.DoesNotExist, server.replaceOrder(seller, UUID.randomUUID(), 10, 5, 1, 1).getStatus());
+        }
+
+        @Test
+        void aReplacedOrderIsMatched() {
+            server.demandShares(buyer, "A", 7, 5.5);
+            var offerId = server.offerShares(seller, "A", 7, 6).getItemId();
+            server.replaceOrder(seller, offerId, 7, 6, 7, 5.5);
+            assertThat(server.getTransactionHistory(seller).getTransactions(), hasSize(1));
+        }
+    }
+
+    @Nested
+    class AsyncServer extends TwoClients {
+        LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        AsyncStockServer asyncServer;
+
+        @Override
+        StockService createService() {
+            return new StockService(tasks::add);
+        }
+
+        @BeforeEach
+        void wrapServer() {
+            asyncServer = new AsyncStockServer(server);
+        }
+
+        void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        @Test
+        void ordersCompleteOnceMatched() {
+            var offer = asyncServer.offerShares(seller, "A", 10, 5);
+            var demand = asyncServer.demandShares(buyer, "A", 4, 5);
+            assertFalse(offer.isDone());
+            assertFalse(demand.isDone());
+
+            runTasks();
+            assertEquals(Status.Created, demand.join().getStatus());
+            assertTrue(offer.isDone());
+            assertThat(asyncServer.getTransactionHistory(buyer).join().getTransactions(), hasSize(1));
+        }
+
+        @Test
+        void rejectedRequestsCompleteAtOnce() {
+            assertEquals(Status.NotRegistered, asyncServer.offerShares(UUID.randomUUID(), "A", 1, 1).join().getStatus());
+            assertEquals(Status.DoesNotExist, asyncServer.replaceOrder(seller, UUID.randomUUID(), 1, 1, 2, 2).join().getStatus());
+        }
+    }
+
+    @Nested
+    class TransactionStream {
+        StockService service = new StockService(Runnable::run);
+        UUID seller = UUID.randomUUID();
+        UUID buyer = UUID.randomUUID();
+
+        class Recorder implements Flow.Subscriber<Transaction> {
+            Flow.Subscription subscription;
+            List<Integer> shares = new ArrayList<>();
+            Throwable error;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+            }
+
+            @Override
+            public void onNext(Transaction transaction) {
+                shares.add(transaction.getShares());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                this.error = error;
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }
+
+        void trade(int times) {
+            for (int shares = 1; shares <= times; shares++) {
+                service.addOffer(seller, "A", shares, 1);
+                service.addDemand(buyer, "A", shares, 1);
+            }
+        }
+
+        @Test
+        void subscribersReceiveWhatTheyRequest() {
+            var recorder = new Recorder();
+            service.getTransactionPublisher().subscribe(recorder);
+            recorder.subscription.request(2);
+            trade(3);
+            assertEquals(List.of(1, 2), recorder.shares);
+
+            recorder.subscription.request(5);
+            assertEquals(List.of(1, 2, 3), recorder.shares);
+        }
+
+        @Test
+        void fullBuffersFollowTheirOverflowPolicy() {
+            var publisher = service.getTransactionPublisher();
+            var dropOldest = new Recorder();
+            var dropNewest = new Recorder();
+            var cancel = new Recorder();
+            publisher.subscribe(dropOldest, 2, TransactionPublisher.OverflowPolicy.DropOldest);
+            publisher.subscribe(dropNewest, 2, TransactionPublisher.OverflowPolicy.DropNewest);
+            publisher.subscribe(cancel, 2, TransactionPublisher.OverflowPolicy.Cancel);
+            trade(3);
+            dropOldest.subscription.request(3);
+            dropNewest.subscription.request(3);
+
+            assertEquals(List.of(2, 3), dropOldest.shares);
+            assertEquals(List.of(1, 2), dropNewest.shares);
+            assertTrue(cancel.error instanceof TransactionPublisher.BufferOverflowException);
+            assertEquals(2, publisher.getSubscriberCount());
+            assertEquals(2, service.getMetrics().getTransactionsDropped());
+        }
+
+        @Test
+        void tradesArePublishedWithTheChangesOfTheirOrders() {
+            var offerId = service.addOffer(seller, "A", 10, 1);
+            var offerShares = new ArrayList<Integer>();
+            var recorder = new Recorder() {
+                @Override
+                public void onNext(Transaction transaction) {
+                    offerShares.add(service.getOffer(offerId).map(Offer::getShares).orElse(0));
+                }
+            };
+            service.getTransactionPublisher().subscribe(recorder);
+            recorder.subscription.request(2);
+            service.addDemand(buyer, "A", 4, 1);
+            service.addDemand(buyer, "A", 6, 1);
+            assertEquals(List.of(6, 0), offerShares);
+        }
+    }
+
+    @Nested
+    class OpenOrders extends TwoClients {
+
+        @Test
+        void openOrdersAreTheOrdersOfTheClientStillInTheBook() {
+            var offerId = server.offerShares(seller, "A", 5, 10).getItemId();
+            var demandId = server.demandShares(seller, "B", 3, 2).getItemId();
+            server.offerShares(seller, "C", 1, 1);
+            server.demandShares(buyer, "C", 1, 1);
+            server.offerShares(buyer, "A", 5, 11);
+
+            var orders = server.getOpenOrders(seller).getItems();
+            assertEquals(List.of(offerId, demandId), orders.stream().map(StockItem::getId).collect(Collectors.toList()));
+        }
+
+        @Test
+        void cancelAllRemovesTheOrdersOfTheClient() {
+            server.offerShares(seller, "A", 5, 10);
+            server.demandShares(seller, "B", 3, 2);
+            server.offerShares(seller, "B", 2, 9);
+            server.offerShares(buyer, "B", 1, 9);
+
+            assertThat(server.cancelAll(seller, "B").getItems(), hasSize(2));
+            assertThat(server.getOpenOrders(seller).getItems(), hasSize(1));
+            assertThat(server.cancelAll(seller).getItems(), hasSize(1));
+            assertThat(server.getOpenOrders(seller).getItems(), hasSize(0));
+            assertThat(server.getOpenOrders(buyer).getItems(), hasSize(1));
+        }
+
+        @Test
+        void deregisteringCancelsTheOrders() {
+            server.offerShares(seller, "A", 5, 10);
+            server.deregister(seller);
+            assertThat(server.getOffers(buyer).getOffers(), hasSize(0));
+        }
+    }
+
+    @Nested
+    class CallAuction extends TwoClients {
+
+        @BeforeEach
+        void startAuctions() {
+            service.startAuctions("A", Duration.ofHours(1));
+        }
+
+        @AfterEach
+        void stopAuctions() {
+            service.stopAuctions("A");
+        }
+
+        @Test
+        void ordersWaitForTheAuction() {
+            server.demandShares(buyer, "A", 5, 10);
+            server.offerShares(seller, "A", 5, 10);
+            assertThat(service.getTransactions(), hasSize(0));
+            assertThat(service.runAuction("A"), hasSize(1));
+            assertThat(server.getOpenOrders(buyer).getItems(), hasSize(0));
+        }
+
+        @Test
+        void crossingOrdersTradeAtTheClearingPrice() {
+            server.demandShares(buyer, "A", 5, 11);
+            server.demandShares(buyer, "A", 4, 10);
+            server.offerShares(seller, "A", 3, 9);
+            server.offerShares(seller, "A", 5, 10);
+
+            var trades = service.runAuction("A");
+            assertEquals(8, trades.stream().mapToInt(Transaction::getShares).sum());
+            trades.forEach(trade -> assertEquals(10, trade.getPrice()));
+            assertEquals(1, server.getOpenOrders(buyer).getItems().get(0).getShares());
+            assertThat(server.getOpenOrders(seller).getItems(), hasSize(0));
+        }
+
+        @Test
+        void immediateOrdersExpireAfterTheAuction() {
+            server.offerShares(seller, "A", 2, 10);
+            server.demandShares(buyer, "A", 5, 10, TimeInForce.IMMEDIATE_OR_CANCEL);
+            assertThat(server.getOpenOrders(buyer).getItems(), hasSize(1));
+
+            assertThat(service.runAuction("A"), hasSize(1));
+            assertThat(server.getOpenOrders(buyer).getItems(), hasSize(0));
+        }
+
+        @Test
+        void ordersMatchContinuouslyOnceTheAuctionsStop() {
+            server.demandShares(buyer, "A", 5, 10);
+            service.stopAuctions("A");
+            server.offerShares(seller, "A", 5, 10);
+            assertThat(service.getTransactions(), hasSize(1));
+            assertFalse(service.isAuctioned("A"));
+        }
+    }
+
+    @Nested
+    class ParallelMatching {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        StockService service = new StockService(pool, pool);
+        StockServer server = new StockServer(service);
+
+        @AfterEach
+        void shutdown() {
+            pool.shutdownNow();
+        }
+
+        @Test
+        void everyCompanyIsMatchedToTheEnd() {
+            var seller = UUID.randomUUID();
+            var buyer = UUID.randomUUID();
+            server.register(seller, new StockClientNotifiers(t -> {}, t -> {}));
+            server.register(buyer, new StockClientNotifiers(t -> {}, t -> {}));
+            var companies = List.of("A", "B", "C", "D", "E", "F", "G", "H");
+            for (int i = 0; i < 200; i++)
+                for (var company : companies) {
+                    server.offerShares(seller, company, 1, 10);
+                    server.demandShares(buyer, company, 1, 10);
+                }
+            assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+            assertThat(service.getTransactions(), hasSize(200 * companies.size()));
+            assertThat(service.getOffers(), hasSize(0));
+            assertThat(service.getDemands(), hasSize(0));
+        }
+    }
+
+    @Nested
+    class ReadReplicaQueries extends TwoClients {
+        ReadReplica replica;
+
+        @Override
+        StockServer createServer(StockService service) {
+            replica = new ReadReplica(service, Duration.ZERO);
+            return new StockServer(service, replica);
+        }
+
+        @AfterEach
+        void close() {
+            replica.close();
+        }
+
+        @Test
+        void queriesFollowTheBook() {
+            var offerId = server.offerShares(seller, "A", 10, 5).getItemId();
+            server.offerShares(seller, "A", 3, 7);
+            server.demandShares(buyer, "A", 4, 5);
+            var removedId = server.demandShares(buyer, "B", 1, 1).getItemId();
+            server.removeItem(buyer, removedId);
+
+            assertEquals(6, server.getOfferById(buyer, offerId).getOffer().getShares());
+            assertEquals(Status.DoesNotExist, server.getDemandById(buyer, removedId).getStatus());
+            assertThat(server.getOffers(buyer, BookQuery.all().company("A")).getOffers(), hasSize(2));
+            assertThat(server.getDemands(buyer).getDemands(), hasSize(0));
+            assertThat(server.getTransactionHistory(buyer).getTransactions(), hasSize(1));
+            assertEquals(Duration.ZERO, replica.getStaleness());
+        }
+
+        @Test
+        void theReplicaMustFollowTheServiceFromItsFirstOrder() {
+            var other = new StockService(Runnable::run);
+            other.addOffer(seller, "A", 1, 1);
+            assertThrows(IllegalStateException.class, () -> new ReadReplica(other, Duration.ZERO));
+        }
+    }
+
+    @Nested
+    class Depth extends TwoClients {
+
+        @Test
+        void levelsAggregateTheOrdersAtEachPrice() {
+            server.offerShares(seller, "A", 10, 5);
+            server.offerShares(seller, "A", 3, 5);
+            server.offerShares(seller, "A", 4, 7);
+            server.offerShares(seller, "A", 2, 9);
+            server.offerShares(seller, "B", 1, 1);
+            server.demandShares(buyer, "A", 4, 5);
+            server.demandShares(buyer, "A", 1, 3);
+            server.demandShares(buyer, "A", 2, 4);
+
+            var depth = server.getDepth(buyer, "A", 2).getDepth();
+            assertEquals(List.of(new PriceLevel(5, 9, 2), new PriceLevel(7, 4, 1)), depth.getOfferLevels());
+            assertEquals(List.of(new PriceLevel(4, 2, 1), new PriceLevel(3, 1, 1)), depth.getDemandLevels());
+        }
+
+        @Test
+        void levelsFollowTheChangesOfTheOrders() {
+            var offerId = server.offerShares(seller, "A", 10, 5).getItemId();
+            var otherId = server.offerShares(seller, "A", 3, 5).getItemId();
+            server.changeOffer(seller, offerId, 8, 6);
+            server.removeItem(seller, otherId);
+
+            assertEquals(List.of(new PriceLevel(6, 8, 1)), server.getDepth(buyer, "A", 5).getDepth().getOfferLevels());
+            assertThat(server.getDepth(buyer, "Z", 5).getDepth().getDemandLevels(), hasSize(0));
+            assertThrows(IllegalArgumentException.class, () -> server.getDepth(buyer, "A", 0));
+        }
+    }
+
+    @Nested
+    class Candles extends TwoClients {
+        CandleChart chart = new CandleChart(List.of(Duration.ofSeconds(1), Duration.ofMinutes(1)), 2);
+
+        void trade(String company, int shares, double price, long timeMillis) {
+            chart.record(new Transaction(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), company, shares, price), timeMillis);
+        }
+
+        @Test
+        void candlesAggregateTheTradesOfEachPeriod() {
+            trade("A", 10, 5, 60_100);
+            trade("A", 5, 7, 60_900);
+            trade("A", 1, 4, 61_200);
+            trade("A", 2, 6, 119_999);
+            trade("B", 3, 1, 60_500);
+
+            assertEquals(List.of(new Candle(60_000, 60_000, 5, 7, 4, 6, 18, 4)), chart.getCandles("A", Duration.ofMinutes(1), 5));
+            assertEquals(List.of(new Candle(61_000, 1000, 4, 4, 4, 4, 1, 1), new Candle(119_000, 1000, 6, 6, 6, 6, 2, 1)),
+                chart.getCandles("A", Duration.ofSeconds(1), 5));
+            assertEquals(List.of(new Candle(119_000, 1000, 6, 6, 6, 6, 2, 1)), chart.getCandles("A", Duration.ofSeconds(1), 1));
+            assertThat(chart.getCandles("A", Duration.ofHours(1), 5), hasSize(0));
+            assertThat(chart.getCandles("C", Duration.ofSeconds(1), 5), hasSize(0));
+        }
+
+        @Test
+        void theServiceRecordsItsTrades() {
+            server.offerShares(seller, "A", 5, 10);
+            server.demandShares(buyer, "A", 2, 10);
+            server.demandShares(buyer, "A", 3, 10);
+
+            var candles = server.getCandles(buyer, "A", Duration.ofHours(1), 5).getCandles();
+            assertThat(candles, hasSize(1));
+            assertEquals(5, candles.get(0).getVolume());
+            assertEquals(2, candles.get(0).getTrades());
+            assertThrows(IllegalArgumentException.class, () -> server.getCandles(buyer, "A", Duration.ofHours(1), 0));
+        }
+    }
+
+    @Nested
+    class Replication {
+
+        @Test
+        void theStandbyTakesOverWithTheAcknowledgedOrders() throws IOException, InterruptedException {
+            try (var standby = new Standby(new InetSocketAddress("localhost", 0), new InetSocketAddress("localhost", 0), 1)) {
+                var service = new StockService(Runnable::run);
+                var primary = new ReplicatingStockServer(service, standby.getReplicationAddress());
+                var seller = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var buyer = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var offerId = seller.offerShares("A", 10, 100).getItemId();
+                buyer.demandShares("A", 4, 100);
+                var removedId = buyer.demandShares("B", 1, 1).getItemId();
+                buyer.removeItem(removedId);
+                assertEquals(4, standby.getAppliedSequence());
+                assertEquals(0, service.getMetrics().getReplicationLag());
+                assertEquals(service.getOffers(), standby.getStockService().getOffers());
+                assertThat(standby.getStockService().getTransactions(), hasSize(1));
+
+                primary.close();
+                try (var client = new GatewayClient(standby.awaitTakeOver().getAddress())) {
+                    client.register(seller.getClientId(), new StockClientNotifiers(t -> {}, t -> {}));
+                    assertEquals(6, client.getOfferById(offerId).getOffer().getShares());
+                    assertEquals(Status.Changed, client.changeOffer(offerId, 5, 99).getStatus());
+                    assertThat(client.getDemands().getDemands(), hasSize(0));
+                }
+            }
+        }
+
+        @Test
+        void theStandbyFollowsTheDeadlinesOfThePrimary() throws IOException, InterruptedException {
+            try (var standby = new Standby(new InetSocketAddress("localhost", 0), new InetSocketAddress("localhost", 0), 1)) {
+                var service = new StockService(Runnable::run);
+                var primary = new ReplicatingStockServer(service, standby.getReplicationAddress());
+                var seller = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var buyer = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                seller.offerShares("A", 10, 100, TimeInForce.goodFor(Duration.ofMillis(20)));
+                buyer.demandShares("B", 5, 8.1);
+                seller.offerShares("B", 5, 10, TimeInForce.GOOD_TILL_CANCELLED, RepricingSchedule.decaying(0.9, Duration.ofMillis(10), 8));
+                var followed = standby.getStockService();
+                awaitUntil(() -> followed.getTransactions().size() == 1 && followed.getOffers().isEmpty());
+                assertEquals(service.getTransactions().get(0).getPrice(), followed.getTransactions().get(0).getPrice());
+                assertEquals(1, followed.getMetrics().getOrdersExpired());
+                assertEquals(2, followed.getMetrics().getOrdersRepriced());
+                assertEquals(0, followed.getMetrics().getDeadlineWakeUps());
+                primary.close();
+            }
+        }
+
+        @Test
+        void theStandbyChecksTheOrdersAgainstTheReplicatedDeposits() throws IOException, InterruptedException {
+            try (var standby = new Standby(new InetSocketAddress("localhost", 0), new InetSocketAddress("localhost", 0), 1)) {
+                var primary = new ReplicatingStockServer(new StockService(Runnable::run), standby.getReplicationAddress());
+                var seller = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                var buyer = primary.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+                primary.depositShares(seller.getClientId(), "A", 10);
+                primary.depositCurrency(buyer.getClientId(), 500);
+                seller.offerShares("A", 10, 40);
+                assertEquals(Status.InsufficientFunds, buyer.demandShares("A", 10, 51).getStatus());
+                buyer.demandShares("A", 4, 40);
+                var ledger = standby.getStockService().getLedger();
+                assertEquals(340, ledger.getCurrency(buyer.getClientId()));
+                assertEquals(4, ledger.getShares(buyer.getClientId(), "A"));
+                assertEquals(6, ledger.getReservedShares(seller.getClientId(), "A"));
+                assertEquals(160, ledger.getCurrency(seller.getClientId()));
+                primary.close();
+            }
+        }
+    }
+
+    @Nested
+    class Metrics extends TwoClients {
+
+        @Test
+        void histogramPercentilesAreWithinTheBucketPrecision() {
+            var histogram = new LatencyHistogram();
+            for (long nanos = 1; nanos <= 1_000_000; nanos++)
+                histogram.record(nanos);
+            var snapshot = histogram.snapshot();
+            assertEquals(1_000_000, snapshot.getCount());
+            assertThat(snapshot.getP50Micros(), closeTo(500, 500 / 16.0));
+            assertThat(snapshot.getP99Micros(), closeTo(990, 990 / 16.0));
+            assertThat(snapshot.getMaxMicros(), closeTo(1000, 0.001));
+        }
+
+        @Test
+        void countersFollowTheLifeOfOrders() {
+            var removedOfferId = server.offerShares(seller, "Intel", 10, 3).getItemId();
+            server.removeItem(seller, removedOfferId);
+            server.offerShares(seller, "Intel", 10, 2);
+            server.demandShares(buyer, "Intel", 4, 2);
+            var metrics = service.getMetrics();
+            assertEquals(3, metrics.getOrdersCreated());
+            assertEquals(1, metrics.getOrdersRemoved());
+            assertEquals(1, metrics.getTransactions());
+            assertEquals(4, metrics.getTradedShares());
+            assertEquals(1, metrics.getOrdersFilled());
+            assertEquals(1, metrics.getTimeToFillByCompany().get("Intel").getCount());
+            assertEquals(3, metrics.getOrderLatenciesByCompany().get("Intel").getCount());
+            assertEquals(1, metrics.getOperationLatencies().get(Operation.RemoveItem.name()).getCount());
+        }
+
+        @Test
+        void endpointServesTheStateOfTheEngine() throws IOException {
+            server.offerShares(seller, "Intel", 10, 2);
+            server.demandShares(buyer, "Intel", 4, 2);
+            var endpoint = new MetricsEndpoint(new InetSocketAddress("localhost", 0), service::getMetrics, Executor.getDefault());
+            try {
+                var url = new URL("http://localhost:" + endpoint.getAddress().getPort() + MetricsEndpoint.PATH);
+                String body;
+                try (var in = url.openStream()) {
+                    body = new String(in.readAllBytes());
+                }
+                assertThat(body, containsString("pcbe_items{state=\"Waiting\"} 1"));
+                assertThat(body, containsString("pcbe_book_shares{company=\"Intel\",side=\"offer\"} 6"));
+                assertThat(body, containsString("pcbe_transactions_total 1"));
+                assertThat(body, containsString("pcbe_notification_backlog 0"));
+                assertThat(body, containsString("jvm_memory_heap_used_bytes"));
+            } finally {
+                endpoint.close();
+            }
+        }
+    }
+
+    @Nested
+    class FlightRecorder extends TwoClients {
+
+        @Test
+        void orderLifecycleIsRecorded() throws IOException {
+            var file = Files.createTempFile("pcbe", ".jfr");
+            try (var recording = new Recording()) {
+                recording.start();
+                server.offerShares(seller, "Intel", 10, 2);
+                server.demandShares(buyer, "Intel", 4, 2);
+                recording.stop();
+                recording.dump(file);
+            }
+            var eventCounts = RecordingFile.readAllEvents(file).stream()
+                .collect(Collectors.groupingBy(event -> event.getEventType().getName(), Collectors.counting()));
+            assertEquals(2L, eventCounts.get("pcbe.stock.OrderAccepted"));
+            assertEquals(1L, eventCounts.get("pcbe.stock.MatchAttempt"));
+            assertEquals(1L, eventCounts.get("pcbe.stock.TradeExecuted"));
+            assertEquals(2L, eventCounts.get("pcbe.stock.NotificationDelivered"));
+            RecordedEvent trade = RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().equals("pcbe.stock.TradeExecuted"))
+                .findFirst().get();
+            assertEquals(4, trade.getInt("shares"));
+            assertEquals("Intel", trade.getString("company"));
+            Files.delete(file);
+        }
+    }
+
+    @Nested
+    class Simulation {
+
+        LoadSimulation.Config config() {
+            return LoadSimulation.Config.parse(new String[] { "clients=200", "symbols=4", "operations=5000", "seed=7" });
+        }
+
+        @Test
+        void runsWithTheSameSeedProduceTheSameTrades() throws InterruptedException {
+            var first = new LoadSimulation(config()).run();
+            var second = new LoadSimulation(config()).run();
+            assertEquals(5000, first.getOperations());
+            assertThat(first.getTrades(), not(0L));
+            assertEquals(first.getTrades(), second.getTrades());
+            assertEquals(first.getChecksum(), second.getChecksum());
+        }
+
+        @Test
+        void differentSeedsProduceDifferentTrades() throws InterruptedException {
+            var first = new LoadSimulation(config()).run();
+            var second = new LoadSimulation(config().seed(8)).run();
+            assertThat(first.getChecksum(), not(second.getChecksum()));
+        }
+
+        @Test
+        void invalidArgumentsAreRejected() {
+            assertThrows(IllegalArgumentException.class, () -> LoadSimulation.Config.parse(new String[] { "clients" }));
+            assertThrows(IllegalArgumentException.class, () -> LoadSimulation.Config.parse(new String[] { "mix=1:1" }));
+            assertThrows(IllegalArgumentException.class, () -> LoadSimulation.Config.parse(new String[] { "threads=0" }));
+        }
+    }
+
+    @Nested
+    class Archive extends TwoClients {
+
+        @Test
+        void scansReadTheArchivedTransactions() throws IOException {
+            var directory = Files.createTempDirectory("pcbe-archive");
+            try (var archive = TransactionArchive.open(directory)) {
+                archive.append(new Transaction(seller, buyer, UUID.randomUUID(), UUID.randomUUID(), "A", 10, 5), 1000);
+                archive.append(List.of(new Transaction(seller, buyer, UUID.randomUUID(), UUID.randomUUID(), "B", 5, 8),
+                    new Transaction(buyer, seller, UUID.randomUUID(), UUID.randomUUID(), "A", 30, 7)), 2000);
+
+                assertEquals(Map.of("A", 40L, "B", 5L), archive.volumeByCompany());
+                assertEquals(Map.of("A", 30L, "B", 5L), archive.volumeByCompany(1500, 3000));
+                assertThat(archive.vwapByClient().get(seller), closeTo(300.0 / 45, 1e-9));
+            }
+            try (var archive = TransactionArchive.open(directory)) {
+                assertEquals(3, archive.size());
+                assertEquals(Map.of("A", 40L, "B", 5L), archive.volumeByCompany());
+            }
+        }
+
+        @Test
+        void theArchiverFlushesTheTransactionsOfTheService() throws IOException {
+            var archiver = new TransactionArchiver(service, TransactionArchive.open(Files.createTempDirectory("pcbe-archive")), Duration.ofHours(1));
+            server.offerShares(seller, "A", 5, 10);
+            server.demandShares(buyer, "A", 2, 10);
+            server.demandShares(buyer, "A", 3, 10);
+
+            assertEquals(2, archiver.flush());
+            assertEquals(0, archiver.flush());
+            assertEquals(Map.of("A", 5L), archiver.getArchive().volumeByCompany());
+            archiver.close();
+        }
+    }
+
+    @Nested
+    class RecordAndReplay {
+
+        @Test
+        void replayDoesTheRecordedTransactions() throws IOException {
+            var file = Files.createTempFile("pcbe", ".journal");
+            var server = new RecordingStockServer(new StockService(Runnable::run), file);
+            var seller = UUID.randomUUID();
+            var buyer = UUID.randomUUID();
+            server.register(seller, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            server.register(buyer, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            var offerId = server.offerShares(seller, "A", 10, 100).getItemId();
+            server.changeOffer(seller, offerId, 20, 101);
+            server.demandShares(buyer, "A", 5, 101);
+            var removedId = server.demandShares(buyer, "B", 5, 50).getItemId();
+            server.removeItem(buyer, removedId);
+            server.getOffers(buyer, BookQuery.all().company("A").limit(1));
+            server.getDemandById(seller, removedId);
+            server.offerShares(UUID.randomUUID(), "A", 1, 1);
+            server.close();
+            assertEquals(11, server.getRecordCount());
+
+            var report = new JournalReplayer(false).replay(file);
+            Files.delete(file);
+            assertEquals(10, report.getCommands());
+            assertEquals(1, report.getTrades());
+            assertEquals(1, report.getRecordedTrades());
+            assertTrue(report.isIdentical(), report.toString());
+        }
+
+        @Test
+        void replayFollowsTheRecordedDeadlines() throws IOException, InterruptedException {
+            var file = Files.createTempFile("pcbe", ".journal");
+            var service = new StockService(Runnable::run);
+            var server = new RecordingStockServer(service, file);
+            var seller = UUID.randomUUID();
+            var buyer = UUID.randomUUID();
+            server.register(seller, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            server.register(buyer, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            server.offerShares(seller, "A", 10, 100, TimeInForce.goodFor(Duration.ofMillis(20)));
+            server.demandShares(buyer, "B", 5, 8.1);
+            server.offerShares(seller, "B", 5, 10, TimeInForce.GOOD_TILL_CANCELLED, RepricingSchedule.decaying(0.9, Duration.ofMillis(10), 8));
+            awaitUntil(() -> service.getTransactions().size() == 1 && service.getOffers().isEmpty());
+            server.close();
+
+            var report = new JournalReplayer(false).replay(file);
+            Files.delete(file);
+            assertEquals(1, report.getTrades());
+            assertTrue(report.isIdentical(), report.toString());
+        }
+
+        @Test
+        void concurrentCommandsReplayIdentically() throws IOException, InterruptedException {
+            var file = Files.createTempFile("pcbe", ".journal");
+            var server = new RecordingStockServer(new StockService(Runnable::run), file);
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                var clientId = UUID.randomUUID();
+                server.register(clientId, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+                var seed = t;
+                threads.add(new Thread(() -> {
+                    var random = new Random(seed);
+                    for (int i = 0; i < 500; i++)
+                        if (random.nextBoolean())
+                            server.offerShares(clientId, "A", 1 + random.nextInt(10), 10 + random.nextInt(3));
+                        else
+                            server.demandShares(clientId, "A", 1 + random.nextInt(10), 10 + random.nextInt(3));
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (var thread : threads)
+                thread.join();
+            server.close();
+
+            var report = new JournalReplayer(false).replay(file);
+            Files.delete(file);
+            assertThat(report.getTrades(), greaterThan(0L));
+            assertTrue(report.isIdentical(), report.toString());
+        }
+
+        @Test
+        void replayFundsTheRecordedDeposits() throws IOException {
+            var file = Files.createTempFile("pcbe", ".journal");
+            var server = new RecordingStockServer(new StockService(Runnable::run), file);
+            var seller = UUID.randomUUID();
+            var buyer = UUID.randomUUID();
+            server.register(seller, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            server.register(buyer, new StockClientNotifiers(transaction -> {}, transaction -> {}));
+            server.depositShares(seller, "A", 10);
+            server.depositCurrency(buyer, 500);
+            server.offerShares(seller, "A", 10, 40);
+            assertEquals(Status.InsufficientFunds, server.demandShares(buyer, "A", 10, 51).getStatus());
+            server.demandShares(buyer, "A", 4, 40);
+            server.close();
+
+            var report = new JournalReplayer(false).replay(file);
+            Files.delete(file);
+            assertEquals(1, report.getTrades());
+            assertTrue(report.isIdentical(), report.toString());
+        }
+
+        @Test
+        void onlyJournalsAreReplayed() throws IOException {
+            var file = Files.createTempFile("pcbe", ".journal");
+            Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            assertThrows(IOException.class, () -> new JournalReplayer(false).replay(file));
+            Files.delete(file);
+        }
+    }
+
+    @Nested
+    class Sessions {
+        StockServer server;
+
+        @BeforeEach
+        void createServer() {
+            server = new StockServer(new StockService(Runnable::run));
+        }
+
+        @Test
+        void aClientHasOneSession() {
+            var clientId = UUID.randomUUID();
+            var session = server.openSession(clientId, new StockClientNotifiers(t -> {}, t -> {}));
+            assertTrue(session.isPresent());
+            assertTrue(server.openSession(clientId, new StockClientNotifiers(t -> {}, t -> {})).isEmpty());
+            assertEquals(Status.AlreadyRegistered, server.register(clientId, new StockClientNotifiers(t -> {}, t -> {})).getStatus());
+
+            var offerId = session.get().offerShares("A", 10, 100).getItemId();
+            assertEquals(offerId, server.getOfferById(clientId, offerId).getOffer().getId());
+        }
+
+        @Test
+        void deregisteredClientsAreNotServedNorNotified() {
+            var sales = new ArrayList<Transaction>();
+            var seller = server.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, sales::add)).get();
+            var buyer = server.openSession(UUID.randomUUID(), new StockClientNotifiers(t -> {}, t -> {})).get();
+            seller.offerShares("A", 10, 100);
+
+            assertEquals(Status.Successful, seller.deregister().getStatus());
+            assertEquals(Status.NotRegistered, seller.deregister().getStatus());
+            assertEquals(Status.NotRegistered, seller.offerShares("A", 10, 100).getStatus());
+            assertEquals(Status.NotRegistered, server.getOffers(seller.getClientId()).getStatus());
+
+            assertEquals(Status.Created, buyer.demandShares("A", 10, 100).getStatus());
+            assertThat(server.getTransactionHistory(buyer.getClientId()).getTransactions(), hasSize(0));
+            assertThat(server.getOffers(buyer.getClientId()).getOffers(), hasSize(0));
+            assertTrue(sales.isEmpty());
+
+            assertEquals(Status.Successful, server.register(seller.getClientId(), new StockClientNotifiers(t -> {}, t -> {})).getStatus());
+            assertFalse(seller.isOpen());
+        }
+    }
+
 }